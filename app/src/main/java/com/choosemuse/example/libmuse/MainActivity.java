@@ -5,19 +5,18 @@
 
 package com.choosemuse.example.libmuse;
 
-import static com.choosemuse.example.libmuse.data.CSVHelper.eegFormat;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Date;
 import java.text.SimpleDateFormat;
 
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
+import android.content.Context;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
@@ -25,10 +24,12 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.View.OnClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -38,39 +39,69 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.choosemuse.example.libmuse.batch.BatchExporter;
 import com.choosemuse.example.libmuse.data.CSVHelper;
 import com.choosemuse.example.libmuse.data.CsvUploadCallback;
-import com.choosemuse.libmuse.Accelerometer;
+import com.choosemuse.example.libmuse.data.DecimatedCsvExporter;
+import com.choosemuse.example.libmuse.data.IndexedMuseFileReader;
+import com.choosemuse.example.libmuse.data.MuseFileFrameSource;
+import com.choosemuse.example.libmuse.data.RowAssembler;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionFileExporter;
+import com.choosemuse.example.libmuse.data.SessionFileFormat;
+import com.choosemuse.example.libmuse.data.SessionFileFrameSource;
+import com.choosemuse.example.libmuse.data.SessionSpill;
+import com.choosemuse.example.libmuse.dsp.FilterBank;
+import com.choosemuse.example.libmuse.metrics.MetricsFileSink;
+import com.choosemuse.example.libmuse.metrics.MetricsReporter;
+import com.choosemuse.example.libmuse.metrics.MetricsSnapshot;
+import com.choosemuse.example.libmuse.pipeline.FrameRing;
+import com.choosemuse.example.libmuse.pipeline.FrameSource;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.PipelineConfig;
+import com.choosemuse.example.libmuse.pipeline.SessionReplay;
+import com.choosemuse.example.libmuse.session.HeadbandConnection;
+import com.choosemuse.example.libmuse.session.HeadbandSession;
+import com.choosemuse.example.libmuse.session.SessionManager;
+import com.choosemuse.example.libmuse.ui.AllocationProbe;
+import com.choosemuse.example.libmuse.ui.NumberText;
+import com.choosemuse.example.libmuse.ui.SampleRing;
+import com.choosemuse.example.libmuse.ui.WaveformView;
+import com.choosemuse.example.libmuse.upload.DropboxUploadTarget;
+import com.choosemuse.example.libmuse.upload.RollingUpload;
+import com.choosemuse.example.libmuse.upload.UploadQueue;
+import com.choosemuse.example.libmuse.upload.UploadQueueCallback;
 import com.choosemuse.libmuse.AnnotationData;
 import com.choosemuse.libmuse.ConnectionState;
-import com.choosemuse.libmuse.Eeg;
 import com.choosemuse.libmuse.LibmuseVersion;
 import com.choosemuse.libmuse.MessageType;
 import com.choosemuse.libmuse.Muse;
-import com.choosemuse.libmuse.MuseArtifactPacket;
 import com.choosemuse.libmuse.MuseConfiguration;
 import com.choosemuse.libmuse.MuseConnectionListener;
 import com.choosemuse.libmuse.MuseConnectionPacket;
-import com.choosemuse.libmuse.MuseDataListener;
 import com.choosemuse.libmuse.MuseDataPacket;
-import com.choosemuse.libmuse.MuseDataPacketType;
-import com.choosemuse.libmuse.MuseFileFactory;
-import com.choosemuse.libmuse.MuseFileReader;
-import com.choosemuse.libmuse.MuseFileWriter;
 import com.choosemuse.libmuse.MuseListener;
 import com.choosemuse.libmuse.MuseManagerAndroid;
 import com.choosemuse.libmuse.MusePreset;
 import com.choosemuse.libmuse.MuseVersion;
-import com.choosemuse.libmuse.Result;
-import com.choosemuse.libmuse.ResultLevel;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This example will illustrate how to connect to a Muse headband,
@@ -83,11 +114,12 @@ import java.util.concurrent.atomic.AtomicReference;
  * 3. Turn on the Muse headband.
  * 4. Press "Refresh". It should display all paired Muses in the Spinner drop down at the
  *    top of the screen.  It may take a few seconds for the headband to be detected.
- * 5. Select the headband you want to connect to and press "Connect".
+ * 5. Select the headband you want to connect to and press "Connect".  Repeat to record
+ *    more headbands at once; the first one connected is shown on screen.
  * 6. You should see EEG and accelerometer data as well as connection status,
  *    version information and relative alpha values appear on the screen.
  * 7. You can pause/resume data transmission with the button at the bottom of the screen.
- * 8. To disconnect from the headband, press "Disconnect"
+ * 8. To disconnect from the headbands, press "Disconnect"
  */
 public class MainActivity extends AppCompatActivity implements OnClickListener {
 
@@ -106,8 +138,11 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
      * A Muse refers to a Muse headband.  Use this to connect/disconnect from the
      * headband, register listeners to receive EEG data and get headband
      * configuration and version information.
+     * <p>
+     * Several headbands can be connected at once.  Each one gets a HeadbandConnection,
+     * keyed here by MAC address, with its own data listener, session and .muse file.
      */
-    private Muse muse;
+    private final Map<String, HeadbandConnection> connections = new ConcurrentHashMap<>();
 
     /**
      * The ConnectionListener will be notified whenever there is a change in
@@ -120,48 +155,54 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
     private ConnectionListener connectionListener;
 
     /**
-     * The DataListener is how you will receive EEG (and other) data from the
-     * headband.
+     * Data comes in from the headband at a very fast rate; 220Hz, 256Hz or 500Hz,
+     * depending on the type of headband and the preset configuration.  The data listener
+     * of each headband, a HeadbandConnection, copies each packet into a reusable SampleFrame
+     * and hands it to the IngestPipeline of the headband's session, which buffers the
+     * latest values until we can update the UI and records the session rows.
+     * <p>
+     * The band powers are computed by the pipelines from raw EEG, so the headband's band
+     * power packets are not registered.
      * <p>
-     * Note that DataListener is an inner class at the bottom of this file
-     * that extends MuseDataListener.
+     * The session rows spill to storage so a long recording neither runs out of memory nor
+     * is lost in a crash; see {@link #createPipeline(String)}.
      */
-    private DataListener dataListener;
+    private SessionManager sessions;
 
     /**
-     * Data comes in from the headband at a very fast rate; 220Hz, 256Hz or 500Hz,
-     * depending on the type of headband and the preset configuration.  We buffer the
-     * data that is read until we can update the UI.
-     * <p>
-     * The stale flags indicate whether or not new data has been received and the buffers
-     * hold the values of the last data packet received.  We are displaying the EEG, ALPHA_RELATIVE
-     * and ACCELEROMETER values in this example.
-     * <p>
-     * Note: the array lengths of the buffers are taken from the comments in
-     * MuseDataPacketType, which specify 3 values for accelerometer and 6
-     * values for EEG and EEG-derived packets.
-     */
-    private final double[] eegBuffer = new double[6];
-    private boolean eegStale;
-    private final double[] alphaBuffer = new double[6];
-    private boolean alphaStale;
-    private final double[] accelBuffer = new double[3];
-    private boolean accelStale;
-    // Minimal additional buffers
-    private final double[] betaBuffer = new double[6];
-    private final double[] gammaBuffer = new double[6];
-    private final double[] thetaBuffer = new double[6];
-    private double ppgValue = 0;
-    private final List<String[]> dataRows = new ArrayList<>();
+     * The headband shown on screen and its pipeline, or null before the first connection.
+     * We are displaying the EEG, ALPHA_RELATIVE and ACCELEROMETER values in this example.
+     */
+    private volatile HeadbandConnection displayed;
+    private volatile IngestPipeline pipeline;
 
     /**
      * We will be updating the UI using a handler instead of in packet handlers because
      * packets come in at a very high frequency and it only makes sense to update the UI
-     * at about 60fps. The update functions do some string allocation, so this reduces our memory
-     * footprint and makes GC pauses less frequent/noticeable.
+     * at about 60fps.
      */
     private Handler handler;
 
+    /**
+     * Whether tickUi is posted.  The loop stops when nothing new is there to display and
+     * the pipeline restarts it when data arrives, see {@link #scheduleTick()}.
+     */
+    private final AtomicBoolean tickScheduled = new AtomicBoolean();
+
+    /**
+     * Logs the allocation rate of the app every few seconds; for comparing changes.
+     */
+    private static final boolean ALLOCATION_PROBE = false;
+    private AllocationProbe allocationProbe;
+
+    /**
+     * Every few seconds the metrics of each headband and of the uploads are appended to a
+     * CSV file next to the recordings, to compare devices and sessions.
+     */
+    private static final long METRICS_INTERVAL_MS = 10000;
+    private static final String METRICS_FILE = "metrics.csv";
+    private MetricsReporter metricsReporter;
+
     /**
      * In the UI, the list of Muses you can connect to is displayed in a Spinner object for this example.
      * This spinner adapter contains the MAC addresses of all of the headbands we have discovered.
@@ -174,20 +215,101 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
      */
     private boolean dataTransmission = true;
 
+    private final static int REQUEST_PERMISSIONS = 0x123;
+
+    private static final String DROPBOX_ACCESS_TOKEN = "sl.u.AFvBRk_FMC1w7TRQaLnTtmdHSRQ4lqQOoVmn-7PTo1BN6K8CDiDN2zu-2PBRNYy6SLNI4Zp6OyaWJ035ghIZw54GT3TkdwZxgrSvEvWoSYKhiCso8LGC1Dk2csb6kgQ17wCMXmE0dfZs0MvX7QUBxSZCgb2m-gudL85oSZBlWkLtTiNRDwdVN8DN3Hn_GHtS3GxSaC6iArSlhcChVP5DZtQW0BRKlbfTpc9OZovZ0k-HYgfTMLuqH7Q1bRzIRTCz6zwn7uxug0cY9WC5u2QC8E6WtfGur2cUMQiqEc0zAAZaaWKHWWIs4vSqMc-KzWuNejmJcS3m6gppKsCeSLTuP-khUDxGMXUGjR17_twXhqCWTwv7z9UFbN-VrihRmYl1YRY80-tyIbnmnA1ewL12DKC_TEojZ-m77DmuzvNWAZdRja0Kva1Tnr_DP1VrLrsuEXheN8v4kLyR1GKXBmmMCAYbAOKCXzzVSzr4gcC9VMA5Pi0TwYBceUuaFeZZO8tT--ybVRe97GXk4dr3EFq9ua4Z97dNwdNL5sNEtJoBSrXTXTAG01SYJ-0kFB9ytptifM7jG8aBAZb5svUD4qL1h2y75R5GJfP-s2rc5dKsVFW-HxcxOSBB2Aa8AVK74a5c5DYgAJgVNc8hHbBEnt5rwbrpcrvsCou4DXfkGAqAy3TEEZlKue-AbusaS6oka89pmzrG2iv2AgkGJFqjZyRk0t1Hn7FKdTSqQOTo1OaYyYQU9j9SsMAwZnY1Xfi00qOG0pYOsUZRNYptJfj8GoAX5C4vXdSZzoD15Gyv_OJglqHRzlsPL2DffmBFHTvVgj73BEMbLU-JiYAuHU57uKnqVrALoTljIo4OvQjsRvuWyXBQfDF60ZtZQMtlvQcMHxteO1sGvqjjdLITGhe4qhw7GnVfPN_6A2MiJlXlOacVNhqXBbadqd_Gj5WpNM_HKEetKuumJsemoeUIpUR_3Z-tRRFR_E9CZW-zzCXBHsHyxN6uw38L7ja2gXWLCZuNv0os2TkgWucgZaXt15hErcBjozj21hMKYA3SE1ewCqvaPtKp_ml0MfjTtIHL9YZBTqt1EEWTfgdfAF6h6-lF97Yr095Jii6hgSPrV_2GHGyJCZY82F-tV73wDf2zV4KhBkJCKJPMEIH0f_OP33QRgugyqtAVBNpBUhiK0ExLyo5_c4q7kcin_hIaZLwyVDiN7mGNP-5GxRx6ioDAaKmut8F2YjiI62LtIBqQZzMwsL4Xv5jFBOFkMTOXz2PIAt5HTwgg4uhL0W5ZiMlO2R7PL6a-YLn8"; // Replace with your Dropbox token
+
     /**
-     * To save data to a file, you should use a MuseFileWriter.  The MuseFileWriter knows how to
-     * serialize the data packets received from the headband into a compact binary format.
-     * To read the file back, you would use a MuseFileReader.
+     * Whether session uploads are gzip compressed.  Compressed uploads are stored as .csv.gz.
      */
-    private final AtomicReference<MuseFileWriter> fileWriter = new AtomicReference<>();
+    private static final boolean COMPRESS_UPLOADS = true;
 
     /**
-     * We don't want file operations to slow down the UI, so we will defer those file operations
-     * to a handler on a separate thread.
+     * Whether sessions are uploaded as binary session files (.msb) instead of CSV.  They
+     * are several times smaller; SessionFileCsvConverter turns them back into CSV.
      */
-    private final AtomicReference<Handler> fileHandler = new AtomicReference<>();
+    private static final boolean BINARY_UPLOADS = false;
 
-    private final static int REQUEST_PERMISSIONS = 0x123;
+    /**
+     * Whether CSV sessions are uploaded while they are recorded, a chunk every few seconds,
+     * so Send only has to add the last rows and commit.  Binary uploads are always sent
+     * whole.  The rolling upload of each headband is keyed here by MAC address; only used
+     * on the UI thread.
+     */
+    private static final boolean ROLLING_UPLOADS = true;
+    private final Map<String, RollingUpload> rollingUploads = new HashMap<>();
+
+    /**
+     * Sessions sent are queued in this directory until Dropbox has them, across restarts and
+     * while the phone is offline.  The queue lives as long as the process, so an activity
+     * recreated on rotation does not open a second queue on the same directory.
+     */
+    private static final String UPLOAD_QUEUE_DIR = "uploads";
+    private static UploadQueue uploadQueue;
+
+    /**
+     * Where the session rows spill to, and how many full chunks of 4096 rows stay in memory.
+     */
+    private static final String SESSION_SPILL_DIR = "session";
+    private static final int SESSION_MEMORY_CHUNKS = 8;
+
+    /**
+     * The mains frequency notched out of the EEG: 60 in the Americas and parts of Asia.
+     */
+    private static final double MAINS_HZ = 50;
+
+    /**
+     * Which EEG values the sessions record: the raw values, the values filtered for mains
+     * hum and drift, or both.
+     */
+    private static final IngestPipeline.EegExport EEG_EXPORT = IngestPipeline.EegExport.BOTH;
+
+    /**
+     * The pipeline of every session, live, replayed or exported from a recording later:
+     * EEG_EXPORT columns, EEG filtered for MAINS_HZ and corrected timestamps.
+     */
+    private static final PipelineConfig PIPELINE = new PipelineConfig(EEG_EXPORT,
+            IngestPipeline.DEFAULT_EEG_RATE_HZ, MAINS_HZ, true);
+
+    /**
+     * The row rate of the CSV uploads, a divisor of the EEG rate such as 64 or 128 Hz; 0 for
+     * every row.  The values are low-pass filtered before rows are dropped, in stages when
+     * EXPORT_STAGED is set, see DecimatedCsvExporter.
+     */
+    private static final double EXPORT_RATE_HZ = 0;
+    private static final boolean EXPORT_STAGED = true;
+
+    /**
+     * Where the frames of every headband are streamed live, as UDP datagrams, for example
+     * to an analysis workstation: IP addresses and ports such as "192.168.1.20:5000".
+     * Empty to not stream.  See FrameStreamer for the format.
+     */
+    private static final String[] STREAM_ENDPOINTS = {};
+
+    /**
+     * A recording in the downloads directory to play on start as if a headband were
+     * streaming it, to reproduce a session from the field: a .muse file, or a session file
+     * the app exported.  Empty to not replay.  REPLAY_SPEED plays it that many times faster
+     * than recorded; 0 plays it as fast as the recorder keeps up and logs the rate reached.
+     */
+    private static final String REPLAY_FILE = "";
+    private static final double REPLAY_SPEED = 1;
+
+    /**
+     * Whether the sessions interrupted before this process started were recovered.  Only
+     * used on the UI thread.
+     */
+    private static boolean sessionsRecovered;
+
+    /**
+     * The connection playing REPLAY_FILE, or null.  Only used on the UI thread.
+     */
+    private HeadbandConnection replayConnection;
+
+    /**
+     * The thread of the running batch export, or null.  Only used on the UI thread.
+     */
+    private Thread batchExport;
 
     //--------------------------------------
     // Lifecycle / Connection code
@@ -196,6 +318,70 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
     TextView fp1;
     TextView fp2;
     TextView tp10;
+    TextView accX;
+    TextView accY;
+    TextView accZ;
+    TextView elem1;
+    TextView elem2;
+    TextView elem3;
+    TextView elem4;
+    TextView statusText;
+    TextView museVersionText;
+
+    /**
+     * The text shown by each value view, formatted without allocating.  Same order as the
+     * views: EEG, accelerometer, alpha.
+     */
+    private final NumberText[] eegText = numberTexts(4);
+    private final NumberText[] accelText = numberTexts(3);
+    private final NumberText[] alphaText = numberTexts(4);
+
+    /**
+     * The last seconds of filtered EEG and accelerometer samples, plotted above the values.
+     * The rings are filled and read on the UI thread, see {@link #displayFrames}.
+     */
+    private static final double WAVEFORM_SECONDS = 4;
+    private static final double ACCEL_RATE_HZ = 52;
+    private final SampleRing eegRing = new SampleRing(FrameType.EEG.getValueCount(),
+            (int) (2 * WAVEFORM_SECONDS * IngestPipeline.DEFAULT_EEG_RATE_HZ));
+    private final SampleRing accelRing = new SampleRing(FrameType.ACCELEROMETER.getValueCount(),
+            (int) (2 * WAVEFORM_SECONDS * ACCEL_RATE_HZ));
+    private WaveformView eegWaveform;
+    private WaveformView accelWaveform;
+
+    /**
+     * The latest filtered EEG and accelerometer values of the displayed headband, and
+     * whether they changed since they were last shown.  Only used on the UI thread.
+     */
+    private final double[] eegValues = new double[FrameType.EEG.getValueCount()];
+    private final double[] accelValues = new double[FrameType.ACCELEROMETER.getValueCount()];
+    private boolean eegChanged;
+    private boolean accelChanged;
+
+    /**
+     * Filters the displayed EEG like the pipeline filters the recorded one.  The display
+     * skips the frames it falls behind on, so it has a filter of its own.
+     */
+    private final FilterBank displayFilter = FilterBank.forEeg(FrameType.EEG.getValueCount(),
+            IngestPipeline.DEFAULT_EEG_RATE_HZ, MAINS_HZ);
+
+    /**
+     * Receives the raw frames of the displayed headband on the UI thread.  They are copies
+     * read from the headband's ring, so the values shown are never torn by the thread
+     * recording the next packet.
+     */
+    private final FrameRing.Handler displayFrames = (frame, endOfBatch) -> {
+        if (frame.getType() == FrameType.EEG) {
+            System.arraycopy(frame.values(), 0, eegValues, 0, eegValues.length);
+            displayFilter.filter(eegValues);
+            eegRing.add(eegValues);
+            eegChanged = true;
+        } else if (frame.getType() == FrameType.ACCELEROMETER) {
+            System.arraycopy(frame.values(), 0, accelValues, 0, accelValues.length);
+            accelRing.add(frame.values());
+            accelChanged = true;
+        }
+    };
 
     ProgressBar progressBar;
     EditText userName;
@@ -211,12 +397,27 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
 
         Log.i(TAG, "LibMuse version=" + LibmuseVersion.instance().getString());
 
+        // Only the spills of an earlier process are interrupted sessions; the activity can
+        // be created again while the sessions of this process are still recording.
+        if (!sessionsRecovered) {
+            sessionsRecovered = true;
+            recoverSessions();
+        }
+        sessions = new SessionManager(this::createPipeline);
+        metricsReporter = new MetricsReporter(METRICS_INTERVAL_MS, new MetricsFileSink(
+                new File(getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), METRICS_FILE),
+                MetricsSnapshot.Format.CSV));
+        metricsReporter.add(CSVHelper.getUploadManager().getMetrics());
+        openUploadQueue();
+        uploadQueue.setCallback(dropboxCallback);
+        metricsReporter.add(uploadQueue.getMetrics());
+        metricsReporter.start();
+
         WeakReference<MainActivity> weakActivity =
                 new WeakReference<>(this);
-        // Register a listener to receive connection state changes.
+        // Register a listener to receive connection state changes.  Data is received by a
+        // listener per headband, see connect().
         connectionListener = new ConnectionListener(weakActivity);
-        // Register a listener to receive data from a Muse.
-        dataListener = new DataListener(weakActivity);
         // Register a listener to receive notifications of what Muse headbands
         // we can connect to.
         manager.setMuseListener(new MuseL(weakActivity));
@@ -242,13 +443,39 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
         // Load and initialize our UI.
         initUI();
 
-        // Start up a thread for asynchronous file operations.
-        // This is only needed if you want to do File I/O.
-        fileThread.start();
-
-        // Start our asynchronous updates of the UI.
+        // Start our asynchronous updates of the UI.  The loop runs while the displayed
+        // pipeline has new data and is woken up by it when data arrives after a pause.
         handler = new Handler(getMainLooper());
-        handler.post(tickUi);
+        if (ALLOCATION_PROBE) {
+            allocationProbe = new AllocationProbe(handler, 5000);
+            allocationProbe.start();
+        }
+        if (!REPLAY_FILE.isEmpty()) {
+            replay(REPLAY_FILE, REPLAY_SPEED);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (allocationProbe != null) {
+            allocationProbe.stop();
+        }
+        metricsReporter.stop();
+        uploadQueue.setCallback(null);
+        // The session is over once the activity is closed for good; its spill files are
+        // only kept when the app is killed, so the next start can recover them.
+        if (isFinishing()) {
+            for (RollingUpload rolling : rollingUploads.values()) {
+                rolling.stop();
+            }
+            if (replayConnection != null) {
+                replayConnection.onDisconnected();
+                replayConnection.getSession().close();
+                replayConnection = null;
+            }
+            sessions.closeAll();
+        }
     }
 
     protected void onPause() {
@@ -258,6 +485,93 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
         manager.stopListening();
     }
 
+    /**
+     * Creates the pipeline of a headband with a store that keeps the newest rows in memory
+     * and spills the rest to a directory of the headband in {@link #SESSION_SPILL_DIR}.
+     * The timestamps of its streams are corrected for Bluetooth jitter and lost samples,
+     * and its EEG is filtered for mains hum and drift.
+     */
+    private IngestPipeline createPipeline(String deviceId) {
+        final File spillDir = new File(new File(getFilesDir(), SESSION_SPILL_DIR), fileKey(deviceId));
+        SampleStore store;
+        try {
+            store = new SampleStore(spillDir, SESSION_MEMORY_CHUNKS,
+                    RowAssembler.columnNames(PIPELINE.getColumns()));
+        } catch (IOException e) {
+            Log.e(TAG, "session spill unavailable, keeping the session in memory", e);
+            store = PIPELINE.newStore();
+        }
+        return PIPELINE.newPipeline(store);
+    }
+
+    /**
+     * @return an exporter of {@code store} at {@link #EXPORT_RATE_HZ}, or null to export
+     *         every row.
+     */
+    private static DecimatedCsvExporter decimatedExporter(SampleStore store) {
+        if (EXPORT_RATE_HZ <= 0) {
+            return null;
+        }
+        return DecimatedCsvExporter.forColumns(store, PIPELINE.getColumns(),
+                PIPELINE.getEegRateHz(), EXPORT_RATE_HZ, EXPORT_STAGED);
+    }
+
+    /**
+     * @return {@code deviceId}, a MAC address, usable in a file name.
+     */
+    private static String fileKey(String deviceId) {
+        return deviceId.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    /**
+     * Recovers the sessions left in {@link #SESSION_SPILL_DIR} by a crash, one per headband.
+     * Directories with a spill still open in this process are left alone.
+     */
+    private void recoverSessions() {
+        final File root = new File(getFilesDir(), SESSION_SPILL_DIR);
+        final File[] devices = root.listFiles(File::isDirectory);
+        if (devices != null) {
+            for (File dir : devices) {
+                if (SessionSpill.hasSegments(dir) && !SessionSpill.isOpen(dir)) {
+                    recoverSession(dir);
+                }
+            }
+        }
+        // Versions recording a single headband spilled to the root itself.
+        if (SessionSpill.hasSegments(root) && !SessionSpill.isOpen(root)) {
+            recoverSession(root);
+        }
+    }
+
+    /**
+     * Moves the spill of an interrupted session aside and exports it as a session file to
+     * the downloads directory in the background.
+     */
+    private void recoverSession(File spillDir) {
+        final String name = System.currentTimeMillis() + "_" + spillDir.getName();
+        final File recovered = new File(getFilesDir(), "recovered-" + name);
+        if (!spillDir.renameTo(recovered)) {
+            // Left in place; the new session of the headband then stays in memory.
+            Log.e(TAG, "cannot move the interrupted session aside");
+            return;
+        }
+        final File out = new File(getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS),
+                "recovered_" + name + SessionFileFormat.EXTENSION);
+        new Thread(() -> {
+            try {
+                SampleStore store = SessionSpill.recover(recovered, 1);
+                try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(out))) {
+                    new SessionFileExporter().export(store, stream);
+                }
+                Log.i(TAG, "recovered " + store.size() + " rows of an interrupted session to " + out);
+                store.close();
+                recovered.delete();
+            } catch (IOException e) {
+                Log.e(TAG, "session recovery failed, spill kept in " + recovered, e);
+            }
+        }, "session-recovery").start();
+    }
+
     public boolean isBluetoothEnabled() {
         BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         if (bluetoothManager != null) {
@@ -296,108 +610,132 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
             if (availableMuses.isEmpty() || musesSpinner.getAdapter().getCount() < 1) {
                 Log.w(TAG, "There is nothing to connect to");
             } else {
-
-                // Cache the Muse that the user has selected.
-                muse = availableMuses.get(musesSpinner.getSelectedItemPosition());
-                // Unregister all prior listeners and register our data listener to
-                // receive the MuseDataPacketTypes we are interested in.  If you do
-                // not register a listener for a particular data type, you will not
-                // receive data packets of that type.
-                muse.unregisterAllListeners();
-                muse.registerConnectionListener(connectionListener);
-                muse.registerDataListener(dataListener, MuseDataPacketType.EEG);
-                muse.registerDataListener(dataListener, MuseDataPacketType.ALPHA_RELATIVE);
-                muse.registerDataListener(dataListener, MuseDataPacketType.ACCELEROMETER);
-                muse.registerDataListener(dataListener, MuseDataPacketType.BATTERY);
-                muse.registerDataListener(dataListener, MuseDataPacketType.DRL_REF);
-                muse.registerDataListener(dataListener, MuseDataPacketType.PPG);
-
-                muse.setPreset(MusePreset.PRESET_21); // Set desired preset (see documentation)
-                // Initiate a connection to the headband and stream the data asynchronously.
-                muse.runAsynchronously();
+                // Connect the Muse that the user has selected, in addition to the headbands
+                // already connected.
+                connect(availableMuses.get(musesSpinner.getSelectedItemPosition()));
             }
 
         } else if (v.getId() == R.id.disconnect) {
 
             // The user has pressed the "Disconnect" button.
-            // Disconnect from the selected Muse.
-            if (muse != null) {
-                muse.disconnect();
+            // Disconnect from every connected Muse.
+            for (HeadbandConnection connection : connections.values()) {
+                connection.getMuse().disconnect();
             }
 
         } else if (v.getId() == R.id.pause) {
 
             // The user has pressed the "Pause/Resume" button to either pause or
             // resume data transmission.  Toggle the state and pause or resume the
-            // transmission on the headband.
-            if (muse != null) {
+            // transmission on every headband.
+            if (!connections.isEmpty()) {
                 dataTransmission = !dataTransmission;
-                muse.enableDataTransmission(dataTransmission);
+                for (HeadbandConnection connection : connections.values()) {
+                    connection.getMuse().enableDataTransmission(dataTransmission);
+                }
             }
         } else if (v.getId() == R.id.send) {
-            // The user has pressed the "Save" button to save the data to CSV file and send it to One Drive
-            showProgressBar(true);
-            String csvContent = generateCsv();
-            // CSVHelper.sendCsvToGoogle(csvContent, csvCallback);
-            uploadCsvToDropbox(csvContent, "eeg_data_" + System.currentTimeMillis() + ".csv");
+            // The user has pressed the "Save" button to save the data to CSV file and send it to One Drive.
+            // Every headband recorded this run is uploaded as a file of its own.
+            final List<HeadbandSession> recorded = sessions.getSessions();
+            if (recorded.isEmpty()) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            for (HeadbandSession session : recorded) {
+                final SampleStore store = session.getPipeline().getStore();
+                final String name = "eeg_data_" + fileKey(session.getDeviceId()) + "_" + now;
+                final RollingUpload rolling = rollingUploads.get(session.getDeviceId());
+                if (rolling != null && rolling.isActive()) {
+                    rolling.finish(rollingCallback(store, name));
+                } else {
+                    enqueueSession(store, name);
+                }
+            }
 
         }
     }
-    private void uploadCsvToDropbox(String csvContent, String filename) {
-        new Thread(() -> {
-            try {
-                String accessToken = "sl.u.AFvBRk_FMC1w7TRQaLnTtmdHSRQ4lqQOoVmn-7PTo1BN6K8CDiDN2zu-2PBRNYy6SLNI4Zp6OyaWJ035ghIZw54GT3TkdwZxgrSvEvWoSYKhiCso8LGC1Dk2csb6kgQ17wCMXmE0dfZs0MvX7QUBxSZCgb2m-gudL85oSZBlWkLtTiNRDwdVN8DN3Hn_GHtS3GxSaC6iArSlhcChVP5DZtQW0BRKlbfTpc9OZovZ0k-HYgfTMLuqH7Q1bRzIRTCz6zwn7uxug0cY9WC5u2QC8E6WtfGur2cUMQiqEc0zAAZaaWKHWWIs4vSqMc-KzWuNejmJcS3m6gppKsCeSLTuP-khUDxGMXUGjR17_twXhqCWTwv7z9UFbN-VrihRmYl1YRY80-tyIbnmnA1ewL12DKC_TEojZ-m77DmuzvNWAZdRja0Kva1Tnr_DP1VrLrsuEXheN8v4kLyR1GKXBmmMCAYbAOKCXzzVSzr4gcC9VMA5Pi0TwYBceUuaFeZZO8tT--ybVRe97GXk4dr3EFq9ua4Z97dNwdNL5sNEtJoBSrXTXTAG01SYJ-0kFB9ytptifM7jG8aBAZb5svUD4qL1h2y75R5GJfP-s2rc5dKsVFW-HxcxOSBB2Aa8AVK74a5c5DYgAJgVNc8hHbBEnt5rwbrpcrvsCou4DXfkGAqAy3TEEZlKue-AbusaS6oka89pmzrG2iv2AgkGJFqjZyRk0t1Hn7FKdTSqQOTo1OaYyYQU9j9SsMAwZnY1Xfi00qOG0pYOsUZRNYptJfj8GoAX5C4vXdSZzoD15Gyv_OJglqHRzlsPL2DffmBFHTvVgj73BEMbLU-JiYAuHU57uKnqVrALoTljIo4OvQjsRvuWyXBQfDF60ZtZQMtlvQcMHxteO1sGvqjjdLITGhe4qhw7GnVfPN_6A2MiJlXlOacVNhqXBbadqd_Gj5WpNM_HKEetKuumJsemoeUIpUR_3Z-tRRFR_E9CZW-zzCXBHsHyxN6uw38L7ja2gXWLCZuNv0os2TkgWucgZaXt15hErcBjozj21hMKYA3SE1ewCqvaPtKp_ml0MfjTtIHL9YZBTqt1EEWTfgdfAF6h6-lF97Yr095Jii6hgSPrV_2GHGyJCZY82F-tV73wDf2zV4KhBkJCKJPMEIH0f_OP33QRgugyqtAVBNpBUhiK0ExLyo5_c4q7kcin_hIaZLwyVDiN7mGNP-5GxRx6ioDAaKmut8F2YjiI62LtIBqQZzMwsL4Xv5jFBOFkMTOXz2PIAt5HTwgg4uhL0W5ZiMlO2R7PL6a-YLn8"; // Replace with your Dropbox token
-                String dropboxPath = "/" + filename;
-
-                URL url = new URL("https://content.dropboxapi.com/2/files/upload");
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setDoOutput(true);
-                conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-                conn.setRequestProperty("Content-Type", "application/octet-stream");
-                conn.setRequestProperty("Dropbox-API-Arg", "{\"path\": \"" + dropboxPath + "\",\"mode\": \"overwrite\",\"autorename\": false,\"mute\": false}");
-
-                byte[] contentBytes = csvContent.getBytes("UTF-8");
-                conn.setRequestProperty("Content-Length", String.valueOf(contentBytes.length));
-
-                conn.getOutputStream().write(contentBytes);
-                int responseCode = conn.getResponseCode();
-
-                if (responseCode == 200) {
-                    runOnUiThread(() ->
-                            Toast.makeText(this, "Dropbox upload successful", Toast.LENGTH_SHORT).show()
-                    );
-                } else {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-                    String line, error = "";
-                    while ((line = reader.readLine()) != null) error += line;
-                    reader.close();
-
-                    String finalError = error;
-                    runOnUiThread(() ->
-                            Toast.makeText(this, "Dropbox upload failed: " + finalError, Toast.LENGTH_LONG).show()
-                    );
-                }
 
-            } catch (Exception e) {
-                runOnUiThread(() ->
-                        Toast.makeText(this, "Upload error: " + e.getMessage(), Toast.LENGTH_LONG).show()
-                );
+    /**
+     * Adds a session to the upload queue, which keeps it until it is delivered.
+     */
+    private void enqueueSession(SampleStore store, String name) {
+        if (BINARY_UPLOADS) {
+            uploadQueue.enqueueSessionFile(store, name + SessionFileFormat.EXTENSION);
+        } else {
+            uploadQueue.enqueueCsv(store, name + ".csv", COMPRESS_UPLOADS,
+                    decimatedExporter(store));
+        }
+    }
+
+    /**
+     * Receives the end of a rolling upload.  A rolling upload that failed to finish is
+     * stopped and not retried, so the session is sent as a whole through the upload queue.
+     */
+    private CsvUploadCallback rollingCallback(final SampleStore store, final String name) {
+        return new CsvUploadCallback() {
+            @Override
+            public void onUploadSuccess(String response) {
+                Toast.makeText(MainActivity.this, "Dropbox upload successful", Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onUploadError(Exception e) {
+                Log.w(TAG, "rolling upload of " + name + " failed, queueing the session", e);
+                enqueueSession(store, name);
+                Toast.makeText(MainActivity.this, "Upload failed, the session is queued to be sent again: "
+                        + e.getMessage(), Toast.LENGTH_LONG).show();
+            }
+        };
+    }
+    /**
+     * Opens the upload queue of the process, once, and delivers it again whenever a network
+     * with internet access comes up instead of waiting for its backoff to end.
+     */
+    private void openUploadQueue() {
+        if (uploadQueue != null) {
+            return;
+        }
+        uploadQueue = new UploadQueue(new File(getFilesDir(), UPLOAD_QUEUE_DIR),
+                new DropboxUploadTarget(DROPBOX_ACCESS_TOKEN, ""),
+                new Handler(Looper.getMainLooper())::post);
+        final ConnectivityManager connectivity =
+                (ConnectivityManager) getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connectivity.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                uploadQueue.onNetworkAvailable();
             }
-        }).start();
+        });
     }
 
-    CsvUploadCallback csvCallback = new CsvUploadCallback() {
+    /**
+     * Shows the progress bar while sessions wait in the upload queue.
+     */
+    UploadQueueCallback dropboxCallback = new UploadQueueCallback() {
+        @Override
+        public void onQueueChanged(int pendingItems, long pendingBytes) {
+            showProgressBar(pendingItems > 0);
+        }
+
         @Override
         public void onUploadSuccess(String response) {
-            showProgressBar(false);
-            Toast.makeText(MainActivity.this, "Upload successful!", Toast.LENGTH_SHORT).show();
+            Toast.makeText(MainActivity.this, "Dropbox upload successful", Toast.LENGTH_SHORT).show();
         }
 
         @Override
         public void onUploadError(Exception e) {
-            showProgressBar(false);
-            Toast.makeText(MainActivity.this, "Upload failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            Toast.makeText(MainActivity.this, "Dropbox upload failed, will retry: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+
+        @Override
+        public void onUploadFailed(String name, Exception e) {
+            Log.e(TAG, "upload of " + name + " given up, kept in " + uploadQueue.getFailedDir(), e);
+            Toast.makeText(MainActivity.this, "Dropbox rejected " + name + ", kept on the phone: "
+                    + e.getMessage(), Toast.LENGTH_LONG).show();
         }
     };
 
@@ -409,15 +747,94 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
         }
     }
 
-    private String generateCsv() {
-        StringBuilder builder = new StringBuilder();
-        builder.append("timestamp,eeg1,eeg2,eeg3,eeg4,alpha_absolute,beta_absolute,gamma_absolute,theta_absolute,ppg\n");
-        for (String[] row : dataRows) {
-            builder.append(String.join(",", row)).append("\n");
+    /**
+     * Connects {@code muse} with a listener, session and .muse file of its own, and shows it
+     * if no other headband is on screen.  Every connection gets a new recording file, so
+     * earlier sessions are kept for batch exports, see exportRecordings().
+     * <p>
+     * The recording is written with a MuseFileWriter, which serializes the data packets
+     * received from the headband into a compact binary format; a MuseFileReader reads it
+     * back, or an IndexedMuseFileReader to seek in it by time.  We don't want file operations
+     * to slow down the UI or the thread delivering packets, so the MuseFileWriter is owned by
+     * a dedicated writer thread that writes packets in batches, see BatchedMuseFileWriter.
+     */
+    private void connect(Muse muse) {
+        final String deviceId = muse.getMacAddress();
+        if (connections.containsKey(deviceId)) {
+            Log.w(TAG, muse.getName() + " is already connected");
+            return;
+        }
+        final HeadbandSession session;
+        try {
+            session = sessions.open(deviceId);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot start a session for " + muse.getName(), e);
+            return;
         }
-        return builder.toString();
+        final File dir = getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
+        final String recording = "muse_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date())
+                + "_" + fileKey(deviceId) + ".muse";
+        final HeadbandConnection connection = new HeadbandConnection(muse, session,
+                new File(dir, recording));
+        if (STREAM_ENDPOINTS.length > 0) {
+            try {
+                connection.stream(streamEndpoints());
+            } catch (IOException e) {
+                Log.e(TAG, "cannot stream " + muse.getName(), e);
+            }
+        }
+        if (ROLLING_UPLOADS && !BINARY_UPLOADS && !rollingUploads.containsKey(deviceId)) {
+            final RollingUpload rolling = new RollingUpload(session.getPipeline().getStore(),
+                    new DropboxUploadTarget(DROPBOX_ACCESS_TOKEN, ""),
+                    "eeg_data_" + fileKey(deviceId) + "_" + System.currentTimeMillis() + ".csv",
+                    COMPRESS_UPLOADS, decimatedExporter(session.getPipeline().getStore()),
+                    RollingUpload.DEFAULT_INTERVAL_MS, RollingUpload.DEFAULT_CHUNK_ROWS,
+                    new Handler(getMainLooper())::post);
+            rollingUploads.put(deviceId, rolling);
+            metricsReporter.add(rolling.getMetrics());
+            rolling.start();
+        }
+        connections.put(deviceId, connection);
+        metricsReporter.add(connection.getMetrics());
+        if (displayed == null || !connections.containsValue(displayed)) {
+            display(connection);
+        }
+        // Set desired preset (see documentation), then initiate a connection to the headband
+        // and stream the data asynchronously.
+        connection.connect(connectionListener, MusePreset.PRESET_21);
+    }
+
+    /**
+     * Parses {@link #STREAM_ENDPOINTS}.  They are IP addresses, so nothing is looked up on
+     * the UI thread.
+     */
+    private static InetSocketAddress[] streamEndpoints() {
+        final InetSocketAddress[] endpoints = new InetSocketAddress[STREAM_ENDPOINTS.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            final String endpoint = STREAM_ENDPOINTS[i];
+            final int colon = endpoint.lastIndexOf(':');
+            endpoints[i] = new InetSocketAddress(endpoint.substring(0, colon),
+                    Integer.parseInt(endpoint.substring(colon + 1)));
+        }
+        return endpoints;
     }
 
+    /**
+     * Shows the values and waveforms of {@code connection} on screen.
+     */
+    private void display(HeadbandConnection connection) {
+        final HeadbandConnection previous = displayed;
+        if (previous != null) {
+            previous.getSession().getPipeline().setStaleListener(null);
+        }
+        displayed = connection;
+        pipeline = connection.getSession().getPipeline();
+        connection.skipDisplay();
+        displayFilter.reset();
+        pipeline.setStaleListener(this::scheduleTick);
+        scheduleTick();
+    }
 
     //--------------------------------------
     // Permissions
@@ -482,11 +899,9 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
         // Update the UI with the change in connection state.
         handler.post(() -> {
 
-            final TextView statusText = findViewById(R.id.con_status);
-            statusText.setText(status);
+            statusText.setText(muse.getName() + ": " + status);
 
             final MuseVersion museVersion = muse.getMuseVersion();
-            final TextView museVersionText = findViewById(R.id.version);
             // If we haven't yet connected to the headband, the version information
             // will be null.  You have to connect to the headband before either the
             // MuseVersion or MuseConfiguration information is known.
@@ -502,99 +917,20 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
 
         if (current == ConnectionState.DISCONNECTED) {
             Log.i(TAG, "Muse disconnected:" + muse.getName());
-            // Save the data file once streaming has stopped.
-            saveFile();
-            // We have disconnected from the headband, so set our cached copy to null.
-            this.muse = null;
-        }
-    }
-
-    /**
-     * You will receive a callback to this method each time the headband sends a MuseDataPacket
-     * that you have registered.  You can use different listeners for different packet types or
-     * a single listener for all packet types as we have done here.
-     * @param p     The data packet containing the data from the headband (eg. EEG data)
-     * @param muse  The headband that sent the information.
-     */
-    public void receiveMuseDataPacket(final MuseDataPacket p, final Muse muse) {
-        writeDataPacketToFile(p);
-        String timestamp = String.valueOf(p.timestamp());
-        switch (p.packetType()) {
-            case EEG:
-                getEegChannelValues(eegBuffer, p);
-                eegStale = true;
-                break;
-            case ALPHA_ABSOLUTE:
-                for (int i = 0; i < 4; i++) alphaBuffer[i] = p.getEegChannelValue(Eeg.values()[i]);
-                break;
-            case BETA_ABSOLUTE:
-                for (int i = 0; i < 4; i++) betaBuffer[i] = p.getEegChannelValue(Eeg.values()[i]);
-                break;
-            case GAMMA_ABSOLUTE:
-                for (int i = 0; i < 4; i++) gammaBuffer[i] = p.getEegChannelValue(Eeg.values()[i]);
-                break;
-            case THETA_ABSOLUTE:
-                for (int i = 0; i < 4; i++) thetaBuffer[i] = p.getEegChannelValue(Eeg.values()[i]);
-                break;
-            case PPG:
-                //double value = p.getElement(Eeg.PPG);
-                break;
-            case ACCELEROMETER:
-                getAccelValues(p);
-                accelStale = true;
-                break;
-            default:
-                break;
-        }
-
-        // Add row to data buffer
-        String[] row = new String[]{
-                timestamp,
-                String.valueOf(eegBuffer[0]), String.valueOf(eegBuffer[1]),
-                String.valueOf(eegBuffer[2]), String.valueOf(eegBuffer[3]),
-                String.valueOf(alphaBuffer[0]), String.valueOf(betaBuffer[0]),
-                String.valueOf(gammaBuffer[0]), String.valueOf(thetaBuffer[0]),
-                String.valueOf(ppgValue)
-        };
-        dataRows.add(row);
-    }
-
-    /**
-     * You will receive a callback to this method each time an artifact packet is generated if you
-     * have registered for the ARTIFACTS data type.  MuseArtifactPackets are generated when
-     * eye blinks are detected, the jaw is clenched and when the headband is put on or removed.
-     * @param p     The artifact packet with the data from the headband.
-     * @param muse  The headband that sent the information.
-     */
-    public void receiveMuseArtifactPacket(final MuseArtifactPacket p, final Muse muse) {
-    }
-
-    /**
-     * Helper methods to get different packet values.  These methods simply store the
-     * data in the buffers for later display in the UI.
-     * <p>
-     * getEegChannelValue can be used for any EEG or EEG derived data packet type
-     * such as EEG, ALPHA_ABSOLUTE, ALPHA_RELATIVE or HSI_PRECISION.  See the documentation
-     * of MuseDataPacketType for all of the available values.
-     * Specific packet types like ACCELEROMETER, GYRO, BATTERY and DRL_REF have their own
-     * getValue methods.
-     */
-    private void getEegChannelValues(double[] buffer, final MuseDataPacket p) {
-        buffer[0] = p.getEegChannelValue(Eeg.EEG1);
-        buffer[1] = p.getEegChannelValue(Eeg.EEG2);
-        buffer[2] = p.getEegChannelValue(Eeg.EEG3);
-        buffer[3] = p.getEegChannelValue(Eeg.EEG4);
-        buffer[4] = p.getEegChannelValue(Eeg.AUX_LEFT);
-        buffer[5] = p.getEegChannelValue(Eeg.AUX_RIGHT);
-    }
-
-    private void getAccelValues(final MuseDataPacket p) {
-        accelBuffer[0] = p.getAccelerometerValue(Accelerometer.X);
-        accelBuffer[1] = p.getAccelerometerValue(Accelerometer.Y);
-        accelBuffer[2] = p.getAccelerometerValue(Accelerometer.Z);
+            // Save the data file once streaming has stopped.  The session stays available
+            // for upload.
+            final HeadbandConnection connection = connections.remove(muse.getMacAddress());
+            if (connection != null) {
+                connection.onDisconnected();
+                metricsReporter.remove(connection.getMetrics());
+                // Keep the last values on screen unless another headband is streaming.
+                if (connection == displayed && !connections.isEmpty()) {
+                    display(connections.values().iterator().next());
+                }
+            }
+        }
     }
 
-
     //--------------------------------------
     // UI Specific methods
 
@@ -608,6 +944,15 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
         fp1 = findViewById(R.id.eeg_af7);
         fp2 = findViewById(R.id.eeg_af8);
         tp10 = findViewById(R.id.eeg_tp10);
+        accX = findViewById(R.id.acc_x);
+        accY = findViewById(R.id.acc_y);
+        accZ = findViewById(R.id.acc_z);
+        elem1 = findViewById(R.id.elem1);
+        elem2 = findViewById(R.id.elem2);
+        elem3 = findViewById(R.id.elem3);
+        elem4 = findViewById(R.id.elem4);
+        statusText = findViewById(R.id.con_status);
+        museVersionText = findViewById(R.id.version);
 
         Button refreshButton = findViewById(R.id.refresh);
         refreshButton.setOnClickListener(this);
@@ -619,6 +964,11 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
         pauseButton.setOnClickListener(this);
         Button sendButton = findViewById(R.id.send);
         sendButton.setOnClickListener(this);
+        // A long press on "Save" converts the recordings of earlier sessions instead.
+        sendButton.setOnLongClickListener(v -> {
+            exportRecordings();
+            return true;
+        });
 
         progressBar = findViewById(R.id.progress_bar);
         userName = findViewById(R.id.user_name);
@@ -626,6 +976,28 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
         spinnerAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item);
         Spinner musesSpinner = findViewById(R.id.muses_spinner);
         musesSpinner.setAdapter(spinnerAdapter);
+
+        attachWaveforms();
+    }
+
+    /**
+     * Puts the EEG and accelerometer plots above the layout of the activity.
+     */
+    private void attachWaveforms() {
+        eegWaveform = new WaveformView(this, eegRing, IngestPipeline.DEFAULT_EEG_RATE_HZ,
+                WAVEFORM_SECONDS);
+        accelWaveform = new WaveformView(this, accelRing, ACCEL_RATE_HZ, WAVEFORM_SECONDS);
+
+        final float density = getResources().getDisplayMetrics().density;
+        final ViewGroup content = findViewById(android.R.id.content);
+        final View layout = content.getChildAt(0);
+        content.removeView(layout);
+        final LinearLayout column = new LinearLayout(this);
+        column.setOrientation(LinearLayout.VERTICAL);
+        column.addView(eegWaveform, ViewGroup.LayoutParams.MATCH_PARENT, (int) (180 * density));
+        column.addView(accelWaveform, ViewGroup.LayoutParams.MATCH_PARENT, (int) (90 * density));
+        column.addView(layout, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1));
+        content.addView(column);
     }
 
     /**
@@ -633,55 +1005,105 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
      * <p>
      * We update the UI from this Runnable instead of in packet handlers
      * because packets come in at high frequency -- 220Hz or more for raw EEG
-     * -- and it only makes sense to update the UI at about 60fps. The update
-     * functions do some string allocation, so this reduces our memory
-     * footprint and makes GC pauses less frequent/noticeable.
+     * -- and it only makes sense to update the UI at about 60fps.  It only
+     * keeps running while there is new data: once a tick finds nothing to
+     * display, for example with no headband connected or the transmission
+     * paused, it stops until the pipeline reports new data.
      */
     private final Runnable tickUi = new Runnable() {
         @Override
         public void run() {
-            if (eegStale) {
+            final HeadbandConnection connection = displayed;
+            if (connection == null) {
+                tickScheduled.set(false);
+                return;
+            }
+            final IngestPipeline pipeline = connection.getSession().getPipeline();
+            boolean updated = false;
+            // The raw values are read from the ring; the stale flags only wake us up.
+            pipeline.clearEegStale();
+            pipeline.clearAccelStale();
+            connection.pollDisplay(displayFrames);
+            if (eegChanged) {
+                eegChanged = false;
                 updateEeg();
+                eegWaveform.update();
+                updated = true;
             }
-            if (accelStale) {
+            if (accelChanged) {
+                accelChanged = false;
                 updateAccel();
+                accelWaveform.update();
+                updated = true;
             }
-            if (alphaStale) {
+            if (pipeline.isAlphaStale()) {
+                pipeline.clearAlphaStale();
                 updateAlpha();
+                updated = true;
+            }
+            if (updated) {
+                handler.postDelayed(tickUi, 1000 / 60);
+                return;
+            }
+            tickScheduled.set(false);
+            // Data that arrived since the checks above found the loop still scheduled and
+            // did not wake it up.
+            if (pipeline.isEegStale() || pipeline.isAccelStale() || pipeline.isAlphaStale()) {
+                scheduleTick();
             }
-            handler.postDelayed(tickUi, 1000 / 60);
         }
     };
 
+    /**
+     * Starts tickUi unless it is already running.  Called from any thread.
+     */
+    private void scheduleTick() {
+        if (tickScheduled.compareAndSet(false, true)) {
+            handler.post(tickUi);
+        }
+    }
+
+    private static NumberText[] numberTexts(int count) {
+        NumberText[] texts = new NumberText[count];
+        for (int i = 0; i < count; i++) {
+            texts[i] = new NumberText(6, 2);
+        }
+        return texts;
+    }
+
+    /**
+     * Shows {@code value} in {@code view}, formatted like "%6.2f" into the view's reused
+     * buffer.  The view is left alone if the text did not change.
+     */
+    private static void showValue(TextView view, NumberText text, double value) {
+        if (text.set(value)) {
+            view.setText(text.getChars(), 0, text.length());
+        }
+    }
+
     /**
      * The following methods update the TextViews in the UI with the data
      * from the buffers.
      */
     private void updateAccel() {
-        TextView acc_x = findViewById(R.id.acc_x);
-        TextView acc_y = findViewById(R.id.acc_y);
-        TextView acc_z = findViewById(R.id.acc_z);
-        acc_x.setText(String.format(Locale.getDefault(), "%6.2f", accelBuffer[0]));
-        acc_y.setText(String.format(Locale.getDefault(), "%6.2f", accelBuffer[1]));
-        acc_z.setText(String.format(Locale.getDefault(), "%6.2f", accelBuffer[2]));
+        showValue(accX, accelText[0], accelValues[0]);
+        showValue(accY, accelText[1], accelValues[1]);
+        showValue(accZ, accelText[2], accelValues[2]);
     }
 
     private void updateEeg() {
-        tp9.setText(String.format(Locale.getDefault(), "%6.2f", eegBuffer[0]));
-        fp1.setText(String.format(Locale.getDefault(), "%6.2f", eegBuffer[1]));
-        fp2.setText(String.format(Locale.getDefault(), "%6.2f", eegBuffer[2]));
-        tp10.setText(String.format(Locale.getDefault(), "%6.2f", eegBuffer[3]));
+        showValue(tp9, eegText[0], eegValues[0]);
+        showValue(fp1, eegText[1], eegValues[1]);
+        showValue(fp2, eegText[2], eegValues[2]);
+        showValue(tp10, eegText[3], eegValues[3]);
     }
 
     private void updateAlpha() {
-        TextView elem1 = findViewById(R.id.elem1);
-        elem1.setText(String.format(Locale.getDefault(), "%6.2f", alphaBuffer[0]));
-        TextView elem2 = findViewById(R.id.elem2);
-        elem2.setText(String.format(Locale.getDefault(), "%6.2f", alphaBuffer[1]));
-        TextView elem3 = findViewById(R.id.elem3);
-        elem3.setText(String.format(Locale.getDefault(), "%6.2f", alphaBuffer[2]));
-        TextView elem4 = findViewById(R.id.elem4);
-        elem4.setText(String.format(Locale.getDefault(), "%6.2f", alphaBuffer[3]));
+        final double[] alphaBuffer = pipeline.getAlphaBuffer();
+        showValue(elem1, alphaText[0], alphaBuffer[0]);
+        showValue(elem2, alphaText[1], alphaBuffer[1]);
+        showValue(elem3, alphaText[2], alphaBuffer[2]);
+        showValue(elem4, alphaText[3], alphaBuffer[3]);
     }
 
 
@@ -689,57 +1111,104 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
     // File I/O
 
     /**
-     * We don't want to block the UI thread while we write to a file, so the file
-     * writing is moved to a separate thread.
+     * Converts every recording in the downloads directory to CSV in its "export"
+     * subdirectory, on all cores, logs the throughput of each file and shows how many were
+     * converted and how many failed.  The recordings of the connected headbands are left
+     * out, they are still being written.  Does nothing while an export is running.
      */
-    private final Thread fileThread = new Thread() {
-        @Override
-        public void run() {
-            Looper.prepare();
-            fileHandler.set(new Handler(getMainLooper()));
-            final File dir = getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
-            final File file = new File(dir, "new_muse_file.muse" );
-            // MuseFileWriter will append to an existing file.
-            // In this case, we want to start fresh so the file
-            // if it exists.
-            if (file.exists() && !file.delete()) {
-                Log.e(TAG, "file not successfully deleted");
-            }
-            Log.i(TAG, "Writing data to: " + file.getAbsolutePath());
-            fileWriter.set(MuseFileFactory.getMuseFileWriter(file));
-            Looper.loop();
+    private void exportRecordings() {
+        if (batchExport != null && batchExport.isAlive()) {
+            Log.w(TAG, "a batch export is running");
+            return;
         }
-    };
-
-    /**
-     * Writes the provided MuseDataPacket to the file.  MuseFileWriter knows
-     * how to write all packet types generated from LibMuse.
-     * @param p     The data packet to write.
-     */
-    private void writeDataPacketToFile(final MuseDataPacket p) {
-        Handler h = fileHandler.get();
-        if (h != null) {
-            h.post(() -> fileWriter.get().addDataPacket(0, p));
+        final File dir = getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
+        final File out = new File(dir, "export");
+        final Set<File> recording = new HashSet<>();
+        for (HeadbandConnection connection : connections.values()) {
+            recording.add(connection.getWriter().getFile());
         }
+        batchExport = new Thread(() -> {
+            String message;
+            try {
+                List<BatchExporter.FileResult> results = new BatchExporter(BatchExporter.Format.CSV, PIPELINE)
+                        .export(dir, out, recording, result -> Log.i(TAG, "exported " + result));
+                int failed = 0;
+                for (BatchExporter.FileResult result : results) {
+                    if (result.getError() != null) {
+                        failed++;
+                    }
+                }
+                final int exported = results.size() - failed;
+                Log.i(TAG, "exported " + exported + " recordings to " + out + ", " + failed
+                        + " failed, " + recording.size() + " still recording");
+                message = "Exported " + exported + " recordings";
+                if (failed > 0) {
+                    message += ", " + failed + " failed";
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "batch export failed", e);
+                message = "Export failed: " + e.getMessage();
+            }
+            final String shown = message;
+            handler.post(() -> Toast.makeText(MainActivity.this, shown, Toast.LENGTH_LONG).show());
+        }, "batch-export");
+        batchExport.start();
     }
 
     /**
-     * Flushes all the data to the file and closes the file writer.
+     * Plays a recording in the downloads directory into a session of its own, through the
+     * ring and recorder of a {@link HeadbandConnection} like the packets of a headband, and
+     * shows it.  The session is kept in memory, apart from the sessions of the headbands
+     * that Send uploads.  The original timestamps are kept.  Session files are played without the
+     * timestamp corrector, their timestamps were corrected when they were recorded.
+     * @param name  A .muse file, or a session file exported by the app.
+     * @param speed How many times faster than recorded to play, 0 for as fast as possible.
      */
-    private void saveFile() {
-        Handler h = fileHandler.get();
-        if (h != null) {
-            h.post(() -> {
-                MuseFileWriter w = fileWriter.get();
-                // Annotation strings can be added to the file to
-                // give context as to what is happening at that point in
-                // time.  An annotation can be an arbitrary string or
-                // may include additional AnnotationData.
-                w.addAnnotationString(0, "Disconnected");
-                w.flush();
-                w.close();
-            });
+    private void replay(String name, double speed) {
+        if (replayConnection != null) {
+            Log.w(TAG, "a replay is running");
+            return;
+        }
+        final File file = new File(getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), name);
+        final boolean sessionFile = name.endsWith(SessionFileFormat.EXTENSION);
+        final FrameSource source;
+        try {
+            source = sessionFile
+                    ? new SessionFileFrameSource(file, PIPELINE.getColumns())
+                    : new MuseFileFrameSource(file);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot replay " + file, e);
+            return;
+        }
+        // Not opened in the session manager: the replayed rows are neither sent nor
+        // spilled, so they are not recovered as an interrupted session either.
+        final HeadbandSession session = new HeadbandSession("replay-" + name,
+                PIPELINE.newPipeline(PIPELINE.newStore()));
+        if (sessionFile) {
+            session.getPipeline().setTimestampCorrector(null);
         }
+        // The annotations of the gaps and artifacts found are only kept for this replay.
+        final HeadbandConnection connection = HeadbandConnection.forReplay(session,
+                new File(getCacheDir(), "replay.muse"), speed > 0);
+        final SessionReplay replay = new SessionReplay(source, speed);
+        replayConnection = connection;
+        metricsReporter.add(connection.getMetrics());
+        display(connection);
+        statusText.setText("Replaying " + name);
+        connection.replay(replay, error -> handler.post(() -> {
+            if (error != null) {
+                Log.e(TAG, "replay of " + name + " failed", error);
+            }
+            Log.i(TAG, String.format(Locale.US, "replayed %d frames, %.1f s of %s in %.1f s, "
+                            + "%.1fx real time, %d dropped", replay.getFrameCount(),
+                    replay.getPlayedMicros() / 1e6, name, replay.getElapsedNanos() / 1e9,
+                    replay.getAchievedSpeed(), connection.getDroppedCount()));
+            if (replayConnection == connection) {
+                connection.onDisconnected();
+                metricsReporter.remove(connection.getMetrics());
+                replayConnection = null;
+            }
+        }));
     }
 
     /**
@@ -749,6 +1218,17 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
      *              directory.
      */
     private void playMuseFile(String name) {
+        playMuseFile(name, Long.MIN_VALUE);
+    }
+
+    /**
+     * Reads the provided .muse file from {@code fromTimestamp} on and prints the messages
+     * of the given types, or of every type if none are given, to the logcat.  The file is
+     * read through its index, so the messages before {@code fromTimestamp} and those of
+     * other types are skipped without being decoded.
+     * @param fromTimestamp The timestamp to start at, in microseconds.
+     */
+    private void playMuseFile(String name, long fromTimestamp, MessageType... types) {
 
         File dir = getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
         File file = new File(dir, name);
@@ -760,77 +1240,84 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
             return;
         }
 
-        MuseFileReader fileReader = MuseFileFactory.getMuseFileReader(file);
-
-        // Loop through each message in the file.  gotoNextMessage will read the next message
-        // and return the result of the read operation as a Result.
-        Result res = fileReader.gotoNextMessage();
-        while (res.getLevel() == ResultLevel.R_INFO && !res.getInfo().contains("EOF")) {
-
-            MessageType type = fileReader.getMessageType();
-            int id = fileReader.getMessageId();
-            long timestamp = fileReader.getMessageTimestamp();
-
-            Log.i(tag, "type: " + type.toString() +
-                  " id: " + id +
-                  " timestamp: " + timestamp);
-
-            switch(type) {
-                // EEG messages contain raw EEG data or DRL/REF data.
-                // EEG derived packets like ALPHA_RELATIVE and artifact packets
-                // are stored as MUSE_ELEMENTS messages.
-                case EEG:
-                case BATTERY:
-                case ACCELEROMETER:
-                case QUANTIZATION:
-                case GYRO:
-                case MUSE_ELEMENTS:
-                    MuseDataPacket packet = fileReader.getDataPacket();
-                    Log.i(tag, "data packet: " + packet.packetType().toString());
-                    break;
-                case VERSION:
-                    MuseVersion version = fileReader.getVersion();
-                    Log.i(tag, "version" + version.getFirmwareType());
-                    break;
-                case CONFIGURATION:
-                    MuseConfiguration config = fileReader.getConfiguration();
-                    Log.i(tag, "config" + config.getBluetoothMac());
-                    break;
-                case ANNOTATION:
-                    AnnotationData annotation = fileReader.getAnnotation();
-                    Log.i(tag, "annotation" + annotation.getData());
-                    break;
-                default:
-                    break;
+        // The first open indexes the file in one pass; later opens reuse the saved index.
+        try (IndexedMuseFileReader fileReader = IndexedMuseFileReader.open(file)) {
+            Log.i(tag, "indexed " + fileReader.getIndex().size() + " messages");
+            fileReader.setTypes(types);
+            fileReader.seek(fromTimestamp);
+
+            while (fileReader.next()) {
+
+                MessageType type = fileReader.getMessageType();
+                long timestamp = fileReader.getMessageTimestamp();
+
+                Log.i(tag, "type: " + type.toString() +
+                      " message: " + fileReader.getMessageIndex() +
+                      " timestamp: " + timestamp);
+
+                switch(type) {
+                    // EEG messages contain raw EEG data or DRL/REF data.
+                    // EEG derived packets like ALPHA_RELATIVE and artifact packets
+                    // are stored as MUSE_ELEMENTS messages.
+                    case EEG:
+                    case BATTERY:
+                    case ACCELEROMETER:
+                    case QUANTIZATION:
+                    case GYRO:
+                    case MUSE_ELEMENTS:
+                        MuseDataPacket packet = fileReader.getDataPacket();
+                        Log.i(tag, "data packet: " + packet.packetType().toString());
+                        break;
+                    case VERSION:
+                        MuseVersion version = fileReader.getVersion();
+                        Log.i(tag, "version" + version.getFirmwareType());
+                        break;
+                    case CONFIGURATION:
+                        MuseConfiguration config = fileReader.getConfiguration();
+                        Log.i(tag, "config" + config.getBluetoothMac());
+                        break;
+                    case ANNOTATION:
+                        AnnotationData annotation = fileReader.getAnnotation();
+                        Log.i(tag, "annotation" + annotation.getData());
+                        break;
+                    default:
+                        break;
+                }
             }
-
-            // Read the next message.
-            res = fileReader.gotoNextMessage();
+        } catch (IOException e) {
+            Log.e(tag, "cannot read " + file, e);
         }
     }
 
+    // The latest values and the session of the headband on screen.  Only valid once a
+    // headband has connected.
+
     public double[] getBetaBuffer() {
-        return betaBuffer;
+        return pipeline.getBetaBuffer();
     }
 
     public double[] getGammaBuffer() {
-        return gammaBuffer;
+        return pipeline.getGammaBuffer();
     }
 
     public double[] getThetaBuffer() {
-        return thetaBuffer;
+        return pipeline.getThetaBuffer();
     }
 
     public double getPpgValue() {
-        return ppgValue;
+        return pipeline.getPpgValue();
     }
 
-    public void setPpgValue(double ppgValue) {
-        this.ppgValue = ppgValue;
+    /**
+     * @return the recorded rows as strings.  The view is backed by the session store and
+     *         formats each row on access.
+     */
+    public List<String[]> getDataRows() {
+        return pipeline.getStore().asStringRows();
     }
 
-    public List<String[]> getDataRows() {
-        return dataRows;
+    public SampleStore getSessionStore() {
+        return pipeline.getStore();
     }
 
 
@@ -864,22 +1351,4 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
             activityRef.get().receiveMuseConnectionPacket(p, muse);
         }
     }
-
-    static class DataListener extends MuseDataListener {
-        final WeakReference<MainActivity> activityRef;
-
-        DataListener(final WeakReference<MainActivity> activityRef) {
-            this.activityRef = activityRef;
-        }
-
-        @Override
-        public void receiveMuseDataPacket(final MuseDataPacket p, final Muse muse) {
-            activityRef.get().receiveMuseDataPacket(p, muse);
-        }
-
-        @Override
-        public void receiveMuseArtifactPacket(final MuseArtifactPacket p, final Muse muse) {
-            activityRef.get().receiveMuseArtifactPacket(p, muse);
-        }
-    }
 }
@@ -0,0 +1,390 @@
+package com.choosemuse.example.libmuse.batch;
+
+import com.choosemuse.example.libmuse.data.CsvStreamWriter;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.data.SessionFileFormat;
+import com.choosemuse.example.libmuse.data.SessionFileWriter;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.MusePacketAdapter;
+import com.choosemuse.example.libmuse.pipeline.PipelineConfig;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.libmuse.MessageType;
+import com.choosemuse.libmuse.MuseFileFactory;
+import com.choosemuse.libmuse.MuseFileReader;
+import com.choosemuse.libmuse.Result;
+import com.choosemuse.libmuse.ResultLevel;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts a directory of recorded .muse files to session exports, several files at once.
+ * <p>
+ * Every file is one task of a work-stealing {@link ForkJoinPool}, so a few long recordings
+ * and many short ones keep all cores busy.  A file is decoded into a small store that is
+ * written out and cleared every {@link #getMaxRowsInMemory()} rows, so memory use depends
+ * on the number of threads, not on the length of the recordings.  The rows are those of
+ * the {@link PipelineConfig} given: with the configuration the app records with, the same
+ * columns, filtered EEG and corrected timestamps as a live session.
+ * <p>
+ * A file is not split between tasks: the row assembly and the band power windows carry
+ * state from one packet to the next, which a split would have to reproduce at every
+ * boundary.
+ */
+public class BatchExporter {
+
+    public enum Format {
+        CSV(".csv"),
+        SESSION_FILE(SessionFileFormat.EXTENSION);
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * Called from the pool threads as each file is done.
+     */
+    public interface Listener {
+        void onFileExported(FileResult result);
+    }
+
+    /**
+     * The outcome of one file.
+     */
+    public static final class FileResult {
+        private final File input;
+        private final File output;
+        private final long rows;
+        private final long bytesRead;
+        private final long bytesWritten;
+        private final long nanos;
+        private final IOException error;
+
+        FileResult(File input, File output, long rows, long bytesWritten, long nanos,
+                   IOException error) {
+            this.input = input;
+            this.output = output;
+            this.rows = rows;
+            this.bytesRead = input.length();
+            this.bytesWritten = bytesWritten;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        public File getInput() {
+            return input;
+        }
+
+        public File getOutput() {
+            return output;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the error that stopped the export, or null if it succeeded.
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        public double getRowsPerSecond() {
+            return nanos > 0 ? rows * 1e9 / nanos : 0;
+        }
+
+        /**
+         * @return the .muse bytes converted per second, in MB.
+         */
+        public double getMegabytesPerSecond() {
+            return nanos > 0 ? bytesRead * 1e3 / nanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return input.getName() + ": " + error.getMessage();
+            }
+            return String.format(Locale.US, "%s: %d rows in %.1f s, %.0f rows/s, %.2f MB/s",
+                    input.getName(), rows, nanos / 1e9, getRowsPerSecond(), getMegabytesPerSecond());
+        }
+    }
+
+    public static final int DEFAULT_MAX_ROWS_IN_MEMORY = 16 * SampleStore.CHUNK_SIZE;
+
+    private final Format format;
+    private final PipelineConfig config;
+    private final int parallelism;
+    private final int maxRowsInMemory;
+
+    /**
+     * Uses one thread per core.
+     */
+    public BatchExporter(Format format, PipelineConfig config) {
+        this(format, config, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_ROWS_IN_MEMORY);
+    }
+
+    /**
+     * @param config            The pipeline every file is decoded through.
+     * @param parallelism       The number of files converted at once.
+     * @param maxRowsInMemory   The rows buffered per file before they are written out.
+     */
+    public BatchExporter(Format format, PipelineConfig config, int parallelism,
+                         int maxRowsInMemory) {
+        if (parallelism < 1 || maxRowsInMemory < 1) {
+            throw new IllegalArgumentException("parallelism " + parallelism
+                    + ", maxRowsInMemory " + maxRowsInMemory);
+        }
+        this.format = format;
+        this.config = config;
+        this.parallelism = parallelism;
+        this.maxRowsInMemory = maxRowsInMemory;
+    }
+
+    public int getMaxRowsInMemory() {
+        return maxRowsInMemory;
+    }
+
+    /**
+     * Converts every .muse file of {@code inputDir} into a file of the same name in
+     * {@code outputDir}.  Blocks until all files are done; a file that fails does not stop
+     * the others.
+     * @param listener  Notified per file, or null.
+     * @return the result of every file, in name order.
+     */
+    public List<FileResult> export(File inputDir, File outputDir, Listener listener) throws IOException {
+        return export(inputDir, outputDir, Collections.<File>emptySet(), listener);
+    }
+
+    /**
+     * Like {@link #export(File, File, Listener)}, without the files of {@code skip}, such as
+     * the recordings still being written.
+     * @param skip  Files of {@code inputDir} to leave out.
+     */
+    public List<FileResult> export(File inputDir, File outputDir, Set<File> skip,
+                                   Listener listener) throws IOException {
+        final File[] inputs = inputDir.listFiles((dir, name) -> name.endsWith(".muse")
+                && !skip.contains(new File(dir, name)));
+        if (inputs == null) {
+            throw new IOException("cannot list " + inputDir);
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("cannot create " + outputDir);
+        }
+        Arrays.sort(inputs);
+        final FileResult[] results = new FileResult[inputs.length];
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ExportTask(inputs, 0, inputs.length, outputDir, results, listener));
+        } finally {
+            pool.shutdown();
+        }
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    /**
+     * Splits the files in halves until a task holds one file, so idle threads steal the
+     * other halves.
+     */
+    private final class ExportTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File[] inputs;
+        private final int from;
+        private final int to;
+        private final File outputDir;
+        private final FileResult[] results;
+        private final Listener listener;
+
+        ExportTask(File[] inputs, int from, int to, File outputDir, FileResult[] results,
+                   Listener listener) {
+            this.inputs = inputs;
+            this.from = from;
+            this.to = to;
+            this.outputDir = outputDir;
+            this.results = results;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ExportTask(inputs, from, middle, outputDir, results, listener),
+                        new ExportTask(inputs, middle, to, outputDir, results, listener));
+            } else if (to > from) {
+                final File input = inputs[from];
+                final String name = input.getName();
+                final File output = new File(outputDir,
+                        name.substring(0, name.length() - ".muse".length()) + format.getExtension());
+                results[from] = exportFile(input, output);
+                if (listener != null) {
+                    listener.onFileExported(results[from]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts one file.  Never throws; failures are reported in the result.
+     */
+    public FileResult exportFile(File input, File output) {
+        final long start = System.nanoTime();
+        final SampleStore store = config.newStore();
+        final IngestPipeline pipeline = config.newPipeline(store);
+        final SampleFrame frame = new SampleFrame();
+        long rows = 0;
+        long bytes = 0;
+        IOException error = null;
+        MuseFileReader reader = null;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024)) {
+            reader = MuseFileFactory.getMuseFileReader(input);
+            final RowSink sink = format == Format.CSV
+                    ? new CsvSink(out, store) : new SessionFileSink(out, store);
+            Result result = reader.gotoNextMessage();
+            while (result.getLevel() == ResultLevel.R_INFO && !result.getInfo().contains("EOF")) {
+                if (isDataMessage(reader.getMessageType())
+                        && MusePacketAdapter.fill(reader.getDataPacket(), frame)) {
+                    pipeline.onFrame(frame);
+                    if (store.size() >= maxRowsInMemory) {
+                        rows += drain(store, sink);
+                    }
+                }
+                result = reader.gotoNextMessage();
+            }
+            if (result.getLevel() != ResultLevel.R_INFO) {
+                throw new IOException("cannot read " + input.getName() + ": " + result.getInfo());
+            }
+            pipeline.flush();
+            rows += drain(store, sink);
+            bytes = sink.finish();
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            // A corrupt recording must not stop the rest of the batch.
+            error = new IOException("cannot convert " + input.getName(), e);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+        if (error != null) {
+            output.delete();
+        }
+        return new FileResult(input, output, rows, bytes, System.nanoTime() - start, error);
+    }
+
+    private static boolean isDataMessage(MessageType type) {
+        switch (type) {
+            case EEG:
+            case ACCELEROMETER:
+            case GYRO:
+            case PPG:
+            case BATTERY:
+            case MUSE_ELEMENTS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int drain(SampleStore store, RowSink sink) throws IOException {
+        final int rows = store.size();
+        if (rows > 0) {
+            sink.write(0, rows);
+            store.clear();
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the rows of the store to the output, one batch at a time.
+     */
+    private interface RowSink {
+        void write(int from, int to) throws IOException;
+
+        /**
+         * @return the number of bytes written.
+         */
+        long finish() throws IOException;
+    }
+
+    private static final class CsvSink implements RowSink {
+        private final SampleStore store;
+        private final CsvStreamWriter writer;
+        private final SessionCsvExporter exporter = new SessionCsvExporter();
+
+        CsvSink(OutputStream out, SampleStore store) throws IOException {
+            this.store = store;
+            this.writer = new CsvStreamWriter(out);
+            writer.writeLine(store.getHeader());
+        }
+
+        @Override
+        public void write(int from, int to) throws IOException {
+            exporter.exportRows(store, writer, from, to);
+        }
+
+        @Override
+        public long finish() throws IOException {
+            writer.flush();
+            return writer.getBytesWritten();
+        }
+    }
+
+    private static final class SessionFileSink implements RowSink {
+        private final SampleStore store;
+        private final SessionFileWriter writer;
+
+        SessionFileSink(OutputStream out, SampleStore store) throws IOException {
+            this.store = store;
+            final String[] names = new String[store.getColumnCount()];
+            for (int c = 0; c < names.length; c++) {
+                names[c] = store.getColumnName(c);
+            }
+            this.writer = new SessionFileWriter(out, names, SessionCsvExporter.DEFAULT_DECIMALS);
+        }
+
+        @Override
+        public void write(int from, int to) throws IOException {
+            writer.append(store, from, to);
+        }
+
+        @Override
+        public long finish() throws IOException {
+            writer.finish();
+            return writer.getBytesWritten();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.choosemuse.example.libmuse.data;
+
+import android.util.Log;
+
+import com.choosemuse.example.libmuse.metrics.LatencyHistogram;
+import com.choosemuse.example.libmuse.metrics.MetricsRegistry;
+import com.choosemuse.libmuse.MuseArtifactPacket;
+import com.choosemuse.libmuse.MuseDataPacket;
+import com.choosemuse.libmuse.MuseFileFactory;
+import com.choosemuse.libmuse.MuseFileWriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes packets to a .muse file on a dedicated thread.
+ * <p>
+ * Producers only enqueue packets into a bounded queue.  The writer thread drains the
+ * queue in batches, hands the whole batch to {@link MuseFileWriter#addDataPacket} and
+ * flushes the file once enough packets have accumulated or enough time has passed
+ * (group commit), so storage is touched a few times per second instead of once per
+ * packet.
+ * <p>
+ * When storage stalls and the queue fills up, the {@link OverflowPolicy} decides what
+ * happens to new packets.  Dropped packets are counted, see {@link #getDroppedCount()}.
+ * <p>
+ * With {@link #registerMetrics}, one packet in {@link #LATENCY_SAMPLE_INTERVAL} is followed
+ * from the producer to the flush that writes it, giving the callback-to-disk latency
+ * without timing every packet.
+ */
+public class BatchedMuseFileWriter {
+
+    /**
+     * What to do when a packet arrives and the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait for the writer thread to make room.  Never loses data, may stall the producer. */
+        BLOCK,
+        /** Discard the oldest queued packet to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard the new packet. */
+        DROP_NEWEST
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final int DEFAULT_MAX_BATCH = 512;
+    public static final int DEFAULT_FLUSH_PACKETS = 2048;
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final int LATENCY_SAMPLE_INTERVAL = 64;
+
+    /**
+     * A sampled packet that was dropped is given up on after this long.
+     */
+    private static final long SAMPLE_TIMEOUT_NANOS = 10_000_000_000L;
+
+    private static final String TAG = "BatchedMuseFileWriter";
+
+    /**
+     * Queued when the writer should flush and close the file.
+     */
+    private static final Object CLOSE = new Object();
+
+    /**
+     * An annotation string waiting to be written.
+     */
+    private static final class Annotation {
+        final String text;
+
+        Annotation(String text) {
+            this.text = text;
+        }
+    }
+
+    private final File file;
+    private final BlockingQueue<Object> queue;
+    private final int maxBatch;
+    private final int flushPackets;
+    private final long flushIntervalMs;
+    private final OverflowPolicy policy;
+    private final Thread thread;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Set by {@link #registerMetrics} before {@link #start()}, or null.
+     */
+    private LatencyHistogram latencyHistogram;
+    private LatencyHistogram flushHistogram;
+    private LatencyHistogram closeHistogram;
+
+    /**
+     * The packet followed for the latency and when it was queued.  Set by the producer,
+     * cleared by the writer thread once it has written the packet.
+     */
+    private volatile Object sampleItem;
+    private volatile long sampleNanos;
+    private int sampleCountdown = LATENCY_SAMPLE_INTERVAL;
+    private volatile long closeNanos;
+
+    public BatchedMuseFileWriter(File file) {
+        this(file, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_FLUSH_PACKETS,
+                DEFAULT_FLUSH_INTERVAL_MS, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param file              The file to write.  An existing file is replaced.
+     * @param capacity          The maximum number of queued packets.
+     * @param maxBatch          The maximum number of packets written per batch.
+     * @param flushPackets      Flush after this many packets have been written.
+     * @param flushIntervalMs   Flush at least this often while packets are being written.
+     * @param policy            What to do when the queue is full.
+     */
+    public BatchedMuseFileWriter(File file, int capacity, int maxBatch, int flushPackets,
+                                 long flushIntervalMs, OverflowPolicy policy) {
+        this.file = file;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.flushPackets = flushPackets;
+        this.flushIntervalMs = flushIntervalMs;
+        this.policy = policy;
+        this.thread = new Thread(this::run, TAG);
+    }
+
+    /**
+     * Adds the queue depth, drop and write counts and the write latencies of this writer to
+     * {@code metrics}.  Call before {@link #start()}.
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("file.queue_depth", this::getQueueDepth);
+        metrics.gauge("file.dropped", this::getDroppedCount);
+        metrics.gauge("file.written", this::getWrittenCount);
+        latencyHistogram = metrics.histogram("file.latency_ns");
+        flushHistogram = metrics.histogram("file.flush_ns");
+        closeHistogram = metrics.histogram("file.close_ns");
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a packet for writing.
+     * @return false if the packet was dropped or the writer is closed.
+     */
+    public boolean addDataPacket(MuseDataPacket p) {
+        if (latencyHistogram != null && --sampleCountdown <= 0) {
+            sample(p);
+        }
+        return enqueue(p);
+    }
+
+    /**
+     * Follows {@code p} to disk, unless the previous sample is still on its way.
+     */
+    private void sample(MuseDataPacket p) {
+        sampleCountdown = LATENCY_SAMPLE_INTERVAL;
+        final long now = System.nanoTime();
+        if (sampleItem == null || now - sampleNanos > SAMPLE_TIMEOUT_NANOS) {
+            sampleNanos = now;
+            sampleItem = p;
+        }
+    }
+
+    /**
+     * Queues an artifact packet of the headband for writing.
+     * @return false if the packet was dropped or the writer is closed.
+     */
+    public boolean addArtifactPacket(MuseArtifactPacket p) {
+        return enqueue(p);
+    }
+
+    /**
+     * Queues an annotation string for writing.
+     * @return false if the annotation was dropped or the writer is closed.
+     */
+    public boolean addAnnotationString(String text) {
+        return enqueue(new Annotation(text));
+    }
+
+    private boolean enqueue(Object item) {
+        if (closed) {
+            return false;
+        }
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(item);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!queue.offer(item)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                return true;
+            case DROP_NEWEST:
+            default:
+                if (queue.offer(item)) {
+                    return true;
+                }
+                dropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Writes everything queued so far, then flushes and closes the file.  Returns
+     * immediately; packets added after this call are ignored.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeNanos = System.nanoTime();
+        try {
+            queue.put(CLOSE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return the .muse file written.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of packets lost because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of packets and annotations handed to the MuseFileWriter.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of packets waiting to be written.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void run() {
+        // MuseFileWriter will append to an existing file.
+        // In this case, we want to start fresh so the file
+        // if it exists.
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "file not successfully deleted");
+        }
+        Log.i(TAG, "Writing data to: " + file.getAbsolutePath());
+        final MuseFileWriter writer = MuseFileFactory.getMuseFileWriter(file);
+        final ArrayList<Object> batch = new ArrayList<>(maxBatch);
+
+        int unflushed = 0;
+        long lastFlush = System.currentTimeMillis();
+        // When the sampled packet was queued, once it has been written; 0 otherwise.
+        long sampleWritten = 0;
+        boolean open = true;
+        try {
+            while (open) {
+                long wait = unflushed == 0
+                        ? flushIntervalMs
+                        : Math.max(0, lastFlush + flushIntervalMs - System.currentTimeMillis());
+                Object first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                }
+                int count = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    Object item = batch.get(i);
+                    if (item == CLOSE) {
+                        open = false;
+                        continue;
+                    }
+                    if (item instanceof Annotation) {
+                        writer.addAnnotationString(0, ((Annotation) item).text);
+                    } else if (item instanceof MuseArtifactPacket) {
+                        writer.addArtifactPacket(0, (MuseArtifactPacket) item);
+                    } else {
+                        writer.addDataPacket(0, (MuseDataPacket) item);
+                        if (item == sampleItem) {
+                            sampleWritten = sampleNanos;
+                            sampleItem = null;
+                        }
+                    }
+                    count++;
+                }
+                unflushed += count;
+                written.addAndGet(count);
+                batch.clear();
+
+                long now = System.currentTimeMillis();
+                if (unflushed > 0 && (unflushed >= flushPackets || now - lastFlush >= flushIntervalMs)) {
+                    flush(writer, sampleWritten);
+                    sampleWritten = 0;
+                    unflushed = 0;
+                    lastFlush = now;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "writer interrupted, closing file");
+        } finally {
+            flush(writer, sampleWritten);
+            writer.close();
+            if (closeHistogram != null && closeNanos != 0) {
+                closeHistogram.recordSince(closeNanos);
+            }
+        }
+    }
+
+    private void flush(MuseFileWriter writer, long sampleWritten) {
+        if (flushHistogram == null) {
+            writer.flush();
+            return;
+        }
+        final long start = System.nanoTime();
+        writer.flush();
+        final long end = System.nanoTime();
+        flushHistogram.record(end - start);
+        if (sampleWritten != 0) {
+            latencyHistogram.record(end - sampleWritten);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes CSV text straight into an OutputStream.
+ * <p>
+ * Fields are encoded into a single reused byte buffer which is handed to the stream
+ * whenever it fills up, so the memory used does not depend on the amount of data
+ * written.  Numbers are formatted with {@link FixedPointFormat}; no Strings are
+ * created per field.
+ */
+public class CsvStreamWriter implements Flushable, Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+    private boolean rowStarted;
+    private long bytesWritten;
+
+    public CsvStreamWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CsvStreamWriter(OutputStream out, int bufferSize) {
+        if (bufferSize < 2 * FixedPointFormat.MAX_LENGTH) {
+            throw new IllegalArgumentException("buffer too small: " + bufferSize);
+        }
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Writes a line of text as is.  Used for the header; the text must be ASCII.
+     */
+    public void writeLine(String line) throws IOException {
+        for (int i = 0; i < line.length(); i++) {
+            if (position == buffer.length) {
+                drain();
+            }
+            buffer[position++] = (byte) line.charAt(i);
+        }
+        endRow();
+    }
+
+    public void writeField(long value) throws IOException {
+        reserve();
+        position = FixedPointFormat.formatLong(value, buffer, position);
+    }
+
+    public void writeField(double value, int decimals) throws IOException {
+        reserve();
+        position = FixedPointFormat.formatDouble(value, decimals, buffer, position);
+    }
+
+    public void endRow() throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = '\n';
+        rowStarted = false;
+    }
+
+    /**
+     * Makes room for one more field and writes its separator.
+     */
+    private void reserve() throws IOException {
+        if (buffer.length - position <= FixedPointFormat.MAX_LENGTH) {
+            drain();
+        }
+        if (rowStarted) {
+            buffer[position++] = ',';
+        }
+        rowStarted = true;
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, position);
+        bytesWritten += position;
+        position = 0;
+    }
+
+    /**
+     * @return the number of bytes written so far, including buffered bytes.
+     */
+    public long getBytesWritten() {
+        return bytesWritten + position;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.choosemuse.example.libmuse.data;
+
+import com.choosemuse.example.libmuse.dsp.Decimator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams a session as CSV at a fraction of its row rate, for consumers that only need
+ * 64 or 128 Hz EEG.
+ * <p>
+ * The value columns pass through a {@link Decimator}, which filters out what would alias
+ * at the new rate, except the columns recorded with {@link RowAssembler.Interpolation#STEP},
+ * the artifact flags, which must stay 0 or 1: they take the value of the row at the output
+ * time.  Every output row has the timestamp of the input row at the centre of the filters,
+ * so the values stay aligned with the full rate export.
+ * <p>
+ * Unlike {@link SessionCsvExporter} an exporter belongs to one store and keeps the state of
+ * the filters between calls: {@link #exportRows} continues where the previous call ended,
+ * and {@link #finish} writes the rows the filters still hold, so a session can be exported
+ * in parts, as the rolling upload does.  Nothing is allocated per row.
+ */
+public final class DecimatedCsvExporter {
+
+    private final SampleStore store;
+    private final int decimals;
+    private final Decimator decimator;
+
+    /**
+     * The value columns that are filtered, and the others, by column index.
+     */
+    private final int[] filteredColumns;
+    private final int[] pickedColumns;
+    private final double[] filtered;
+
+    /**
+     * The timestamps and picked values of the last {@code delay + 1} rows, by row modulo
+     * delay + 1, to find the row at the centre of the filters.
+     */
+    private final int delay;
+    private final long[] timestamps;
+    private final double[] picked;
+
+    /**
+     * The next input row.
+     */
+    private int next;
+
+    /**
+     * @param filter  For every value column of the store, whether it is filtered.
+     * @param factor  The number of input rows per output row.
+     * @param staged  Whether to decimate in stages, see {@link Decimator}.
+     */
+    public DecimatedCsvExporter(SampleStore store, boolean[] filter, int factor, boolean staged,
+                                int decimals) {
+        if (filter.length != store.getColumnCount()) {
+            throw new IllegalArgumentException(filter.length + " flags for "
+                    + store.getColumnCount() + " columns");
+        }
+        this.store = store;
+        this.decimals = decimals;
+        int count = 0;
+        for (boolean f : filter) {
+            count += f ? 1 : 0;
+        }
+        this.filteredColumns = new int[count];
+        this.pickedColumns = new int[filter.length - count];
+        for (int c = 0, f = 0, p = 0; c < filter.length; c++) {
+            if (filter[c]) {
+                filteredColumns[f++] = c;
+            } else {
+                pickedColumns[p++] = c;
+            }
+        }
+        this.filtered = new double[count];
+        this.decimator = new Decimator(count, factor, staged);
+        this.delay = decimator.getDelay();
+        this.timestamps = new long[delay + 1];
+        this.picked = new double[(delay + 1) * pickedColumns.length];
+    }
+
+    /**
+     * An exporter of the session recorded with {@code columns}, one row per raw EEG sample.
+     * @param outputRateHz A rate that divides {@code inputRateHz}.
+     */
+    public static DecimatedCsvExporter forColumns(SampleStore store, RowAssembler.Column[] columns,
+                                                  double inputRateHz, double outputRateHz,
+                                                  boolean staged) {
+        final long factor = Math.round(inputRateHz / outputRateHz);
+        if (factor < 1 || Math.abs(factor * outputRateHz - inputRateHz) > 1e-6 * inputRateHz) {
+            throw new IllegalArgumentException(outputRateHz + " Hz does not divide "
+                    + inputRateHz + " Hz");
+        }
+        final boolean[] filter = new boolean[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            filter[c] = columns[c].getInterpolation() != RowAssembler.Interpolation.STEP;
+        }
+        return new DecimatedCsvExporter(store, filter, (int) factor, staged,
+                SessionCsvExporter.DEFAULT_DECIMALS);
+    }
+
+    public Decimator getDecimator() {
+        return decimator;
+    }
+
+    /**
+     * Writes the header and all rows of the store to {@code out}.  The stream is flushed
+     * but not closed.
+     * @return the number of bytes written.
+     */
+    public long export(OutputStream out) throws IOException {
+        final CsvStreamWriter writer = new CsvStreamWriter(out);
+        writeHeader(writer);
+        exportRows(writer, next, store.size());
+        finish(writer);
+        writer.flush();
+        return writer.getBytesWritten();
+    }
+
+    public void writeHeader(CsvStreamWriter writer) throws IOException {
+        writer.writeLine(store.getHeader());
+    }
+
+    /**
+     * Filters the rows in [{@code from}, {@code to}) and writes the output rows they
+     * complete.
+     * @param from  The row after the last one of the previous call, or 0.
+     */
+    public void exportRows(CsvStreamWriter writer, int from, int to) throws IOException {
+        if (from != next || to > store.size()) {
+            throw new IndexOutOfBoundsException("rows " + from + " to " + to + ", next " + next
+                    + ", size " + store.size());
+        }
+        int row = from;
+        while (row < to) {
+            final int chunk = row >>> SampleStore.CHUNK_SHIFT;
+            final int start = row & (SampleStore.CHUNK_SIZE - 1);
+            final int end = start + Math.min(to - row, SampleStore.CHUNK_SIZE - start);
+            final long[] chunkTimestamps = store.getTimestampChunk(chunk);
+            final double[][] values = store.getValueChunk(chunk);
+            for (int i = start; i < end; i++) {
+                final int slot = next % (delay + 1);
+                timestamps[slot] = chunkTimestamps[i];
+                for (int p = 0; p < pickedColumns.length; p++) {
+                    picked[slot * pickedColumns.length + p] = values[pickedColumns[p]][i];
+                }
+                for (int f = 0; f < filteredColumns.length; f++) {
+                    filtered[f] = values[filteredColumns[f]][i];
+                }
+                push(writer, next++);
+            }
+            row += end - start;
+        }
+    }
+
+    /**
+     * Writes the output rows of the last {@code delay} input rows, by repeating the last
+     * row into the filters.  No rows can be exported afterwards.
+     */
+    public void finish(CsvStreamWriter writer) throws IOException {
+        final int last = next;
+        if (last == 0) {
+            return;
+        }
+        for (int n = last; n < last + delay; n++) {
+            for (int f = 0; f < filteredColumns.length; f++) {
+                filtered[f] = store.getValue(last - 1, filteredColumns[f]);
+            }
+            push(writer, n);
+        }
+        next = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Adds input row {@code n} to the filters and writes the output row of the row
+     * {@code delay} before it, if one is due.
+     */
+    private void push(CsvStreamWriter writer, int n) throws IOException {
+        if (!decimator.push(filtered) || n < delay) {
+            return;
+        }
+        final int slot = (n - delay) % (delay + 1);
+        writer.writeField(timestamps[slot]);
+        for (int c = 0, f = 0, p = 0; c < store.getColumnCount(); c++) {
+            if (f < filteredColumns.length && filteredColumns[f] == c) {
+                writer.writeField(filtered[f++], decimals);
+            } else {
+                writer.writeField(picked[slot * pickedColumns.length + p++], decimals);
+            }
+        }
+        writer.endRow();
+    }
+}
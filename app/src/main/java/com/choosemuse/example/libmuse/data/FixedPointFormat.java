@@ -0,0 +1,122 @@
+package com.choosemuse.example.libmuse.data;
+
+/**
+ * Formats numbers as ASCII text directly into a caller supplied buffer.
+ * <p>
+ * This replaces {@code String.format("%.Nf", ...)} on the export path: no Formatter,
+ * no intermediate String and no parsing.  Values are rounded half up to a fixed
+ * number of decimals.
+ */
+public final class FixedPointFormat {
+
+    /**
+     * The largest number of decimals supported.
+     */
+    public static final int MAX_DECIMALS = 9;
+
+    /**
+     * The largest number of bytes a formatted value can take
+     * (sign, 19 integer digits, point and decimals).
+     */
+    public static final int MAX_LENGTH = 1 + 19 + 1 + MAX_DECIMALS;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L,
+            10000000L, 100000000L, 1000000000L
+    };
+
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+
+    private FixedPointFormat() {
+    }
+
+    /**
+     * Writes {@code value} in decimal notation.
+     * @param value     The value to write.
+     * @param out       The destination, with at least {@link #MAX_LENGTH} bytes free at {@code pos}.
+     * @param pos       The position to start writing at.
+     * @return the position after the last byte written.
+     */
+    public static int formatLong(long value, byte[] out, int pos) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return copy(Long.toString(value), out, pos);
+            }
+            out[pos++] = '-';
+            value = -value;
+        }
+        return writeDigits(value, out, pos);
+    }
+
+    /**
+     * Writes {@code value} with exactly {@code decimals} digits after the decimal point.
+     * NaN and infinities are written the same way {@link Double#toString(double)} writes them.
+     * @param value     The value to write.
+     * @param decimals  The number of decimals, between 0 and {@link #MAX_DECIMALS}.
+     * @param out       The destination, with at least {@link #MAX_LENGTH} bytes free at {@code pos}.
+     * @param pos       The position to start writing at.
+     * @return the position after the last byte written.
+     */
+    public static int formatDouble(double value, int decimals, byte[] out, int pos) {
+        if (decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("decimals: " + decimals);
+        }
+        if (Double.isNaN(value)) {
+            return copy(NAN, out, pos);
+        }
+        boolean negative = value < 0;
+        double magnitude = Math.abs(value);
+        if (Double.isInfinite(magnitude)) {
+            if (negative) {
+                out[pos++] = '-';
+            }
+            return copy(INFINITY, out, pos);
+        }
+        final long scale = POWERS_OF_TEN[decimals];
+        final double scaledValue = magnitude * scale;
+        if (scaledValue >= 9.0e18) {
+            // Too large for fixed point in a long; this never happens for sensor data.
+            return copy(Double.toString(value), out, pos);
+        }
+        final long scaled = Math.round(scaledValue);
+        if (negative && scaled != 0) {
+            out[pos++] = '-';
+        }
+        pos = writeDigits(scaled / scale, out, pos);
+        if (decimals > 0) {
+            out[pos++] = '.';
+            long fraction = scaled % scale;
+            for (int i = pos + decimals - 1; i >= pos; i--) {
+                out[i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            pos += decimals;
+        }
+        return pos;
+    }
+
+    private static int writeDigits(long value, byte[] out, int pos) {
+        int length = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            length++;
+        }
+        for (int i = pos + length - 1; i >= pos; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + length;
+    }
+
+    private static int copy(byte[] text, byte[] out, int pos) {
+        System.arraycopy(text, 0, out, pos, text.length);
+        return pos + text.length;
+    }
+
+    private static int copy(String text, byte[] out, int pos) {
+        for (int i = 0; i < text.length(); i++) {
+            out[pos++] = (byte) text.charAt(i);
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,185 @@
+package com.choosemuse.example.libmuse.data;
+
+import com.choosemuse.libmuse.AnnotationData;
+import com.choosemuse.libmuse.MessageType;
+import com.choosemuse.libmuse.MuseConfiguration;
+import com.choosemuse.libmuse.MuseDataPacket;
+import com.choosemuse.libmuse.MuseFileReader;
+import com.choosemuse.libmuse.MuseVersion;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads a .muse file in any order through its {@link MuseFileIndex}.
+ * <p>
+ * {@link #seek} moves to the first message at or after a timestamp, and
+ * {@link #setTypes} restricts {@link #next()} to some message types.  Both jump straight to
+ * the byte offset of the next message wanted, so messages before it, or of other types, are
+ * never decoded.
+ * <p>
+ * The first open of a file builds its index in one pass and saves it as a sidecar; later
+ * opens load the sidecar instead, as long as the file has not changed.
+ * <p>
+ * A reader is not thread safe.
+ */
+public class IndexedMuseFileReader implements Closeable {
+
+    private final File file;
+    private final MuseFileIndex index;
+    private final SeekableMuseFile museFile;
+    private final MuseFileReader reader;
+
+    private boolean[] accepted;
+
+    /**
+     * The message the underlying reader reads next, and the one it is on.
+     */
+    private int streamMessage;
+    private int current = -1;
+
+    /**
+     * Messages before this timestamp are skipped by the next {@link #next()}, after a seek.
+     */
+    private long seekTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Opens {@code file}, loading its sidecar index or building and saving it.
+     * @throws IOException if the file cannot be indexed.
+     */
+    public static IndexedMuseFileReader open(File file) throws IOException {
+        MuseFileIndex index = MuseFileIndex.load(file);
+        if (index == null) {
+            index = MuseFileIndex.build(file);
+            try {
+                index.save(file);
+            } catch (IOException e) {
+                // The index still works for this reader; the next open rebuilds it.
+            }
+        }
+        return new IndexedMuseFileReader(file, index);
+    }
+
+    private IndexedMuseFileReader(File file, MuseFileIndex index) throws IOException {
+        this.file = file;
+        this.index = index;
+        this.museFile = new SeekableMuseFile(file);
+        if (!museFile.open(false)) {
+            throw new IOException("cannot open " + file);
+        }
+        this.reader = MuseFileReader.getFileReader(museFile);
+    }
+
+    public MuseFileIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Restricts {@link #next()} to messages of the given types; no types means all of them.
+     */
+    public void setTypes(MessageType... types) {
+        if (types.length == 0) {
+            accepted = null;
+            return;
+        }
+        accepted = new boolean[MessageType.values().length];
+        for (MessageType type : types) {
+            accepted[type.ordinal()] = true;
+        }
+    }
+
+    /**
+     * Moves before the first message at or after {@code timestamp}, in microseconds, so
+     * {@link #next()} returns it or the first accepted message after it.
+     */
+    public void seek(long timestamp) {
+        seekToMessage(index.findStride(timestamp));
+        seekTimestamp = timestamp;
+    }
+
+    /**
+     * Moves before message {@code message} of the index.
+     */
+    public void seekToMessage(int message) {
+        if (message < 0 || message > index.size()) {
+            throw new IndexOutOfBoundsException("message " + message + ", size " + index.size());
+        }
+        streamMessage = -1;
+        current = message - 1;
+        seekTimestamp = Long.MIN_VALUE;
+    }
+
+    /**
+     * Reads the next accepted message.
+     * @return false at the end of the file.
+     * @throws IOException if the file no longer matches its index.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            final int message = index.next(current + 1, accepted);
+            if (message == index.size()) {
+                current = message;
+                return false;
+            }
+            if (message != streamMessage) {
+                museFile.seek(index.getOffset(message));
+            }
+            if (!MuseFileIndex.gotoNextMessage(reader)
+                    || reader.getMessageType() != index.getType(message)) {
+                throw new IOException(file + " does not match its index at message " + message);
+            }
+            current = message;
+            streamMessage = message + 1;
+            if (reader.getMessageTimestamp() >= seekTimestamp) {
+                seekTimestamp = Long.MIN_VALUE;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the position in the index of the current message.
+     */
+    public int getMessageIndex() {
+        return current;
+    }
+
+    public MessageType getMessageType() {
+        return reader.getMessageType();
+    }
+
+    public long getMessageTimestamp() {
+        return reader.getMessageTimestamp();
+    }
+
+    public MuseDataPacket getDataPacket() {
+        return reader.getDataPacket();
+    }
+
+    public AnnotationData getAnnotation() {
+        return reader.getAnnotation();
+    }
+
+    public MuseVersion getVersion() {
+        return reader.getVersion();
+    }
+
+    public MuseConfiguration getConfiguration() {
+        return reader.getConfiguration();
+    }
+
+    /**
+     * @return the libmuse reader, positioned on the current message, for the message kinds
+     *         this class has no getter for.
+     */
+    public MuseFileReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+        museFile.close(false);
+    }
+}
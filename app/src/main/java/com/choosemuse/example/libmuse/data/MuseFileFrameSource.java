@@ -0,0 +1,57 @@
+package com.choosemuse.example.libmuse.data;
+
+import com.choosemuse.example.libmuse.pipeline.FrameSource;
+import com.choosemuse.example.libmuse.pipeline.MusePacketAdapter;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.libmuse.MessageType;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The data packets of a .muse file as frames, converted by the {@link MusePacketAdapter}
+ * like the packets of a connected headband.  Packets the pipeline does not handle, and
+ * the other messages of the file, are skipped without being decoded.
+ */
+public final class MuseFileFrameSource implements FrameSource {
+
+    /**
+     * The messages that hold data packets.  DRL/REF packets are stored as EEG messages and
+     * the EEG derived packets as MUSE_ELEMENTS messages.
+     */
+    private static final MessageType[] DATA_MESSAGES = {
+            MessageType.EEG, MessageType.ACCELEROMETER, MessageType.GYRO, MessageType.PPG,
+            MessageType.BATTERY, MessageType.MUSE_ELEMENTS
+    };
+
+    private final IndexedMuseFileReader reader;
+
+    /**
+     * Opens {@code file} at its first packet at or after {@code fromTimestamp}, in
+     * microseconds.
+     */
+    public MuseFileFrameSource(File file, long fromTimestamp) throws IOException {
+        this.reader = IndexedMuseFileReader.open(file);
+        reader.setTypes(DATA_MESSAGES);
+        reader.seek(fromTimestamp);
+    }
+
+    public MuseFileFrameSource(File file) throws IOException {
+        this(file, Long.MIN_VALUE);
+    }
+
+    @Override
+    public boolean next(SampleFrame frame) throws IOException {
+        while (reader.next()) {
+            if (MusePacketAdapter.fill(reader.getDataPacket(), frame)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+}
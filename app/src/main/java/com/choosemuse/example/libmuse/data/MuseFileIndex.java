@@ -0,0 +1,271 @@
+package com.choosemuse.example.libmuse.data;
+
+import com.choosemuse.libmuse.MessageType;
+import com.choosemuse.libmuse.MuseFileReader;
+import com.choosemuse.libmuse.Result;
+import com.choosemuse.libmuse.ResultLevel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The byte offset and {@link MessageType} of every message of a .muse file, built in one
+ * pass over the file and kept in a sidecar file next to it.
+ * <p>
+ * Timestamps are indexed per stride of {@link #STRIDE} messages: for each stride the index
+ * keeps the largest timestamp seen up to its end, so finding the first message at or after
+ * a time is a binary search followed by decoding at most one stride.  The whole index costs
+ * 5 bytes per message in memory and on disk.
+ * <p>
+ * The sidecar records the length and modification time of the .muse file it was built
+ * from and is ignored once either changes, for example while the file is still recorded.
+ * <p>
+ * Sidecar layout, big-endian:
+ * <pre>
+ * int magic, short version, short stride shift, long source length, long source modified,
+ * int message count, int[count] offsets, byte[count] types, long[strides] stride maxima
+ * </pre>
+ */
+public final class MuseFileIndex {
+
+    /**
+     * Appended to the name of the .muse file to name its sidecar.
+     */
+    public static final String EXTENSION = ".idx";
+
+    static final int MAGIC = 0x4D534958;
+    static final short VERSION = 1;
+
+    private static final int STRIDE_SHIFT = 6;
+    public static final int STRIDE = 1 << STRIDE_SHIFT;
+
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 8 + 4;
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final long sourceLength;
+    private final long sourceModified;
+    private final int count;
+    private final int[] offsets;
+    private final byte[] types;
+    private final long[] strideMax;
+
+    private MuseFileIndex(long sourceLength, long sourceModified, int count, int[] offsets,
+                          byte[] types, long[] strideMax) {
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.count = count;
+        this.offsets = offsets;
+        this.types = types;
+        this.strideMax = strideMax;
+    }
+
+    /**
+     * @return the sidecar file of {@code museFile}.
+     */
+    public static File sidecar(File museFile) {
+        return new File(museFile.getParentFile(), museFile.getName() + EXTENSION);
+    }
+
+    /**
+     * Reads every message of {@code museFile} once to index it.
+     * @throws IOException if the file cannot be read or is too large to index.
+     */
+    public static MuseFileIndex build(File museFile) throws IOException {
+        final long length = museFile.length();
+        final long modified = museFile.lastModified();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(museFile + " is too large to index");
+        }
+        final SeekableMuseFile in = new SeekableMuseFile(museFile);
+        if (!in.open(false)) {
+            throw new IOException("cannot open " + museFile);
+        }
+        final MuseFileReader reader = MuseFileReader.getFileReader(in);
+        try {
+            int[] offsets = new int[1024];
+            byte[] types = new byte[1024];
+            long[] strideMax = new long[1024 >> STRIDE_SHIFT];
+            long max = Long.MIN_VALUE;
+            int count = 0;
+            while (true) {
+                final long offset = in.position();
+                if (!gotoNextMessage(reader)) {
+                    break;
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    types = Arrays.copyOf(types, count * 2);
+                    strideMax = Arrays.copyOf(strideMax, (count * 2) >> STRIDE_SHIFT);
+                }
+                offsets[count] = (int) offset;
+                types[count] = (byte) reader.getMessageType().ordinal();
+                max = Math.max(max, reader.getMessageTimestamp());
+                strideMax[count >> STRIDE_SHIFT] = max;
+                count++;
+            }
+            return new MuseFileIndex(length, modified, count, offsets, types, strideMax);
+        } finally {
+            reader.close();
+            in.close(false);
+        }
+    }
+
+    /**
+     * Reads the next message.
+     * @return false at the end of the file.
+     */
+    static boolean gotoNextMessage(MuseFileReader reader) {
+        final Result result = reader.gotoNextMessage();
+        return result.getLevel() == ResultLevel.R_INFO && !result.getInfo().contains("EOF");
+    }
+
+    /**
+     * Loads the sidecar of {@code museFile}.
+     * @return the index, or null if there is no sidecar or it does not match the file.
+     */
+    public static MuseFileIndex load(File museFile) {
+        final File sidecar = sidecar(museFile);
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(sidecar, "r")) {
+            final FileChannel channel = in.getChannel();
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.getInt() != MAGIC || data.getShort() != VERSION
+                    || data.getShort() != STRIDE_SHIFT) {
+                return null;
+            }
+            final long length = data.getLong();
+            final long modified = data.getLong();
+            final int count = data.getInt();
+            final int strides = strides(count);
+            if (length != museFile.length() || modified != museFile.lastModified() || count < 0
+                    || data.remaining() != count * 5L + strides * 8L) {
+                return null;
+            }
+            final int[] offsets = new int[count];
+            final byte[] types = new byte[count];
+            final long[] strideMax = new long[strides];
+            data.asIntBuffer().get(offsets);
+            data.position(data.position() + count * 4);
+            data.get(types);
+            data.asLongBuffer().get(strideMax);
+            for (int i = 0; i < count; i++) {
+                if (types[i] < 0 || types[i] >= TYPES.length) {
+                    return null;
+                }
+            }
+            return new MuseFileIndex(length, modified, count, offsets, types, strideMax);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int strides(int count) {
+        return (count + STRIDE - 1) >> STRIDE_SHIFT;
+    }
+
+    /**
+     * Writes the sidecar of {@code museFile}, replacing any previous one.
+     */
+    public void save(File museFile) throws IOException {
+        final File sidecar = sidecar(museFile);
+        final File temp = new File(sidecar.getPath() + ".tmp");
+        final int strides = strides(count);
+        final ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + count * 5 + strides * 8);
+        data.putInt(MAGIC);
+        data.putShort(VERSION);
+        data.putShort((short) STRIDE_SHIFT);
+        data.putLong(sourceLength);
+        data.putLong(sourceModified);
+        data.putInt(count);
+        data.asIntBuffer().put(offsets, 0, count);
+        data.position(data.position() + count * 4);
+        data.put(types, 0, count);
+        data.asLongBuffer().put(strideMax, 0, strides);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data.array());
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(sidecar)) {
+            temp.delete();
+            throw new IOException("cannot write " + sidecar);
+        }
+    }
+
+    /**
+     * @return the number of messages in the file.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the byte offset of a message in the .muse file.
+     */
+    public long getOffset(int message) {
+        return offsets[message];
+    }
+
+    public MessageType getType(int message) {
+        return TYPES[types[message]];
+    }
+
+    /**
+     * @return the number of messages of {@code type}.
+     */
+    public int count(MessageType type) {
+        final byte ordinal = (byte) type.ordinal();
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (types[i] == ordinal) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the first message that can have a timestamp at or after {@code timestamp}: the
+     *         start of the first stride whose messages reach it, or {@link #size()}.  The
+     *         message itself may be earlier; decode from there to find the exact one.
+     */
+    public int findStride(long timestamp) {
+        int low = 0;
+        int high = strides(count);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (strideMax[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.min(low << STRIDE_SHIFT, count);
+    }
+
+    /**
+     * @param accepted  Indexed by {@link MessageType#ordinal()}, or null to accept every type.
+     * @return the first message at or after {@code from} of an accepted type, or
+     *         {@link #size()} if there is none.
+     */
+    public int next(int from, boolean[] accepted) {
+        if (accepted == null) {
+            return Math.min(from, count);
+        }
+        for (int i = from; i < count; i++) {
+            if (accepted[types[i]]) {
+                return i;
+            }
+        }
+        return count;
+    }
+}
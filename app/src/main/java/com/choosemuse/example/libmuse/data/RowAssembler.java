@@ -0,0 +1,370 @@
+package com.choosemuse.example.libmuse.data;
+
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import java.util.Arrays;
+
+/**
+ * Turns the interleaved packet streams of a headband into time aligned rows.
+ * <p>
+ * Rows are emitted on a master clock: either one row per packet of a master stream
+ * (normally raw EEG), or one row per tick of a fixed rate grid.  Every other column is
+ * attached to the row from its own, usually slower, stream using the column's
+ * {@link Interpolation} policy.  Packets of streams that have no column never create rows.
+ * <p>
+ * Work is incremental: rows are written to the {@link SampleStore} as packets arrive.
+ * Rows that need {@link Interpolation#LINEAR} or {@link Interpolation#STEP} values wait in a
+ * small preallocated queue until every such column has received a sample at or after the
+ * row's time, or until they are older than the maximum lag.  Nothing is allocated per
+ * packet.
+ * <p>
+ * All methods must be called from the thread delivering the packets.
+ */
+public class RowAssembler {
+
+    /**
+     * How a column's value is computed at a row time that falls between two samples.
+     */
+    public enum Interpolation {
+        /** The value of the latest sample at or before the row time. */
+        HOLD,
+        /** Linear interpolation between the samples around the row time. */
+        LINEAR,
+        /**
+         * The value of the latest sample at or before the row time, like HOLD, but the row
+         * waits for the stream like LINEAR.  For streams computed behind the master, such as
+         * the artifact flags.
+         */
+        STEP
+    }
+
+    /**
+     * One output column: a value index of the packets of a source stream.
+     */
+    public static final class Column {
+        final String name;
+        final FrameType source;
+        final int index;
+        final Interpolation interpolation;
+
+        public Column(String name, FrameType source, int index, Interpolation interpolation) {
+            this.name = name;
+            this.source = source;
+            this.index = index;
+            this.interpolation = interpolation;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Interpolation getInterpolation() {
+            return interpolation;
+        }
+    }
+
+    /**
+     * Returns the names of the columns, in order, to create a matching {@link SampleStore}.
+     */
+    public static String[] columnNames(Column[] columns) {
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = columns[i].name;
+        }
+        return names;
+    }
+
+    /**
+     * Rows waiting for columns are released after this long (in microseconds)
+     * even if a waited for stream has not caught up, for example because it stopped.
+     */
+    public static final long DEFAULT_MAX_LAG_US = 1000000;
+
+    /**
+     * The number of rows that can wait for columns.
+     */
+    private static final int PENDING_CAPACITY = 1024;
+
+    /**
+     * The number of recent samples kept per waiting column to interpolate from: enough for
+     * a 64 Hz stream while rows wait a few hundred milliseconds for a late one, and for a
+     * stream at the EEG rate, up to 500 Hz, while rows wait for the artifact flags, as when
+     * a session file is replayed.
+     */
+    private static final int HISTORY = 128;
+
+    /**
+     * A jump of the grid clock larger than this (in microseconds), for example after
+     * transmission was paused, restarts the grid instead of filling the gap with rows.
+     */
+    private static final long MAX_GRID_GAP_US = 5000000;
+
+    private final SampleStore out;
+    private final Column[] columns;
+    private final int columnCount;
+    private final FrameType master;
+    private final double gridPeriodUs;
+    private final long maxLagUs;
+
+    /**
+     * For each packet type (by ordinal), the columns it feeds.
+     */
+    private final int[][] columnsBySource;
+    private final boolean hasWaiting;
+
+    /**
+     * The latest value of every column, used for HOLD columns and master columns.
+     */
+    private final double[] held;
+
+    /**
+     * The recent samples of each waiting column, as a ring of HISTORY entries.
+     */
+    private final long[][] historyTimes;
+    private final double[][] historyValues;
+    private final int[] historyCount;
+    private final int[] historyHead;
+
+    /**
+     * Rows waiting for columns, as a ring.
+     */
+    private final long[] pendingTimes = new long[PENDING_CAPACITY];
+    private final double[] pendingValues;
+    private int pendingHead;
+    private int pendingCount;
+
+    private final double[] row;
+
+    private boolean gridStarted;
+    private long gridStart;
+    private long gridIndex;
+    private long latestTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Creates an assembler that emits one row per packet of the {@code master} stream.
+     * Columns fed by the master stream take their values from the packet itself.
+     */
+    public RowAssembler(SampleStore out, Column[] columns, FrameType master) {
+        this(out, columns, master, 0, DEFAULT_MAX_LAG_US);
+    }
+
+    /**
+     * Creates an assembler that emits rows on a fixed grid of {@code rateHz} rows per second.
+     */
+    public RowAssembler(SampleStore out, Column[] columns, double rateHz) {
+        this(out, columns, null, 1e6 / rateHz, DEFAULT_MAX_LAG_US);
+    }
+
+    private RowAssembler(SampleStore out, Column[] columns, FrameType master,
+                         double gridPeriodUs, long maxLagUs) {
+        if (out.getColumnCount() != columns.length) {
+            throw new IllegalArgumentException("store has " + out.getColumnCount()
+                    + " columns, assembler has " + columns.length);
+        }
+        this.out = out;
+        this.columns = columns.clone();
+        this.columnCount = columns.length;
+        this.master = master;
+        this.gridPeriodUs = gridPeriodUs;
+        this.maxLagUs = maxLagUs;
+
+        int[] counts = new int[FrameType.count()];
+        boolean waiting = false;
+        for (Column column : columns) {
+            counts[column.source.ordinal()]++;
+            waiting |= isWaiting(column);
+        }
+        this.hasWaiting = waiting;
+        this.columnsBySource = new int[counts.length][];
+        for (int t = 0; t < counts.length; t++) {
+            columnsBySource[t] = new int[counts[t]];
+        }
+        Arrays.fill(counts, 0);
+        for (int c = 0; c < columnCount; c++) {
+            int source = columns[c].source.ordinal();
+            columnsBySource[source][counts[source]++] = c;
+        }
+
+        this.held = new double[columnCount];
+        this.historyTimes = new long[columnCount][];
+        this.historyValues = new double[columnCount][];
+        this.historyCount = new int[columnCount];
+        this.historyHead = new int[columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            if (isWaiting(columns[c])) {
+                historyTimes[c] = new long[HISTORY];
+                historyValues[c] = new double[HISTORY];
+            }
+        }
+        this.pendingValues = new double[PENDING_CAPACITY * columnCount];
+        this.row = new double[columnCount];
+    }
+
+    /**
+     * Rows never wait for the master stream, which defines the row times.
+     */
+    private boolean isWaiting(Column column) {
+        return column.interpolation != Interpolation.HOLD && column.source != master;
+    }
+
+    /**
+     * Processes one frame.
+     */
+    public void onFrame(SampleFrame frame) {
+        onSample(frame.getType(), frame.getTimestamp(), frame.values());
+    }
+
+    /**
+     * Processes one packet.
+     * @param type      The packet type.
+     * @param timestamp The packet timestamp in microseconds.
+     * @param values    The packet values, indexed like {@link Column#index}.
+     */
+    public void onSample(FrameType type, long timestamp, double[] values) {
+        final int[] targets = columnsBySource[type.ordinal()];
+        if (targets.length == 0) {
+            return;
+        }
+        if (timestamp > latestTimestamp) {
+            latestTimestamp = timestamp;
+        }
+        if (master == null) {
+            advanceGrid(timestamp);
+        }
+
+        for (int target : targets) {
+            double value = values[columns[target].index];
+            held[target] = value;
+            if (historyTimes[target] != null) {
+                int slot = (historyHead[target] + historyCount[target]) % HISTORY;
+                if (historyCount[target] == HISTORY) {
+                    historyHead[target] = (historyHead[target] + 1) % HISTORY;
+                } else {
+                    historyCount[target]++;
+                }
+                historyTimes[target][slot] = timestamp;
+                historyValues[target][slot] = value;
+            }
+        }
+
+        if (type == master) {
+            addRow(timestamp);
+        }
+        release(false);
+    }
+
+    /**
+     * Emits the grid rows that lie before {@code timestamp}, using the state before the
+     * sample at {@code timestamp} is applied.
+     */
+    private void advanceGrid(long timestamp) {
+        if (!gridStarted || timestamp - gridTime(gridIndex) > MAX_GRID_GAP_US) {
+            gridStarted = true;
+            gridStart = timestamp;
+            gridIndex = 0;
+            return;
+        }
+        long time;
+        while ((time = gridTime(gridIndex)) < timestamp) {
+            addRow(time);
+            gridIndex++;
+        }
+    }
+
+    private long gridTime(long index) {
+        return gridStart + (long) (index * gridPeriodUs);
+    }
+
+    /**
+     * Queues a row at {@code time} with the current values of the HOLD columns.
+     */
+    private void addRow(long time) {
+        if (!hasWaiting) {
+            out.append(time, held);
+            return;
+        }
+        if (pendingCount == PENDING_CAPACITY) {
+            release(true);
+        }
+        int slot = (pendingHead + pendingCount) % PENDING_CAPACITY;
+        pendingTimes[slot] = time;
+        System.arraycopy(held, 0, pendingValues, slot * columnCount, columnCount);
+        pendingCount++;
+    }
+
+    /**
+     * Writes the pending rows whose waiting columns can be computed.
+     * @param force Release at least the oldest row even if it is not ready.
+     */
+    private void release(boolean force) {
+        while (pendingCount > 0) {
+            long time = pendingTimes[pendingHead];
+            if (!force && !isReady(time)) {
+                return;
+            }
+            force = false;
+            System.arraycopy(pendingValues, pendingHead * columnCount, row, 0, columnCount);
+            for (int c = 0; c < columnCount; c++) {
+                if (historyTimes[c] != null) {
+                    row[c] = interpolate(c, time);
+                }
+            }
+            out.append(time, row);
+            pendingHead = (pendingHead + 1) % PENDING_CAPACITY;
+            pendingCount--;
+        }
+    }
+
+    private boolean isReady(long time) {
+        if (latestTimestamp - time > maxLagUs) {
+            return true;
+        }
+        for (int c = 0; c < columnCount; c++) {
+            if (historyTimes[c] != null) {
+                if (historyCount[c] == 0) {
+                    return false;
+                }
+                int newest = (historyHead[c] + historyCount[c] - 1) % HISTORY;
+                if (historyTimes[c][newest] < time) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private double interpolate(int c, long time) {
+        final int count = historyCount[c];
+        if (count == 0) {
+            return held[c];
+        }
+        final long[] times = historyTimes[c];
+        final double[] values = historyValues[c];
+        final boolean step = columns[c].interpolation == Interpolation.STEP;
+        // From the newest sample back, as rows are usually released close to it.
+        int next = -1;
+        for (int i = count - 1; i >= 0; i--) {
+            int previous = (historyHead[c] + i) % HISTORY;
+            if (times[previous] <= time) {
+                if (next < 0 || step) {
+                    return values[previous];
+                }
+                double fraction = (double) (time - times[previous]) / (times[next] - times[previous]);
+                return values[previous] + fraction * (values[next] - values[previous]);
+            }
+            next = previous;
+        }
+        return values[next];
+    }
+
+    /**
+     * Writes all pending rows, interpolating with the samples received so far.  Call at the
+     * end of a session before exporting.
+     */
+    public void flush() {
+        while (pendingCount > 0) {
+            release(true);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Columnar, chunked store for the samples recorded during a session.
+ * <p>
+ * Each row is a timestamp plus a fixed number of double values.  Rows are kept in
+ * fixed size chunks of primitive arrays (one {@code long[]} for the timestamps and
+ * one {@code double[]} per value column), so appending a row never allocates unless
+ * a new chunk is needed and the heap holds a handful of large arrays instead of
+ * millions of small objects.  Strings are only produced when the data is exported.
+ * <p>
+ * The store has a single writer (the thread delivering packets) and any number of
+ * readers.  Readers see every row up to the {@link #size()} they observed; rows are
+ * never modified once they have been published.
+ * <p>
+ * A store created with a spill directory keeps memory use flat for sessions of any
+ * length: every chunk is written to a {@link SessionSpill} when it fills up, on a
+ * background thread so the writer never waits for storage, and only the newest chunks stay
+ * in memory.  Rows of older chunks are read back from the spill
+ * transparently, with the precision of the CSV export.  The spill also lets the session be
+ * recovered after a crash, see {@link SessionSpill#recover}.
+ */
+public class SampleStore implements Closeable {
+
+    /**
+     * Number of rows per chunk.  A power of two so row lookups are a shift and a mask.
+     */
+    public static final int CHUNK_SHIFT = 12;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final String[] columnNames;
+    private final int columnCount;
+
+    /**
+     * Chunk directories.  They are replaced (never resized in place) when they fill up
+     * so a reader holding an older directory still sees consistent chunks.
+     */
+    private volatile long[][] timestampChunks = new long[16][];
+    private volatile double[][][] valueChunks = new double[16][][];
+
+    /**
+     * Number of published rows.  Written last by the writer, read first by readers.
+     */
+    private volatile int size;
+
+    /**
+     * Where sealed chunks are written, or null if the store only lives in memory.
+     */
+    private final SessionSpill spill;
+    private final ExecutorService spillExecutor;
+    private final int memoryChunks;
+
+    /**
+     * The chunks below spilledChunks are in the spill; set by the spill thread.  Spilling
+     * stops, and chunks stay in memory, after a write to the spill failed.
+     */
+    private volatile int spilledChunks;
+    private volatile IOException spillError;
+
+    /**
+     * Writer state: the chunks below firstResident are only in the spill.
+     */
+    private int firstResident;
+
+    /**
+     * @param columnNames   The names of the value columns, in order.  The timestamp column
+     *                      is implicit and always comes first.
+     */
+    public SampleStore(String... columnNames) {
+        this.columnNames = columnNames.clone();
+        this.columnCount = columnNames.length;
+        this.spill = null;
+        this.spillExecutor = null;
+        this.memoryChunks = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Creates a store that spills its chunks to {@code spillDir}.
+     * @param memoryChunks  The number of full chunks kept in memory besides the one being
+     *                      filled, at least 1.
+     * @throws IOException if the directory cannot be created or holds the segments of a
+     *         session that was not recovered.
+     */
+    public SampleStore(File spillDir, int memoryChunks, String... columnNames) throws IOException {
+        this(new SessionSpill(spillDir, columnNames, SessionCsvExporter.DEFAULT_DECIMALS),
+                memoryChunks, 0);
+    }
+
+    /**
+     * Creates a store on a spill holding its first {@code spilledChunks} chunks.
+     */
+    SampleStore(SessionSpill spill, int memoryChunks, int spilledChunks) {
+        if (memoryChunks < 1) {
+            throw new IllegalArgumentException("memoryChunks must be positive: " + memoryChunks);
+        }
+        this.columnNames = spill.getColumnNames();
+        this.columnCount = columnNames.length;
+        this.spill = spill;
+        this.spillExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "session-spill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.memoryChunks = memoryChunks;
+        this.spilledChunks = spilledChunks;
+        if (spilledChunks > 0) {
+            int capacity = Math.max(16, Integer.highestOneBit(spilledChunks) * 2);
+            timestampChunks = new long[capacity][];
+            valueChunks = new double[capacity][][];
+            firstResident = spilledChunks;
+            size = spilledChunks << CHUNK_SHIFT;
+        }
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * @return the CSV header line for this store, without the trailing newline.
+     */
+    public String getHeader() {
+        StringBuilder builder = new StringBuilder("timestamp");
+        for (String name : columnNames) {
+            builder.append(',').append(name);
+        }
+        return builder.toString();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a row.  Must only be called from the writer thread.
+     * @param timestamp The timestamp of the row.
+     * @param values    The column values; only the first {@link #getColumnCount()} are read.
+     */
+    public void append(long timestamp, double[] values) {
+        final int row = size;
+        final int chunk = row >>> CHUNK_SHIFT;
+        final int offset = row & CHUNK_MASK;
+        if (offset == 0) {
+            if (spill != null && chunk > 0) {
+                seal(chunk - 1);
+            }
+            addChunk(chunk);
+        }
+        timestampChunks[chunk][offset] = timestamp;
+        double[][] columns = valueChunks[chunk];
+        for (int c = 0; c < columnCount; c++) {
+            columns[c][offset] = values[c];
+        }
+        size = row + 1;
+    }
+
+    private void addChunk(int chunk) {
+        long[][] timestamps = timestampChunks;
+        double[][][] values = valueChunks;
+        if (chunk == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, chunk * 2);
+            values = Arrays.copyOf(values, chunk * 2);
+        }
+        timestamps[chunk] = new long[CHUNK_SIZE];
+        values[chunk] = new double[columnCount][CHUNK_SIZE];
+        valueChunks = values;
+        timestampChunks = timestamps;
+    }
+
+    /**
+     * Queues a full chunk for the spill, then drops the oldest chunks that were written
+     * from memory.  Chunks of a recovered store are already in the spill.
+     */
+    private void seal(final int chunk) {
+        if (spillError != null || chunk < firstResident) {
+            return;
+        }
+        final long[] timestamps = timestampChunks[chunk];
+        final double[][] values = valueChunks[chunk];
+        spillExecutor.execute(() -> {
+            if (spillError != null) {
+                return;
+            }
+            try {
+                spill.write(timestamps, values, CHUNK_SIZE);
+                spilledChunks = chunk + 1;
+            } catch (IOException e) {
+                spillError = e;
+            }
+        });
+        // Readers that still see an evicted chunk keep using it; the others find it null
+        // and read it back from the spill, which already holds it.
+        while (firstResident < spilledChunks && chunk + 1 - firstResident > memoryChunks) {
+            timestampChunks[firstResident] = null;
+            valueChunks[firstResident] = null;
+            firstResident++;
+        }
+    }
+
+    public long getTimestamp(int row) {
+        checkRow(row);
+        return getTimestampChunk(row >>> CHUNK_SHIFT)[row & CHUNK_MASK];
+    }
+
+    public double getValue(int row, int column) {
+        checkRow(row);
+        return getValueChunk(row >>> CHUNK_SHIFT)[column][row & CHUNK_MASK];
+    }
+
+    /**
+     * Copies the values of a row into the provided array.
+     */
+    public void getRow(int row, double[] out) {
+        checkRow(row);
+        double[][] columns = getValueChunk(row >>> CHUNK_SHIFT);
+        int offset = row & CHUNK_MASK;
+        for (int c = 0; c < columnCount; c++) {
+            out[c] = columns[c][offset];
+        }
+    }
+
+    /**
+     * @return the timestamps of a chunk, for bulk readers.  Only the rows below
+     *         {@link #size()} are valid.
+     */
+    long[] getTimestampChunk(int chunk) {
+        long[] timestamps = timestampChunks[chunk];
+        return timestamps != null ? timestamps : spill.getTimestamps(chunk);
+    }
+
+    /**
+     * @return the value arrays of a chunk, indexed [column][row within the chunk].
+     */
+    double[][] getValueChunk(int chunk) {
+        double[][] values = valueChunks[chunk];
+        return values != null ? values : spill.getValues(chunk);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        }
+    }
+
+    /**
+     * Discards all rows.  Must only be called from the writer thread, and only when no
+     * reader is iterating over the store.
+     */
+    public void clear() {
+        if (spill != null) {
+            // Deleting after the queued writes keeps them out of the next session.
+            try {
+                spillExecutor.submit(spill::delete).get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        size = 0;
+        timestampChunks = new long[16][];
+        valueChunks = new double[16][][];
+        firstResident = 0;
+        spilledChunks = 0;
+        spillError = null;
+    }
+
+    /**
+     * @return an estimate of the heap used by the sample arrays, in bytes.
+     */
+    public long getFootprintBytes() {
+        long chunks = ((size + CHUNK_MASK) >>> CHUNK_SHIFT) - firstResident;
+        return chunks * CHUNK_SIZE * 8L * (columnCount + 1);
+    }
+
+    /**
+     * @return the number of bytes written to the spill, 0 for a memory only store.
+     */
+    public long getSpilledBytes() {
+        return spill != null ? spill.getBytesWritten() : 0;
+    }
+
+    /**
+     * @return the error that stopped spilling, or null.  After an error the store keeps
+     *         new chunks in memory.
+     */
+    public IOException getSpillError() {
+        return spillError;
+    }
+
+    /**
+     * Drops the chunks waiting to be spilled and deletes the spill files of the session.
+     * Rows that were only in the spill cannot be read afterwards, and no rows can be
+     * appended.  Does nothing for a memory only store.
+     */
+    @Override
+    public void close() {
+        if (spill != null) {
+            spillExecutor.shutdownNow();
+            try {
+                spillExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            spill.delete();
+        }
+    }
+
+    /**
+     * Returns a read-only view of the rows formatted as strings, in the same layout as the
+     * CSV export (timestamp first).  The strings are created on access and not retained.
+     */
+    public List<String[]> asStringRows() {
+        return new AbstractList<String[]>() {
+            @Override
+            public String[] get(int row) {
+                String[] out = new String[columnCount + 1];
+                out[0] = String.valueOf(getTimestamp(row));
+                for (int c = 0; c < columnCount; c++) {
+                    out[c + 1] = String.valueOf(getValue(row, c));
+                }
+                return out;
+            }
+
+            @Override
+            public int size() {
+                return SampleStore.this.size();
+            }
+        };
+    }
+}
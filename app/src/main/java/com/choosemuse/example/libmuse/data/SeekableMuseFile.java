@@ -0,0 +1,140 @@
+package com.choosemuse.example.libmuse.data;
+
+import com.choosemuse.libmuse.MuseFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only {@link MuseFile} that knows, and can change, where the next read starts.
+ * <p>
+ * libmuse reads a message by asking for exactly the bytes of its length prefix and then of
+ * its body, so the position between two messages is where the next message starts.
+ * Recording it while reading gives the byte offset of every message, and moving it lets a
+ * {@link com.choosemuse.libmuse.MuseFileReader} continue at any message.
+ * <p>
+ * Reads are served from a buffer, so the small reads libmuse makes do not each reach the
+ * file system.
+ */
+final class SeekableMuseFile extends MuseFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private RandomAccessFile in;
+    private FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * The file offset of the first byte in the buffer.
+     */
+    private long bufferStart;
+    private long position;
+
+    SeekableMuseFile(File file) {
+        this.file = file;
+        buffer.limit(0);
+    }
+
+    /**
+     * @return the offset of the next byte read.
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Moves to {@code offset}; the next read starts there.
+     */
+    void seek(long offset) {
+        if (offset >= bufferStart && offset <= bufferStart + buffer.limit()) {
+            buffer.position((int) (offset - bufferStart));
+        } else {
+            bufferStart = offset;
+            buffer.limit(0);
+        }
+        position = offset;
+    }
+
+    @Override
+    public boolean open(boolean write) {
+        if (write) {
+            return false;
+        }
+        if (in == null) {
+            try {
+                in = new RandomAccessFile(file, "r");
+                channel = in.getChannel();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean close(boolean write) {
+        if (in == null) {
+            return true;
+        }
+        try {
+            in.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            in = null;
+            channel = null;
+        }
+    }
+
+    @Override
+    public boolean write(byte[] bytes) {
+        return false;
+    }
+
+    /**
+     * Reads exactly {@code length} bytes.  Like the libmuse implementation, returns an empty
+     * array if fewer remain, which the reader takes as the end of the file.
+     */
+    @Override
+    public byte[] read(int length) {
+        if ((in == null && !open(false)) || length < 0) {
+            return new byte[0];
+        }
+        try {
+            if (position + length > channel.size()) {
+                return new byte[0];
+            }
+            final byte[] out = new byte[length];
+            int done = 0;
+            while (done < length) {
+                if (!buffer.hasRemaining() && !fill()) {
+                    return new byte[0];
+                }
+                final int count = Math.min(length - done, buffer.remaining());
+                buffer.get(out, done, count);
+                done += count;
+            }
+            position += length;
+            return out;
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    private boolean fill() throws IOException {
+        bufferStart += buffer.limit();
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, bufferStart + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+}
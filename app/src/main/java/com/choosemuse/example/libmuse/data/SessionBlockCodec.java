@@ -0,0 +1,206 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes blocks of rows into the compact columnar payload of the binary session file.
+ * <p>
+ * A payload starts with the row count as a varint, followed by the timestamp column and
+ * then each value column, as sequences of differences:
+ * <ul>
+ *     <li>timestamps are stored as the difference between consecutive deltas, which is 0
+ *     or close to it for a stream at a steady rate;</li>
+ *     <li>values are quantized to integers in units of 10^-decimals and stored as the
+ *     difference to the previous row.</li>
+ * </ul>
+ * A non-zero difference d is written as the varint ZigZag(d), which is never 0.  Zero
+ * differences are written in runs, as a 0 followed by the varint run length - 1, so a
+ * column that holds its value across rows, like a band power, costs a few bytes per block.
+ * <p>
+ * Each block is self contained.  NaN and the infinities are kept as reserved integers;
+ * finite values too large for a long after scaling saturate to the infinities.  Encoding
+ * and decoding use the caller's arrays and do not allocate.  A codec is not thread safe.
+ */
+public final class SessionBlockCodec {
+
+    private static final long NAN = Long.MIN_VALUE;
+    private static final long NEGATIVE_INFINITY = Long.MIN_VALUE + 1;
+    private static final long POSITIVE_INFINITY = Long.MAX_VALUE;
+    private static final double LIMIT = 9.2e18;
+
+    private final int columnCount;
+    private final double[] scale;
+
+    /**
+     * Zero differences not written yet while encoding, or not returned yet while decoding.
+     */
+    private int zeroRun;
+
+    /**
+     * @param decimals  The decimals kept for each value column, at most
+     *                  {@link FixedPointFormat#MAX_DECIMALS}.
+     */
+    public SessionBlockCodec(int[] decimals) {
+        this.columnCount = decimals.length;
+        this.scale = new double[columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            if (decimals[c] < 0 || decimals[c] > FixedPointFormat.MAX_DECIMALS) {
+                throw new IllegalArgumentException("decimals out of range: " + decimals[c]);
+            }
+            scale[c] = Math.pow(10, decimals[c]);
+        }
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * @return the largest payload size of a block of {@code rows} rows.
+     */
+    public int maxEncodedSize(int rows) {
+        return Varint.MAX_LENGTH * (1 + rows * (columnCount + 1));
+    }
+
+    /**
+     * Encodes rows [{@code from}, {@code from + count}) of columnar arrays, the layout of a
+     * {@link SampleStore} chunk.
+     * @param columns   The value arrays, indexed [column][row].
+     * @param out       Receives the payload; needs {@link #maxEncodedSize} bytes after
+     *                  {@code position}.
+     * @return the position after the payload.
+     */
+    public int encode(long[] timestamps, double[][] columns, int from, int count,
+                      byte[] out, int position) {
+        position = Varint.write(count, out, position);
+        long previous = 0;
+        long previousDelta = 0;
+        zeroRun = 0;
+        for (int i = from; i < from + count; i++) {
+            final long delta = timestamps[i] - previous;
+            position = putDifference(delta - previousDelta, out, position);
+            previous = timestamps[i];
+            previousDelta = delta;
+        }
+        position = endRun(out, position);
+        for (int c = 0; c < columnCount; c++) {
+            final double[] values = columns[c];
+            final double columnScale = scale[c];
+            long last = 0;
+            for (int i = from; i < from + count; i++) {
+                final long quantized = quantize(values[i], columnScale);
+                position = putDifference(quantized - last, out, position);
+                last = quantized;
+            }
+            position = endRun(out, position);
+        }
+        return position;
+    }
+
+    private int putDifference(long difference, byte[] out, int position) {
+        if (difference == 0) {
+            zeroRun++;
+            return position;
+        }
+        position = endRun(out, position);
+        return Varint.write(Varint.zigZag(difference), out, position);
+    }
+
+    private int endRun(byte[] out, int position) {
+        if (zeroRun > 0) {
+            out[position++] = 0;
+            position = Varint.write(zeroRun - 1, out, position);
+        }
+        zeroRun = 0;
+        return position;
+    }
+
+    /**
+     * Decodes a payload at the buffer's position into columnar arrays, starting at index 0.
+     * A corrupt payload throws an unchecked exception, usually a BufferUnderflowException
+     * or an IllegalArgumentException.
+     * @param columns   The value arrays, indexed [column][row].  All arrays must have room
+     *                  for the block's rows.
+     * @return the number of rows decoded.
+     */
+    public int decode(ByteBuffer in, long[] timestamps, double[][] columns) {
+        final long rows = Varint.read(in);
+        if (rows < 0 || rows > timestamps.length) {
+            throw new IllegalArgumentException("bad row count: " + rows);
+        }
+        final int count = (int) rows;
+        long previous = 0;
+        long previousDelta = 0;
+        zeroRun = 0;
+        for (int i = 0; i < count; i++) {
+            previousDelta += getDifference(in);
+            previous += previousDelta;
+            timestamps[i] = previous;
+        }
+        checkRunEnded();
+        for (int c = 0; c < columnCount; c++) {
+            final double[] values = columns[c];
+            final double columnScale = scale[c];
+            long last = 0;
+            for (int i = 0; i < count; i++) {
+                last += getDifference(in);
+                values[i] = dequantize(last, columnScale);
+            }
+            checkRunEnded();
+        }
+        return count;
+    }
+
+    private long getDifference(ByteBuffer in) {
+        if (zeroRun > 0) {
+            zeroRun--;
+            return 0;
+        }
+        final long token = Varint.read(in);
+        if (token == 0) {
+            final long run = Varint.read(in) + 1;
+            if (run < 1 || run > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("bad run length: " + run);
+            }
+            zeroRun = (int) run - 1;
+            return 0;
+        }
+        return Varint.unZigZag(token);
+    }
+
+    /**
+     * Runs never span two columns.
+     */
+    private void checkRunEnded() {
+        if (zeroRun != 0) {
+            throw new IllegalArgumentException("run of zeros crosses a column");
+        }
+    }
+
+    private static long quantize(double value, double scale) {
+        if (value != value) {
+            return NAN;
+        }
+        final double scaled = value * scale;
+        if (scaled >= LIMIT) {
+            return POSITIVE_INFINITY;
+        }
+        if (scaled <= -LIMIT) {
+            return NEGATIVE_INFINITY;
+        }
+        return Math.round(scaled);
+    }
+
+    private static double dequantize(long value, double scale) {
+        if (value == NAN) {
+            return Double.NaN;
+        }
+        if (value == POSITIVE_INFINITY) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (value == NEGATIVE_INFINITY) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return value / scale;
+    }
+}
@@ -0,0 +1,76 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams the contents of a {@link SampleStore} as CSV.
+ * <p>
+ * The export only covers the rows present when it starts; rows appended while it is
+ * running are left for the next export.  Memory use is constant: rows are encoded one
+ * at a time into the writer's buffer.
+ */
+public class SessionCsvExporter {
+
+    /**
+     * Decimals used for the value columns unless configured otherwise.
+     */
+    public static final int DEFAULT_DECIMALS = 4;
+
+    private final int decimals;
+
+    public SessionCsvExporter() {
+        this(DEFAULT_DECIMALS);
+    }
+
+    public SessionCsvExporter(int decimals) {
+        this.decimals = decimals;
+    }
+
+    /**
+     * Writes the header and all rows to {@code out}.  The stream is flushed but not closed.
+     * @return the number of bytes written.
+     */
+    public long export(SampleStore store, OutputStream out) throws IOException {
+        CsvStreamWriter writer = new CsvStreamWriter(out);
+        export(store, writer, 0, store.size());
+        writer.flush();
+        return writer.getBytesWritten();
+    }
+
+    /**
+     * Writes the header and the rows in [{@code from}, {@code to}) to {@code writer}.
+     */
+    public void export(SampleStore store, CsvStreamWriter writer, int from, int to) throws IOException {
+        writer.writeLine(store.getHeader());
+        exportRows(store, writer, from, to);
+    }
+
+    /**
+     * Writes the rows in [{@code from}, {@code to}) to {@code writer}, without the header,
+     * for exports that write a session in several parts.
+     */
+    public void exportRows(SampleStore store, CsvStreamWriter writer, int from, int to) throws IOException {
+        if (from < 0 || to > store.size()) {
+            throw new IndexOutOfBoundsException("rows " + from + " to " + to + ", size " + store.size());
+        }
+        final int columns = store.getColumnCount();
+        // Chunk by chunk, so chunks that were spilled to storage are read back once.
+        int row = from;
+        while (row < to) {
+            final int chunk = row >>> SampleStore.CHUNK_SHIFT;
+            final int start = row & (SampleStore.CHUNK_SIZE - 1);
+            final int end = start + Math.min(to - row, SampleStore.CHUNK_SIZE - start);
+            final long[] timestamps = store.getTimestampChunk(chunk);
+            final double[][] values = store.getValueChunk(chunk);
+            for (int i = start; i < end; i++) {
+                writer.writeField(timestamps[i]);
+                for (int c = 0; c < columns; c++) {
+                    writer.writeField(values[c][i], decimals);
+                }
+                writer.endRow();
+            }
+            row += end - start;
+        }
+    }
+}
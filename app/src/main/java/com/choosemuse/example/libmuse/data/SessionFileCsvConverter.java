@@ -0,0 +1,65 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts a binary session file to the CSV the app exports, block by block, for tools
+ * that only read CSV.  Each value is printed with the decimals it was stored with, so
+ * the output matches the CSV export of the same session.
+ * <p>
+ * Runs on a plain JVM:
+ * <pre>
+ * java -cp app-classes com.choosemuse.example.libmuse.data.SessionFileCsvConverter in.msb out.csv
+ * </pre>
+ */
+public final class SessionFileCsvConverter {
+
+    private SessionFileCsvConverter() {
+    }
+
+    /**
+     * Writes the header and all rows of {@code reader} to {@code out}.  The stream is
+     * flushed but not closed.
+     * @return the number of bytes written.
+     */
+    public static long convert(SessionFileReader reader, OutputStream out) throws IOException {
+        final int columns = reader.getColumnCount();
+        final int[] decimals = new int[columns];
+        for (int c = 0; c < columns; c++) {
+            decimals[c] = reader.getDecimals(c);
+        }
+        final long[] timestamps = new long[SessionFileFormat.BLOCK_ROWS];
+        final double[][] values = new double[columns][SessionFileFormat.BLOCK_ROWS];
+
+        CsvStreamWriter writer = new CsvStreamWriter(out);
+        writer.writeLine(reader.getHeader());
+        for (int b = 0; b < reader.getBlockCount(); b++) {
+            final int rows = reader.readBlock(b, timestamps, values);
+            for (int row = 0; row < rows; row++) {
+                writer.writeField(timestamps[row]);
+                for (int c = 0; c < columns; c++) {
+                    writer.writeField(values[c][row], decimals[c]);
+                }
+                writer.endRow();
+            }
+        }
+        writer.flush();
+        return writer.getBytesWritten();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: SessionFileCsvConverter <session" + SessionFileFormat.EXTENSION
+                    + "> <output.csv>");
+            System.exit(2);
+        }
+        try (SessionFileReader reader = SessionFileReader.open(new File(args[0]));
+             OutputStream out = new FileOutputStream(args[1])) {
+            long bytes = convert(reader, out);
+            System.out.println(reader.getRowCount() + " rows, " + bytes + " bytes");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the contents of a {@link SampleStore} as a binary session file, the compact
+ * alternative to {@link SessionCsvExporter}.
+ * <p>
+ * Like the CSV export it only covers the rows present when it starts, and encodes the
+ * store's chunks directly with constant memory.
+ */
+public class SessionFileExporter {
+
+    private final int decimals;
+
+    public SessionFileExporter() {
+        this(SessionCsvExporter.DEFAULT_DECIMALS);
+    }
+
+    /**
+     * @param decimals  The decimals kept for the value columns; the same number the CSV
+     *                  export prints makes both exports carry the same data.
+     */
+    public SessionFileExporter(int decimals) {
+        this.decimals = decimals;
+    }
+
+    /**
+     * Writes the whole file to {@code out}.  The stream is flushed but not closed.
+     * @return the number of bytes written.
+     */
+    public long export(SampleStore store, OutputStream out) throws IOException {
+        String[] names = new String[store.getColumnCount()];
+        for (int c = 0; c < names.length; c++) {
+            names[c] = store.getColumnName(c);
+        }
+        SessionFileWriter writer = new SessionFileWriter(out, names, decimals);
+        writer.append(store, 0, store.size());
+        writer.finish();
+        return writer.getBytesWritten();
+    }
+}
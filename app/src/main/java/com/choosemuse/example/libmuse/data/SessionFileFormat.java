@@ -0,0 +1,37 @@
+package com.choosemuse.example.libmuse.data;
+
+/**
+ * Constants of the binary session file, the compact alternative to the CSV export.
+ * <p>
+ * All fixed size fields are big endian.  A file is laid out as:
+ * <pre>
+ * header   int magic, short version, short columnCount,
+ *          per column: short nameLength, UTF-8 name, byte decimals
+ * blocks   per block: int payloadLength, int crc32 of the payload, payload
+ *          (see {@link SessionBlockCodec})
+ * index    per block: long offset, int rows, long firstTimestamp, long lastTimestamp
+ * footer   long indexOffset, int blockCount, long rowCount, int magic
+ * </pre>
+ * Each value column is stored as integers in units of 10^-decimals, the precision the
+ * CSV export prints, so converting back to CSV gives the same text.
+ */
+public final class SessionFileFormat {
+
+    public static final int MAGIC = 0x4D534553; // "MSES"
+    public static final short VERSION = 1;
+
+    public static final String EXTENSION = ".msb";
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    /**
+     * The maximum number of rows per block; one {@link SampleStore} chunk.
+     */
+    public static final int BLOCK_ROWS = SampleStore.CHUNK_SIZE;
+
+    static final int BLOCK_HEADER_SIZE = 8;
+    static final int INDEX_ENTRY_SIZE = 28;
+    static final int FOOTER_SIZE = 24;
+
+    private SessionFileFormat() {
+    }
+}
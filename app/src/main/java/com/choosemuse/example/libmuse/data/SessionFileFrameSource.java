@@ -0,0 +1,156 @@
+package com.choosemuse.example.libmuse.data;
+
+import com.choosemuse.example.libmuse.pipeline.FrameSource;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The rows of a binary session file (see {@link SessionFileFormat}) turned back into the
+ * frames that recorded them, so a session exported by the app can be played again.
+ * <p>
+ * Every row becomes one frame per stream of its columns, at the timestamp of the row, the
+ * raw EEG frame last so the row it adds finds the other streams there.  The streams the
+ * pipeline computes itself, the filtered EEG and the artifact flags, are not played: they
+ * are computed again.  The values a session file does not keep, such as the auxiliary EEG
+ * channels, are NaN, which the pipeline treats as a missing sample.
+ * <p>
+ * The slower streams, PPG or band powers, are played once per row, at the EEG rate.  The
+ * rows recorded from them are the same, since the row values are their values at the row
+ * times, but the band powers of the headband are only used when the pipeline does not
+ * compute its own.  The timestamps are those of the rows, corrected already when the
+ * session was recorded with a {@link com.choosemuse.example.libmuse.pipeline.TimestampCorrector};
+ * play them into a pipeline without one.
+ */
+public final class SessionFileFrameSource implements FrameSource {
+
+    private final SessionFileReader reader;
+
+    /**
+     * The streams played, raw EEG last, and for each value of their frames the column of
+     * the file it is read from, or -1.
+     */
+    private final FrameType[] types;
+    private final int[][] valueColumns;
+
+    private final long[] timestamps;
+    private final double[][] values;
+    private int block = -1;
+    private int blockRows;
+    private int row;
+    private int type;
+
+    /**
+     * @param columns The columns the session was recorded with, to know the stream and
+     *                value of each column of the file by its name.
+     */
+    public SessionFileFrameSource(File file, RowAssembler.Column[] columns) throws IOException {
+        this.reader = SessionFileReader.open(file);
+        try {
+            final int[][] byType = new int[FrameType.count()][];
+            int typeCount = 0;
+            for (int c = 0; c < reader.getColumnCount(); c++) {
+                final RowAssembler.Column column = find(columns, reader.getColumnName(c));
+                if (column == null || column.source == FrameType.EEG_FILTERED
+                        || column.source == FrameType.ARTIFACTS) {
+                    continue;
+                }
+                int[] valueColumns = byType[column.source.ordinal()];
+                if (valueColumns == null) {
+                    valueColumns = new int[column.source.getValueCount()];
+                    Arrays.fill(valueColumns, -1);
+                    byType[column.source.ordinal()] = valueColumns;
+                    typeCount++;
+                }
+                valueColumns[column.index] = c;
+            }
+            if (byType[FrameType.EEG.ordinal()] == null) {
+                throw new IOException(file + " has no raw EEG column");
+            }
+            this.types = new FrameType[typeCount];
+            this.valueColumns = new int[typeCount][];
+            int t = 0;
+            for (int o = 0; o < byType.length; o++) {
+                if (byType[o] != null && o != FrameType.EEG.ordinal()) {
+                    types[t] = FrameType.fromOrdinal(o);
+                    valueColumns[t++] = byType[o];
+                }
+            }
+            types[t] = FrameType.EEG;
+            valueColumns[t] = byType[FrameType.EEG.ordinal()];
+
+            int maxRows = 0;
+            for (int b = 0; b < reader.getBlockCount(); b++) {
+                maxRows = Math.max(maxRows, reader.getBlockRowCount(b));
+            }
+            this.timestamps = new long[maxRows];
+            this.values = new double[reader.getColumnCount()][maxRows];
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    private static RowAssembler.Column find(RowAssembler.Column[] columns, String name) {
+        for (RowAssembler.Column column : columns) {
+            if (column.name.equals(name)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves to the first row at or after {@code timestamp}, in microseconds.
+     */
+    public void seek(long timestamp) throws IOException {
+        final int found = reader.findBlock(timestamp);
+        if (found == reader.getBlockCount()) {
+            block = found;
+            blockRows = 0;
+            row = 0;
+            type = 0;
+            return;
+        }
+        load(found);
+        while (row < blockRows && timestamps[row] < timestamp) {
+            row++;
+        }
+    }
+
+    private void load(int b) throws IOException {
+        block = b;
+        blockRows = reader.readBlock(b, timestamps, values);
+        row = 0;
+        type = 0;
+    }
+
+    @Override
+    public boolean next(SampleFrame frame) throws IOException {
+        while (row >= blockRows) {
+            if (block + 1 >= reader.getBlockCount()) {
+                return false;
+            }
+            load(block + 1);
+        }
+        final FrameType frameType = types[type];
+        final int[] columns = valueColumns[type];
+        frame.set(frameType, timestamps[row]);
+        for (int i = 0; i < columns.length; i++) {
+            frame.setValue(i, columns[i] >= 0 ? values[columns[i]][row] : Double.NaN);
+        }
+        if (++type == types.length) {
+            type = 0;
+            row++;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
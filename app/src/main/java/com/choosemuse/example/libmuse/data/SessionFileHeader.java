@@ -0,0 +1,56 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The header of a binary session file: the column names and their decimals.
+ */
+final class SessionFileHeader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final String[] columnNames;
+    final int[] decimals;
+
+    /**
+     * The size of the header in bytes; the first block starts here.
+     */
+    final int size;
+
+    private SessionFileHeader(String[] columnNames, int[] decimals, int size) {
+        this.columnNames = columnNames;
+        this.decimals = decimals;
+        this.size = size;
+    }
+
+    /**
+     * Parses the header at the start of {@code data}.  Leaves the buffer's position unchanged.
+     * @throws IOException if the data is not a session file of a supported version.
+     */
+    static SessionFileHeader read(ByteBuffer data) throws IOException {
+        if (data.limit() < 8 || data.getInt(0) != SessionFileFormat.MAGIC) {
+            throw new IOException("not a session file");
+        }
+        if (data.getShort(4) != SessionFileFormat.VERSION) {
+            throw new IOException("unsupported session file version " + data.getShort(4));
+        }
+        final ByteBuffer in = data.duplicate();
+        final int columnCount = in.getShort(6);
+        final String[] names = new String[columnCount];
+        final int[] decimals = new int[columnCount];
+        try {
+            in.position(8);
+            for (int c = 0; c < columnCount; c++) {
+                byte[] name = new byte[in.getShort()];
+                in.get(name);
+                names[c] = new String(name, UTF_8);
+                decimals[c] = in.get();
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt session file header", e);
+        }
+        return new SessionFileHeader(names, decimals, in.position());
+    }
+}
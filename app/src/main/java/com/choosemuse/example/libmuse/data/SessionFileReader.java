@@ -0,0 +1,203 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a binary session file (see {@link SessionFileFormat}) through a memory mapping.
+ * <p>
+ * Opening a file only reads the header and the block index at its tail.  Blocks are then
+ * decoded straight from the mapped pages into the caller's arrays, in any order, so
+ * reading a range of a long session only touches the pages of the blocks involved.
+ * <p>
+ * A reader is not thread safe; open one per thread.
+ */
+public class SessionFileReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final ByteBuffer data;
+    private final String[] columnNames;
+    private final int[] decimals;
+    private final SessionBlockCodec codec;
+
+    private final int blockCount;
+    private final long rowCount;
+    private final int[] blockOffsets;
+    private final int[] blockRows;
+    private final long[] blockFirst;
+    private final long[] blockLast;
+
+    /**
+     * Maps {@code path} and reads its header and block index.
+     * @throws IOException if the file is not a complete session file.
+     */
+    public static SessionFileReader open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            return new SessionFileReader(file);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private SessionFileReader(RandomAccessFile file) throws IOException {
+        this.file = file;
+        final FileChannel channel = file.getChannel();
+        final long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("session file too large to map: " + size);
+        }
+        final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        this.data = mapped;
+
+        if (size < 8 + SessionFileFormat.FOOTER_SIZE) {
+            throw new IOException("not a session file");
+        }
+        final SessionFileHeader header = SessionFileHeader.read(data);
+        columnNames = header.columnNames;
+        decimals = header.decimals;
+        codec = new SessionBlockCodec(decimals);
+
+        final int footer = (int) size - SessionFileFormat.FOOTER_SIZE;
+        if (data.getInt(footer + 20) != SessionFileFormat.MAGIC) {
+            throw new IOException("session file has no block index, it was not finished");
+        }
+        final long indexOffset = data.getLong(footer);
+        blockCount = data.getInt(footer + 8);
+        rowCount = data.getLong(footer + 12);
+        if (indexOffset < 0 || blockCount < 0
+                || indexOffset + (long) blockCount * SessionFileFormat.INDEX_ENTRY_SIZE != footer) {
+            throw new IOException("corrupt session file index");
+        }
+        blockOffsets = new int[blockCount];
+        blockRows = new int[blockCount];
+        blockFirst = new long[blockCount];
+        blockLast = new long[blockCount];
+        data.position((int) indexOffset);
+        for (int b = 0; b < blockCount; b++) {
+            blockOffsets[b] = (int) data.getLong();
+            blockRows[b] = data.getInt();
+            blockFirst[b] = data.getLong();
+            blockLast[b] = data.getLong();
+        }
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * @return the decimals kept for a value column.
+     */
+    public int getDecimals(int column) {
+        return decimals[column];
+    }
+
+    /**
+     * @return the CSV header line for this file, without the trailing newline.
+     */
+    public String getHeader() {
+        StringBuilder builder = new StringBuilder("timestamp");
+        for (String name : columnNames) {
+            builder.append(',').append(name);
+        }
+        return builder.toString();
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getBlockRowCount(int block) {
+        return blockRows[block];
+    }
+
+    public long getBlockFirstTimestamp(int block) {
+        return blockFirst[block];
+    }
+
+    public long getBlockLastTimestamp(int block) {
+        return blockLast[block];
+    }
+
+    /**
+     * @return the first block whose last timestamp is at or after {@code timestamp}, or
+     *         {@link #getBlockCount()} if there is none.  Assumes blocks are in time order.
+     */
+    public int findBlock(long timestamp) {
+        int low = 0;
+        int high = blockCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blockLast[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Decodes a block into columnar arrays.
+     * @param timestamps    Receives the timestamps; needs {@link #getBlockRowCount} entries.
+     * @param columns       Receives the values, indexed [column][row].
+     * @return the number of rows decoded.
+     */
+    public int readBlock(int block, long[] timestamps, double[][] columns) throws IOException {
+        data.position(blockOffsets[block] + SessionFileFormat.BLOCK_HEADER_SIZE);
+        try {
+            return codec.decode(data, timestamps, columns);
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt session file block " + block, e);
+        }
+    }
+
+    /**
+     * Checks the CRC of every block.
+     * @throws IOException naming the first block that does not match.
+     */
+    public void verify() throws IOException {
+        final CRC32 crc = new CRC32();
+        byte[] scratch = new byte[0];
+        for (int b = 0; b < blockCount; b++) {
+            final int length = data.getInt(blockOffsets[b]);
+            if (length < 0 || length > data.capacity() - blockOffsets[b]) {
+                throw new IOException("corrupt session file block " + b);
+            }
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            data.position(blockOffsets[b] + SessionFileFormat.BLOCK_HEADER_SIZE);
+            data.get(scratch, 0, length);
+            crc.reset();
+            crc.update(scratch, 0, length);
+            if ((int) crc.getValue() != data.getInt(blockOffsets[b] + 4)) {
+                throw new IOException("checksum mismatch in session file block " + b);
+            }
+        }
+    }
+
+    /**
+     * Closes the file.  The mapping itself is released by the garbage collector.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
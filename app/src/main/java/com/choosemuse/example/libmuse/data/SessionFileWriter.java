@@ -0,0 +1,258 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a binary session file (see {@link SessionFileFormat}) to an OutputStream.
+ * <p>
+ * Rows are either appended one at a time, buffered until a block is full, or written in
+ * bulk from columnar arrays such as the chunks of a {@link SampleStore}.  Each block is
+ * encoded into a reused buffer and written in one call, so the memory used does not
+ * depend on the length of the session.  The block index and footer are written by
+ * {@link #finish()}; a file without them can still be recovered block by block.
+ */
+public class SessionFileWriter implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final int columnCount;
+    private final int[] decimals;
+    private final SessionBlockCodec codec;
+    private final byte[] block;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Rows appended one at a time, waiting for the block to fill up.  Created on the first
+     * such append; bulk appends encode the caller's arrays directly.
+     */
+    private long[] pendingTimestamps;
+    private double[][] pendingValues;
+    private int pendingCount;
+
+    /**
+     * The block index, one entry per block written.
+     */
+    private long[] blockOffsets = new long[16];
+    private int[] blockRows = new int[16];
+    private long[] blockFirst = new long[16];
+    private long[] blockLast = new long[16];
+    private int blockCount;
+
+    private long rowCount;
+    private long bytesWritten;
+    private boolean finished;
+
+    /**
+     * Writes the file header.
+     * @param out           The stream to write to.  Not buffered by the writer beyond one block.
+     * @param columnNames   The names of the value columns.
+     * @param decimals      The decimals kept for every value column.
+     */
+    public SessionFileWriter(OutputStream out, String[] columnNames, int decimals) throws IOException {
+        this(out, columnNames, filled(columnNames.length, decimals));
+    }
+
+    /**
+     * Writes the file header.
+     * @param decimals  The decimals kept for each value column.
+     */
+    public SessionFileWriter(OutputStream out, String[] columnNames, int[] decimals) throws IOException {
+        if (columnNames.length != decimals.length) {
+            throw new IllegalArgumentException(columnNames.length + " columns, "
+                    + decimals.length + " decimals");
+        }
+        this.out = out;
+        this.columnCount = columnNames.length;
+        this.decimals = decimals.clone();
+        this.codec = new SessionBlockCodec(decimals);
+        this.block = new byte[SessionFileFormat.BLOCK_HEADER_SIZE
+                + codec.maxEncodedSize(SessionFileFormat.BLOCK_ROWS)];
+        writeHeader(columnNames);
+    }
+
+    private static int[] filled(int length, int value) {
+        int[] array = new int[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    private void writeHeader(String[] columnNames) throws IOException {
+        byte[][] names = new byte[columnCount][];
+        int size = 8;
+        for (int c = 0; c < columnCount; c++) {
+            names[c] = columnNames[c].getBytes(UTF_8);
+            size += 2 + names[c].length + 1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(size);
+        header.putInt(SessionFileFormat.MAGIC);
+        header.putShort(SessionFileFormat.VERSION);
+        header.putShort((short) columnCount);
+        for (int c = 0; c < columnCount; c++) {
+            header.putShort((short) names[c].length);
+            header.put(names[c]);
+            header.put((byte) decimals[c]);
+        }
+        write(header.array(), size);
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Appends a row.
+     * @param values    The column values; only the first {@link #getColumnCount()} are read.
+     */
+    public void append(long timestamp, double[] values) throws IOException {
+        if (pendingTimestamps == null) {
+            pendingTimestamps = new long[SessionFileFormat.BLOCK_ROWS];
+            pendingValues = new double[columnCount][SessionFileFormat.BLOCK_ROWS];
+        }
+        pendingTimestamps[pendingCount] = timestamp;
+        for (int c = 0; c < columnCount; c++) {
+            pendingValues[c][pendingCount] = values[c];
+        }
+        if (++pendingCount == SessionFileFormat.BLOCK_ROWS) {
+            writePending();
+        }
+    }
+
+    /**
+     * Appends rows [{@code from}, {@code to}) of a store, encoding its chunks directly.
+     */
+    public void append(SampleStore store, int from, int to) throws IOException {
+        if (store.getColumnCount() != columnCount) {
+            throw new IllegalArgumentException("store has " + store.getColumnCount()
+                    + " columns, file has " + columnCount);
+        }
+        int row = from;
+        while (row < to) {
+            final int chunk = row >>> SampleStore.CHUNK_SHIFT;
+            final int offset = row & (SampleStore.CHUNK_SIZE - 1);
+            final int count = Math.min(to - row, SampleStore.CHUNK_SIZE - offset);
+            append(store.getTimestampChunk(chunk), store.getValueChunk(chunk), offset, count);
+            row += count;
+        }
+    }
+
+    /**
+     * Appends rows [{@code from}, {@code from + count}) of columnar arrays.
+     * @param columns   The value arrays, indexed [column][row].
+     */
+    public void append(long[] timestamps, double[][] columns, int from, int count) throws IOException {
+        writePending();
+        while (count > 0) {
+            final int rows = Math.min(count, SessionFileFormat.BLOCK_ROWS);
+            writeBlock(timestamps, columns, from, rows);
+            from += rows;
+            count -= rows;
+        }
+    }
+
+    private void writePending() throws IOException {
+        if (pendingCount > 0) {
+            writeBlock(pendingTimestamps, pendingValues, 0, pendingCount);
+            pendingCount = 0;
+        }
+    }
+
+    private void writeBlock(long[] timestamps, double[][] columns, int from, int count) throws IOException {
+        if (finished) {
+            throw new IOException("session file already finished");
+        }
+        final int headerSize = SessionFileFormat.BLOCK_HEADER_SIZE;
+        final int end = codec.encode(timestamps, columns, from, count, block, headerSize);
+        final int payload = end - headerSize;
+        crc.reset();
+        crc.update(block, headerSize, payload);
+        putInt(block, 0, payload);
+        putInt(block, 4, (int) crc.getValue());
+
+        if (blockCount == blockOffsets.length) {
+            int capacity = blockCount * 2;
+            blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+            blockRows = Arrays.copyOf(blockRows, capacity);
+            blockFirst = Arrays.copyOf(blockFirst, capacity);
+            blockLast = Arrays.copyOf(blockLast, capacity);
+        }
+        blockOffsets[blockCount] = bytesWritten;
+        blockRows[blockCount] = count;
+        blockFirst[blockCount] = timestamps[from];
+        blockLast[blockCount] = timestamps[from + count - 1];
+        blockCount++;
+        rowCount += count;
+        write(block, end);
+    }
+
+    private static void putInt(byte[] array, int position, int value) {
+        array[position] = (byte) (value >>> 24);
+        array[position + 1] = (byte) (value >>> 16);
+        array[position + 2] = (byte) (value >>> 8);
+        array[position + 3] = (byte) value;
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        bytesWritten += length;
+    }
+
+    /**
+     * @return the number of rows written so far, including rows waiting for their block.
+     */
+    public long getRowCount() {
+        return rowCount + pendingCount;
+    }
+
+    /**
+     * @return the number of bytes written to the stream so far.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes the pending rows, the block index and the footer, and flushes the stream
+     * without closing it.  No rows can be appended afterwards.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writePending();
+        finished = true;
+        final long indexOffset = bytesWritten;
+        ByteBuffer tail = ByteBuffer.allocate(blockCount * SessionFileFormat.INDEX_ENTRY_SIZE
+                + SessionFileFormat.FOOTER_SIZE);
+        for (int b = 0; b < blockCount; b++) {
+            tail.putLong(blockOffsets[b]);
+            tail.putInt(blockRows[b]);
+            tail.putLong(blockFirst[b]);
+            tail.putLong(blockLast[b]);
+        }
+        tail.putLong(indexOffset);
+        tail.putInt(blockCount);
+        tail.putLong(rowCount);
+        tail.putInt(SessionFileFormat.MAGIC);
+        write(tail.array(), tail.position());
+        out.flush();
+    }
+
+    /**
+     * Finishes the file and closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segment files holding the sealed chunks of a {@link SampleStore}, so a long
+ * session does not have to fit in the heap and survives a crash.
+ * <p>
+ * Every chunk is written as one block of a binary session file (see
+ * {@link SessionFileFormat}) and forced to storage as soon as it is sealed.  A segment is
+ * finished, with its block index, once it reaches the segment size and a new one is
+ * started, so sealed segments are ordinary session files.  Spilled chunks are read back
+ * through a memory mapping of their segment; the most recently read chunk is cached.
+ * <p>
+ * After a crash, {@link #recover} rebuilds the store from the segments left in the
+ * directory, up to the last block that was completely written.  A directory holds one open
+ * spill at a time; {@link #isOpen} tells the segments of a live session from those left by
+ * a crash.
+ * <p>
+ * Values are kept with the decimals given to the constructor.  All methods are thread
+ * safe: the store's spill thread writes while exports read.
+ */
+public class SessionSpill {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 32L * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * The absolute paths of the directories of the spills open in this process.
+     */
+    private static final Set<String> OPEN_DIRS = new HashSet<>();
+
+    private final File dir;
+    private final String[] columnNames;
+    private final int[] decimals;
+    private final long segmentBytes;
+    private final SessionBlockCodec codec;
+
+    private final ArrayList<File> segments = new ArrayList<>();
+    private int nextSegmentNumber;
+    private ByteBuffer[] mappings = new ByteBuffer[4];
+
+    /**
+     * The location of each block; block i holds chunk i of the store.
+     */
+    private int[] blockSegment = new int[64];
+    private int[] blockOffset = new int[64];
+    private int[] blockEnd = new int[64];
+    private int blockCount;
+    private long bytesWritten;
+
+    private FileOutputStream activeStream;
+    private SessionFileWriter activeWriter;
+
+    private int cachedBlock = -1;
+    private long[] cachedTimestamps;
+    private double[][] cachedValues;
+
+    /**
+     * @param dir           The directory of the segment files.  Created if needed; must not
+     *                      hold the segments of an unrecovered session.
+     * @param columnNames   The value columns of the store.
+     * @param decimals      The decimals kept for the value columns.
+     */
+    public SessionSpill(File dir, String[] columnNames, int decimals) throws IOException {
+        this(dir, columnNames, filled(columnNames.length, decimals), DEFAULT_SEGMENT_BYTES);
+        if (hasSegments(dir)) {
+            release();
+            throw new IOException(dir + " holds an unrecovered session");
+        }
+    }
+
+    private SessionSpill(File dir, String[] columnNames, int[] decimals, long segmentBytes)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        synchronized (OPEN_DIRS) {
+            if (!OPEN_DIRS.add(dir.getAbsolutePath())) {
+                throw new IOException(dir + " is in use by another session");
+            }
+        }
+        this.dir = dir;
+        this.columnNames = columnNames.clone();
+        this.decimals = decimals;
+        this.segmentBytes = segmentBytes;
+        this.codec = new SessionBlockCodec(decimals);
+    }
+
+    private static int[] filled(int length, int value) {
+        int[] array = new int[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+
+    /**
+     * @return whether a spill of this process is open on {@code dir}: its segments belong
+     *         to a session that is still recording, not to one interrupted by a crash.
+     */
+    public static boolean isOpen(File dir) {
+        synchronized (OPEN_DIRS) {
+            return OPEN_DIRS.contains(dir.getAbsolutePath());
+        }
+    }
+
+    private void release() {
+        synchronized (OPEN_DIRS) {
+            OPEN_DIRS.remove(dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return whether {@code dir} holds segment files, for example of a session that was
+     *         interrupted by a crash.
+     */
+    public static boolean hasSegments(File dir) {
+        return listSegments(dir).length > 0;
+    }
+
+    private static File[] listSegments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX)
+                && name.endsWith(SessionFileFormat.EXTENSION));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Rebuilds the store whose chunks were spilled to {@code dir}.  Scanning a segment
+     * stops at the first block that is incomplete or fails its checksum, typically the
+     * block being written when the app died; rows still in memory at that time are lost.
+     * The returned store keeps spilling to the same directory, in new segments; close it to
+     * delete the segments.
+     * @param memoryChunks  The number of sealed chunks the store keeps in memory.
+     * @throws IOException if the directory holds no segments or the first one is unreadable.
+     */
+    public static SampleStore recover(File dir, int memoryChunks) throws IOException {
+        final File[] files = listSegments(dir);
+        if (files.length == 0) {
+            throw new IOException("no segments in " + dir);
+        }
+        SessionSpill spill = null;
+        try {
+            final CRC32 crc = new CRC32();
+            byte[] scratch = new byte[0];
+            for (File file : files) {
+                final ByteBuffer data = map(file);
+                final SessionFileHeader header;
+                try {
+                    header = SessionFileHeader.read(data);
+                } catch (IOException e) {
+                    if (spill == null) {
+                        throw e;
+                    }
+                    break;
+                }
+                if (spill == null) {
+                    spill = new SessionSpill(dir, header.columnNames, header.decimals,
+                            DEFAULT_SEGMENT_BYTES);
+                } else if (!Arrays.equals(header.columnNames, spill.columnNames)) {
+                    break;
+                }
+                spill.addSegment(file, data);
+
+                // A finished segment ends with its index; blocks stop where it starts.
+                int limit = data.limit();
+                if (limit >= header.size + SessionFileFormat.FOOTER_SIZE
+                        && data.getInt(limit - 4) == SessionFileFormat.MAGIC) {
+                    limit = (int) data.getLong(limit - SessionFileFormat.FOOTER_SIZE);
+                }
+                int position = header.size;
+                while (position + SessionFileFormat.BLOCK_HEADER_SIZE <= limit) {
+                    final int length = data.getInt(position);
+                    final int payload = position + SessionFileFormat.BLOCK_HEADER_SIZE;
+                    if (length <= 0 || length > limit - payload) {
+                        break;
+                    }
+                    if (scratch.length < length) {
+                        scratch = new byte[length];
+                    }
+                    data.position(payload);
+                    data.get(scratch, 0, length);
+                    crc.reset();
+                    crc.update(scratch, 0, length);
+                    data.position(payload);
+                    if ((int) crc.getValue() != data.getInt(position + 4)
+                            || Varint.read(data) != SampleStore.CHUNK_SIZE) {
+                        break;
+                    }
+                    spill.addBlock(spill.segments.size() - 1, position, payload + length);
+                    spill.bytesWritten += SessionFileFormat.BLOCK_HEADER_SIZE + length;
+                    position = payload + length;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The directory stays as it was, to be recovered again.
+            if (spill != null) {
+                spill.release();
+            }
+            throw e;
+        }
+        // New segments go after every file present, including any that could not be read.
+        final String last = files[files.length - 1].getName();
+        spill.nextSegmentNumber = Integer.parseInt(last.substring(SEGMENT_PREFIX.length(),
+                last.length() - SessionFileFormat.EXTENSION.length())) + 1;
+        return new SampleStore(spill, memoryChunks, spill.blockCount);
+    }
+
+    String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * @return the number of chunks spilled.
+     */
+    public synchronized int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return the number of bytes of blocks written to the segments.
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes the next chunk of the store and forces it to storage.
+     */
+    synchronized void write(long[] timestamps, double[][] values, int count) throws IOException {
+        if (activeWriter == null || activeWriter.getBytesWritten() >= segmentBytes) {
+            startSegment();
+        }
+        final long offset = activeWriter.getBytesWritten();
+        activeWriter.append(timestamps, values, 0, count);
+        activeStream.getChannel().force(false);
+        addBlock(segments.size() - 1, (int) offset, (int) activeWriter.getBytesWritten());
+        bytesWritten += activeWriter.getBytesWritten() - offset;
+    }
+
+    private void startSegment() throws IOException {
+        finishSegment();
+        final File file = new File(dir, String.format(Locale.US, "%s%05d%s",
+                SEGMENT_PREFIX, nextSegmentNumber++, SessionFileFormat.EXTENSION));
+        activeStream = new FileOutputStream(file);
+        activeWriter = new SessionFileWriter(activeStream, columnNames, decimals);
+        addSegment(file, null);
+    }
+
+    private void finishSegment() throws IOException {
+        if (activeWriter != null) {
+            SessionFileWriter writer = activeWriter;
+            activeWriter = null;
+            activeStream = null;
+            writer.close();
+        }
+    }
+
+    private void addSegment(File file, ByteBuffer mapping) {
+        if (segments.size() == mappings.length) {
+            mappings = Arrays.copyOf(mappings, mappings.length * 2);
+        }
+        mappings[segments.size()] = mapping;
+        segments.add(file);
+    }
+
+    private void addBlock(int segment, int offset, int end) {
+        if (blockCount == blockSegment.length) {
+            blockSegment = Arrays.copyOf(blockSegment, blockCount * 2);
+            blockOffset = Arrays.copyOf(blockOffset, blockCount * 2);
+            blockEnd = Arrays.copyOf(blockEnd, blockCount * 2);
+        }
+        blockSegment[blockCount] = segment;
+        blockOffset[blockCount] = offset;
+        blockEnd[blockCount] = end;
+        blockCount++;
+    }
+
+    /**
+     * @return the timestamps of a spilled chunk.  The array is not modified afterwards.
+     */
+    synchronized long[] getTimestamps(int block) {
+        load(block);
+        return cachedTimestamps;
+    }
+
+    /**
+     * @return the values of a spilled chunk, indexed [column][row].
+     */
+    synchronized double[][] getValues(int block) {
+        load(block);
+        return cachedValues;
+    }
+
+    private void load(int block) {
+        if (block == cachedBlock) {
+            return;
+        }
+        if (block < 0 || block >= blockCount) {
+            throw new IndexOutOfBoundsException("block " + block + ", count " + blockCount);
+        }
+        try {
+            final int segment = blockSegment[block];
+            final int offset = blockOffset[block];
+            ByteBuffer data = mappings[segment];
+            // The active segment grows; map it again to cover new blocks.
+            if (data == null || data.limit() < blockEnd[block]) {
+                data = map(segments.get(segment));
+                mappings[segment] = data;
+            }
+            // Callers may still hold the previous arrays, so they are never reused.
+            long[] timestamps = new long[SampleStore.CHUNK_SIZE];
+            double[][] values = new double[columnNames.length][SampleStore.CHUNK_SIZE];
+            data.position(offset + SessionFileFormat.BLOCK_HEADER_SIZE);
+            codec.decode(data, timestamps, values);
+            cachedTimestamps = timestamps;
+            cachedValues = values;
+            cachedBlock = block;
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("cannot read spilled chunk " + block, e);
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("segment too large to map: " + file);
+            }
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Closes and deletes the segment files, and frees the directory for another spill.
+     */
+    public synchronized void delete() {
+        try {
+            finishSegment();
+        } catch (IOException e) {
+            // The segments are deleted anyway.
+        }
+        for (File file : listSegments(dir)) {
+            file.delete();
+        }
+        segments.clear();
+        nextSegmentNumber = 0;
+        Arrays.fill(mappings, null);
+        blockCount = 0;
+        bytesWritten = 0;
+        cachedBlock = -1;
+        cachedTimestamps = null;
+        cachedValues = null;
+        release();
+    }
+}
@@ -0,0 +1,60 @@
+package com.choosemuse.example.libmuse.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length encoding of integers, 7 bits per byte with the high bit marking that
+ * more bytes follow (the protobuf varint).  Signed values are ZigZag encoded first so
+ * small negative numbers stay short.
+ */
+public final class Varint {
+
+    /**
+     * The largest number of bytes of an encoded long.
+     */
+    public static final int MAX_LENGTH = 10;
+
+    private Varint() {
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that values close to 0 have short encodings:
+     * 0, -1, 1, -2, 2 become 0, 1, 2, 3, 4.
+     */
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes {@code value} as an unsigned varint.
+     * @return the position after the last byte written.
+     */
+    public static int write(long value, byte[] out, int position) {
+        while ((value & ~0x7FL) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Reads an unsigned varint at the buffer's position and advances past it.
+     * @throws IllegalArgumentException if the encoding is longer than {@link #MAX_LENGTH}.
+     */
+    public static long read(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
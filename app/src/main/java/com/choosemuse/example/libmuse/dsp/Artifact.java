@@ -0,0 +1,34 @@
+package com.choosemuse.example.libmuse.dsp;
+
+/**
+ * The artifacts an {@link ArtifactDetector} finds in raw EEG.  Their flags are bits of the
+ * {@link com.choosemuse.example.libmuse.pipeline.FrameType#ARTIFACTS} frames, by ordinal.
+ */
+public enum Artifact {
+    /** A large slow deflection of both frontal channels. */
+    BLINK("Blink"),
+    /** Muscle activity on both temporal channels. */
+    JAW_CLENCH("Jaw clench"),
+    /** Most channels railed, missing or swamped with noise. */
+    HEADBAND_OFF("Headband off");
+
+    private final String label;
+
+    Artifact(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return the bit of this artifact in the flags.
+     */
+    public int mask() {
+        return 1 << ordinal();
+    }
+
+    /**
+     * @return the name used in annotations.
+     */
+    public String getLabel() {
+        return label;
+    }
+}
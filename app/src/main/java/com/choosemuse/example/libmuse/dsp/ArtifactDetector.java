@@ -0,0 +1,427 @@
+package com.choosemuse.example.libmuse.dsp;
+
+/**
+ * Finds blinks, jaw clenches and a removed headband in raw EEG as it streams in.
+ * <p>
+ * Every channel is followed by three exponential filters: a slow baseline, a low pass of
+ * the signal, and an envelope of the sample to sample difference, which is mostly muscle
+ * activity.  A blink moves the low pass of both frontal channels (AF7, AF8) away from
+ * their baseline in the same direction.  A clench raises the difference envelope of both
+ * temporal channels (TP9, TP10) well above its usual level.  A headband off the head
+ * rails, loses or swamps most channels.  The blink and clench thresholds scale with what
+ * their measure shows between artifacts, with floors in microvolts, and the baselines
+ * stand still during an artifact.
+ * <p>
+ * An artifact starts with the first sample that meets its weak condition.  It is
+ * confirmed once its strong condition held on enough samples, at most
+ * {@link #LAG_SECONDS} after the start, and lasts while the weak condition holds.  So its
+ * start and end are the timestamps of its first and last samples, and the flags of a
+ * sample are final {@link #getLag()} samples after it: the {@link FlagListener} gets them
+ * that far behind.  The {@link EventListener} is told about each artifact when it ends.
+ * <p>
+ * The work per sample is constant and nothing is allocated.  All methods must be called
+ * from the same thread.
+ */
+public final class ArtifactDetector {
+
+    /**
+     * Receives the flags of every sample, {@link #getLag()} samples behind.
+     */
+    public interface FlagListener {
+        /**
+         * @param timestamp The timestamp of the sample.
+         * @param flags     The {@link Artifact#mask()} bits of the artifacts the sample is
+         *                  part of.
+         */
+        void onFlags(long timestamp, int flags);
+    }
+
+    /**
+     * Told about every artifact once it ended.
+     */
+    public interface EventListener {
+        /**
+         * @param start The timestamp of the first sample of the artifact.
+         * @param end   The timestamp of its last sample.
+         */
+        void onArtifact(Artifact artifact, long start, long end);
+    }
+
+    /**
+     * The indexes of the channels in the raw EEG values.
+     */
+    public static final int TP9 = 0;
+    public static final int AF7 = 1;
+    public static final int AF8 = 2;
+    public static final int TP10 = 3;
+    private static final int CHANNELS = 4;
+
+    /**
+     * How far behind the samples their flags are final.  Every artifact is confirmed
+     * within this time of its start or dropped.
+     */
+    public static final double LAG_SECONDS = 0.2;
+
+    /**
+     * How long the baselines are learnt, at the start and after the headband was put
+     * back on, before blinks and clenches are looked for.
+     */
+    public static final double WARMUP_SECONDS = 2;
+
+    private static final double BASELINE_SECONDS = 1;
+    private static final double LOW_PASS_SECONDS = 0.02;
+    private static final double ENVELOPE_SECONDS = 0.05;
+    private static final double NOISE_SECONDS = 4;
+
+    /**
+     * A blink moves both frontal channels by at least this many microvolts, and this many
+     * times their usual distance from the baseline, for {@link #BLINK_SECONDS}.  It starts
+     * at half of that.
+     */
+    public static final double BLINK_UV = 80;
+    private static final double BLINK_NOISES = 5;
+    private static final double BLINK_WEAK = 0.5;
+    private static final double BLINK_SECONDS = 0.03;
+
+    /**
+     * A clench raises the difference envelope of both temporal channels above this many
+     * microvolts and this many times its usual level, for {@link #CLENCH_SECONDS}.  It
+     * starts at two thirds of that.
+     */
+    public static final double CLENCH_UV = 25;
+    private static final double CLENCH_RATIO = 3;
+    private static final double CLENCH_WEAK = 0.67;
+    private static final double CLENCH_SECONDS = 0.05;
+
+    /**
+     * The raw EEG range is 0 to about 1682 microvolts; a channel beyond these limits is
+     * railed.
+     */
+    private static final double RAIL_LOW_UV = 1;
+    private static final double RAIL_HIGH_UV = 1680;
+
+    /**
+     * The headband is off when this many channels are railed, NaN or have a difference
+     * envelope above {@link #OFF_ENVELOPE_UV}, for {@link #OFF_SECONDS}.
+     */
+    public static final int OFF_CHANNELS = 3;
+    public static final double OFF_ENVELOPE_UV = 150;
+    private static final double OFF_SECONDS = 0.15;
+
+    /**
+     * Clenches and a removed headband only end once their condition failed this long, so
+     * short dips do not split them.
+     */
+    private static final double END_SECONDS = 0.05;
+
+    private final double sampleRateHz;
+    private final int lag;
+    private final int mask;
+    private final int warmupSamples;
+    private final double baselineAlpha;
+    private final double lowPassAlpha;
+    private final double envelopeAlpha;
+    private final double noiseAlpha;
+    private final FlagListener flagListener;
+    private EventListener eventListener;
+
+    private final boolean[] started = new boolean[CHANNELS];
+    private final double[] previous = new double[CHANNELS];
+    private final double[] baseline = new double[CHANNELS];
+    private final double[] lowPass = new double[CHANNELS];
+    private final double[] envelope = new double[CHANNELS];
+    /**
+     * The usual distance of the low pass from the baseline, and the usual envelope.
+     */
+    private final double[] deviationLevel = new double[CHANNELS];
+    private final double[] envelopeLevel = new double[CHANNELS];
+
+    /**
+     * The timestamps and flags of the latest samples, by sample index.
+     */
+    private final long[] times;
+    private final byte[] flags;
+
+    private final Detection blink;
+    private final Detection clench;
+    private final Detection off;
+    private final long[] counts = new long[Artifact.values().length];
+
+    /**
+     * The index and timestamp of the current sample, and the index the warm-up started at.
+     */
+    private long sample = -1;
+    private long timestamp;
+    private long warmupStart;
+
+    /**
+     * The state of one kind of artifact.
+     */
+    private final class Detection {
+        final Artifact artifact;
+        final int confirmSamples;
+        final int endSamples;
+        boolean candidate;
+        boolean active;
+        long start;
+        long startTimestamp;
+        long lastSeen;
+        long lastSeenTimestamp;
+        int strongCount;
+
+        Detection(Artifact artifact, int confirmSamples, int endSamples) {
+            this.artifact = artifact;
+            this.confirmSamples = confirmSamples;
+            this.endSamples = endSamples;
+        }
+
+        boolean isBusy() {
+            return candidate || active;
+        }
+
+        void update(boolean weak, boolean strong) {
+            if (!candidate && !active) {
+                if (!weak) {
+                    return;
+                }
+                candidate = true;
+                start = sample;
+                startTimestamp = timestamp;
+                strongCount = 0;
+            } else if (candidate && sample - start >= lag) {
+                // Not confirmed in time, the flags of its start are out already.
+                candidate = false;
+                return;
+            }
+            if (weak) {
+                if (active) {
+                    // Including the samples of a dip too short to end the artifact.
+                    mark(lastSeen + 1, sample);
+                }
+                lastSeen = sample;
+                lastSeenTimestamp = timestamp;
+                if (strong && ++strongCount >= confirmSamples && candidate) {
+                    candidate = false;
+                    active = true;
+                    mark(start, sample);
+                }
+            } else if (sample - lastSeen >= endSamples) {
+                finish();
+            }
+        }
+
+        void mark(long from, long to) {
+            final int bit = artifact.mask();
+            for (long i = from; i <= to; i++) {
+                flags[(int) (i & mask)] |= bit;
+            }
+        }
+
+        /**
+         * Ends the artifact when the headband comes off.  One that started less than the lag
+         * ago is taken for the start of that, and dropped with its flags.
+         */
+        void abandon() {
+            if (active && sample - start < lag) {
+                final int bit = ~artifact.mask();
+                for (long i = start; i <= sample; i++) {
+                    flags[(int) (i & mask)] &= bit;
+                }
+                active = false;
+            }
+            finish();
+        }
+
+        void finish() {
+            candidate = false;
+            if (!active) {
+                return;
+            }
+            active = false;
+            counts[artifact.ordinal()]++;
+            final EventListener listener = eventListener;
+            if (listener != null) {
+                listener.onArtifact(artifact, startTimestamp, lastSeenTimestamp);
+            }
+        }
+    }
+
+    /**
+     * @param sampleRateHz The raw EEG rate.
+     * @param flagListener Receives the flags of every sample.
+     */
+    public ArtifactDetector(double sampleRateHz, FlagListener flagListener) {
+        if (!(sampleRateHz > 0)) {
+            throw new IllegalArgumentException("rate " + sampleRateHz);
+        }
+        this.sampleRateHz = sampleRateHz;
+        this.flagListener = flagListener;
+        this.lag = samples(LAG_SECONDS);
+        this.mask = Integer.highestOneBit(lag) * 2 - 1;
+        this.times = new long[mask + 1];
+        this.flags = new byte[mask + 1];
+        this.warmupSamples = samples(WARMUP_SECONDS);
+        this.baselineAlpha = 1.0 / samples(BASELINE_SECONDS);
+        this.lowPassAlpha = 1.0 / samples(LOW_PASS_SECONDS);
+        this.envelopeAlpha = 1.0 / samples(ENVELOPE_SECONDS);
+        this.noiseAlpha = 1.0 / samples(NOISE_SECONDS);
+        final int endSamples = samples(END_SECONDS);
+        this.blink = new Detection(Artifact.BLINK, samples(BLINK_SECONDS), 1);
+        this.clench = new Detection(Artifact.JAW_CLENCH, samples(CLENCH_SECONDS), endSamples);
+        this.off = new Detection(Artifact.HEADBAND_OFF, samples(OFF_SECONDS), endSamples);
+    }
+
+    private int samples(double seconds) {
+        return (int) Math.max(1, Math.round(seconds * sampleRateHz));
+    }
+
+    public void setEventListener(EventListener listener) {
+        eventListener = listener;
+    }
+
+    public double getSampleRateHz() {
+        return sampleRateHz;
+    }
+
+    /**
+     * @return the number of samples the flags are behind.
+     */
+    public int getLag() {
+        return lag;
+    }
+
+    /**
+     * @return the number of artifacts of a kind that ended so far.
+     */
+    public long getCount(Artifact artifact) {
+        return counts[artifact.ordinal()];
+    }
+
+    /**
+     * Adds one sample and hands the flags of the sample {@link #getLag()} samples back to the
+     * flag listener.
+     * @param timestamp The sample timestamp in microseconds.
+     * @param values    The raw EEG values, TP9, AF7, AF8 and TP10 first.  NaN values count
+     *                  as lost electrodes.
+     */
+    public void addSample(long timestamp, double[] values) {
+        final long n = ++sample;
+        this.timestamp = timestamp;
+        final int slot = (int) (n & mask);
+        times[slot] = timestamp;
+        flags[slot] = 0;
+
+        int bad = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            final double value = values[c];
+            if (Double.isNaN(value)) {
+                bad++;
+                continue;
+            }
+            if (!started[c]) {
+                started[c] = true;
+                previous[c] = value;
+                baseline[c] = value;
+                lowPass[c] = value;
+            }
+            envelope[c] += (Math.abs(value - previous[c]) - envelope[c]) * envelopeAlpha;
+            lowPass[c] += (value - lowPass[c]) * lowPassAlpha;
+            previous[c] = value;
+            if (value <= RAIL_LOW_UV || value >= RAIL_HIGH_UV || envelope[c] > OFF_ENVELOPE_UV) {
+                bad++;
+            }
+        }
+
+        final boolean wasOff = off.active;
+        off.update(bad >= OFF_CHANNELS, bad >= OFF_CHANNELS);
+        if (off.isBusy()) {
+            blink.abandon();
+            clench.abandon();
+        } else if (wasOff) {
+            // Back on: the baselines are stale.
+            warmupStart = n;
+            for (int c = 0; c < CHANNELS; c++) {
+                baseline[c] = lowPass[c];
+            }
+        } else {
+            detect(n - warmupStart >= warmupSamples);
+            learn(n - warmupStart);
+        }
+
+        if (n >= lag) {
+            final int out = (int) ((n - lag) & mask);
+            flagListener.onFlags(times[out], flags[out]);
+        }
+    }
+
+    private void detect(boolean warm) {
+        if (!warm) {
+            return;
+        }
+        final double af7 = lowPass[AF7] - baseline[AF7];
+        final double af8 = lowPass[AF8] - baseline[AF8];
+        final double blinkUv = Math.max(BLINK_UV,
+                BLINK_NOISES * Math.max(deviationLevel[AF7], deviationLevel[AF8]));
+        final double frontal = af7 * af8 > 0 ? Math.min(Math.abs(af7), Math.abs(af8)) : 0;
+        blink.update(frontal > BLINK_WEAK * blinkUv, frontal > blinkUv);
+
+        final double tp9 = envelope[TP9] / Math.max(CLENCH_UV, CLENCH_RATIO * envelopeLevel[TP9]);
+        final double tp10 = envelope[TP10] / Math.max(CLENCH_UV, CLENCH_RATIO * envelopeLevel[TP10]);
+        final double temporal = Math.min(tp9, tp10);
+        clench.update(temporal > CLENCH_WEAK, temporal > 1);
+    }
+
+    /**
+     * Moves the baselines and usual levels, except those an artifact in progress would
+     * skew.  Plain means during the warm-up.
+     * @param samples The number of samples since the warm-up started.
+     */
+    private void learn(long samples) {
+        final double levelAlpha = Math.max(noiseAlpha, 1.0 / (samples + 1));
+        if (!blink.isBusy()) {
+            for (int c = 0; c < CHANNELS; c++) {
+                baseline[c] += (lowPass[c] - baseline[c]) * baselineAlpha;
+                deviationLevel[c] += (Math.abs(lowPass[c] - baseline[c]) - deviationLevel[c]) * levelAlpha;
+            }
+        }
+        if (!clench.isBusy()) {
+            for (int c = 0; c < CHANNELS; c++) {
+                envelopeLevel[c] += (envelope[c] - envelopeLevel[c]) * levelAlpha;
+            }
+        }
+    }
+
+    /**
+     * Hands the flags of the samples still behind to the flag listener and ends the
+     * artifacts in progress, at the end of a session.  Then starts over like
+     * {@link #reset()}.
+     */
+    public void flush() {
+        for (long i = Math.max(0, sample - lag + 1); i <= sample; i++) {
+            final int slot = (int) (i & mask);
+            flagListener.onFlags(times[slot], flags[slot]);
+        }
+        off.finish();
+        blink.finish();
+        clench.finish();
+        reset();
+    }
+
+    /**
+     * Forgets the samples received so far, without telling the listeners about them.  The
+     * counts are kept.
+     */
+    public void reset() {
+        sample = -1;
+        warmupStart = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            started[c] = false;
+            envelope[c] = 0;
+            deviationLevel[c] = 0;
+            envelopeLevel[c] = 0;
+        }
+        blink.candidate = blink.active = false;
+        clench.candidate = clench.active = false;
+        off.candidate = off.active = false;
+    }
+}
@@ -0,0 +1,219 @@
+package com.choosemuse.example.libmuse.dsp;
+
+/**
+ * Computes the {@link EegBand} powers of raw EEG over a sliding window.
+ * <p>
+ * Samples are kept in a ring per channel.  Every {@code hopSize} samples, once the first
+ * window is full, the latest {@code windowSize} samples of each channel are detrended
+ * (mean removed), multiplied by a Hann window and transformed with a {@link RealFft}.
+ * The power spectral density is summed over the bins of each band:
+ * <ul>
+ *     <li>absolute power is log10 of the band power in uV^2, like the firmware's
+ *     *_ABSOLUTE packets;</li>
+ *     <li>relative power is the band's share of the summed power of all bands, between
+ *     0 and 1, like the *_RELATIVE packets.</li>
+ * </ul>
+ * All buffers are allocated up front; adding samples and computing a hop do not allocate.
+ * The results are handed to the {@link Listener} in arrays that are overwritten on the
+ * next hop.  All methods must be called from the same thread.
+ */
+public class BandPowerEngine {
+
+    /**
+     * Receives the band powers computed at each hop.
+     */
+    public interface Listener {
+        /**
+         * @param timestamp The timestamp of the newest sample of the window.
+         * @param absolute  The absolute powers, indexed [band ordinal][channel].
+         * @param relative  The relative powers, indexed [band ordinal][channel].
+         */
+        void onBandPower(long timestamp, double[][] absolute, double[][] relative);
+    }
+
+    /**
+     * The update rate of {@link #forRate}, the same as the firmware's band power packets.
+     */
+    public static final int DEFAULT_HOPS_PER_SECOND = 10;
+
+    /**
+     * Band powers below this (in uV^2), including silent channels, are reported as this
+     * value so absolute powers stay finite.
+     */
+    private static final double MIN_POWER = 1e-10;
+
+    private static final EegBand[] BANDS = EegBand.values();
+
+    private final int channels;
+    private final double sampleRateHz;
+    private final int windowSize;
+    private final int mask;
+    private final int hopSize;
+    private final Listener listener;
+
+    private final RealFft fft;
+    private final double[] window;
+
+    /**
+     * Converts the summed squared magnitudes of a band to its power in uV^2.
+     */
+    private final double scale;
+    private final int[] bandFrom;
+    private final int[] bandTo;
+
+    private final double[][] ring;
+    private final double[] lastValue;
+    private int writeIndex;
+    private int filled;
+    private int sinceHop;
+
+    private final double[] frame;
+    private final double[] power;
+    private final double[] bandPower = new double[BANDS.length];
+    private final double[][] absolute;
+    private final double[][] relative;
+
+    /**
+     * Creates an engine with a window of about one second and {@link #DEFAULT_HOPS_PER_SECOND}
+     * updates per second.
+     * @param channels      The number of leading values of each sample to analyse.
+     * @param sampleRateHz  The raw EEG rate.
+     */
+    public static BandPowerEngine forRate(int channels, double sampleRateHz, Listener listener) {
+        int windowSize = Integer.highestOneBit((int) Math.ceil(sampleRateHz));
+        if (windowSize < sampleRateHz) {
+            windowSize <<= 1;
+        }
+        int hopSize = (int) Math.max(1, Math.round(sampleRateHz / DEFAULT_HOPS_PER_SECOND));
+        return new BandPowerEngine(channels, sampleRateHz, windowSize, hopSize, listener);
+    }
+
+    /**
+     * @param channels      The number of leading values of each sample to analyse.
+     * @param sampleRateHz  The raw EEG rate.
+     * @param windowSize    The number of samples per spectrum; a power of two.  The
+     *                      frequency resolution is {@code sampleRateHz / windowSize}.
+     * @param hopSize       The number of samples between two spectra.
+     * @param listener      Receives the band powers.
+     */
+    public BandPowerEngine(int channels, double sampleRateHz, int windowSize, int hopSize,
+                           Listener listener) {
+        if (hopSize < 1) {
+            throw new IllegalArgumentException("hopSize must be positive: " + hopSize);
+        }
+        this.fft = new RealFft(windowSize);
+        this.channels = channels;
+        this.sampleRateHz = sampleRateHz;
+        this.windowSize = windowSize;
+        this.mask = windowSize - 1;
+        this.hopSize = hopSize;
+        this.listener = listener;
+
+        this.window = new double[windowSize];
+        double windowEnergy = 0;
+        for (int i = 0; i < windowSize; i++) {
+            window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / windowSize);
+            windowEnergy += window[i] * window[i];
+        }
+        // One sided PSD 2|X|^2 / (fs * sum(w^2)), times the bin width fs / N.
+        this.scale = 2 / (windowSize * windowEnergy);
+
+        final int bins = windowSize / 2 + 1;
+        this.bandFrom = new int[BANDS.length];
+        this.bandTo = new int[BANDS.length];
+        for (EegBand band : BANDS) {
+            bandFrom[band.ordinal()] = Math.min(bins, (int) Math.ceil(band.getLowHz() * windowSize / sampleRateHz));
+            bandTo[band.ordinal()] = Math.min(bins, (int) Math.ceil(band.getHighHz() * windowSize / sampleRateHz));
+        }
+
+        this.ring = new double[channels][windowSize];
+        this.lastValue = new double[channels];
+        this.frame = new double[windowSize];
+        this.power = new double[bins];
+        this.absolute = new double[BANDS.length][channels];
+        this.relative = new double[BANDS.length][channels];
+        this.sinceHop = hopSize;
+    }
+
+    public int getChannelCount() {
+        return channels;
+    }
+
+    public double getSampleRateHz() {
+        return sampleRateHz;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    /**
+     * Adds one sample of every channel and computes the band powers if a hop is due.  NaN
+     * values, which the headband sends for lost samples, repeat the channel's previous value.
+     * @param timestamp The sample timestamp in microseconds.
+     * @param values    At least {@link #getChannelCount()} values.
+     */
+    public void addSample(long timestamp, double[] values) {
+        for (int c = 0; c < channels; c++) {
+            double value = values[c];
+            if (Double.isNaN(value)) {
+                value = lastValue[c];
+            } else {
+                lastValue[c] = value;
+            }
+            ring[c][writeIndex] = value;
+        }
+        writeIndex = (writeIndex + 1) & mask;
+        if (filled < windowSize) {
+            filled++;
+        }
+        if (++sinceHop >= hopSize && filled == windowSize) {
+            sinceHop = 0;
+            compute(timestamp);
+        }
+    }
+
+    /**
+     * Discards the samples received so far, for example after the connection was lost.
+     */
+    public void reset() {
+        filled = 0;
+        sinceHop = hopSize;
+    }
+
+    private void compute(long timestamp) {
+        for (int c = 0; c < channels; c++) {
+            final double[] samples = ring[c];
+            double mean = 0;
+            for (int i = 0; i < windowSize; i++) {
+                mean += samples[i];
+            }
+            mean /= windowSize;
+            // The oldest sample is at writeIndex.
+            for (int i = 0; i < windowSize; i++) {
+                frame[i] = (samples[(writeIndex + i) & mask] - mean) * window[i];
+            }
+            fft.power(frame, power);
+
+            double total = 0;
+            for (int b = 0; b < BANDS.length; b++) {
+                double sum = 0;
+                for (int k = bandFrom[b]; k < bandTo[b]; k++) {
+                    sum += power[k];
+                }
+                sum *= scale;
+                bandPower[b] = sum;
+                total += sum;
+                absolute[b][c] = Math.log10(Math.max(sum, MIN_POWER));
+            }
+            for (int b = 0; b < BANDS.length; b++) {
+                relative[b][c] = total > 0 ? bandPower[b] / total : 0;
+            }
+        }
+        listener.onBandPower(timestamp, absolute, relative);
+    }
+}
@@ -0,0 +1,265 @@
+package com.choosemuse.example.libmuse.dsp;
+
+/**
+ * Lowers the rate of a stream by an integer factor, for example 256 Hz EEG to 64 Hz,
+ * behind a linear phase FIR filter that keeps the content above the new Nyquist frequency
+ * from aliasing into the band kept.
+ * <p>
+ * Every stage is a polyphase decimator: of the outputs of its filter only the one in every
+ * M kept is computed, so a stage costs taps / M multiplies per input sample and channel.
+ * The history of every channel is written twice, at i and i + taps, so the taps are always
+ * read as one run without wrapping.  The channels share the filters.
+ * <p>
+ * The filters are Blackman windowed sincs cut off at the output Nyquist frequency of their
+ * stage, with their length chosen so the pass band, up to {@link #PASS_BAND} of the final
+ * rate, is flat and the aliases that would fold into it are more than 70 dB down.  Aliases may
+ * still fold into the band between the pass band and the new Nyquist frequency.  A staged
+ * decimator splits the factor into its prime factors; the early stages, which run at the
+ * high rates, only have to protect the final pass band and so get short filters, which
+ * makes the whole cheaper than one long filter from 4 up.
+ * <p>
+ * Like {@link FilterBank}, the first sample primes the history as if it had always been
+ * the input, and nothing is allocated after construction.  A NaN sample is replaced by
+ * the last value of its channel.  All methods must be called from the same thread.
+ */
+public final class Decimator {
+
+    /**
+     * The band passed, as a fraction of the output rate: 0.4 keeps up to 25.6 Hz at 64 Hz.
+     */
+    public static final double PASS_BAND = 0.4;
+
+    /**
+     * The transition width of a Blackman window times the filter length, in cycles per
+     * sample.
+     */
+    private static final double BLACKMAN_WIDTH = 5.5;
+
+    private final int channels;
+    private final int factor;
+    private final Stage[] stages;
+    private final double[] held;
+    private boolean primed;
+
+    /**
+     * @param staged Whether to decimate in stages of the prime factors of {@code factor}.
+     */
+    public Decimator(int channels, int factor, boolean staged) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("factor " + factor);
+        }
+        this.channels = channels;
+        this.factor = factor;
+        final int[] factors = staged ? primeFactors(factor) : new int[]{factor};
+        this.stages = new Stage[factors.length];
+        // The rate after each stage, in multiples of the final rate.
+        int remaining = factor;
+        for (int s = 0; s < factors.length; s++) {
+            remaining /= factors[s];
+            stages[s] = new Stage(channels, factors[s], design(factors[s], remaining));
+        }
+        this.held = new double[channels];
+    }
+
+    /**
+     * @return the taps of the filter of a stage decimating by {@code m} to {@code k} times
+     *         the final rate.  Aliases are only kept out of the final pass band, from
+     *         {@code k - PASS_BAND} of the final rate up.
+     */
+    static double[] design(int m, int k) {
+        if (m == 1) {
+            return new double[]{1};
+        }
+        // The transition, from the pass band to where aliases of the pass band start, in
+        // cycles per input sample.
+        final double transition = (k - 2 * PASS_BAND) / (k * (double) m);
+        final int half = (int) Math.ceil(BLACKMAN_WIDTH / transition / 2);
+        final int length = 2 * half + 1;
+        final double cutoff = 0.5 / m;
+        final double[] taps = new double[length];
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            final int n = i - half;
+            final double sinc = n == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * n) / (Math.PI * n);
+            final double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * i / (length - 1));
+            taps[i] = sinc * window;
+            sum += taps[i];
+        }
+        for (int i = 0; i < length; i++) {
+            taps[i] /= sum;
+        }
+        return taps;
+    }
+
+    private static int[] primeFactors(int n) {
+        int count = 0;
+        int[] factors = new int[32];
+        for (int p = 2; n > 1; ) {
+            if (n % p == 0) {
+                factors[count++] = p;
+                n /= p;
+            } else {
+                p = p * p > n ? n : p + 1;
+            }
+        }
+        if (count == 0) {
+            factors[count++] = 1;
+        }
+        final int[] trimmed = new int[count];
+        System.arraycopy(factors, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    public int getChannelCount() {
+        return channels;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    /**
+     * @return the taps of every stage, added up.
+     */
+    public int getTapCount() {
+        int taps = 0;
+        for (Stage stage : stages) {
+            taps += stage.length;
+        }
+        return taps;
+    }
+
+    /**
+     * @return the delay of the filters, in input samples: an output belongs at the time
+     *         of the input this many samples before the one that produced it.
+     */
+    public int getDelay() {
+        int delay = 0;
+        int rate = 1;
+        for (Stage stage : stages) {
+            delay += rate * (stage.length - 1) / 2;
+            rate *= stage.factor;
+        }
+        return delay;
+    }
+
+    /**
+     * @return the multiplies per input sample and channel.
+     */
+    public double getCost() {
+        double cost = 0;
+        int rate = 1;
+        for (Stage stage : stages) {
+            cost += stage.length / (double) (rate * stage.factor);
+            rate *= stage.factor;
+        }
+        return cost;
+    }
+
+    /**
+     * Adds one sample of every channel.
+     * @param values At least {@link #getChannelCount()} values; replaced by the output
+     *               when this returns true.
+     * @return true once every {@link #getFactor()} samples, when an output is ready.
+     */
+    public boolean push(double[] values) {
+        for (int c = 0; c < channels; c++) {
+            final double x = values[c];
+            if (x != x) {
+                values[c] = held[c];
+            } else {
+                held[c] = x;
+            }
+        }
+        if (!primed) {
+            for (Stage stage : stages) {
+                stage.prime(values);
+            }
+            primed = true;
+        }
+        for (Stage stage : stages) {
+            if (!stage.push(values)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the history, so the next sample primes it again.
+     */
+    public void reset() {
+        primed = false;
+        for (Stage stage : stages) {
+            stage.phase = 0;
+            stage.position = 0;
+        }
+    }
+
+    /**
+     * One polyphase decimator by {@link #factor}.
+     */
+    private static final class Stage {
+        final int channels;
+        final int factor;
+        final int length;
+        final double[] taps;
+
+        /**
+         * Channel c's history is at [c * 2 * length, (c + 1) * 2 * length), oldest first
+         * from {@link #position}.
+         */
+        final double[] history;
+        int position;
+        int phase;
+
+        Stage(int channels, int factor, double[] taps) {
+            this.channels = channels;
+            this.factor = factor;
+            this.length = taps.length;
+            this.taps = taps;
+            this.history = new double[channels * 2 * length];
+        }
+
+        void prime(double[] values) {
+            for (int c = 0; c < channels; c++) {
+                final int base = c * 2 * length;
+                for (int i = 0; i < 2 * length; i++) {
+                    history[base + i] = values[c];
+                }
+            }
+        }
+
+        boolean push(double[] values) {
+            final int length = this.length;
+            final double[] history = this.history;
+            final int position = this.position;
+            for (int c = 0; c < channels; c++) {
+                final int base = c * 2 * length + position;
+                history[base] = values[c];
+                history[base + length] = values[c];
+            }
+            this.position = position + 1 == length ? 0 : position + 1;
+            if (++phase < factor) {
+                return false;
+            }
+            phase = 0;
+            final double[] taps = this.taps;
+            for (int c = 0; c < channels; c++) {
+                // The oldest sample is the one after the newest.
+                final int start = c * 2 * length + this.position;
+                double y = 0;
+                for (int k = 0; k < length; k++) {
+                    y += taps[k] * history[start + k];
+                }
+                values[c] = y;
+            }
+            return true;
+        }
+    }
+}
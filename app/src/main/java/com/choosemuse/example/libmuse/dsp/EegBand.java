@@ -0,0 +1,49 @@
+package com.choosemuse.example.libmuse.dsp;
+
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+
+/**
+ * The EEG frequency bands, with the limits the headband firmware uses for its band power
+ * packets.  Alpha and theta overlap between 7.5 and 8 Hz.
+ */
+public enum EegBand {
+    DELTA(1, 4, FrameType.DELTA_ABSOLUTE, FrameType.DELTA_RELATIVE),
+    THETA(4, 8, FrameType.THETA_ABSOLUTE, FrameType.THETA_RELATIVE),
+    ALPHA(7.5, 13, FrameType.ALPHA_ABSOLUTE, FrameType.ALPHA_RELATIVE),
+    BETA(13, 30, FrameType.BETA_ABSOLUTE, FrameType.BETA_RELATIVE),
+    GAMMA(30, 44, FrameType.GAMMA_ABSOLUTE, FrameType.GAMMA_RELATIVE);
+
+    private final double lowHz;
+    private final double highHz;
+    private final FrameType absoluteType;
+    private final FrameType relativeType;
+
+    EegBand(double lowHz, double highHz, FrameType absoluteType, FrameType relativeType) {
+        this.lowHz = lowHz;
+        this.highHz = highHz;
+        this.absoluteType = absoluteType;
+        this.relativeType = relativeType;
+    }
+
+    /**
+     * @return the lower limit of the band in Hz, inclusive.
+     */
+    public double getLowHz() {
+        return lowHz;
+    }
+
+    /**
+     * @return the upper limit of the band in Hz, exclusive.
+     */
+    public double getHighHz() {
+        return highHz;
+    }
+
+    public FrameType getAbsoluteType() {
+        return absoluteType;
+    }
+
+    public FrameType getRelativeType() {
+        return relativeType;
+    }
+}
@@ -0,0 +1,242 @@
+package com.choosemuse.example.libmuse.dsp;
+
+/**
+ * A cascade of second order sections (biquads) run over every channel of a stream, for
+ * example a mains notch followed by a band-pass.
+ * <p>
+ * The channels share the coefficients.  The coefficients of all sections are kept in one
+ * flat array, five per section, and the state of every section of every channel in
+ * another, two values per channel, section after section.  A block of interleaved samples
+ * is filtered one section at a time, so the coefficients stay in registers for the whole
+ * block, and the inner loop runs across the channels of a sample, whose recursions do not
+ * depend on each other and so overlap in the CPU.  The
+ * sections are in transposed direct form II, which keeps the round off low at the low
+ * cut-offs of EEG.
+ * <p>
+ * The sections are designed with the formulas of the Audio EQ Cookbook; the high-pass and
+ * low-pass cascades are Butterworth.  The first sample after construction or
+ * {@link #reset()} primes the state as if it had always been the input, so the DC offset
+ * of raw EEG does not ring through the high-pass.  NaN samples pass through as NaN and
+ * leave the state of their channel alone.  Nothing is allocated while filtering.  All
+ * methods must be called from the same thread.
+ */
+public final class FilterBank {
+
+    private static final int COEFFICIENTS = 5;
+
+    /**
+     * The default cut-offs of {@link #forEeg}: below the delta band, to remove the drift of
+     * the electrodes, and just above the gamma band.
+     */
+    public static final double DEFAULT_HIGH_PASS_HZ = 0.5;
+    public static final double DEFAULT_LOW_PASS_HZ = 45;
+
+    /**
+     * The order of the high-pass and low-pass of {@link #forEeg}.
+     */
+    public static final int DEFAULT_ORDER = 4;
+
+    /**
+     * The quality of the mains notch of {@link #forEeg}: about 2 Hz wide at 50 Hz.
+     */
+    public static final double DEFAULT_NOTCH_Q = 25;
+
+    private final int channels;
+    private final int sections;
+    private final double[] coefficients;
+    private final double[] state;
+    private boolean primed;
+
+    /**
+     * @param channels     The number of channels, the leading values of each sample.
+     * @param coefficients b0, b1, b2, a1 and a2 of every section, normalized so a0 is 1,
+     *                     as returned by {@link #notch}, {@link #highPass},
+     *                     {@link #lowPass} and {@link #chain}.
+     */
+    public FilterBank(int channels, double[] coefficients) {
+        if (coefficients.length == 0 || coefficients.length % COEFFICIENTS != 0) {
+            throw new IllegalArgumentException(coefficients.length + " coefficients");
+        }
+        this.channels = channels;
+        this.sections = coefficients.length / COEFFICIENTS;
+        this.coefficients = coefficients.clone();
+        this.state = new double[sections * channels * 2];
+    }
+
+    /**
+     * A notch at {@code mainsHz} followed by a band-pass from {@link #DEFAULT_HIGH_PASS_HZ} to
+     * {@link #DEFAULT_LOW_PASS_HZ}, or to just below the Nyquist frequency at low rates.
+     * @param mainsHz 50 or 60, depending on the country; 0 for no notch.
+     */
+    public static FilterBank forEeg(int channels, double rateHz, double mainsHz) {
+        final double lowPassHz = Math.min(DEFAULT_LOW_PASS_HZ, 0.45 * rateHz);
+        final double[] bandPass = chain(highPass(rateHz, DEFAULT_HIGH_PASS_HZ, DEFAULT_ORDER),
+                lowPass(rateHz, lowPassHz, DEFAULT_ORDER));
+        return new FilterBank(channels, mainsHz > 0 && mainsHz < rateHz / 2
+                ? chain(notch(rateHz, mainsHz, DEFAULT_NOTCH_Q), bandPass)
+                : bandPass);
+    }
+
+    /**
+     * @return the coefficients of a notch at {@code hz} with quality {@code q}, the centre
+     *         frequency over the -3 dB width.
+     */
+    public static double[] notch(double rateHz, double hz, double q) {
+        final double w0 = 2 * Math.PI * hz / rateHz;
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+        return normalize(1, -2 * cos, 1, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * @return the coefficients of a Butterworth high-pass of an even {@code order}, as
+     *         order / 2 sections.
+     */
+    public static double[] highPass(double rateHz, double hz, int order) {
+        return butterworth(rateHz, hz, order, true);
+    }
+
+    /**
+     * @return the coefficients of a Butterworth low-pass of an even {@code order}, as
+     *         order / 2 sections.
+     */
+    public static double[] lowPass(double rateHz, double hz, int order) {
+        return butterworth(rateHz, hz, order, false);
+    }
+
+    /**
+     * @return the coefficients of the sections of {@code parts}, one after the other.
+     */
+    public static double[] chain(double[]... parts) {
+        int length = 0;
+        for (double[] part : parts) {
+            length += part.length;
+        }
+        final double[] chained = new double[length];
+        int offset = 0;
+        for (double[] part : parts) {
+            System.arraycopy(part, 0, chained, offset, part.length);
+            offset += part.length;
+        }
+        return chained;
+    }
+
+    private static double[] butterworth(double rateHz, double hz, int order, boolean high) {
+        if (order < 2 || order % 2 != 0) {
+            throw new IllegalArgumentException("order " + order);
+        }
+        if (!(hz > 0 && hz < rateHz / 2)) {
+            throw new IllegalArgumentException(hz + " Hz at " + rateHz + " Hz");
+        }
+        final double w0 = 2 * Math.PI * hz / rateHz;
+        final double cos = Math.cos(w0);
+        final double[] sections = new double[order / 2 * COEFFICIENTS];
+        for (int k = 0; k < order / 2; k++) {
+            // The quality of the k-th pole pair of the Butterworth polynomial.
+            final double q = 1 / (2 * Math.sin((2 * k + 1) * Math.PI / (2 * order)));
+            final double alpha = Math.sin(w0) / (2 * q);
+            final double[] section = high
+                    ? normalize((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha)
+                    : normalize((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+            System.arraycopy(section, 0, sections, k * COEFFICIENTS, COEFFICIENTS);
+        }
+        return sections;
+    }
+
+    private static double[] normalize(double b0, double b1, double b2, double a0, double a1, double a2) {
+        return new double[]{b0 / a0, b1 / a0, b2 / a0, a1 / a0, a2 / a0};
+    }
+
+    public int getChannelCount() {
+        return channels;
+    }
+
+    public int getSectionCount() {
+        return sections;
+    }
+
+    /**
+     * Filters one sample of every channel in place.
+     * @param values At least {@link #getChannelCount()} values.
+     */
+    public void filter(double[] values) {
+        process(values, 0, 1);
+    }
+
+    /**
+     * Filters a block of samples in place.
+     * @param block  The samples, interleaved: the value of channel c of sample i is at
+     *               {@code offset + i * channels + c}.
+     * @param frames The number of samples of every channel.
+     */
+    public void process(double[] block, int offset, int frames) {
+        if (frames <= 0) {
+            return;
+        }
+        if (!primed) {
+            prime(block, offset);
+        }
+        final double[] coefficients = this.coefficients;
+        final double[] state = this.state;
+        final int channels = this.channels;
+        final int end = offset + frames * channels;
+        for (int s = 0; s < sections; s++) {
+            final int k = s * COEFFICIENTS;
+            final double b0 = coefficients[k];
+            final double b1 = coefficients[k + 1];
+            final double b2 = coefficients[k + 2];
+            final double a1 = coefficients[k + 3];
+            final double a2 = coefficients[k + 4];
+            final int z = s * channels * 2;
+            for (int i = offset; i < end; i += channels) {
+                for (int c = 0; c < channels; c++) {
+                    final double x = block[i + c];
+                    if (x != x) {
+                        // NaN stays NaN through the following sections.
+                        continue;
+                    }
+                    final int zc = z + 2 * c;
+                    final double y = b0 * x + state[zc];
+                    state[zc] = b1 * x - a1 * y + state[zc + 1];
+                    state[zc + 1] = b2 * x - a2 * y;
+                    block[i + c] = y;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the state of every channel as if its first value had been the input forever.
+     */
+    private void prime(double[] block, int offset) {
+        primed = true;
+        for (int c = 0; c < channels; c++) {
+            double x = block[offset + c];
+            if (x != x) {
+                x = 0;
+            }
+            for (int s = 0; s < sections; s++) {
+                final int k = s * COEFFICIENTS;
+                final double b0 = coefficients[k];
+                final double b1 = coefficients[k + 1];
+                final double b2 = coefficients[k + 2];
+                final double a1 = coefficients[k + 3];
+                final double a2 = coefficients[k + 4];
+                // The gain of the section at DC.
+                final double y = x * (b0 + b1 + b2) / (1 + a1 + a2);
+                final int z = (s * channels + c) * 2;
+                state[z] = y - b0 * x;
+                state[z + 1] = b2 * x - a2 * y;
+                x = y;
+            }
+        }
+    }
+
+    /**
+     * Forgets the past samples, for example when the headband reconnects.  The next sample
+     * primes the state again.
+     */
+    public void reset() {
+        primed = false;
+    }
+}
@@ -0,0 +1,119 @@
+package com.choosemuse.example.libmuse.dsp;
+
+/**
+ * A radix-2 FFT of real input of a fixed power of two size.
+ * <p>
+ * The N real samples are packed into N/2 complex values, transformed with an N/2 point
+ * complex FFT and split into the spectrum of the real signal, which halves the work of a
+ * complex transform.  Twiddle factors, the bit reversal table and the work arrays are
+ * created once; transforms do not allocate.  Instances are not thread safe.
+ */
+public final class RealFft {
+
+    private final int size;
+    private final int half;
+    private final int[] bitReverse;
+
+    /**
+     * cos and sin of 2*pi*k/half, for the butterflies of the half size complex FFT.
+     */
+    private final double[] cos;
+    private final double[] sin;
+
+    /**
+     * cos and sin of 2*pi*k/size, k in [0, half], to split the packed result.
+     */
+    private final double[] splitCos;
+    private final double[] splitSin;
+
+    private final double[] re;
+    private final double[] im;
+
+    /**
+     * @param size The number of real input samples; a power of two, at least 4.
+     */
+    public RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two >= 4: " + size);
+        }
+        this.size = size;
+        this.half = size / 2;
+
+        bitReverse = new int[half];
+        final int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[half / 2];
+        sin = new double[half / 2];
+        for (int k = 0; k < half / 2; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / half);
+            sin[k] = Math.sin(2 * Math.PI * k / half);
+        }
+        splitCos = new double[half + 1];
+        splitSin = new double[half + 1];
+        for (int k = 0; k <= half; k++) {
+            splitCos[k] = Math.cos(2 * Math.PI * k / size);
+            splitSin[k] = Math.sin(2 * Math.PI * k / size);
+        }
+        re = new double[half];
+        im = new double[half];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Computes the squared magnitudes |X[k]|^2 of the spectrum of {@code input}.
+     * @param input The {@link #getSize()} real samples.  Not modified.
+     * @param power Receives the {@code size / 2 + 1} bins from DC to the Nyquist frequency.
+     */
+    public void power(double[] input, double[] power) {
+        // Even samples become the real parts, odd samples the imaginary parts.
+        for (int i = 0; i < half; i++) {
+            int j = bitReverse[i];
+            re[j] = input[2 * i];
+            im[j] = input[2 * i + 1];
+        }
+
+        for (int length = 2; length <= half; length <<= 1) {
+            final int span = length >> 1;
+            final int step = half / length;
+            for (int start = 0; start < half; start += length) {
+                for (int j = 0; j < span; j++) {
+                    final double wr = cos[j * step];
+                    final double wi = -sin[j * step];
+                    final int a = start + j;
+                    final int b = a + span;
+                    final double tr = re[b] * wr - im[b] * wi;
+                    final double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+
+        // X[k] = E[k] + W^k O[k], where E and O are the spectra of the even and odd
+        // samples, recovered from Z[k] and conj(Z[half - k]).
+        for (int k = 0; k <= half; k++) {
+            final int k1 = k == half ? 0 : k;
+            final int k2 = k == 0 ? 0 : half - k;
+            final double a = re[k1];
+            final double b = im[k1];
+            final double c = re[k2];
+            final double d = im[k2];
+            final double evenRe = 0.5 * (a + c);
+            final double evenIm = 0.5 * (b - d);
+            final double oddRe = 0.5 * (b + d);
+            final double oddIm = -0.5 * (a - c);
+            final double wr = splitCos[k];
+            final double wi = -splitSin[k];
+            final double xr = evenRe + wr * oddRe - wi * oddIm;
+            final double xi = evenIm + wr * oddIm + wi * oddRe;
+            power[k] = xr * xr + xi * xi;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.choosemuse.example.libmuse.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Appends every report to a file, as line protocol or CSV, so the files of several phones
+ * or sessions can be loaded side by side.  A new CSV file starts with
+ * {@link MetricsSnapshot#CSV_HEADER}.
+ * <p>
+ * The file is opened for each report and closed again, so it is complete on disk between
+ * reports and can be copied off the device at any time.
+ */
+public final class MetricsFileSink implements MetricsReporter.Listener {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final MetricsSnapshot.Format format;
+    private volatile IOException lastError;
+
+    public MetricsFileSink(File file, MetricsSnapshot.Format format) {
+        this.file = file;
+        this.format = format;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void onSnapshots(List<MetricsSnapshot> snapshots) {
+        final boolean header = format == MetricsSnapshot.Format.CSV && file.length() == 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), UTF_8))) {
+            if (header) {
+                out.write(MetricsSnapshot.CSV_HEADER);
+                out.write('\n');
+            }
+            for (MetricsSnapshot snapshot : snapshots) {
+                snapshot.write(out, format);
+            }
+            lastError = null;
+        } catch (IOException e) {
+            // Metrics must never take the app down; the next report tries again.
+            lastError = e;
+        }
+    }
+
+    /**
+     * @return the error of the latest report, or null if it was written.
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+}
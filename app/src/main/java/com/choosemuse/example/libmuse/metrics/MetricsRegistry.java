@@ -0,0 +1,100 @@
+package com.choosemuse.example.libmuse.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The counters, gauges and latency histograms of one part of the app, for example one
+ * headband or the uploads, under a set of tags that tell the parts apart in an export.
+ * <p>
+ * Metrics are looked up by name once, when the instrumented object is created, and kept in
+ * fields; only the lookups are synchronized, updating a metric never is.
+ * {@link #snapshot()} reads all metrics at once, and a {@link MetricsReporter} does so
+ * periodically.
+ */
+public final class MetricsRegistry {
+
+    /**
+     * A value read when a snapshot is taken, such as the depth of a queue.
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    private final Map<String, String> tags;
+    private final Map<String, StripedCounter> counters = new LinkedHashMap<>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+    /**
+     * @param tags  Pairs of tag names and values, for example "device", "00:55:da:b0:12:34".
+     */
+    public MetricsRegistry(String... tags) {
+        if (tags.length % 2 != 0) {
+            throw new IllegalArgumentException("tags must come in name, value pairs");
+        }
+        final Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < tags.length; i += 2) {
+            map.put(tags[i], tags[i + 1]);
+        }
+        this.tags = Collections.unmodifiableMap(map);
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return the counter called {@code name}, created on first use.
+     */
+    public synchronized StripedCounter counter(String name) {
+        StripedCounter counter = counters.get(name);
+        if (counter == null) {
+            counter = new StripedCounter();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * @return the histogram called {@code name}, created on first use.
+     */
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Adds a gauge, replacing any gauge of the same name.  The gauge is called on the
+     * thread that takes snapshots, so it must be thread safe.
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Reads every metric.  Counter rates and histograms cover all time, see
+     * {@link MetricsSnapshot#since} for an interval.
+     */
+    public synchronized MetricsSnapshot snapshot() {
+        final Map<String, Long> counterValues = new LinkedHashMap<>();
+        for (Map.Entry<String, StripedCounter> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().sum());
+        }
+        final Map<String, Long> gaugeValues = new LinkedHashMap<>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            gaugeValues.put(entry.getKey(), entry.getValue().get());
+        }
+        final Map<String, LatencyHistogram.Snapshot> histogramValues = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), tags, counterValues,
+                gaugeValues, histogramValues);
+    }
+}
@@ -0,0 +1,104 @@
+package com.choosemuse.example.libmuse.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes a snapshot of a set of registries at a fixed interval, on a daemon thread of its
+ * own, and hands the snapshots of the past interval to a {@link Listener}.
+ * <p>
+ * Registries come and go with the headbands: {@link #remove} reports a registry one last
+ * time before dropping it, so the final interval of a session is not lost.
+ */
+public final class MetricsReporter {
+
+    /**
+     * Called on the reporter thread.
+     */
+    public interface Listener {
+        /**
+         * @param snapshots One snapshot per registry, each covering the interval since the
+         *                  previous report, or all time for a registry added since.
+         */
+        void onSnapshots(List<MetricsSnapshot> snapshots);
+    }
+
+    private final long intervalMs;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The latest snapshot of every registry.  Only used on the reporter thread.
+     */
+    private final Map<MetricsRegistry, MetricsSnapshot> previous = new IdentityHashMap<>();
+
+    public MetricsReporter(long intervalMs, Listener listener) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("interval " + intervalMs);
+        }
+        this.intervalMs = intervalMs;
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleAtFixedRate(this::report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(final MetricsRegistry registry) {
+        execute(() -> {
+            if (!previous.containsKey(registry)) {
+                previous.put(registry, null);
+            }
+        });
+    }
+
+    public void remove(final MetricsRegistry registry) {
+        execute(() -> {
+            if (previous.containsKey(registry)) {
+                final MetricsSnapshot last = previous.remove(registry);
+                listener.onSnapshots(Collections.singletonList(registry.snapshot().since(last)));
+            }
+        });
+    }
+
+    /**
+     * Reports every registry once more, then stops the reporter thread.
+     */
+    public void stop() {
+        execute(this::report);
+        executor.shutdown();
+    }
+
+    private void report() {
+        if (previous.isEmpty()) {
+            return;
+        }
+        final List<MetricsSnapshot> snapshots = new ArrayList<>(previous.size());
+        for (Map.Entry<MetricsRegistry, MetricsSnapshot> entry : previous.entrySet()) {
+            final MetricsSnapshot snapshot = entry.getKey().snapshot();
+            snapshots.add(snapshot.since(entry.getValue()));
+            entry.setValue(snapshot);
+        }
+        listener.onSnapshots(snapshots);
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Stopped; there is nothing left to report to.
+        }
+    }
+}
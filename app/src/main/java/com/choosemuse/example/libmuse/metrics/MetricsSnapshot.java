@@ -0,0 +1,233 @@
+package com.choosemuse.example.libmuse.metrics;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The values of the metrics of one {@link MetricsRegistry} at one point in time, and the
+ * export of them as InfluxDB line protocol or as CSV rows.
+ * <p>
+ * A snapshot from {@link MetricsRegistry#snapshot()} covers all time.  {@link #since}
+ * turns it into the interval after an earlier snapshot: counters then also have a rate per
+ * second, and histograms only hold the durations recorded in the interval.
+ */
+public final class MetricsSnapshot {
+
+    public enum Format {
+        LINE_PROTOCOL,
+        CSV
+    }
+
+    public static final String CSV_HEADER =
+            "timestamp_ms,tags,metric,kind,count,rate,value,mean,p50,p90,p99,p999,max";
+
+    private final long timestampMs;
+    private final long intervalMs;
+    private final Map<String, String> tags;
+    private final Map<String, Long> counters;
+    private final Map<String, Double> rates;
+    private final Map<String, Long> gauges;
+    private final Map<String, LatencyHistogram.Snapshot> histograms;
+
+    MetricsSnapshot(long timestampMs, Map<String, String> tags, Map<String, Long> counters,
+                    Map<String, Long> gauges, Map<String, LatencyHistogram.Snapshot> histograms) {
+        this(timestampMs, 0, tags, counters, Collections.<String, Double>emptyMap(), gauges,
+                histograms);
+    }
+
+    private MetricsSnapshot(long timestampMs, long intervalMs, Map<String, String> tags,
+                            Map<String, Long> counters, Map<String, Double> rates,
+                            Map<String, Long> gauges,
+                            Map<String, LatencyHistogram.Snapshot> histograms) {
+        this.timestampMs = timestampMs;
+        this.intervalMs = intervalMs;
+        this.tags = tags;
+        this.counters = Collections.unmodifiableMap(counters);
+        this.rates = Collections.unmodifiableMap(rates);
+        this.gauges = Collections.unmodifiableMap(gauges);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * @param earlier   A snapshot of the same registry, or null.
+     * @return this snapshot restricted to the interval after {@code earlier}; this snapshot
+     *         itself if {@code earlier} is null.  Metrics added in between count from 0.
+     */
+    public MetricsSnapshot since(MetricsSnapshot earlier) {
+        if (earlier == null) {
+            return this;
+        }
+        final long interval = Math.max(1, timestampMs - earlier.timestampMs);
+        final Map<String, Double> intervalRates = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            final Long before = earlier.counters.get(entry.getKey());
+            final long delta = entry.getValue() - (before != null ? before : 0);
+            intervalRates.put(entry.getKey(), delta * 1000.0 / interval);
+        }
+        final Map<String, LatencyHistogram.Snapshot> intervalHistograms = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : histograms.entrySet()) {
+            final LatencyHistogram.Snapshot before = earlier.histograms.get(entry.getKey());
+            intervalHistograms.put(entry.getKey(),
+                    before != null ? entry.getValue().since(before) : entry.getValue());
+        }
+        return new MetricsSnapshot(timestampMs, interval, tags, counters, intervalRates, gauges,
+                intervalHistograms);
+    }
+
+    public long getTimestampMs() {
+        return timestampMs;
+    }
+
+    /**
+     * @return the length of the interval this snapshot covers, or 0 if it covers all time.
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return the total of every counter.
+     */
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    /**
+     * @return the increments per second of every counter over the interval; empty if the
+     *         snapshot covers all time.
+     */
+    public Map<String, Double> getRates() {
+        return rates;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    public Map<String, LatencyHistogram.Snapshot> getHistograms() {
+        return histograms;
+    }
+
+    public void write(Appendable out, Format format) throws IOException {
+        if (format == Format.CSV) {
+            writeCsv(out);
+        } else {
+            writeLineProtocol(out);
+        }
+    }
+
+    /**
+     * Writes one line per metric: the metric name as measurement, the registry tags, and the
+     * values as fields, with the timestamp in nanoseconds.
+     */
+    public void writeLineProtocol(Appendable out) throws IOException {
+        final String tagText = lineProtocolTags();
+        final String timestamp = " " + timestampMs * 1_000_000L + "\n";
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            out.append(escape(entry.getKey(), false)).append(tagText)
+                    .append(" count=").append(Long.toString(entry.getValue())).append('i');
+            final Double rate = rates.get(entry.getKey());
+            if (rate != null) {
+                out.append(",rate=").append(format(rate));
+            }
+            out.append(timestamp);
+        }
+        for (Map.Entry<String, Long> entry : gauges.entrySet()) {
+            out.append(escape(entry.getKey(), false)).append(tagText)
+                    .append(" value=").append(Long.toString(entry.getValue())).append('i')
+                    .append(timestamp);
+        }
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : histograms.entrySet()) {
+            final LatencyHistogram.Snapshot h = entry.getValue();
+            out.append(escape(entry.getKey(), false)).append(tagText)
+                    .append(" count=").append(Long.toString(h.getCount())).append('i')
+                    .append(",mean=").append(format(h.getMean()))
+                    .append(",p50=").append(Long.toString(h.getPercentile(50))).append('i')
+                    .append(",p90=").append(Long.toString(h.getPercentile(90))).append('i')
+                    .append(",p99=").append(Long.toString(h.getPercentile(99))).append('i')
+                    .append(",p999=").append(Long.toString(h.getPercentile(99.9))).append('i')
+                    .append(",max=").append(Long.toString(h.getMax())).append('i')
+                    .append(timestamp);
+        }
+    }
+
+    /**
+     * Writes one row per metric under {@link #CSV_HEADER}, with the tags in one column as
+     * {@code name=value} pairs separated by semicolons, so rows of different registries
+     * share the columns.
+     */
+    public void writeCsv(Appendable out) throws IOException {
+        final StringBuilder tagText = new StringBuilder();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (tagText.length() > 0) {
+                tagText.append(';');
+            }
+            tagText.append(tag.getKey()).append('=').append(tag.getValue());
+        }
+        final String prefix = timestampMs + "," + csvField(tagText.toString()) + ",";
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            final Double rate = rates.get(entry.getKey());
+            out.append(prefix).append(csvField(entry.getKey())).append(",counter,")
+                    .append(Long.toString(entry.getValue())).append(',')
+                    .append(rate != null ? format(rate) : "").append(",,,,,,,\n");
+        }
+        for (Map.Entry<String, Long> entry : gauges.entrySet()) {
+            out.append(prefix).append(csvField(entry.getKey())).append(",gauge,,,")
+                    .append(Long.toString(entry.getValue())).append(",,,,,,\n");
+        }
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : histograms.entrySet()) {
+            final LatencyHistogram.Snapshot h = entry.getValue();
+            out.append(prefix).append(csvField(entry.getKey())).append(",histogram,")
+                    .append(Long.toString(h.getCount())).append(",,,")
+                    .append(format(h.getMean())).append(',')
+                    .append(Long.toString(h.getPercentile(50))).append(',')
+                    .append(Long.toString(h.getPercentile(90))).append(',')
+                    .append(Long.toString(h.getPercentile(99))).append(',')
+                    .append(Long.toString(h.getPercentile(99.9))).append(',')
+                    .append(Long.toString(h.getMax())).append('\n');
+        }
+    }
+
+    private String lineProtocolTags() {
+        final StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            text.append(',').append(escape(tag.getKey(), true)).append('=')
+                    .append(escape(tag.getValue(), true));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Escapes the characters line protocol gives a meaning to: commas and spaces, and in
+     * tags also equals signs.
+     */
+    private static String escape(String text, boolean tag) {
+        final StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == ',' || c == ' ' || (tag && c == '=')) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static String csvField(String text) {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0) {
+            return text;
+        }
+        return '"' + text.replace("\"", "\"\"") + '"';
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+}
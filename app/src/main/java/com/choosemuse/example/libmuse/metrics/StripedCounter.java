@@ -0,0 +1,59 @@
+package com.choosemuse.example.libmuse.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that several threads can increment without contending on one cache line.
+ * <p>
+ * The count is split over stripes, each on a cache line of its own, and a thread always
+ * adds to the stripe its id maps to.  {@link #sum()} adds the stripes up, so it is slower
+ * than an increment and only exact while no thread is incrementing.  Nothing is allocated.
+ */
+public final class StripedCounter {
+
+    /**
+     * Longs per stripe, so two stripes never share a 64 byte cache line.
+     */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * Uses a stripe per core, rounded up to a power of two.
+     */
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param minStripes    The number of stripes, rounded up to a power of two.
+     */
+    public StripedCounter(int minStripes) {
+        final int stripes = Integer.highestOneBit(Math.max(1, Math.min(minStripes, 64)) * 2 - 1);
+        this.cells = new AtomicLongArray(stripes * PAD);
+        this.mask = stripes - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long n) {
+        cells.getAndAdd(stripe() * PAD, n);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i <= mask; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    private int stripe() {
+        // Thread ids are sequential; mix them so neighbouring threads use different stripes.
+        final long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+}
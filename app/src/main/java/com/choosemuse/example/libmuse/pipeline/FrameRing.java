@@ -0,0 +1,395 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands frames from one producer thread to several consumers, in the style of the LMAX
+ * Disruptor: a ring of preallocated {@link SampleFrame} slots, a published cursor, and a
+ * sequence per consumer.
+ * <p>
+ * The producer fills the slot returned by {@link #claim()} and calls {@link #publish()};
+ * nothing is allocated or locked.  Each {@link Consumer} reads the published frames at its
+ * own pace, on its own thread with a {@link WaitStrategy} or by polling.
+ * <ul>
+ * <li>A gating consumer sees every frame: the producer never overwrites a slot it has not
+ * processed.  If a gating consumer falls a whole ring behind, the {@link Overflow} policy
+ * decides whether the producer waits or drops the new frame.</li>
+ * <li>A non-gating consumer never holds the producer back.  It reads a copy of each frame
+ * and skips the frames that were overwritten before or while it copied them, counting
+ * them as lost.  Every slot records the sequence of the frame it holds, and the producer
+ * marks it before writing it again, so a copy is only used if the slot still holds the
+ * same frame once it is made.</li>
+ * </ul>
+ * Consumers are added before the producer starts.  Handlers must not throw.
+ */
+public final class FrameRing {
+
+    /**
+     * How a consumer thread waits for the next frame.
+     */
+    public enum WaitStrategy {
+        /** Spins; lowest latency, burns a core. */
+        BUSY_SPIN,
+        /** Spins briefly, then yields the CPU between checks. */
+        YIELDING,
+        /** Spins and yields briefly, then sleeps 100 microseconds between checks. */
+        SLEEPING,
+        /** Parks until the producer publishes; the lowest latency without spinning. */
+        BLOCKING,
+        /**
+         * Parks for a millisecond at a time, longer while idle, and is only woken by the
+         * producer once {@link #WAKE_BATCH} frames are waiting.  Adds up to a millisecond of
+         * latency, but publishing then hardly ever costs a wake-up system call.
+         */
+        BATCHING
+    }
+
+    /**
+     * What {@link #claim()} does when the slowest gating consumer is a whole ring behind.
+     */
+    public enum Overflow {
+        /** Wait for the consumer.  Never loses frames, may stall the producer. */
+        BLOCK,
+        /** Return null so the producer drops the frame; counted by {@link #getDroppedCount()}. */
+        DROP
+    }
+
+    /**
+     * Processes the frames of a consumer.
+     */
+    public interface Handler {
+        /**
+         * @param frame         The frame; only valid during the call.
+         * @param endOfBatch    Whether this is the last frame available for now, for example
+         *                      to flush once per batch.
+         */
+        void onFrame(SampleFrame frame, boolean endOfBatch);
+    }
+
+    private static final long PARK_NANOS = 100_000;
+    private static final long BLOCKING_TIMEOUT_NANOS = 50_000_000;
+    private static final long BATCH_PARK_NANOS = 1_000_000;
+    public static final int WAKE_BATCH = 32;
+    private static final int RELEASE_INTERVAL = 64;
+
+    /**
+     * The sequence of a slot the producer is writing, or that never held a frame.
+     */
+    private static final long WRITING = -1;
+
+    private final SampleFrame[] slots;
+    /**
+     * The sequence of the frame each slot holds, or {@link #WRITING}.
+     */
+    private final AtomicLongArray slotSequences;
+    private final int mask;
+    private final Overflow overflow;
+
+    /**
+     * The last published sequence.
+     */
+    private volatile long cursor = -1;
+
+    /**
+     * Only used by the producer thread.
+     */
+    private long next;
+    private long gatingCache = -1;
+
+    private volatile Consumer[] consumers = new Consumer[0];
+    private volatile long dropped;
+
+    /**
+     * @param minCapacity   The number of slots, rounded up to a power of two.
+     */
+    public FrameRing(int minCapacity, Overflow overflow) {
+        if (minCapacity < 1 || minCapacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity " + minCapacity);
+        }
+        final int capacity = Integer.highestOneBit(Math.max(2, minCapacity) * 2 - 1);
+        this.slots = new SampleFrame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new SampleFrame();
+        }
+        this.slotSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slotSequences.set(i, WRITING);
+        }
+        this.mask = capacity - 1;
+        this.overflow = overflow;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Adds a consumer, which starts after the last published frame.
+     */
+    public synchronized Consumer addConsumer(String name, boolean gating, WaitStrategy waitStrategy) {
+        final Consumer consumer = new Consumer(name, gating, waitStrategy, cursor);
+        final Consumer[] current = consumers;
+        final Consumer[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = consumer;
+        consumers = updated;
+        return consumer;
+    }
+
+    /**
+     * Claims the slot of the next frame.  Claiming again without publishing returns the same
+     * slot, for example when a packet turns out not to hold a frame.  Only called from the
+     * producer thread.
+     * @return the slot to fill, or null if the frame has to be dropped.
+     */
+    public SampleFrame claim() {
+        final long sequence = next;
+        final long wrapPoint = sequence - slots.length;
+        if (wrapPoint > gatingCache) {
+            long min = minGatingSequence(sequence - 1);
+            while (wrapPoint > min) {
+                if (overflow == Overflow.DROP) {
+                    dropped = dropped + 1;
+                    return null;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+                min = minGatingSequence(sequence - 1);
+            }
+            gatingCache = min;
+        }
+        // Read as well as written, so the frame is not written before the mark.
+        slotSequences.getAndSet((int) sequence & mask, WRITING);
+        return slots[(int) sequence & mask];
+    }
+
+    /**
+     * Makes the claimed frame visible to the consumers and wakes the blocked ones.
+     */
+    public void publish() {
+        final long sequence = next;
+        // Ordered before the cursor, which is enough for the consumers that read it.
+        slotSequences.lazySet((int) sequence & mask, sequence);
+        cursor = sequence;
+        next++;
+        for (Consumer consumer : consumers) {
+            final Thread waiter = consumer.waiter;
+            if (waiter != null && (consumer.waitStrategy != WaitStrategy.BATCHING
+                    || sequence - consumer.sequence >= WAKE_BATCH)) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private long minGatingSequence(long limit) {
+        long min = limit;
+        for (Consumer consumer : consumers) {
+            if (consumer.gating) {
+                min = Math.min(min, consumer.sequence);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @return the last published sequence, -1 before the first frame.
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return the number of frames dropped because a gating consumer was a ring behind.
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * The cursor of one reader of the ring.  Either {@link #run} it on a thread of its own,
+     * or {@link #poll} it from a thread that has other work, never both.
+     */
+    public final class Consumer {
+        private final String name;
+        private final WaitStrategy waitStrategy;
+        private final SampleFrame copy = new SampleFrame();
+        private volatile boolean gating;
+        private volatile boolean halted;
+        private volatile Thread waiter;
+
+        /**
+         * The last sequence processed, read by the producer for gating consumers.
+         */
+        private volatile long sequence;
+        private volatile long lost;
+
+        Consumer(String name, boolean gating, WaitStrategy waitStrategy, long sequence) {
+            this.name = name;
+            this.gating = gating;
+            this.waitStrategy = waitStrategy;
+            this.sequence = sequence;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of published frames this consumer has not processed yet.
+         */
+        public long getBacklog() {
+            return Math.max(0, cursor - sequence);
+        }
+
+        /**
+         * @return the number of frames a non-gating consumer skipped because they were
+         *         overwritten before it read them.
+         */
+        public long getLostCount() {
+            return lost;
+        }
+
+        /**
+         * Processes the frames published since the last call, without waiting.
+         * @return the number of frames processed.
+         */
+        public int poll(Handler handler) {
+            final long available = cursor;
+            return available > sequence ? process(handler, available) : 0;
+        }
+
+        /**
+         * Skips the frames published so far, for example before a non-gating consumer that
+         * was not polled for a while is polled again.
+         */
+        public void skipToEnd() {
+            sequence = cursor;
+        }
+
+        /**
+         * Processes frames on the calling thread until {@link #halt()}, waiting for new ones
+         * with the wait strategy.  Frames published before the halt are still processed.
+         */
+        public void run(Handler handler) {
+            while (true) {
+                final long available = cursor;
+                if (available > sequence) {
+                    process(handler, available);
+                } else if (halted) {
+                    return;
+                } else {
+                    waitFor(sequence + 1);
+                }
+            }
+        }
+
+        /**
+         * Runs this consumer on a new daemon thread.
+         */
+        public Thread start(final Handler handler) {
+            final Thread thread = new Thread(() -> run(handler), name);
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+
+        /**
+         * Stops {@link #run} once the frames published so far are processed.  A halted
+         * consumer no longer holds the producer back.
+         */
+        public void halt() {
+            gating = false;
+            halted = true;
+            final Thread thread = waiter;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private int process(Handler handler, long available) {
+            long current = sequence + 1;
+            int count = 0;
+            while (current <= available) {
+                final SampleFrame slot = slots[(int) current & mask];
+                if (gating) {
+                    handler.onFrame(slot, current == available);
+                    if ((count & (RELEASE_INTERVAL - 1)) == RELEASE_INTERVAL - 1) {
+                        // Release the slots of a long batch before it ends.
+                        sequence = current;
+                    }
+                } else {
+                    final int index = (int) current & mask;
+                    boolean whole = slotSequences.get(index) == current;
+                    if (whole) {
+                        copy.copyFrom(slot);
+                        // The producer may have claimed the slot again while we copied it.
+                        // Writing the sequence back, rather than only reading it, keeps the
+                        // copy before the producer's mark if it still holds this frame.
+                        whole = slotSequences.compareAndSet(index, current, current);
+                    }
+                    if (!whole) {
+                        // Overwritten: skip past the slot of the next claim, and a quarter
+                        // of the ring more so the producer does not catch up again at once.
+                        final long resume = cursor + 2 - slots.length + (slots.length >> 2);
+                        lost += Math.min(resume, available + 1) - current;
+                        current = resume;
+                        continue;
+                    }
+                    handler.onFrame(copy, current == available);
+                }
+                count++;
+                current++;
+            }
+            // Publishing the new sequence lets the producer reuse the slots.
+            sequence = Math.min(current - 1, available);
+            return count;
+        }
+
+        private void waitFor(long wanted) {
+            int spins = 0;
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    while (cursor < wanted && !halted) {
+                        spins++;
+                    }
+                    break;
+                case YIELDING:
+                    while (cursor < wanted && !halted) {
+                        if (++spins > 100) {
+                            Thread.yield();
+                        }
+                    }
+                    break;
+                case SLEEPING:
+                    while (cursor < wanted && !halted) {
+                        if (++spins > 200) {
+                            LockSupport.parkNanos(PARK_NANOS);
+                        } else if (spins > 100) {
+                            Thread.yield();
+                        }
+                    }
+                    break;
+                case BLOCKING:
+                    waiter = Thread.currentThread();
+                    // The producer reads waiter after publishing, so either it sees us here
+                    // or we see its cursor below.
+                    while (cursor < wanted && !halted) {
+                        LockSupport.parkNanos(this, BLOCKING_TIMEOUT_NANOS);
+                    }
+                    waiter = null;
+                    break;
+                case BATCHING:
+                    waiter = Thread.currentThread();
+                    long park = BATCH_PARK_NANOS;
+                    while (cursor < wanted && !halted) {
+                        LockSupport.parkNanos(this, park);
+                        park = Math.min(park * 2, BLOCKING_TIMEOUT_NANOS);
+                    }
+                    waiter = null;
+                    break;
+                default:
+                    throw new IllegalStateException(waitStrategy.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A recorded stream of frames in timestamp order, such as a .muse file or a session file,
+ * for {@link SessionReplay}.
+ */
+public interface FrameSource extends Closeable {
+
+    /**
+     * Fills {@code frame} with the next frame, with the timestamp it was recorded with.
+     * @return false at the end of the recording; the frame is left untouched.
+     */
+    boolean next(SampleFrame frame) throws IOException;
+}
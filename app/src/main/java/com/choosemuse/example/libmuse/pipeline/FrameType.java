@@ -0,0 +1,110 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+/**
+ * The kinds of sample frames handled by the processing pipeline, with the number of
+ * values each carries.  Mirrors the subset of libmuse's MuseDataPacketType the app uses,
+ * without depending on libmuse.
+ * <p>
+ * Every type has a wire code that identifies it outside the process, for example in a
+ * {@link com.choosemuse.example.libmuse.stream.FrameDatagram}.  Unlike the ordinal it does
+ * not change when types are added or reordered: a new type takes the next unused code, and
+ * the code of a removed type is not reused.
+ */
+public enum FrameType {
+    /** Raw EEG in microvolts: EEG1-4 (TP9, AF7, AF8, TP10), AUX_LEFT, AUX_RIGHT. */
+    EEG(0, 6),
+    /**
+     * Raw EEG after the {@link com.choosemuse.example.libmuse.dsp.FilterBank} of the
+     * pipeline, with the same channels and timestamps.
+     */
+    EEG_FILTERED(1, 6),
+    /** Accelerometer in g: X, Y, Z. */
+    ACCELEROMETER(2, 3),
+    /** Gyroscope in degrees per second: X, Y, Z. */
+    GYRO(3, 3),
+    /** PPG: AMBIENT, IR, RED. */
+    PPG(4, 3),
+    /** Battery: charge percentage, millivolts, temperature. */
+    BATTERY(5, 3),
+    /** DRL and REF electrode values. */
+    DRL_REF(6, 2),
+    /**
+     * Artifacts found on the phone, 1 while detected: BLINK, JAW_CLENCH, HEADBAND_OFF.  One
+     * frame per raw EEG sample, computed a little behind it, see
+     * {@link com.choosemuse.example.libmuse.dsp.ArtifactDetector}.
+     */
+    ARTIFACTS(7, 3),
+    DELTA_ABSOLUTE(8, 6),
+    THETA_ABSOLUTE(9, 6),
+    ALPHA_ABSOLUTE(10, 6),
+    BETA_ABSOLUTE(11, 6),
+    GAMMA_ABSOLUTE(12, 6),
+    DELTA_RELATIVE(13, 6),
+    THETA_RELATIVE(14, 6),
+    ALPHA_RELATIVE(15, 6),
+    BETA_RELATIVE(16, 6),
+    GAMMA_RELATIVE(17, 6);
+
+    /**
+     * The largest number of values of any frame type.
+     */
+    public static final int MAX_VALUES = 6;
+
+    private static final FrameType[] VALUES = values();
+
+    private static final FrameType[] BY_WIRE_CODE = new FrameType[256];
+
+    static {
+        for (FrameType type : VALUES) {
+            if (BY_WIRE_CODE[type.wireCode] != null) {
+                throw new IllegalStateException(type + " reuses wire code " + type.wireCode);
+            }
+            BY_WIRE_CODE[type.wireCode] = type;
+        }
+    }
+
+    private final int wireCode;
+    private final int valueCount;
+
+    FrameType(int wireCode, int valueCount) {
+        this.wireCode = wireCode;
+        this.valueCount = valueCount;
+    }
+
+    /**
+     * @return the code of this type outside the process, from 0 to 255.
+     */
+    public int getWireCode() {
+        return wireCode;
+    }
+
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @return the type with the wire code {@code code}, or null if there is none, for
+     *         example for a type of a newer version of the app.
+     */
+    public static FrameType fromWireCode(int code) {
+        return code >= 0 && code < BY_WIRE_CODE.length ? BY_WIRE_CODE[code] : null;
+    }
+
+    /**
+     * Same as {@code values()[ordinal]} without cloning the array.
+     */
+    public static FrameType fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * @return true for the absolute and relative band power types.
+     */
+    public boolean isBandPower() {
+        return ordinal() >= DELTA_ABSOLUTE.ordinal();
+    }
+
+    public static int count() {
+        return VALUES.length;
+    }
+}
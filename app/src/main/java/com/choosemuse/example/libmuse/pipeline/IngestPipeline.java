@@ -0,0 +1,528 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+import com.choosemuse.example.libmuse.data.RowAssembler;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.dsp.Artifact;
+import com.choosemuse.example.libmuse.dsp.ArtifactDetector;
+import com.choosemuse.example.libmuse.dsp.BandPowerEngine;
+import com.choosemuse.example.libmuse.dsp.EegBand;
+import com.choosemuse.example.libmuse.dsp.FilterBank;
+
+import java.util.Arrays;
+
+/**
+ * Processes the frames of one headband: keeps the latest value of each stream for the UI
+ * and records the session rows.
+ * <p>
+ * The pipeline only sees {@link SampleFrame}s, so it runs the same way for a real headband
+ * (through {@link MusePacketAdapter}), a {@link SyntheticHeadband} or a recording.
+ * <p>
+ * By default the band powers are computed from raw EEG by a {@link BandPowerEngine} and
+ * the band power frames of the headband are ignored, so every band is available whichever
+ * packet types are registered.
+ * <p>
+ * With a {@link TimestampCorrector}, frames are recorded with corrected timestamps, and
+ * the band powers see lost EEG samples as NaN, so their windows keep their length in time.
+ * The frames the corrector holds until it knows whether samples were lost before them are
+ * kept here and processed once it releases them, after the NaN of the samples lost.
+ * <p>
+ * Blinks, jaw clenches and a removed headband are found in the raw EEG by an
+ * {@link ArtifactDetector}.  Their flags are recorded with every row as
+ * {@link FrameType#ARTIFACTS} frames.
+ * <p>
+ * With a {@link FilterBank}, every raw EEG frame is also filtered into an
+ * {@link FrameType#EEG_FILTERED} frame, which the columns of {@link #columns} can record
+ * next to or instead of the raw values.  The band powers and the artifacts are computed
+ * from the raw EEG.
+ * <p>
+ * {@link #onFrame} must always be called from the same thread.
+ */
+public class IngestPipeline {
+
+    private static final RowAssembler.Interpolation HOLD = RowAssembler.Interpolation.HOLD;
+    private static final RowAssembler.Interpolation LINEAR = RowAssembler.Interpolation.LINEAR;
+    private static final RowAssembler.Interpolation STEP = RowAssembler.Interpolation.STEP;
+
+    /**
+     * The raw EEG rate assumed when none is given: the rate of the default presets.
+     */
+    public static final double DEFAULT_EEG_RATE_HZ = 256;
+
+    /**
+     * The number of EEG channels band powers are computed for: EEG1-4.  The AUX channels
+     * are left at 0 in the computed band frames.
+     */
+    public static final int BAND_POWER_CHANNELS = 4;
+
+    private static final EegBand[] BANDS = EegBand.values();
+    private static final Artifact[] ARTIFACTS = Artifact.values();
+
+    /**
+     * Which EEG values the session export records.
+     */
+    public enum EegExport {
+        /** The values of the headband: eeg1 to eeg4. */
+        RAW,
+        /** The values of the filter bank: eeg1_filtered to eeg4_filtered. */
+        FILTERED,
+        /** Both. */
+        BOTH
+    }
+
+    private static final RowAssembler.Column[] RAW_EEG_COLUMNS = {
+            new RowAssembler.Column("eeg1", FrameType.EEG, 0, HOLD),
+            new RowAssembler.Column("eeg2", FrameType.EEG, 1, HOLD),
+            new RowAssembler.Column("eeg3", FrameType.EEG, 2, HOLD),
+            new RowAssembler.Column("eeg4", FrameType.EEG, 3, HOLD),
+    };
+
+    private static final RowAssembler.Column[] FILTERED_EEG_COLUMNS = {
+            new RowAssembler.Column("eeg1_filtered", FrameType.EEG_FILTERED, 0, HOLD),
+            new RowAssembler.Column("eeg2_filtered", FrameType.EEG_FILTERED, 1, HOLD),
+            new RowAssembler.Column("eeg3_filtered", FrameType.EEG_FILTERED, 2, HOLD),
+            new RowAssembler.Column("eeg4_filtered", FrameType.EEG_FILTERED, 3, HOLD),
+    };
+
+    /**
+     * The columns of the session export after the EEG.
+     */
+    private static final RowAssembler.Column[] OTHER_COLUMNS = {
+            new RowAssembler.Column("alpha_absolute", FrameType.ALPHA_ABSOLUTE, 0, HOLD),
+            new RowAssembler.Column("beta_absolute", FrameType.BETA_ABSOLUTE, 0, HOLD),
+            new RowAssembler.Column("gamma_absolute", FrameType.GAMMA_ABSOLUTE, 0, HOLD),
+            new RowAssembler.Column("theta_absolute", FrameType.THETA_ABSOLUTE, 0, HOLD),
+            new RowAssembler.Column("ppg", FrameType.PPG, 1, LINEAR),
+            new RowAssembler.Column("blink", FrameType.ARTIFACTS, Artifact.BLINK.ordinal(), STEP),
+            new RowAssembler.Column("jaw_clench", FrameType.ARTIFACTS, Artifact.JAW_CLENCH.ordinal(), STEP),
+            new RowAssembler.Column("headband_off", FrameType.ARTIFACTS, Artifact.HEADBAND_OFF.ordinal(), STEP),
+    };
+
+    /**
+     * The columns of the session export, with the raw EEG.  A row is recorded for every raw
+     * EEG sample; the slower band power and PPG streams and the artifact flags, which come
+     * {@link ArtifactDetector#LAG_SECONDS} late, are attached to it by the RowAssembler.
+     */
+    public static final RowAssembler.Column[] DEFAULT_COLUMNS = columns(EegExport.RAW);
+
+    /**
+     * @return the columns of the session export with the EEG values of {@code export}.
+     *         The filtered values are only recorded with a {@link FilterBank}, see
+     *         {@link #setFilterBank}.
+     */
+    public static RowAssembler.Column[] columns(EegExport export) {
+        final RowAssembler.Column[] eeg;
+        switch (export) {
+            case FILTERED:
+                eeg = FILTERED_EEG_COLUMNS;
+                break;
+            case BOTH:
+                eeg = new RowAssembler.Column[RAW_EEG_COLUMNS.length + FILTERED_EEG_COLUMNS.length];
+                System.arraycopy(RAW_EEG_COLUMNS, 0, eeg, 0, RAW_EEG_COLUMNS.length);
+                System.arraycopy(FILTERED_EEG_COLUMNS, 0, eeg, RAW_EEG_COLUMNS.length,
+                        FILTERED_EEG_COLUMNS.length);
+                break;
+            case RAW:
+            default:
+                eeg = RAW_EEG_COLUMNS;
+                break;
+        }
+        final RowAssembler.Column[] columns = new RowAssembler.Column[eeg.length + OTHER_COLUMNS.length];
+        System.arraycopy(eeg, 0, columns, 0, eeg.length);
+        System.arraycopy(OTHER_COLUMNS, 0, columns, eeg.length, OTHER_COLUMNS.length);
+        return columns;
+    }
+
+    /**
+     * The latest values of each stream.  The array lengths are the value counts of the
+     * frame types: 6 values for EEG and EEG derived frames, 3 for accelerometer and PPG.
+     * <p>
+     * The stale flags indicate whether or not new data has been received since the UI last
+     * displayed it.  The UI clears them when it displays the buffers.
+     */
+    private final double[] eegBuffer = new double[6];
+    private volatile boolean eegStale;
+    private final double[] alphaBuffer = new double[6];
+    private volatile boolean alphaStale;
+    private final double[] accelBuffer = new double[3];
+    private volatile boolean accelStale;
+    private final double[] betaBuffer = new double[6];
+    private final double[] gammaBuffer = new double[6];
+    private final double[] thetaBuffer = new double[6];
+    private final double[] ppgBuffer = new double[3];
+
+    /**
+     * Run on the frame thread when a stale flag is set after the UI cleared it.
+     */
+    private volatile Runnable staleListener;
+
+    private final SampleStore store;
+    private final RowAssembler rowAssembler;
+
+    /**
+     * Computes the band powers, or null if the headband's band power frames are used.
+     */
+    private final BandPowerEngine bandPowers;
+    private final SampleFrame bandFrame = new SampleFrame();
+
+    /**
+     * Finds artifacts in the raw EEG, whatever the source of the band powers.
+     */
+    private final ArtifactDetector artifacts;
+    private final SampleFrame artifactFrame = new SampleFrame();
+
+    /**
+     * Corrects the frame timestamps, or null.  The frames of the tracked types are copied
+     * into {@link #held}, as the caller's frame may be shared with other readers, and
+     * stay there while the corrector holds them: {@code heldCount} frames of each type,
+     * oldest first.
+     */
+    private TimestampCorrector timestamps;
+    private SampleFrame[][] held;
+    private final int[] heldCount = new int[FrameType.count()];
+    private final double[] lostSample = new double[FrameType.MAX_VALUES];
+
+    /**
+     * Filters the raw EEG into {@link #filteredFrame}, or null.
+     */
+    private FilterBank filters;
+    private final SampleFrame filteredFrame = new SampleFrame();
+
+    public IngestPipeline() {
+        this(DEFAULT_COLUMNS);
+    }
+
+    /**
+     * @param columns   The columns recorded for every raw EEG sample.
+     */
+    public IngestPipeline(RowAssembler.Column[] columns) {
+        this(columns, DEFAULT_EEG_RATE_HZ);
+    }
+
+    /**
+     * @param columns   The columns recorded for every raw EEG sample.
+     * @param eegRateHz The raw EEG rate used to compute the band powers, or 0 to use the
+     *                  band power frames sent by the headband instead.  Artifacts are then
+     *                  found assuming {@link #DEFAULT_EEG_RATE_HZ}.
+     */
+    public IngestPipeline(RowAssembler.Column[] columns, double eegRateHz) {
+        this(new SampleStore(RowAssembler.columnNames(columns)), columns, eegRateHz);
+    }
+
+    /**
+     * Records the session rows into {@code store}, for example a store that spills to storage.
+     * @param store     A store with one value column per column.
+     */
+    public IngestPipeline(SampleStore store, RowAssembler.Column[] columns, double eegRateHz) {
+        this.store = store;
+        this.rowAssembler = new RowAssembler(store, columns, FrameType.EEG);
+        this.bandPowers = eegRateHz > 0
+                ? BandPowerEngine.forRate(BAND_POWER_CHANNELS, eegRateHz, this::onBandPower)
+                : null;
+        this.artifacts = new ArtifactDetector(eegRateHz > 0 ? eegRateHz : DEFAULT_EEG_RATE_HZ,
+                this::onArtifactFlags);
+        Arrays.fill(lostSample, Double.NaN);
+    }
+
+    /**
+     * Processes one frame, or holds a copy while the timestamp corrector holds it.  The
+     * frame can be reused by the caller once this returns.
+     */
+    public void onFrame(SampleFrame frame) {
+        final FrameType type = frame.getType();
+        if (bandPowers != null && type.isBandPower()) {
+            return;
+        }
+        if (timestamps != null && timestamps.isTracked(type)) {
+            final SampleFrame[] frames = held[type.ordinal()];
+            frames[heldCount[type.ordinal()]++].copyFrom(frame);
+            release(type, timestamps.correct(type, frame.getTimestamp()));
+        } else {
+            record(frame);
+        }
+    }
+
+    /**
+     * Processes the {@code count} oldest frames of {@code type} held, which the corrector
+     * has just released.
+     */
+    private void release(FrameType type, int count) {
+        final SampleFrame[] frames = held[type.ordinal()];
+        for (int i = 0; i < count; i++) {
+            final SampleFrame frame = frames[i];
+            frame.setTimestamp(timestamps.getReleased(i));
+            if (type == FrameType.EEG && bandPowers != null) {
+                addLostSamples(timestamps.getMissingBefore(i), frame.getTimestamp());
+            }
+            record(frame);
+        }
+        final int left = heldCount[type.ordinal()] - count;
+        for (int i = 0; i < left; i++) {
+            final SampleFrame frame = frames[i];
+            frames[i] = frames[count + i];
+            frames[count + i] = frame;
+        }
+        heldCount[type.ordinal()] = left;
+    }
+
+    private void record(SampleFrame frame) {
+        final FrameType type = frame.getType();
+        if (type == FrameType.EEG && filters != null) {
+            // Before the raw frame, which adds the row.
+            filteredFrame.copyFrom(frame);
+            filteredFrame.set(FrameType.EEG_FILTERED, frame.getTimestamp());
+            filters.filter(filteredFrame.values());
+            process(filteredFrame);
+        }
+        process(frame);
+        if (type == FrameType.EEG) {
+            if (bandPowers != null) {
+                bandPowers.addSample(frame.getTimestamp(), frame.values());
+            }
+            artifacts.addSample(frame.getTimestamp(), frame.values());
+        }
+    }
+
+    /**
+     * Feeds the EEG samples lost before the sample at {@code timestamp} to the band powers
+     * as NaN, which repeats the previous value; a gap of a window or more restarts the band
+     * powers instead.
+     */
+    private void addLostSamples(long missing, long timestamp) {
+        if (missing <= 0) {
+            return;
+        }
+        if (missing >= bandPowers.getWindowSize()) {
+            bandPowers.reset();
+            return;
+        }
+        final double period = timestamps.getPeriod(FrameType.EEG);
+        for (long i = missing; i > 0; i--) {
+            bandPowers.addSample(timestamp - Math.round(i * period), lostSample);
+        }
+    }
+
+    /**
+     * Emits the computed band powers as the frames the headband would have sent.
+     */
+    private void onBandPower(long timestamp, double[][] absolute, double[][] relative) {
+        for (EegBand band : BANDS) {
+            processBand(band.getAbsoluteType(), timestamp, absolute[band.ordinal()]);
+            processBand(band.getRelativeType(), timestamp, relative[band.ordinal()]);
+        }
+    }
+
+    /**
+     * Records the artifact flags of an EEG sample, which releases its row.
+     */
+    private void onArtifactFlags(long timestamp, int flags) {
+        artifactFrame.set(FrameType.ARTIFACTS, timestamp);
+        for (Artifact artifact : ARTIFACTS) {
+            artifactFrame.setValue(artifact.ordinal(), (flags & artifact.mask()) != 0 ? 1 : 0);
+        }
+        process(artifactFrame);
+    }
+
+    private void processBand(FrameType type, long timestamp, double[] channels) {
+        bandFrame.set(type, timestamp);
+        final double[] values = bandFrame.values();
+        System.arraycopy(channels, 0, values, 0, channels.length);
+        for (int i = channels.length; i < values.length; i++) {
+            values[i] = 0;
+        }
+        process(bandFrame);
+    }
+
+    private void process(SampleFrame frame) {
+        final double[] values = frame.values();
+        switch (frame.getType()) {
+            case EEG:
+                System.arraycopy(values, 0, eegBuffer, 0, eegBuffer.length);
+                if (!eegStale) {
+                    eegStale = true;
+                    notifyStale();
+                }
+                break;
+            case ALPHA_RELATIVE:
+                System.arraycopy(values, 0, alphaBuffer, 0, alphaBuffer.length);
+                if (!alphaStale) {
+                    alphaStale = true;
+                    notifyStale();
+                }
+                break;
+            case BETA_ABSOLUTE:
+                System.arraycopy(values, 0, betaBuffer, 0, betaBuffer.length);
+                break;
+            case GAMMA_ABSOLUTE:
+                System.arraycopy(values, 0, gammaBuffer, 0, gammaBuffer.length);
+                break;
+            case THETA_ABSOLUTE:
+                System.arraycopy(values, 0, thetaBuffer, 0, thetaBuffer.length);
+                break;
+            case PPG:
+                System.arraycopy(values, 0, ppgBuffer, 0, ppgBuffer.length);
+                break;
+            case ACCELEROMETER:
+                System.arraycopy(values, 0, accelBuffer, 0, accelBuffer.length);
+                if (!accelStale) {
+                    accelStale = true;
+                    notifyStale();
+                }
+                break;
+            default:
+                break;
+        }
+
+        // Rows are only added on EEG frames; the other streams update the row columns.
+        rowAssembler.onFrame(frame);
+    }
+
+    /**
+     * Writes the rows still waiting for slower streams.  Call from the frame thread once
+     * the session has ended.
+     */
+    public void flush() {
+        if (timestamps != null) {
+            for (FrameType type : FrameType.values()) {
+                if (heldCount[type.ordinal()] > 0) {
+                    release(type, timestamps.flush(type));
+                }
+            }
+        }
+        artifacts.flush();
+        rowAssembler.flush();
+        if (bandPowers != null) {
+            bandPowers.reset();
+        }
+        if (timestamps != null) {
+            timestamps.reset();
+        }
+        if (filters != null) {
+            filters.reset();
+        }
+    }
+
+    /**
+     * Corrects the timestamps of the frames from now on; null keeps them as they arrive.
+     * Call before the first frame.
+     */
+    public void setTimestampCorrector(TimestampCorrector corrector) {
+        timestamps = corrector;
+        held = null;
+        Arrays.fill(heldCount, 0);
+        if (corrector != null) {
+            held = new SampleFrame[FrameType.count()][];
+            for (FrameType type : FrameType.values()) {
+                if (corrector.isTracked(type)) {
+                    held[type.ordinal()] = new SampleFrame[TimestampCorrector.CONFIRM_SAMPLES + 1];
+                    for (int i = 0; i < held[type.ordinal()].length; i++) {
+                        held[type.ordinal()][i] = new SampleFrame();
+                    }
+                }
+            }
+        }
+    }
+
+    public TimestampCorrector getTimestampCorrector() {
+        return timestamps;
+    }
+
+    /**
+     * Filters the raw EEG from now on, into {@link FrameType#EEG_FILTERED} frames; null
+     * stops.  The bank filters the leading EEG channels, at most all six.  Call before
+     * the first frame.
+     */
+    public void setFilterBank(FilterBank filters) {
+        if (filters != null && filters.getChannelCount() > FrameType.EEG.getValueCount()) {
+            throw new IllegalArgumentException(filters.getChannelCount() + " channels");
+        }
+        this.filters = filters;
+    }
+
+    public FilterBank getFilterBank() {
+        return filters;
+    }
+
+    /**
+     * @return the detector of the artifacts in the raw EEG, to set its
+     *         {@link ArtifactDetector.EventListener}.
+     */
+    public ArtifactDetector getArtifactDetector() {
+        return artifacts;
+    }
+
+    private void notifyStale() {
+        final Runnable listener = staleListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets what to run when one of the displayed buffers receives new data after the UI
+     * cleared its stale flag, for example to wake up an idle render loop.  Runs on the
+     * frame thread, at most once per buffer between two clears, so it must be quick.
+     */
+    public void setStaleListener(Runnable listener) {
+        staleListener = listener;
+    }
+
+    public SampleStore getStore() {
+        return store;
+    }
+
+    public double[] getEegBuffer() {
+        return eegBuffer;
+    }
+
+    public boolean isEegStale() {
+        return eegStale;
+    }
+
+    /**
+     * Marks the EEG buffer as displayed.  Clear the flag before reading the buffer, so data
+     * arriving meanwhile sets it again.
+     */
+    public void clearEegStale() {
+        eegStale = false;
+    }
+
+    public double[] getAlphaBuffer() {
+        return alphaBuffer;
+    }
+
+    public boolean isAlphaStale() {
+        return alphaStale;
+    }
+
+    public void clearAlphaStale() {
+        alphaStale = false;
+    }
+
+    public double[] getAccelBuffer() {
+        return accelBuffer;
+    }
+
+    public boolean isAccelStale() {
+        return accelStale;
+    }
+
+    public void clearAccelStale() {
+        accelStale = false;
+    }
+
+    public double[] getBetaBuffer() {
+        return betaBuffer;
+    }
+
+    public double[] getGammaBuffer() {
+        return gammaBuffer;
+    }
+
+    public double[] getThetaBuffer() {
+        return thetaBuffer;
+    }
+
+    public double getPpgValue() {
+        return ppgBuffer[1];
+    }
+}
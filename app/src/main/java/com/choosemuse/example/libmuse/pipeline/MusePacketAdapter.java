@@ -0,0 +1,106 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+import com.choosemuse.libmuse.Accelerometer;
+import com.choosemuse.libmuse.Battery;
+import com.choosemuse.libmuse.DrlRef;
+import com.choosemuse.libmuse.Eeg;
+import com.choosemuse.libmuse.Gyro;
+import com.choosemuse.libmuse.MuseDataPacket;
+import com.choosemuse.libmuse.MuseDataPacketType;
+import com.choosemuse.libmuse.Ppg;
+
+/**
+ * Copies libmuse data packets into {@link SampleFrame}s.
+ * <p>
+ * This is the only place the pipeline reads a MuseDataPacket; everything downstream
+ * works on frames and can run without the headband or the native library.
+ */
+public final class MusePacketAdapter {
+
+    private static final Eeg[] EEG_CHANNELS = {
+            Eeg.EEG1, Eeg.EEG2, Eeg.EEG3, Eeg.EEG4, Eeg.AUX_LEFT, Eeg.AUX_RIGHT
+    };
+
+    private static final FrameType[] FRAME_TYPES = new FrameType[MuseDataPacketType.values().length];
+
+    static {
+        FRAME_TYPES[MuseDataPacketType.EEG.ordinal()] = FrameType.EEG;
+        FRAME_TYPES[MuseDataPacketType.ACCELEROMETER.ordinal()] = FrameType.ACCELEROMETER;
+        FRAME_TYPES[MuseDataPacketType.GYRO.ordinal()] = FrameType.GYRO;
+        FRAME_TYPES[MuseDataPacketType.PPG.ordinal()] = FrameType.PPG;
+        FRAME_TYPES[MuseDataPacketType.BATTERY.ordinal()] = FrameType.BATTERY;
+        FRAME_TYPES[MuseDataPacketType.DRL_REF.ordinal()] = FrameType.DRL_REF;
+        FRAME_TYPES[MuseDataPacketType.DELTA_ABSOLUTE.ordinal()] = FrameType.DELTA_ABSOLUTE;
+        FRAME_TYPES[MuseDataPacketType.THETA_ABSOLUTE.ordinal()] = FrameType.THETA_ABSOLUTE;
+        FRAME_TYPES[MuseDataPacketType.ALPHA_ABSOLUTE.ordinal()] = FrameType.ALPHA_ABSOLUTE;
+        FRAME_TYPES[MuseDataPacketType.BETA_ABSOLUTE.ordinal()] = FrameType.BETA_ABSOLUTE;
+        FRAME_TYPES[MuseDataPacketType.GAMMA_ABSOLUTE.ordinal()] = FrameType.GAMMA_ABSOLUTE;
+        FRAME_TYPES[MuseDataPacketType.DELTA_RELATIVE.ordinal()] = FrameType.DELTA_RELATIVE;
+        FRAME_TYPES[MuseDataPacketType.THETA_RELATIVE.ordinal()] = FrameType.THETA_RELATIVE;
+        FRAME_TYPES[MuseDataPacketType.ALPHA_RELATIVE.ordinal()] = FrameType.ALPHA_RELATIVE;
+        FRAME_TYPES[MuseDataPacketType.BETA_RELATIVE.ordinal()] = FrameType.BETA_RELATIVE;
+        FRAME_TYPES[MuseDataPacketType.GAMMA_RELATIVE.ordinal()] = FrameType.GAMMA_RELATIVE;
+    }
+
+    private MusePacketAdapter() {
+    }
+
+    /**
+     * @return the frame type for a packet type, or null if the pipeline does not handle it.
+     */
+    public static FrameType toFrameType(MuseDataPacketType type) {
+        return FRAME_TYPES[type.ordinal()];
+    }
+
+    /**
+     * Copies {@code p} into {@code frame}.
+     * @return false if the packet type is not handled; the frame is left untouched.
+     */
+    public static boolean fill(MuseDataPacket p, SampleFrame frame) {
+        final FrameType type = toFrameType(p.packetType());
+        if (type == null) {
+            return false;
+        }
+        frame.set(type, p.timestamp());
+        switch (type) {
+            case ACCELEROMETER:
+                frame.setValue(0, p.getAccelerometerValue(Accelerometer.X));
+                frame.setValue(1, p.getAccelerometerValue(Accelerometer.Y));
+                frame.setValue(2, p.getAccelerometerValue(Accelerometer.Z));
+                break;
+            case GYRO:
+                frame.setValue(0, p.getGyroValue(Gyro.X));
+                frame.setValue(1, p.getGyroValue(Gyro.Y));
+                frame.setValue(2, p.getGyroValue(Gyro.Z));
+                break;
+            case PPG:
+                frame.setValue(0, p.getPpgChannelValue(Ppg.AMBIENT));
+                frame.setValue(1, p.getPpgChannelValue(Ppg.IR));
+                frame.setValue(2, p.getPpgChannelValue(Ppg.RED));
+                break;
+            case BATTERY:
+                frame.setValue(0, p.getBatteryValue(Battery.CHARGE_PERCENTAGE_REMAINING));
+                frame.setValue(1, p.getBatteryValue(Battery.MILLIVOLTS));
+                frame.setValue(2, p.getBatteryValue(Battery.TEMPERATURE_CELSIUS));
+                break;
+            case DRL_REF:
+                frame.setValue(0, p.getDrlRefValue(DrlRef.DRL));
+                frame.setValue(1, p.getDrlRefValue(DrlRef.REF));
+                break;
+            case EEG:
+                for (int i = 0; i < EEG_CHANNELS.length; i++) {
+                    frame.setValue(i, p.getEegChannelValue(EEG_CHANNELS[i]));
+                }
+                break;
+            default:
+                // EEG derived packets carry a value for the 4 main channels and, depending
+                // on the headband, the auxiliary channels.
+                final int channels = (int) Math.min(EEG_CHANNELS.length, p.valuesSize());
+                for (int i = 0; i < EEG_CHANNELS.length; i++) {
+                    frame.setValue(i, i < channels ? p.getEegChannelValue(EEG_CHANNELS[i]) : 0);
+                }
+                break;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+import com.choosemuse.example.libmuse.data.RowAssembler;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.dsp.FilterBank;
+
+/**
+ * How a session is recorded: its columns, the raw EEG rate, the mains notch of the filter
+ * bank and whether timestamps are corrected.  Pipelines created from one configuration
+ * record the same rows from the same packets, whether they come from a headband or from a
+ * .muse file converted later.
+ */
+public final class PipelineConfig {
+
+    private final RowAssembler.Column[] columns;
+    private final double eegRateHz;
+    private final double mainsHz;
+    private final boolean correctTimestamps;
+
+    /**
+     * @param eegExport         The EEG values recorded.  The filtered values need a filter bank.
+     * @param eegRateHz         The raw EEG rate.
+     * @param mainsHz           The mains frequency the filter bank removes, 50 or 60; 0 for
+     *                          no filter bank.
+     * @param correctTimestamps Whether a {@link TimestampCorrector} stamps the frames.
+     */
+    public PipelineConfig(IngestPipeline.EegExport eegExport, double eegRateHz, double mainsHz,
+                          boolean correctTimestamps) {
+        this.columns = IngestPipeline.columns(eegExport);
+        this.eegRateHz = eegRateHz;
+        this.mainsHz = mainsHz;
+        this.correctTimestamps = correctTimestamps;
+    }
+
+    /**
+     * @return the columns recorded; not to be modified.
+     */
+    public RowAssembler.Column[] getColumns() {
+        return columns;
+    }
+
+    public double getEegRateHz() {
+        return eegRateHz;
+    }
+
+    /**
+     * @return a new memory only store for the columns.
+     */
+    public SampleStore newStore() {
+        return new SampleStore(RowAssembler.columnNames(columns));
+    }
+
+    /**
+     * @param store A new store for the columns.
+     * @return a pipeline recording into {@code store}, with a filter bank and timestamp
+     *         corrector of its own if configured.
+     */
+    public IngestPipeline newPipeline(SampleStore store) {
+        final IngestPipeline pipeline = new IngestPipeline(store, columns, eegRateHz);
+        if (mainsHz > 0) {
+            pipeline.setFilterBank(FilterBank.forEeg(FrameType.EEG.getValueCount(), eegRateHz,
+                    mainsHz));
+        }
+        if (correctTimestamps) {
+            pipeline.setTimestampCorrector(TimestampCorrector.forRates(eegRateHz));
+        }
+        return pipeline;
+    }
+}
@@ -0,0 +1,62 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+/**
+ * One packet worth of samples: a type, a timestamp in microseconds and up to
+ * {@link FrameType#MAX_VALUES} primitive values.
+ * <p>
+ * Frames are mutable and meant to be reused; producers fill the same instance for every
+ * packet so the pipeline does not allocate.
+ */
+public final class SampleFrame {
+
+    private FrameType type;
+    private long timestamp;
+    private final double[] values = new double[FrameType.MAX_VALUES];
+
+    /**
+     * Prepares the frame for new values.  The values of the previous packet are kept until
+     * they are overwritten.
+     */
+    public SampleFrame set(FrameType type, long timestamp) {
+        this.type = type;
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    public FrameType getType() {
+        return type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public int getValueCount() {
+        return type.getValueCount();
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public void setValue(int index, double value) {
+        values[index] = value;
+    }
+
+    /**
+     * The backing array of the values.  Only the first {@link #getValueCount()} are valid.
+     */
+    public double[] values() {
+        return values;
+    }
+
+    public void copyFrom(SampleFrame other) {
+        type = other.type;
+        timestamp = other.timestamp;
+        System.arraycopy(other.values, 0, values, 0, FrameType.MAX_VALUES);
+    }
+}
@@ -0,0 +1,183 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a recorded session back into the code that records a live one, to reproduce a
+ * problem from the field without a headband, or to run the same session through the
+ * pipeline again and again.
+ * <p>
+ * The frames of a {@link FrameSource} are handed to a {@link Sink} with the timestamps
+ * they were recorded with.  At a speed of 1 each frame is released when as much time has
+ * passed since the first one as in the recording, at a speed of N N times as fast, and at
+ * a speed of 0 as fast as the sink takes them, which measures the highest rate the sink
+ * sustains.  The thread running the replay plays the packet thread of libmuse; feed it to
+ * {@code HeadbandConnection.receiveFrame} to go through the same ring and recorder as the
+ * packets of a headband, or straight to {@link IngestPipeline#onFrame} for a deterministic
+ * run on one thread.
+ * <p>
+ * A replay runs once.  The counters can be read from any thread while it runs.
+ */
+public final class SessionReplay {
+
+    /**
+     * Takes the replayed frames, on the replay thread.
+     */
+    public interface Sink {
+        /**
+         * @param frame Only valid during the call.
+         */
+        void onFrame(SampleFrame frame);
+    }
+
+    /**
+     * Told on the replay thread once the replay has ended.
+     */
+    public interface Listener {
+        /**
+         * @param error The error that ended the replay early, or null at the end of the
+         *              recording or after {@link #stop()}.
+         */
+        void onReplayEnded(IOException error);
+    }
+
+    private final FrameSource source;
+    private final double speed;
+    private final SampleFrame frame = new SampleFrame();
+
+    private volatile boolean stopped;
+    private volatile long frames;
+    private volatile long firstTimestamp = Long.MIN_VALUE;
+    private volatile long lastTimestamp = Long.MIN_VALUE;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile long maxLateNanos;
+
+    /**
+     * @param speed How many times faster than recorded to play, or 0 for as fast as
+     *              possible.
+     */
+    public SessionReplay(FrameSource source, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed " + speed);
+        }
+        this.source = source;
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Plays the whole source into {@code sink} on the calling thread, then closes the
+     * source.
+     * @return the number of frames played.
+     */
+    public long run(Sink sink) throws IOException {
+        if (startNanos != 0) {
+            throw new IllegalStateException("already run");
+        }
+        startNanos = System.nanoTime();
+        try {
+            final long start = startNanos;
+            long first = Long.MIN_VALUE;
+            long count = 0;
+            while (!stopped && source.next(frame)) {
+                final long timestamp = frame.getTimestamp();
+                if (first == Long.MIN_VALUE) {
+                    first = timestamp;
+                    firstTimestamp = timestamp;
+                }
+                if (speed > 0) {
+                    final long due = start + (long) ((timestamp - first) * 1000 / speed);
+                    long now;
+                    while ((now = System.nanoTime()) < due && !stopped) {
+                        LockSupport.parkNanos(due - now);
+                    }
+                    if (now - due > maxLateNanos) {
+                        maxLateNanos = now - due;
+                    }
+                }
+                sink.onFrame(frame);
+                lastTimestamp = timestamp;
+                frames = ++count;
+            }
+            return count;
+        } finally {
+            endNanos = System.nanoTime();
+            source.close();
+        }
+    }
+
+    /**
+     * Runs the replay on a new daemon thread.
+     * @param listener Told when the replay ends, or null.
+     */
+    public Thread start(final Sink sink, final Listener listener) {
+        final Thread thread = new Thread(() -> {
+            IOException error = null;
+            try {
+                run(sink);
+            } catch (IOException e) {
+                error = e;
+            }
+            if (listener != null) {
+                listener.onReplayEnded(error);
+            }
+        }, "replay");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Ends the replay after the frame being played.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return the number of frames played so far.
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return the recording time played so far, in microseconds.
+     */
+    public long getPlayedMicros() {
+        return frames > 0 ? lastTimestamp - firstTimestamp : 0;
+    }
+
+    /**
+     * @return the wall time since the replay started, or that it took once ended.
+     */
+    public long getElapsedNanos() {
+        final long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        final long end = endNanos;
+        return (end != 0 ? end : System.nanoTime()) - start;
+    }
+
+    /**
+     * @return how many times faster than recorded the frames were played so far.
+     */
+    public double getAchievedSpeed() {
+        final long elapsed = getElapsedNanos();
+        return elapsed > 0 ? getPlayedMicros() * 1000.0 / elapsed : 0;
+    }
+
+    /**
+     * @return the longest a paced frame was released after its time, for example while
+     *         the sink was busy.
+     */
+    public long getMaxLateNanos() {
+        return maxLateNanos;
+    }
+}
@@ -0,0 +1,166 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+import java.util.Random;
+
+/**
+ * A deterministic stand-in for a headband that generates frames in timestamp order.
+ * <p>
+ * Raw EEG is a mix of alpha, theta and beta rhythms on a DC offset with mains hum and
+ * Gaussian noise; band powers, accelerometer, PPG and battery streams run at their own
+ * rates.  The same seed and rates always produce the same frames, so the generator can
+ * drive benchmarks and regression checks on a plain JVM.
+ */
+public class SyntheticHeadband {
+
+    public static final double DEFAULT_BAND_RATE_HZ = 10;
+    public static final double DEFAULT_ACCEL_RATE_HZ = 52;
+    public static final double DEFAULT_PPG_RATE_HZ = 64;
+    public static final double DEFAULT_BATTERY_RATE_HZ = 0.1;
+
+    private static final FrameType[] BANDS = {
+            FrameType.DELTA_ABSOLUTE, FrameType.THETA_ABSOLUTE, FrameType.ALPHA_ABSOLUTE,
+            FrameType.BETA_ABSOLUTE, FrameType.GAMMA_ABSOLUTE
+    };
+    private static final double[] BAND_LEVELS = {1.2, 0.8, 1.0, 0.5, 0.1};
+
+    private static final double EEG_OFFSET = 800;
+    private static final double MAINS_HZ = 50;
+
+    private final Random random;
+    private final long startUs;
+
+    /**
+     * The streams and their schedules.  Stream i produces frames of type types[i] at
+     * periods[i] microseconds; a period of 0 disables the stream.
+     */
+    private final FrameType[] types;
+    private final double[] periods;
+    private final long[] counts;
+
+    /**
+     * Creates a generator with the default rates for everything but raw EEG.
+     * @param eegRateHz The raw EEG rate: 220, 256 or 500 depending on the headband and preset.
+     * @param seed      The seed of the noise generator.
+     */
+    public SyntheticHeadband(double eegRateHz, long seed) {
+        this(eegRateHz, DEFAULT_BAND_RATE_HZ, DEFAULT_ACCEL_RATE_HZ, DEFAULT_PPG_RATE_HZ,
+                DEFAULT_BATTERY_RATE_HZ, seed, 0);
+    }
+
+    /**
+     * Creates a generator with explicit rates.  A rate of 0 disables a stream.
+     * @param eegRateHz     The raw EEG rate.
+     * @param bandRateHz    The rate of each of the absolute band power streams.
+     * @param accelRateHz   The accelerometer rate.
+     * @param ppgRateHz     The PPG rate.
+     * @param batteryRateHz The battery rate.
+     * @param seed          The seed of the noise generator.
+     * @param startUs       The timestamp of the first frame, in microseconds.
+     */
+    public SyntheticHeadband(double eegRateHz, double bandRateHz, double accelRateHz, double ppgRateHz,
+                             double batteryRateHz, long seed, long startUs) {
+        this.random = new Random(seed);
+        this.startUs = startUs;
+        this.types = new FrameType[4 + BANDS.length];
+        this.periods = new double[types.length];
+        this.counts = new long[types.length];
+        int i = 0;
+        types[i] = FrameType.EEG;
+        periods[i++] = period(eegRateHz);
+        for (FrameType band : BANDS) {
+            types[i] = band;
+            periods[i++] = period(bandRateHz);
+        }
+        types[i] = FrameType.ACCELEROMETER;
+        periods[i++] = period(accelRateHz);
+        types[i] = FrameType.PPG;
+        periods[i++] = period(ppgRateHz);
+        types[i] = FrameType.BATTERY;
+        periods[i] = period(batteryRateHz);
+    }
+
+    private static double period(double rateHz) {
+        return rateHz > 0 ? 1e6 / rateHz : 0;
+    }
+
+    /**
+     * Fills {@code frame} with the next frame in timestamp order.
+     * @return the frame, for chaining.
+     */
+    public SampleFrame next(SampleFrame frame) {
+        int stream = -1;
+        long time = Long.MAX_VALUE;
+        for (int i = 0; i < types.length; i++) {
+            if (periods[i] > 0) {
+                long t = timeOf(i, counts[i]);
+                if (t < time) {
+                    time = t;
+                    stream = i;
+                }
+            }
+        }
+        if (stream < 0) {
+            throw new IllegalStateException("all streams are disabled");
+        }
+        counts[stream]++;
+        frame.set(types[stream], time);
+        generate(frame, (time - startUs) / 1e6, stream);
+        return frame;
+    }
+
+    private long timeOf(int stream, long count) {
+        return startUs + (long) (count * periods[stream]);
+    }
+
+    /**
+     * @return the number of frames generated so far for a frame type.
+     */
+    public long getCount(FrameType type) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == type) {
+                return counts[i];
+            }
+        }
+        return 0;
+    }
+
+    private void generate(SampleFrame frame, double seconds, int stream) {
+        final double twoPiT = 2 * Math.PI * seconds;
+        switch (frame.getType()) {
+            case EEG:
+                for (int c = 0; c < 6; c++) {
+                    double phase = c * 0.7;
+                    double value = EEG_OFFSET
+                            + 20 * Math.sin(10 * twoPiT + phase)
+                            + 10 * Math.sin(6 * twoPiT + phase)
+                            + 6 * Math.sin(20 * twoPiT + phase)
+                            + 3 * Math.sin(MAINS_HZ * twoPiT)
+                            + 5 * random.nextGaussian();
+                    frame.setValue(c, value);
+                }
+                break;
+            case ACCELEROMETER:
+                frame.setValue(0, 0.05 * Math.sin(0.2 * twoPiT) + 0.01 * random.nextGaussian());
+                frame.setValue(1, 0.05 * Math.cos(0.2 * twoPiT) + 0.01 * random.nextGaussian());
+                frame.setValue(2, 1 + 0.01 * random.nextGaussian());
+                break;
+            case PPG:
+                double pulse = Math.pow(Math.max(0, Math.sin(1.2 * twoPiT)), 3);
+                frame.setValue(0, 2000 + 10 * random.nextGaussian());
+                frame.setValue(1, 150000 + 3000 * pulse + 50 * random.nextGaussian());
+                frame.setValue(2, 90000 + 1500 * pulse + 50 * random.nextGaussian());
+                break;
+            case BATTERY:
+                frame.setValue(0, Math.max(0, 100 - seconds / 60));
+                frame.setValue(1, 3900 - seconds / 10);
+                frame.setValue(2, 30);
+                break;
+            default:
+                double level = BAND_LEVELS[stream - 1];
+                for (int c = 0; c < 6; c++) {
+                    frame.setValue(c, level + 0.05 * random.nextGaussian());
+                }
+                break;
+        }
+    }
+}
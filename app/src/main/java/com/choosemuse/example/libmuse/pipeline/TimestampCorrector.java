@@ -0,0 +1,470 @@
+package com.choosemuse.example.libmuse.pipeline;
+
+/**
+ * Replaces the arrival timestamps of fixed rate streams with a smooth sample clock, and
+ * detects the samples lost on the way.
+ * <p>
+ * Bluetooth delivers samples in bursts, so their timestamps jitter by several sample
+ * periods around the rate the headband samples at.  For every tracked {@link FrameType}
+ * the corrector fits a line through (sample index, timestamp) by exponentially weighted
+ * least squares, forgetting old samples over about {@link #DEFAULT_MEMORY_SAMPLES}, and
+ * returns the point of the line at the sample's index.  The line follows the drift of the
+ * headband clock but not the jitter of single samples.
+ * <p>
+ * A sample that arrives much later than the line predicts, by more than
+ * {@link #GAP_PERIODS} periods and {@link #GAP_JITTERS} times the current jitter, is
+ * either delayed or follows lost samples.  It is left out of the fit and held, with the
+ * late samples after it, until {@link #CONFIRM_SAMPLES} of them have been held.  If the
+ * next sample is late by as much, give or take a period, samples were lost: the index
+ * skips them, the held samples are timestamped after the gap and the {@link GapListener}
+ * is told.  A sample later by more than that, when the held samples are late by whole
+ * periods or more, follows another gap.  Otherwise the held samples were only delayed,
+ * as the samples queued behind a delayed one are less late, and are timestamped where
+ * the line puts them without the delay.  Corrected timestamps never go backwards.
+ * <p>
+ * So the samples of a stream leave the corrector in order but not always at once:
+ * {@link #correct} returns how many of the oldest samples not released yet are released,
+ * 0 while the sample is held, and their timestamps are read with {@link #getReleased}.
+ * The caller keeps the held samples until then; at the end of a stream {@link #flush}
+ * releases them.
+ * <p>
+ * {@link #correct} is O(1) and allocates nothing.  It must always be called from the same
+ * thread; the totals can be read from any thread.
+ */
+public final class TimestampCorrector {
+
+    /**
+     * Told about every gap, on the thread calling {@link #correct}.
+     */
+    public interface GapListener {
+        /**
+         * @param type          The stream with the gap.
+         * @param lastTimestamp The corrected timestamp of the last sample before the gap.
+         * @param timestamp     The corrected timestamp of the first sample after it.
+         * @param missing       The estimated number of samples lost.
+         */
+        void onGap(FrameType type, long lastTimestamp, long timestamp, long missing);
+    }
+
+    public static final int DEFAULT_MEMORY_SAMPLES = 1024;
+
+    /**
+     * Until a stream has this many samples its period is taken to be the nominal one and
+     * no gaps are detected.
+     */
+    public static final int WARMUP_SAMPLES = 32;
+
+    public static final double GAP_PERIODS = 0.5;
+
+    /**
+     * A gap is only reported when the sample after this many late samples is late too, so
+     * a few delayed samples in a row are not taken for one.
+     */
+    public static final int CONFIRM_SAMPLES = 2;
+    public static final double GAP_JITTERS = 3;
+
+    /**
+     * The fitted period never strays further than this from the nominal one.
+     */
+    private static final double MAX_DRIFT = 0.01;
+
+    /**
+     * A jump of more than this, forwards or backwards, restarts the fit: the headband
+     * reconnected or its clock was reset.
+     */
+    private static final long RESTART_US = 10_000_000L;
+
+    private static final double JITTER_SMOOTHING = 1.0 / 64;
+
+    private final double decay;
+    private final Stream[] streams = new Stream[FrameType.count()];
+    private GapListener gapListener;
+
+    /**
+     * The samples released by the latest call: their corrected timestamps and the number
+     * of samples lost right before each.
+     */
+    private final long[] released = new long[CONFIRM_SAMPLES + 1];
+    private final long[] releasedMissing = new long[CONFIRM_SAMPLES + 1];
+    private int releasedCount;
+
+    private volatile long totalGaps;
+    private volatile long totalMissing;
+
+    /**
+     * The fit of one stream, in coordinates relative to its latest sample: x is the sample
+     * index minus the latest index and y the arrival timestamp minus the latest one, so the
+     * sums stay small however long the session.
+     */
+    private static final class Stream {
+        final FrameType type;
+        final double nominalPeriod;
+        long count;
+        long lastTimestamp;
+        /**
+         * The corrected timestamp of the latest sample released.
+         */
+        long lastCorrected;
+        double sw;
+        double sx;
+        double sy;
+        double sxx;
+        double sxy;
+        /**
+         * The fitted period, and the corrected minus the arrival timestamp of the latest
+         * sample.
+         */
+        double period;
+        double offset;
+        double jitter;
+        /**
+         * The number of samples in a row that arrived late enough to follow a gap, which
+         * are held, the samples lost before each if it is on time, how much later than a
+         * whole number of periods the first is, and the timestamps of the held samples if
+         * they were only delayed.
+         */
+        int suspects;
+        final long[] heldLost = new long[CONFIRM_SAMPLES];
+        double suspectResidual;
+        final long[] delayed = new long[CONFIRM_SAMPLES];
+        long gaps;
+        long missing;
+
+        Stream(FrameType type, double nominalPeriod) {
+            this.type = type;
+            this.nominalPeriod = nominalPeriod;
+            restart();
+        }
+
+        void restart() {
+            count = 0;
+            sw = sx = sy = sxx = sxy = 0;
+            period = nominalPeriod;
+            offset = 0;
+            jitter = 0;
+            suspects = 0;
+        }
+    }
+
+    /**
+     * Tracks no stream; add them with {@link #track}.
+     */
+    public TimestampCorrector() {
+        this(DEFAULT_MEMORY_SAMPLES);
+    }
+
+    /**
+     * @param memorySamples The number of samples the fit mostly depends on.  More smooths
+     *                      the jitter better, fewer follow clock drift faster.
+     */
+    public TimestampCorrector(int memorySamples) {
+        if (memorySamples < WARMUP_SAMPLES) {
+            throw new IllegalArgumentException("memory " + memorySamples);
+        }
+        this.decay = 1 - 1.0 / memorySamples;
+    }
+
+    /**
+     * Tracks the raw EEG at {@code eegRateHz} and the accelerometer, gyroscope and PPG at
+     * the rates of the headbands.
+     */
+    public static TimestampCorrector forRates(double eegRateHz) {
+        return new TimestampCorrector()
+                .track(FrameType.EEG, eegRateHz)
+                .track(FrameType.ACCELEROMETER, SyntheticHeadband.DEFAULT_ACCEL_RATE_HZ)
+                .track(FrameType.GYRO, SyntheticHeadband.DEFAULT_ACCEL_RATE_HZ)
+                .track(FrameType.PPG, SyntheticHeadband.DEFAULT_PPG_RATE_HZ);
+    }
+
+    /**
+     * Corrects the timestamps of {@code type}, sampled at {@code rateHz}.  Other types
+     * keep their timestamps.
+     * @return this, for chaining.
+     */
+    public TimestampCorrector track(FrameType type, double rateHz) {
+        if (!(rateHz > 0)) {
+            throw new IllegalArgumentException("rate " + rateHz);
+        }
+        streams[type.ordinal()] = new Stream(type, 1e6 / rateHz);
+        return this;
+    }
+
+    public boolean isTracked(FrameType type) {
+        return streams[type.ordinal()] != null;
+    }
+
+    public void setGapListener(GapListener listener) {
+        gapListener = listener;
+    }
+
+    /**
+     * @param timestamp The arrival timestamp of a sample, in microseconds.
+     * @return the number of samples of {@code type} released: the oldest samples held,
+     *         followed by this one unless it is held too.  Always 1 if the type is not
+     *         tracked, with the timestamp unchanged.
+     */
+    public int correct(FrameType type, long timestamp) {
+        releasedCount = 0;
+        final Stream s = streams[type.ordinal()];
+        if (s == null) {
+            return release(timestamp, 0);
+        }
+        if (s.count == 0) {
+            return release(s, start(s, timestamp), 0);
+        }
+        final double dy = timestamp - s.lastTimestamp;
+        // How late the sample is if it directly follows the latest one.
+        final double late = dy - s.offset - s.period;
+        if (Math.abs(late) > RESTART_US) {
+            releaseDelayed(s);
+            final long lastCorrected = s.lastCorrected;
+            final long corrected = start(s, Math.max(timestamp, lastCorrected + 1));
+            final long missing = late > 0 ? Math.round(late / s.nominalPeriod) : 0;
+            release(s, corrected, missing);
+            gap(s, lastCorrected, corrected, missing);
+            return releasedCount;
+        }
+        long step = 1;
+        double weight = 1;
+        long confirmed = 0;
+        int gapSamples = 0;
+        long lost = 0;
+        final double threshold = Math.max(GAP_PERIODS * s.period, GAP_JITTERS * s.jitter);
+        if (s.count >= WARMUP_SAMPLES && Math.abs(late) > threshold) {
+            // Samples a period or more early mean a delay was taken for a gap.
+            lost = Math.round(late / s.period);
+            boolean gap = false;
+            if (s.suspects > 0 && Math.abs(lost - s.heldLost[0]) > 1) {
+                // More or less late than the first sample held, by more than a delay of
+                // one of them on top of a gap.  If the first is not early for a sample
+                // after a gap, the samples held follow one and this one another; if it is
+                // they were delayed, and this one may follow a gap.
+                gap = lost > s.heldLost[0] && s.heldLost[0] > 0
+                        && s.suspectResidual >= -GAP_JITTERS * s.jitter;
+                if (!gap) {
+                    releaseDelayed(s);
+                }
+            } else if (s.suspects > 0) {
+                // As far off as the samples held: samples were lost before the first of
+                // them, or the index is ahead by as many.
+                gap = s.suspects == CONFIRM_SAMPLES;
+            }
+            if (gap) {
+                // Delays only add to the lateness, and the samples lost only add up, so
+                // the samples lost before a sample held are the fewest that it or any
+                // sample after it is late by.
+                long fewest = lost;
+                for (int i = s.suspects - 1; i >= 0; i--) {
+                    fewest = leastLate(s.heldLost[i], fewest);
+                    s.heldLost[i] = fewest;
+                }
+                confirmed = fewest;
+                gapSamples = s.suspects;
+                s.suspects = 0;
+                step += confirmed;
+                lost -= confirmed;
+            }
+            if (lost != 0 && Math.abs(late - (step - 1) * s.period) > threshold) {
+                // Lost samples or a delay, which the next samples tell.  Until then this
+                // sample stays out of the fit and is held.
+                if (s.suspects == 0) {
+                    s.suspectResidual = late - (step - 1 + lost) * s.period;
+                }
+                s.suspects++;
+                weight = 0;
+            }
+        } else {
+            releaseDelayed(s);
+        }
+        final double residual = late - (step - 1) * s.period;
+
+        // Move the origin to this sample, forget a little and add the sample at (0, 0).
+        final double dx = step;
+        final double sx = s.sx;
+        final double sy = s.sy;
+        s.sxx = decay * (s.sxx - 2 * dx * sx + dx * dx * s.sw);
+        s.sxy = decay * (s.sxy - dx * sy - dy * sx + dx * dy * s.sw);
+        s.sx = decay * (sx - dx * s.sw);
+        s.sy = decay * (sy - dy * s.sw);
+        s.sw = decay * s.sw;
+        s.sw += weight;
+        s.count++;
+        if (step == 1 && weight > 0) {
+            // A plain mean during the warm-up, so the gap threshold is right once it ends.
+            s.jitter += (Math.abs(residual) - s.jitter) * Math.max(JITTER_SMOOTHING, 1.0 / s.count);
+        }
+        fit(s);
+        s.lastTimestamp = timestamp;
+
+        // The point of the line at the index of this sample.
+        final long line = timestamp + Math.round(s.offset);
+        // The samples held follow the gaps, right before this sample.
+        for (int i = 0; i < gapSamples; i++) {
+            final long lastCorrected = s.lastCorrected;
+            final long missing = s.heldLost[i] - (i > 0 ? s.heldLost[i - 1] : 0);
+            final long corrected = Math.max(line
+                    - Math.round((gapSamples - i + confirmed - s.heldLost[i]) * s.period),
+                    lastCorrected + 1);
+            release(s, corrected, Math.max(missing, 0));
+            if (missing > 0) {
+                gap(s, lastCorrected, corrected, missing);
+            } else if (missing < 0) {
+                // Samples counted as lost that were not.
+                s.missing += missing;
+                totalMissing = totalMissing + missing;
+            }
+        }
+        if (weight == 0) {
+            // Held, with the timestamp it gets if it was delayed.
+            final long before = s.suspects > 1 ? s.delayed[s.suspects - 2] : s.lastCorrected;
+            s.delayed[s.suspects - 1] = Math.max(line, before + 1);
+            s.heldLost[s.suspects - 1] = lost;
+            return releasedCount;
+        }
+        return release(s, Math.max(line, s.lastCorrected + 1), 0);
+    }
+
+    /**
+     * Releases the samples held, with the timestamps they get if they were delayed.
+     */
+    private void releaseDelayed(Stream s) {
+        for (int i = 0; i < s.suspects; i++) {
+            release(s, s.delayed[i], 0);
+        }
+        s.suspects = 0;
+    }
+
+    private static long leastLate(long lost, long otherLost) {
+        return Math.abs(lost) < Math.abs(otherLost) ? lost : otherLost;
+    }
+
+    private int release(Stream s, long corrected, long missing) {
+        s.lastCorrected = corrected;
+        return release(corrected, missing);
+    }
+
+    private int release(long corrected, long missing) {
+        released[releasedCount] = corrected;
+        releasedMissing[releasedCount] = missing;
+        return ++releasedCount;
+    }
+
+    /**
+     * Releases the samples of {@code type} still held, as if they were delayed, for
+     * example at the end of a session.
+     * @return the number of samples released.
+     */
+    public int flush(FrameType type) {
+        releasedCount = 0;
+        final Stream s = streams[type.ordinal()];
+        if (s != null) {
+            releaseDelayed(s);
+        }
+        return releasedCount;
+    }
+
+    /**
+     * @param i The index of a sample released by the latest call, oldest first.
+     * @return its corrected timestamp.
+     */
+    public long getReleased(int i) {
+        return released[i];
+    }
+
+    /**
+     * @param i The index of a sample released by the latest call, oldest first.
+     * @return the number of samples found lost right before it, 0 if none.
+     */
+    public long getMissingBefore(int i) {
+        return releasedMissing[i];
+    }
+
+    private long start(Stream s, long timestamp) {
+        s.restart();
+        s.sw = 1;
+        s.count = 1;
+        s.lastTimestamp = timestamp;
+        s.lastCorrected = timestamp;
+        return timestamp;
+    }
+
+    /**
+     * Fits the period and the offset at x = 0, with the nominal period during the warm-up
+     * or when the samples are too few to tell the slope.
+     */
+    private static void fit(Stream s) {
+        double period = s.nominalPeriod;
+        if (s.count >= WARMUP_SAMPLES) {
+            final double det = s.sw * s.sxx - s.sx * s.sx;
+            if (det > 1e-9 * s.sw * s.sxx) {
+                period = (s.sw * s.sxy - s.sx * s.sy) / det;
+                period = Math.max(s.nominalPeriod * (1 - MAX_DRIFT),
+                        Math.min(s.nominalPeriod * (1 + MAX_DRIFT), period));
+            }
+        }
+        s.period = period;
+        s.offset = (s.sy - period * s.sx) / s.sw;
+    }
+
+    private void gap(Stream s, long lastTimestamp, long timestamp, long missing) {
+        if (missing <= 0) {
+            return;
+        }
+        s.gaps++;
+        s.missing += missing;
+        totalGaps = totalGaps + 1;
+        totalMissing = totalMissing + missing;
+        final GapListener listener = gapListener;
+        if (listener != null) {
+            listener.onGap(s.type, lastTimestamp, timestamp, missing);
+        }
+    }
+
+    /**
+     * Forgets the fit of every stream, for example when the headband reconnects.  The
+     * totals are kept; the samples held are dropped, so {@link #flush} them first.
+     */
+    public void reset() {
+        for (Stream s : streams) {
+            if (s != null) {
+                s.restart();
+            }
+        }
+    }
+
+    public long getGapCount(FrameType type) {
+        final Stream s = streams[type.ordinal()];
+        return s != null ? s.gaps : 0;
+    }
+
+    public long getMissingCount(FrameType type) {
+        final Stream s = streams[type.ordinal()];
+        return s != null ? s.missing : 0;
+    }
+
+    /**
+     * @return the fitted sample period of {@code type} in microseconds, or 0 if it is not
+     *         tracked.
+     */
+    public double getPeriod(FrameType type) {
+        final Stream s = streams[type.ordinal()];
+        return s != null ? s.period : 0;
+    }
+
+    /**
+     * @return the mean distance of the arrivals of {@code type} from the fitted clock, in
+     *         microseconds.
+     */
+    public double getJitter(FrameType type) {
+        final Stream s = streams[type.ordinal()];
+        return s != null ? s.jitter : 0;
+    }
+
+    public long getTotalGapCount() {
+        return totalGaps;
+    }
+
+    public long getTotalMissingCount() {
+        return totalMissing;
+    }
+}
@@ -0,0 +1,369 @@
+package com.choosemuse.example.libmuse.session;
+
+import com.choosemuse.example.libmuse.data.BatchedMuseFileWriter;
+import com.choosemuse.example.libmuse.dsp.Artifact;
+import com.choosemuse.example.libmuse.metrics.LatencyHistogram;
+import com.choosemuse.example.libmuse.metrics.MetricsRegistry;
+import com.choosemuse.example.libmuse.metrics.StripedCounter;
+import com.choosemuse.example.libmuse.pipeline.FrameRing;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.MusePacketAdapter;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.pipeline.SessionReplay;
+import com.choosemuse.example.libmuse.pipeline.TimestampCorrector;
+import com.choosemuse.example.libmuse.stream.FrameStreamer;
+import com.choosemuse.libmuse.Muse;
+import com.choosemuse.libmuse.MuseArtifactPacket;
+import com.choosemuse.libmuse.MuseConnectionListener;
+import com.choosemuse.libmuse.MuseDataListener;
+import com.choosemuse.libmuse.MuseDataPacket;
+import com.choosemuse.libmuse.MuseDataPacketType;
+import com.choosemuse.libmuse.MusePreset;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+/**
+ * One connected headband: the data listener registered on it, its session and the .muse
+ * file its packets are written to.  Every headband gets its own instance, so the packets of
+ * one never touch the state of another.
+ * <p>
+ * The libmuse callback thread does as little as possible: it queues the packet for the
+ * .muse file and copies its values into a slot of a {@link FrameRing}.  The frames are
+ * recorded into the session by a recorder thread, and read for the screen by the UI thread
+ * through a consumer of its own, see {@link #pollDisplay}.  More consumers, for example for
+ * analysis, can be added with {@link #getRing()}, and {@link #stream} sends the frames live
+ * to receivers on the network.
+ * <p>
+ * The packet rates, drops, queue depths and latencies of the headband are kept in a
+ * registry tagged with its device id, see {@link #getMetrics()}.  Gaps found by the
+ * {@link TimestampCorrector} of the session's pipeline are counted there too, and marked
+ * in the .muse file with an annotation.  So are the artifacts the pipeline finds, next to
+ * the artifact packets of the headband itself.
+ * <p>
+ * A connection can also {@link #replay} a recorded session instead of connecting to a
+ * headband: the frames go through the ring, recorder, session and streamer like those of
+ * a headband, see {@link #receiveFrame}.
+ */
+public class HeadbandConnection extends MuseDataListener {
+
+    /**
+     * About 15 seconds of frames at 256 Hz, so the recorder only falls a ring behind if it
+     * stalls for that long.
+     */
+    public static final int RING_CAPACITY = 8192;
+
+    /**
+     * The packet types the app registers for.
+     */
+    private static final MuseDataPacketType[] PACKET_TYPES = {
+            MuseDataPacketType.EEG,
+            MuseDataPacketType.ACCELEROMETER,
+            MuseDataPacketType.BATTERY,
+            MuseDataPacketType.DRL_REF,
+            MuseDataPacketType.PPG,
+            MuseDataPacketType.ARTIFACTS
+    };
+
+    private static final long RECORDER_JOIN_MS = 5000;
+
+    private final Muse muse;
+    private final HeadbandSession session;
+    private final BatchedMuseFileWriter writer;
+
+    /**
+     * A full ring drops new frames rather than block the callback thread of libmuse.  The
+     * ring of an unpaced replay blocks instead, so the replay runs as fast as the recorder.
+     */
+    private final FrameRing ring;
+    private final FrameRing.Consumer recorder;
+    private final FrameRing.Consumer display;
+    private Thread recorderThread;
+
+    /**
+     * The replay playing into this connection, or null.
+     */
+    private SessionReplay replay;
+    private Thread replayThread;
+
+    /**
+     * Sends the frames to the network, or null.
+     */
+    private FrameStreamer streamer;
+
+    private final MetricsRegistry metrics;
+    /**
+     * The packet counters, by packet type ordinal; null for the types not registered.
+     */
+    private final StripedCounter[] packetCounters =
+            new StripedCounter[MuseDataPacketType.values().length];
+    private final LatencyHistogram callbackHistogram;
+    private final StripedCounter gapCounter;
+    private final StripedCounter missingCounter;
+    /**
+     * The counters of the artifacts found by the pipeline, by ordinal.
+     */
+    private final StripedCounter[] artifactCounters = new StripedCounter[Artifact.values().length];
+
+    /**
+     * @param recording The .muse file the packets are written to.
+     */
+    public HeadbandConnection(Muse muse, HeadbandSession session, File recording) {
+        this(muse, session, recording, FrameRing.Overflow.DROP);
+    }
+
+    /**
+     * A connection without a headband, for {@link #replay}.  Only the annotations of the
+     * gaps and artifacts found in the replayed frames are written to {@code recording}.
+     * @param paced Whether the replay will be paced; a full ring then drops frames like
+     *              the ring of a headband, otherwise it holds the replay back.
+     */
+    public static HeadbandConnection forReplay(HeadbandSession session, File recording,
+                                               boolean paced) {
+        return new HeadbandConnection(null, session, recording,
+                paced ? FrameRing.Overflow.DROP : FrameRing.Overflow.BLOCK);
+    }
+
+    private HeadbandConnection(Muse muse, HeadbandSession session, File recording,
+                               FrameRing.Overflow overflow) {
+        this.muse = muse;
+        this.session = session;
+        this.ring = new FrameRing(RING_CAPACITY, overflow);
+        this.recorder = ring.addConsumer("recorder", true, FrameRing.WaitStrategy.BATCHING);
+        this.display = ring.addConsumer("display", false, FrameRing.WaitStrategy.BLOCKING);
+        this.writer = new BatchedMuseFileWriter(recording);
+        this.metrics = new MetricsRegistry("device", session.getDeviceId());
+        for (MuseDataPacketType type : PACKET_TYPES) {
+            packetCounters[type.ordinal()] =
+                    metrics.counter("packets." + type.name().toLowerCase(Locale.US));
+        }
+        this.callbackHistogram = metrics.histogram("callback_ns");
+        metrics.gauge("ring.dropped", ring::getDroppedCount);
+        metrics.gauge("recorder.backlog", recorder::getBacklog);
+        metrics.gauge("display.lost", display::getLostCount);
+        metrics.gauge("session.frames", session::getFrameCount);
+        writer.registerMetrics(metrics);
+        this.gapCounter = metrics.counter("gaps");
+        this.missingCounter = metrics.counter("samples.missing");
+        final TimestampCorrector timestamps = session.getPipeline().getTimestampCorrector();
+        if (timestamps != null) {
+            timestamps.setGapListener(this::onGap);
+        }
+        for (Artifact artifact : Artifact.values()) {
+            artifactCounters[artifact.ordinal()] =
+                    metrics.counter("artifacts." + artifact.name().toLowerCase(Locale.US));
+        }
+        session.getPipeline().getArtifactDetector().setEventListener(this::onArtifact);
+    }
+
+    /**
+     * Called on the recorder thread for every gap in a stream of the session.
+     */
+    private void onGap(FrameType type, long lastTimestamp, long timestamp, long missing) {
+        gapCounter.increment();
+        missingCounter.add(missing);
+        writer.addAnnotationString("Gap " + type + ": " + missing + " samples lost between "
+                + lastTimestamp + " and " + timestamp);
+    }
+
+    /**
+     * Called on the recorder thread for every artifact found in the EEG of the session.
+     */
+    private void onArtifact(Artifact artifact, long start, long end) {
+        artifactCounters[artifact.ordinal()].increment();
+        writer.addAnnotationString(artifact.getLabel() + " from " + start + " to " + end);
+    }
+
+    /**
+     * @return the headband, or null for a replay.
+     */
+    public Muse getMuse() {
+        return muse;
+    }
+
+    public HeadbandSession getSession() {
+        return session;
+    }
+
+    public BatchedMuseFileWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return the metrics of this headband, to add to a
+     *         {@link com.choosemuse.example.libmuse.metrics.MetricsReporter}.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the ring the frames of this headband pass through.
+     */
+    public FrameRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Also sends the frames of this headband live to {@code endpoints}, from a thread of
+     * its own that never holds back the recording.  Call before {@link #connect}.
+     */
+    public void stream(InetSocketAddress... endpoints) throws IOException {
+        streamer = new FrameStreamer(ring, "stream", session.getDeviceId().hashCode(), endpoints);
+        streamer.registerMetrics(metrics);
+    }
+
+    /**
+     * Registers this listener for the packets the app records and connects to the headband,
+     * streaming asynchronously.
+     */
+    public void connect(MuseConnectionListener connectionListener, MusePreset preset) {
+        // Unregister all prior listeners and register our data listener to receive the
+        // MuseDataPacketTypes we are interested in.  If you do not register a listener for a
+        // particular data type, you will not receive data packets of that type.
+        muse.unregisterAllListeners();
+        muse.registerConnectionListener(connectionListener);
+        for (MuseDataPacketType type : PACKET_TYPES) {
+            muse.registerDataListener(this, type);
+        }
+        muse.setPreset(preset);
+        startRecording();
+        muse.runAsynchronously();
+    }
+
+    private void startRecording() {
+        writer.start();
+        recorderThread = recorder.start((frame, endOfBatch) -> session.onFrame(frame));
+        if (streamer != null) {
+            streamer.start();
+        }
+    }
+
+    /**
+     * Plays {@code replay} into this connection, which was created {@link #forReplay}, on
+     * a thread of the replay playing the packet thread of libmuse.  Call
+     * {@link #onDisconnected()} once it has ended, as for a headband.
+     * @param listener Told on the replay thread when the replay has ended, or null.
+     */
+    public void replay(SessionReplay replay, SessionReplay.Listener listener) {
+        if (muse != null) {
+            throw new IllegalStateException("connected to a headband");
+        }
+        this.replay = replay;
+        startRecording();
+        replayThread = replay.start(this::receiveFrame, listener);
+    }
+
+    /**
+     * @return the replay playing into this connection, or null for a headband.
+     */
+    public SessionReplay getReplay() {
+        return replay;
+    }
+
+    /**
+     * Reads the frames received since the previous call, or since
+     * {@link #skipDisplay()}, for the screen.  Called on the UI thread.  Frames the UI did
+     * not read in time are skipped, they are never waited for.
+     * @return the number of frames handled.
+     */
+    public int pollDisplay(FrameRing.Handler handler) {
+        return display.poll(handler);
+    }
+
+    /**
+     * Skips the frames not read for the screen so far, when the headband is put on screen.
+     */
+    public void skipDisplay() {
+        display.skipToEnd();
+    }
+
+    /**
+     * Finishes the recording once the headband disconnected, or the replay ended or is to
+     * be stopped.  The session is kept for export and continues if the headband reconnects.
+     */
+    public void onDisconnected() {
+        if (muse != null) {
+            muse.unregisterAllListeners();
+        } else if (replay != null) {
+            replay.stop();
+            join(replayThread);
+        }
+        // Let the recorder finish the frames already in the ring.
+        recorder.halt();
+        join(recorderThread);
+        if (streamer != null) {
+            streamer.stop();
+        }
+        // Write the rows still waiting for PPG samples.
+        session.flush();
+        // Annotation strings can be added to the file to give context as to what is
+        // happening at that point in time.
+        writer.addAnnotationString("Disconnected");
+        writer.close();
+    }
+
+    private static void join(Thread thread) {
+        if (thread != null) {
+            try {
+                thread.join(RECORDER_JOIN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames dropped because the recorder was a whole ring behind.
+     */
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+    /**
+     * Called on the packet thread of this headband for every registered packet.  The packet
+     * is queued for the .muse file and its values are published to the ring; neither waits.
+     */
+    @Override
+    public void receiveMuseDataPacket(final MuseDataPacket p, final Muse muse) {
+        final long start = System.nanoTime();
+        final StripedCounter counter = packetCounters[p.packetType().ordinal()];
+        if (counter != null) {
+            counter.increment();
+        }
+        writer.addDataPacket(p);
+        final SampleFrame slot = ring.claim();
+        if (slot != null && MusePacketAdapter.fill(p, slot)) {
+            ring.publish();
+        }
+        callbackHistogram.recordSince(start);
+    }
+
+    /**
+     * Publishes a replayed frame to the ring, like {@link #receiveMuseDataPacket} publishes
+     * the values of a packet.  The frame is not written to the .muse file, it comes from a
+     * recording already.  Called on the replay thread.
+     */
+    public void receiveFrame(SampleFrame frame) {
+        final long start = System.nanoTime();
+        final SampleFrame slot = ring.claim();
+        if (slot != null) {
+            slot.copyFrom(frame);
+            ring.publish();
+        }
+        callbackHistogram.recordSince(start);
+    }
+
+    /**
+     * MuseArtifactPackets are generated by the headband when eye blinks are detected, the jaw
+     * is clenched and when the headband is put on or removed.  They are only recorded, to
+     * compare with the artifacts the pipeline finds.
+     */
+    @Override
+    public void receiveMuseArtifactPacket(final MuseArtifactPacket p, final Muse muse) {
+        packetCounters[MuseDataPacketType.ARTIFACTS.ordinal()].increment();
+        writer.addArtifactPacket(p);
+    }
+}
@@ -0,0 +1,76 @@
+package com.choosemuse.example.libmuse.session;
+
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The recording of one headband: its own pipeline and store, so several headbands record
+ * at once without sharing any mutable state.
+ * <p>
+ * {@link #onFrame} is always called from the same thread, the recorder of the headband's
+ * connection.  The frame count can be read from any thread.
+ */
+public final class HeadbandSession {
+
+    private final String deviceId;
+    private final IngestPipeline pipeline;
+
+    /**
+     * Only written by the recording thread, so a volatile is enough.
+     */
+    private volatile long frames;
+
+    public HeadbandSession(String deviceId, IngestPipeline pipeline) {
+        this.deviceId = deviceId;
+        this.pipeline = pipeline;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public IngestPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Records one frame.  The frame can be reused by the caller once this returns.
+     */
+    public void onFrame(SampleFrame frame) {
+        pipeline.onFrame(frame);
+        frames = frames + 1;
+    }
+
+    /**
+     * @return the number of frames recorded so far.
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Writes the rows still waiting for PPG samples, once the headband stopped streaming.
+     */
+    public void flush() {
+        pipeline.flush();
+    }
+
+    /**
+     * Writes the session as CSV to {@code out}, which is left open.  Only called once the
+     * headband stopped streaming.
+     */
+    public void export(OutputStream out) throws IOException {
+        new SessionCsvExporter().export(pipeline.getStore(), out);
+    }
+
+    /**
+     * Releases the store of the session, deleting its spill files.
+     */
+    public void close() {
+        pipeline.getStore().close();
+    }
+}
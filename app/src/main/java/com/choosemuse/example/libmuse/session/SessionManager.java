@@ -0,0 +1,85 @@
+package com.choosemuse.example.libmuse.session;
+
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The sessions of every headband connected at once, by device id.
+ * <p>
+ * Opening and closing sessions is synchronized, but the packets of a headband never go
+ * through the manager: the listener of each headband keeps its {@link HeadbandSession} and
+ * records into it directly, so there is no lock or lookup on the packet path and the
+ * headbands only compete for the CPU.
+ */
+public class SessionManager {
+
+    /**
+     * Creates the pipeline of a new session, for example with a store that spills to a
+     * directory of the device.
+     */
+    public interface PipelineFactory {
+        IngestPipeline create(String deviceId) throws IOException;
+    }
+
+    private final PipelineFactory factory;
+    private final ConcurrentHashMap<String, HeadbandSession> sessions = new ConcurrentHashMap<>();
+
+    public SessionManager(PipelineFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return the session of {@code deviceId}, created if the device has none yet.  A device
+     *         that reconnects continues its session.
+     */
+    public synchronized HeadbandSession open(String deviceId) throws IOException {
+        HeadbandSession session = sessions.get(deviceId);
+        if (session == null) {
+            session = new HeadbandSession(deviceId, factory.create(deviceId));
+            sessions.put(deviceId, session);
+        }
+        return session;
+    }
+
+    /**
+     * @return the session of {@code deviceId}, or null.
+     */
+    public HeadbandSession get(String deviceId) {
+        return sessions.get(deviceId);
+    }
+
+    /**
+     * @return the open sessions, in no particular order.
+     */
+    public List<HeadbandSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Closes and forgets the session of {@code deviceId}, if there is one.
+     */
+    public synchronized void close(String deviceId) {
+        final HeadbandSession session = sessions.remove(deviceId);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Closes every session.
+     */
+    public synchronized void closeAll() {
+        for (HeadbandSession session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+    }
+}
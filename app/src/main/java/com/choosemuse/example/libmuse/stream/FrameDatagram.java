@@ -0,0 +1,145 @@
+package com.choosemuse.example.libmuse.stream;
+
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The wire format of the frames sent by a {@link FrameStreamer}: a batch of frames per
+ * datagram, behind a header with a sequence number, so receivers can tell lost and
+ * reordered datagrams apart.
+ * <p>
+ * All values are big endian.  The header is 12 bytes:
+ * <pre>
+ *   0  short  MAGIC, "MF"
+ *   2  byte   VERSION
+ *   3  byte   the number of frames
+ *   4  int    the source, for example the hash of the device id
+ *   8  int    the sequence number of the datagram, from 0, per source
+ * </pre>
+ * followed by the frames, each 10 bytes and a float per value:
+ * <pre>
+ *   0  byte   the {@link FrameType#getWireCode() wire code} of the frame type
+ *   1  byte   the number of values
+ *   2  long   the timestamp in microseconds
+ *  10  float  the values
+ * </pre>
+ * The value count is sent so a receiver can skip frame types it does not know.  Floats
+ * keep the microvolts of EEG to well below the resolution of the headband.
+ */
+public final class FrameDatagram {
+
+    public static final short MAGIC = 0x4D46;
+    public static final byte VERSION = 1;
+    public static final int HEADER_BYTES = 12;
+
+    /**
+     * The largest datagram that is not fragmented on Ethernet and Wi-Fi: 1500 bytes less
+     * the IPv4 and UDP headers.
+     */
+    public static final int DEFAULT_MAX_BYTES = 1472;
+
+    private static final int COUNT_OFFSET = 3;
+    private static final int FRAME_HEADER_BYTES = 10;
+    private static final int MAX_FRAMES = 255;
+
+    private FrameDatagram() {
+    }
+
+    /**
+     * @return the bytes {@code type} takes in a datagram.
+     */
+    public static int frameBytes(FrameType type) {
+        return FRAME_HEADER_BYTES + 4 * type.getValueCount();
+    }
+
+    /**
+     * Clears {@code buffer} and writes the header of an empty datagram into it.
+     */
+    public static void begin(ByteBuffer buffer, int source, int sequence) {
+        buffer.clear();
+        buffer.putShort(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) 0);
+        buffer.putInt(source);
+        buffer.putInt(sequence);
+    }
+
+    /**
+     * Appends {@code frame} to the datagram begun in {@code buffer}.
+     * @return false, leaving the buffer alone, if the datagram is full.
+     */
+    public static boolean append(ByteBuffer buffer, SampleFrame frame) {
+        final FrameType type = frame.getType();
+        final int count = buffer.get(COUNT_OFFSET) & 0xFF;
+        if (count == MAX_FRAMES || buffer.remaining() < frameBytes(type)) {
+            return false;
+        }
+        buffer.put((byte) type.getWireCode());
+        buffer.put((byte) type.getValueCount());
+        buffer.putLong(frame.getTimestamp());
+        final double[] values = frame.values();
+        for (int i = 0; i < type.getValueCount(); i++) {
+            buffer.putFloat((float) values[i]);
+        }
+        buffer.put(COUNT_OFFSET, (byte) (count + 1));
+        return true;
+    }
+
+    /**
+     * @return the number of frames appended since {@link #begin}.
+     */
+    public static int getFrameCount(ByteBuffer buffer) {
+        return buffer.get(COUNT_OFFSET) & 0xFF;
+    }
+
+    /**
+     * Reads the header of a received datagram, leaving {@code buffer} at the first frame.
+     * @param buffer The datagram, from its position to its limit.
+     * @return the number of frames, or -1 if this is not a datagram of this version.
+     */
+    public static int readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_BYTES
+                || buffer.getShort(buffer.position()) != MAGIC
+                || buffer.get(buffer.position() + 2) != VERSION) {
+            return -1;
+        }
+        final int count = buffer.get(buffer.position() + COUNT_OFFSET) & 0xFF;
+        buffer.position(buffer.position() + HEADER_BYTES);
+        return count;
+    }
+
+    /**
+     * @return the source of a datagram which starts at {@code start}.
+     */
+    public static int getSource(ByteBuffer buffer, int start) {
+        return buffer.getInt(start + 4);
+    }
+
+    /**
+     * @return the sequence number of a datagram which starts at {@code start}.
+     */
+    public static int getSequence(ByteBuffer buffer, int start) {
+        return buffer.getInt(start + 8);
+    }
+
+    /**
+     * Reads the next frame of a datagram into {@code frame}.
+     * @return false if the frame is of an unknown type, which is skipped.
+     */
+    public static boolean readFrame(ByteBuffer buffer, SampleFrame frame) {
+        final FrameType type = FrameType.fromWireCode(buffer.get() & 0xFF);
+        final int values = buffer.get() & 0xFF;
+        final long timestamp = buffer.getLong();
+        if (type == null || type.getValueCount() != values) {
+            buffer.position(buffer.position() + 4 * values);
+            return false;
+        }
+        frame.set(type, timestamp);
+        for (int i = 0; i < values; i++) {
+            frame.setValue(i, buffer.getFloat());
+        }
+        return true;
+    }
+}
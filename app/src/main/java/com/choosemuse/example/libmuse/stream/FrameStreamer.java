@@ -0,0 +1,238 @@
+package com.choosemuse.example.libmuse.stream;
+
+import com.choosemuse.example.libmuse.metrics.MetricsRegistry;
+import com.choosemuse.example.libmuse.pipeline.FrameRing;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the frames of a {@link FrameRing} live to receivers on the local network, as UDP
+ * datagrams in the {@link FrameDatagram} format.
+ * <p>
+ * The streamer reads the ring through a non-gating consumer on a thread of its own, so
+ * neither a slow receiver nor a slow network ever holds back the libmuse callback or the
+ * recorder: frames the streamer falls a ring behind on are skipped and counted.  Frames
+ * are packed into one direct buffer until the next one does not fit in a datagram, or the
+ * oldest has waited {@code maxDelayMs}.  The datagram is then sent to every endpoint on a
+ * non-blocking channel; a datagram the socket has no room for is dropped and counted
+ * rather than waited for.  Receivers find dropped datagrams from the gaps in their
+ * sequence numbers.
+ * <p>
+ * Nothing is allocated per frame or per datagram.
+ */
+public final class FrameStreamer {
+
+    /**
+     * How long a frame waits for more to share its datagram: a few EEG samples.
+     */
+    public static final long DEFAULT_MAX_DELAY_MS = 20;
+
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final long STOP_JOIN_MS = 1000;
+
+    private final FrameRing.Consumer consumer;
+    private final InetSocketAddress[] endpoints;
+    private final DatagramChannel channel;
+    private final ByteBuffer buffer;
+    private final int source;
+    private final long maxDelayNanos;
+    private final Thread thread;
+
+    /**
+     * The frame types streamed, by ordinal.
+     */
+    private final boolean[] streamed = new boolean[FrameType.count()];
+    private final FrameRing.Handler handler = (frame, endOfBatch) -> add(frame);
+
+    private volatile boolean stopped;
+
+    /**
+     * Only used by the streamer thread.
+     */
+    private int sequence;
+    private long firstFrameNanos;
+
+    private volatile long frames;
+    private volatile long datagrams;
+    private volatile long dropped;
+    private volatile long errors;
+
+    /**
+     * Streams every frame type with the default datagram size and delay.
+     */
+    public FrameStreamer(FrameRing ring, String name, int source, InetSocketAddress... endpoints)
+            throws IOException {
+        this(ring, name, source, endpoints, FrameType.values(), FrameDatagram.DEFAULT_MAX_BYTES,
+                DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * Adds a consumer to {@code ring}, so create the streamer before the ring's producer
+     * starts.
+     * @param name      The name of the consumer and of the thread.
+     * @param source    Sent with every datagram, so a receiver can tell headbands apart,
+     *                  for example the hash of the device id.
+     * @param endpoints Where every datagram is sent.
+     * @param types     The frame types to send; the others are skipped.
+     * @param maxBytes  The largest datagram, at most the MTU of the network less the IP and
+     *                  UDP headers so datagrams are not fragmented.
+     * @param maxDelayMs How long a frame waits for more before its datagram is sent.
+     */
+    public FrameStreamer(FrameRing ring, String name, int source, InetSocketAddress[] endpoints,
+                         FrameType[] types, int maxBytes, long maxDelayMs) throws IOException {
+        int largest = 0;
+        for (FrameType type : FrameType.values()) {
+            largest = Math.max(largest, FrameDatagram.frameBytes(type));
+        }
+        if (maxBytes < FrameDatagram.HEADER_BYTES + largest) {
+            throw new IllegalArgumentException("datagrams of " + maxBytes + " bytes");
+        }
+        this.endpoints = endpoints.clone();
+        this.buffer = ByteBuffer.allocateDirect(maxBytes);
+        this.source = source;
+        this.maxDelayNanos = maxDelayMs * 1_000_000;
+        for (FrameType type : types) {
+            streamed[type.ordinal()] = true;
+        }
+        this.channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        this.consumer = ring.addConsumer(name, false, FrameRing.WaitStrategy.BATCHING);
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Adds the frame, datagram, drop and error counts of this streamer to {@code metrics}.
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("stream.frames", this::getFrameCount);
+        metrics.gauge("stream.datagrams", this::getDatagramCount);
+        metrics.gauge("stream.dropped", this::getDroppedCount);
+        metrics.gauge("stream.errors", this::getErrorCount);
+        metrics.gauge("stream.lost", consumer::getLostCount);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Sends the frames published so far, then stops the streamer thread and closes the
+     * channel.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        consumer.halt();
+        try {
+            thread.join(STOP_JOIN_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        FrameDatagram.begin(buffer, source, sequence);
+        try {
+            while (!stopped) {
+                final int polled = consumer.poll(handler);
+                if (FrameDatagram.getFrameCount(buffer) > 0
+                        && System.nanoTime() - firstFrameNanos >= maxDelayNanos) {
+                    send();
+                }
+                if (polled == 0) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+            consumer.poll(handler);
+            if (FrameDatagram.getFrameCount(buffer) > 0) {
+                send();
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to send.
+            }
+        }
+    }
+
+    private void add(SampleFrame frame) {
+        if (!streamed[frame.getType().ordinal()]) {
+            return;
+        }
+        if (FrameDatagram.getFrameCount(buffer) == 0) {
+            firstFrameNanos = System.nanoTime();
+        }
+        if (!FrameDatagram.append(buffer, frame)) {
+            send();
+            firstFrameNanos = System.nanoTime();
+            FrameDatagram.append(buffer, frame);
+        }
+        frames = frames + 1;
+    }
+
+    /**
+     * Sends the datagram in the buffer to every endpoint and begins the next one.
+     */
+    private void send() {
+        buffer.flip();
+        for (InetSocketAddress endpoint : endpoints) {
+            buffer.rewind();
+            try {
+                if (channel.send(buffer, endpoint) > 0) {
+                    datagrams = datagrams + 1;
+                } else {
+                    // The socket buffer is full; the receiver sees a gap in the sequence.
+                    dropped = dropped + 1;
+                }
+            } catch (IOException e) {
+                // For example no route while Wi-Fi reconnects; try again with the next one.
+                errors = errors + 1;
+            }
+        }
+        sequence++;
+        FrameDatagram.begin(buffer, source, sequence);
+    }
+
+    /**
+     * @return the number of frames packed into datagrams.
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return the number of datagrams sent, counting each endpoint.
+     */
+    public long getDatagramCount() {
+        return datagrams;
+    }
+
+    /**
+     * @return the number of datagrams not sent because the socket buffer was full.
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of datagrams that failed to send, for example without a network.
+     */
+    public long getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * @return the number of frames skipped because the streamer fell a ring behind.
+     */
+    public long getLostCount() {
+        return consumer.getLostCount();
+    }
+}
@@ -0,0 +1,67 @@
+package com.choosemuse.example.libmuse.ui;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Logs how many bytes the whole process allocates per second, from the runtime's own
+ * counter, to compare the allocation rate of the app before and after a change.
+ * <p>
+ * The rate covers every thread, so compare runs with the same headband data flowing.
+ */
+public final class AllocationProbe implements Runnable {
+
+    private static final String TAG = "AllocationProbe";
+    private static final String BYTES_ALLOCATED = "art.gc.bytes-allocated";
+
+    private final Handler handler;
+    private final long intervalMs;
+    private long lastBytes = -1;
+    private long lastTime;
+    private boolean running;
+
+    /**
+     * @param handler     The handler the probe runs on.
+     * @param intervalMs  The time between two log lines.
+     */
+    public AllocationProbe(Handler handler, long intervalMs) {
+        this.handler = handler;
+        this.intervalMs = intervalMs;
+    }
+
+    public void start() {
+        if (!running) {
+            running = true;
+            lastBytes = -1;
+            handler.post(this);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(this);
+    }
+
+    @Override
+    public void run() {
+        if (!running) {
+            return;
+        }
+        final String stat = Debug.getRuntimeStat(BYTES_ALLOCATED);
+        if (stat == null) {
+            Log.w(TAG, BYTES_ALLOCATED + " is not available on this runtime");
+            running = false;
+            return;
+        }
+        final long bytes = Long.parseLong(stat);
+        final long now = SystemClock.elapsedRealtime();
+        if (lastBytes >= 0 && now > lastTime) {
+            Log.i(TAG, ((bytes - lastBytes) * 1000 / (now - lastTime) / 1024) + " KB/s allocated");
+        }
+        lastBytes = bytes;
+        lastTime = now;
+        handler.postDelayed(this, intervalMs);
+    }
+}
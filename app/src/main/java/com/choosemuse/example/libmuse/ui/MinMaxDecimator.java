@@ -0,0 +1,173 @@
+package com.choosemuse.example.libmuse.ui;
+
+import java.util.Arrays;
+
+/**
+ * Reduces the samples of a {@link SampleRing} to one column per pixel for drawing: the
+ * minimum and maximum of each channel over the samples of the column.  Drawn as a vertical
+ * line per column, this shows every peak of the signal however many samples fall on a
+ * pixel, at a cost that only depends on the width.
+ * <p>
+ * The columns form a ring of their own, so {@link #consume} only processes the samples
+ * received since the previous call and the oldest column scrolls out as a new one starts.
+ * A new column starts from the last value of the previous one, which joins the lines of
+ * neighbouring columns into a continuous trace.  NaN values, sent by the headband for
+ * dropped samples, are left out.
+ * <p>
+ * Not thread safe; used from the thread that draws.
+ */
+public final class MinMaxDecimator {
+
+    private final int channels;
+    private final int columns;
+    private final int samplesPerColumn;
+    private final float[][] min;
+    private final float[][] max;
+    private final float[] last;
+
+    /**
+     * The column being filled, the number of columns holding data and the samples in the
+     * column being filled.
+     */
+    private int head;
+    private int filled;
+    private int inHead;
+
+    /**
+     * The next sample of the ring to process, or -1 before the first {@link #consume}.
+     */
+    private long position = -1;
+
+    public MinMaxDecimator(int channels, int columns, int samplesPerColumn) {
+        if (channels < 1 || columns < 1 || samplesPerColumn < 1) {
+            throw new IllegalArgumentException("channels " + channels + ", columns " + columns
+                    + ", samplesPerColumn " + samplesPerColumn);
+        }
+        this.channels = channels;
+        this.columns = columns;
+        this.samplesPerColumn = samplesPerColumn;
+        this.min = new float[channels][columns];
+        this.max = new float[channels][columns];
+        this.last = new float[channels];
+        Arrays.fill(last, Float.NaN);
+        this.head = columns - 1;
+        this.inHead = samplesPerColumn;
+    }
+
+    public int getColumnCount() {
+        return columns;
+    }
+
+    public int getSamplesPerColumn() {
+        return samplesPerColumn;
+    }
+
+    /**
+     * @return the number of columns holding data, at most {@link #getColumnCount()}.
+     */
+    public int getFilledColumns() {
+        return filled;
+    }
+
+    /**
+     * Adds the samples {@code ring} received since the previous call.  Samples that would
+     * scroll out of the columns right away are skipped, as are samples the reader fell too
+     * far behind to read safely.
+     * @return the number of samples added.
+     */
+    public int consume(SampleRing ring) {
+        final long written = ring.getWritten();
+        long from = Math.max(position, 0);
+        from = Math.max(from, written - (long) columns * samplesPerColumn);
+        from = Math.max(from, written - ring.getCapacity() / 2);
+        for (long sample = from; sample < written; sample++) {
+            if (inHead == samplesPerColumn) {
+                startColumn();
+            }
+            for (int c = 0; c < channels; c++) {
+                final float value = ring.get(c, sample);
+                if (value == value) {
+                    if (value < min[c][head]) {
+                        min[c][head] = value;
+                    }
+                    if (value > max[c][head]) {
+                        max[c][head] = value;
+                    }
+                    last[c] = value;
+                }
+            }
+            inHead++;
+        }
+        position = written;
+        return (int) Math.max(0, written - from);
+    }
+
+    private void startColumn() {
+        head = head + 1 == columns ? 0 : head + 1;
+        if (filled < columns) {
+            filled++;
+        }
+        inHead = 0;
+        for (int c = 0; c < channels; c++) {
+            final float value = last[c];
+            min[c][head] = value == value ? value : Float.POSITIVE_INFINITY;
+            max[c][head] = value == value ? value : Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Finds the smallest and largest value of {@code channel} over all columns.
+     * @param out   Receives the minimum and the maximum.
+     * @return false if the channel has no values yet.
+     */
+    public boolean range(int channel, float[] out) {
+        float low = Float.POSITIVE_INFINITY;
+        float high = Float.NEGATIVE_INFINITY;
+        final float[] channelMin = min[channel];
+        final float[] channelMax = max[channel];
+        int column = head;
+        for (int k = 0; k < filled; k++) {
+            low = Math.min(low, channelMin[column]);
+            high = Math.max(high, channelMax[column]);
+            column = column == 0 ? columns - 1 : column - 1;
+        }
+        out[0] = low;
+        out[1] = high;
+        return low <= high;
+    }
+
+    /**
+     * Writes the vertical line of every column of {@code channel} to {@code lines} as
+     * x0, y0, x1, y1 for {@code Canvas.drawLines}, the newest column at the right.  Values
+     * are scaled from {@code low..high} to {@code bottom..top}; a flat range is drawn in the
+     * middle.
+     * @param lines     At least 4 floats per column.
+     * @return the number of floats written.
+     */
+    public int fillLines(int channel, float[] lines, float right, float columnWidth,
+                         float top, float bottom, float low, float high) {
+        final float[] channelMin = min[channel];
+        final float[] channelMax = max[channel];
+        final float scale = high > low ? (bottom - top) / (high - low) : 0;
+        final float base = high > low ? bottom : (top + bottom) / 2;
+        final float origin = high > low ? low : 0;
+        int n = 0;
+        int column = head;
+        float x = right - columnWidth / 2;
+        for (int k = 0; k < filled; k++) {
+            final float columnMin = channelMin[column];
+            final float columnMax = channelMax[column];
+            if (columnMin <= columnMax) {
+                lines[n] = x;
+                lines[n + 1] = base - (columnMin - origin) * scale;
+                lines[n + 2] = x;
+                // Keep single sample columns visible.
+                lines[n + 3] = base - (columnMax - origin) * scale - (columnMin == columnMax ? 1 : 0);
+                n += 4;
+            }
+            column = column == 0 ? columns - 1 : column - 1;
+            x -= columnWidth;
+        }
+        return n;
+    }
+}
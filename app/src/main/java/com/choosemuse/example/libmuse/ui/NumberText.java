@@ -0,0 +1,60 @@
+package com.choosemuse.example.libmuse.ui;
+
+import com.choosemuse.example.libmuse.data.FixedPointFormat;
+
+/**
+ * The text of a number, formatted like {@code String.format("%6.2f", value)} into a reused
+ * char[] so a TextView can display it with {@code setText(char[], int, int)} without
+ * allocating.
+ * <p>
+ * A TextView keeps the array it was given, so use one instance per view and only change
+ * it right before passing it to the view again.  The decimal separator is always a point.
+ */
+public final class NumberText {
+
+    private final int width;
+    private final int decimals;
+    private final byte[] digits = new byte[FixedPointFormat.MAX_LENGTH];
+    private final char[] chars;
+    private int length = -1;
+
+    /**
+     * @param width     The minimum length; shorter numbers are padded with leading spaces.
+     * @param decimals  The number of decimals.
+     */
+    public NumberText(int width, int decimals) {
+        this.width = width;
+        this.decimals = decimals;
+        this.chars = new char[Math.max(width, FixedPointFormat.MAX_LENGTH)];
+    }
+
+    /**
+     * Formats {@code value}.
+     * @return false if the text is the same as before, so the view does not need updating.
+     */
+    public boolean set(double value) {
+        final int count = FixedPointFormat.formatDouble(value, decimals, digits, 0);
+        final int padding = Math.max(0, width - count);
+        final int newLength = padding + count;
+        boolean changed = newLength != length;
+        for (int i = 0; i < padding; i++) {
+            changed |= chars[i] != ' ';
+            chars[i] = ' ';
+        }
+        for (int i = 0; i < count; i++) {
+            final char c = (char) digits[i];
+            changed |= chars[padding + i] != c;
+            chars[padding + i] = c;
+        }
+        length = newLength;
+        return changed;
+    }
+
+    public char[] getChars() {
+        return chars;
+    }
+
+    public int length() {
+        return Math.max(length, 0);
+    }
+}
@@ -0,0 +1,66 @@
+package com.choosemuse.example.libmuse.ui;
+
+/**
+ * The latest samples of a few channels, for a display to read while they are recorded.
+ * <p>
+ * One thread adds samples and one other thread reads them.  Samples are stored as floats in
+ * preallocated arrays, one per channel, and published by a volatile sample count, so adding
+ * never allocates or locks.  The oldest samples are overwritten once the ring is full; a
+ * reader keeps clear of them by reading at most half the capacity behind
+ * {@link #getWritten()}.
+ */
+public final class SampleRing {
+
+    private final float[][] samples;
+    private final int mask;
+    private volatile long written;
+
+    /**
+     * @param channels      The number of values of each sample.
+     * @param minCapacity   The samples kept per channel, rounded up to a power of two.
+     */
+    public SampleRing(int channels, int minCapacity) {
+        if (channels < 1 || minCapacity < 1 || minCapacity > 1 << 30) {
+            throw new IllegalArgumentException("channels " + channels + ", capacity " + minCapacity);
+        }
+        final int capacity = Integer.highestOneBit(Math.max(2, minCapacity) * 2 - 1);
+        this.samples = new float[channels][capacity];
+        this.mask = capacity - 1;
+    }
+
+    public int getChannelCount() {
+        return samples.length;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds one sample made of the first {@link #getChannelCount()} values.  Only called from
+     * the writing thread.
+     */
+    public void add(double[] values) {
+        final long sample = written;
+        final int slot = (int) sample & mask;
+        for (int c = 0; c < samples.length; c++) {
+            samples[c][slot] = (float) values[c];
+        }
+        written = sample + 1;
+    }
+
+    /**
+     * @return the number of samples added so far; samples before it can be read.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @param sample    A sample number, less than {@link #getWritten()} and within the
+     *                  capacity of it.
+     */
+    public float get(int channel, long sample) {
+        return samples[channel][(int) sample & mask];
+    }
+}
@@ -0,0 +1,119 @@
+package com.choosemuse.example.libmuse.ui;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+
+/**
+ * A scrolling plot of the last few seconds of every channel of a {@link SampleRing}, one
+ * lane per channel, newest samples on the right.
+ * <p>
+ * {@link #update()} feeds the samples received since the previous frame through a
+ * {@link MinMaxDecimator} sized to the width of the view, so the work per frame is the new
+ * samples plus one line per pixel column and channel.  The decimator and the line array
+ * are only allocated when the size changes; drawing allocates nothing.
+ * <p>
+ * Each lane scales to the range of its visible samples unless {@link #setRange} fixes it.
+ */
+public class WaveformView extends View {
+
+    private static final int[] COLORS = {
+            0xFF1E88E5, 0xFF43A047, 0xFFE53935, 0xFF8E24AA, 0xFFFB8C00, 0xFF00ACC1,
+    };
+
+    private final SampleRing ring;
+    private final double sampleRateHz;
+    private final double seconds;
+    private final Paint[] paints;
+    private final float[] range = new float[2];
+
+    private MinMaxDecimator decimator;
+    private float[] lines;
+    private float low = Float.NaN;
+    private float high = Float.NaN;
+
+    /**
+     * @param ring          The samples to show; it must hold at least twice the window.
+     * @param sampleRateHz  The rate samples are added to the ring at.
+     * @param seconds       The time shown across the width of the view.
+     */
+    public WaveformView(Context context, SampleRing ring, double sampleRateHz, double seconds) {
+        super(context);
+        this.ring = ring;
+        this.sampleRateHz = sampleRateHz;
+        this.seconds = seconds;
+        this.paints = new Paint[ring.getChannelCount()];
+        final float strokeWidth = context.getResources().getDisplayMetrics().density;
+        for (int c = 0; c < paints.length; c++) {
+            paints[c] = new Paint();
+            paints[c].setColor(COLORS[c % COLORS.length]);
+            paints[c].setStrokeWidth(strokeWidth);
+        }
+        setBackgroundColor(Color.WHITE);
+    }
+
+    /**
+     * Scales every lane from {@code low} to {@code high} instead of to its visible samples.
+     * NaN restores the automatic range.
+     */
+    public void setRange(float low, float high) {
+        this.low = low;
+        this.high = high;
+        invalidate();
+    }
+
+    /**
+     * Takes the samples received since the previous call and redraws if there were any.
+     * Called on the UI thread, once per frame.
+     */
+    public void update() {
+        if (decimator != null && decimator.consume(ring) > 0) {
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        if (width <= 0) {
+            decimator = null;
+            return;
+        }
+        final int window = Math.max(1, (int) Math.ceil(sampleRateHz * seconds));
+        final int columns = Math.min(width, window);
+        decimator = new MinMaxDecimator(ring.getChannelCount(), columns,
+                (window + columns - 1) / columns);
+        lines = new float[columns * 4];
+        // Start with what the ring still holds rather than an empty plot.
+        decimator.consume(ring);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (decimator == null) {
+            return;
+        }
+        final int channels = ring.getChannelCount();
+        final float laneHeight = (float) getHeight() / channels;
+        final float inset = laneHeight / 10;
+        final float columnWidth = (float) getWidth() / decimator.getColumnCount();
+        for (int c = 0; c < channels; c++) {
+            float laneLow = low;
+            float laneHigh = high;
+            if (Float.isNaN(laneLow) || Float.isNaN(laneHigh)) {
+                if (!decimator.range(c, range)) {
+                    continue;
+                }
+                laneLow = range[0];
+                laneHigh = range[1];
+            }
+            final float top = c * laneHeight + inset;
+            final int count = decimator.fillLines(c, lines, getWidth(), columnWidth,
+                    top, top + laneHeight - 2 * inset, laneLow, laneHigh);
+            canvas.drawLines(lines, 0, count, paints[c]);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.data.DecimatedCsvExporter;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports a {@link SampleStore} as CSV into a local file that can be uploaded and
+ * resumed at any offset.  The CSV is streamed, optionally through gzip, so spooling
+ * uses constant memory.
+ */
+public final class CsvSpool {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CsvSpool() {
+    }
+
+    /**
+     * @param store     The session to export.
+     * @param file      The spool file; replaced if it exists.
+     * @param name      The name the upload should be stored under.  ".gz" is appended when
+     *                  compressing.
+     * @param gzip      Whether to compress the CSV.
+     */
+    public static FileUploadSource spool(SampleStore store, File file, String name, boolean gzip)
+            throws IOException {
+        return spool(store, file, name, gzip, null);
+    }
+
+    /**
+     * Like {@link #spool(SampleStore, File, String, boolean)}, at the lower rate of
+     * {@code decimated}.
+     * @param decimated A new exporter of {@code store}, or null for every row.
+     */
+    public static FileUploadSource spool(SampleStore store, File file, String name, boolean gzip,
+                                         DecimatedCsvExporter decimated) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (gzip) {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            } else {
+                out = new BufferedOutputStream(out, BUFFER_SIZE);
+            }
+            if (decimated != null) {
+                decimated.export(out);
+            } else {
+                new SessionCsvExporter().export(store, out);
+            }
+        } finally {
+            out.close();
+        }
+        return gzip
+                ? new FileUploadSource(file, name + ".gz", "application/gzip", "gzip")
+                : new FileUploadSource(file, name, "text/csv", null);
+    }
+}
@@ -0,0 +1,107 @@
+package com.choosemuse.example.libmuse.upload;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Uploads to Dropbox with upload sessions (upload_session/start, append_v2 and finish),
+ * so a large file is sent in chunks and an interrupted upload resumes at the offset
+ * Dropbox reports instead of starting over.
+ */
+public class DropboxUploadTarget implements ResumableUploadTarget {
+
+    private static final String BASE_URL = "https://content.dropboxapi.com/2/files/upload_session/";
+
+    private final String accessToken;
+    private final String folder;
+
+    /**
+     * @param accessToken   The OAuth token used for the requests.
+     * @param folder        The Dropbox folder to upload into, for example "" for the root.
+     */
+    public DropboxUploadTarget(String accessToken, String folder) {
+        this.accessToken = accessToken;
+        this.folder = folder;
+    }
+
+    @Override
+    public String begin(UploadSource source) throws IOException {
+        HttpURLConnection conn = open("start", "{\"close\": false}");
+        HttpTransport.send(conn, new byte[0], 0);
+        try {
+            return new JSONObject(HttpTransport.readResponse(conn)).getString("session_id");
+        } catch (JSONException e) {
+            throw new IOException("invalid upload_session/start response", e);
+        }
+    }
+
+    @Override
+    public long append(String session, long offset, byte[] chunk, int length) throws IOException {
+        HttpURLConnection conn = open("append_v2", "{\"cursor\": " + cursor(session, offset) + ", \"close\": false}");
+        try {
+            HttpTransport.send(conn, chunk, length);
+            HttpTransport.readResponse(conn);
+            return offset + length;
+        } catch (UploadHttpException e) {
+            long expected = parseCorrectOffset(e);
+            if (expected >= 0) {
+                throw new OffsetMismatchException(expected);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public long queryOffset(String session) {
+        // Dropbox reports the expected offset in the error of the next append instead.
+        return -1;
+    }
+
+    @Override
+    public String finish(String session, UploadSource source, long length) throws IOException {
+        String path = folder + "/" + source.getName();
+        HttpURLConnection conn = open("finish", "{\"cursor\": " + cursor(session, length)
+                + ", \"commit\": {\"path\": " + JSONObject.quote(path)
+                + ", \"mode\": \"overwrite\", \"autorename\": false, \"mute\": false}}");
+        HttpTransport.send(conn, new byte[0], 0);
+        return HttpTransport.readResponse(conn);
+    }
+
+    private HttpURLConnection open(String endpoint, String apiArg) throws IOException {
+        HttpURLConnection conn = HttpTransport.open(BASE_URL + endpoint, "POST");
+        conn.setRequestProperty("Authorization", "Bearer " + accessToken);
+        conn.setRequestProperty("Content-Type", "application/octet-stream");
+        conn.setRequestProperty("Dropbox-API-Arg", apiArg);
+        return conn;
+    }
+
+    private static String cursor(String session, long offset) {
+        return "{\"session_id\": " + JSONObject.quote(session) + ", \"offset\": " + offset + "}";
+    }
+
+    /**
+     * @return the offset from an incorrect_offset error, or -1 for any other error.
+     */
+    private static long parseCorrectOffset(UploadHttpException e) {
+        if (e.getResponseCode() != 409) {
+            return -1;
+        }
+        try {
+            JSONObject error = new JSONObject(e.getResponseBody()).optJSONObject("error");
+            if (error == null) {
+                return -1;
+            }
+            JSONObject lookup = error.optJSONObject("lookup_failed");
+            JSONObject cause = lookup != null ? lookup : error;
+            if ("incorrect_offset".equals(cause.optString(".tag"))) {
+                return cause.optLong("correct_offset", -1);
+            }
+        } catch (JSONException ignored) {
+            // Not a JSON error body.
+        }
+        return -1;
+    }
+}
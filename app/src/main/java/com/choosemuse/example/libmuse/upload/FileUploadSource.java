@@ -0,0 +1,60 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Uploads the contents of a file.
+ */
+public class FileUploadSource implements UploadSource {
+
+    private final File file;
+    private final String name;
+    private final String contentType;
+    private final String contentEncoding;
+
+    public FileUploadSource(File file, String name, String contentType, String contentEncoding) {
+        this.file = file;
+        this.name = name;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    @Override
+    public long length() {
+        return file.length();
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+}
@@ -0,0 +1,86 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * A minimal resumable upload protocol over plain HTTP, for our own collection servers
+ * and for local stand-in servers:
+ * <ul>
+ * <li>{@code POST {base}} with an {@code Upload-Name} header opens a session and returns its id.</li>
+ * <li>{@code PUT {base}/{id}} with an {@code Upload-Offset} header appends a chunk and returns
+ *     the acknowledged offset.  A 409 response carries the offset the server expects.</li>
+ * <li>{@code GET {base}/{id}} returns the acknowledged offset.</li>
+ * <li>{@code POST {base}/{id}/commit} completes the upload.</li>
+ * </ul>
+ */
+public class HttpSessionUploadTarget implements ResumableUploadTarget {
+
+    private final String baseUrl;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public HttpSessionUploadTarget(String baseUrl) {
+        this(baseUrl, HttpTransport.CONNECT_TIMEOUT_MS, HttpTransport.READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param readTimeoutMs How long to wait for each response; a request that times out
+     *                      is retried like a failed one.
+     */
+    public HttpSessionUploadTarget(String baseUrl, int connectTimeoutMs, int readTimeoutMs) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    @Override
+    public String begin(UploadSource source) throws IOException {
+        HttpURLConnection conn = open(baseUrl, "POST");
+        conn.setRequestProperty("Upload-Name", source.getName());
+        conn.setRequestProperty("Upload-Length", String.valueOf(source.length()));
+        conn.setRequestProperty("Upload-Content-Type", source.getContentType());
+        return HttpTransport.readResponse(conn).trim();
+    }
+
+    @Override
+    public long append(String session, long offset, byte[] chunk, int length) throws IOException {
+        HttpURLConnection conn = open(baseUrl + "/" + session, "PUT");
+        conn.setRequestProperty("Content-Type", "application/octet-stream");
+        conn.setRequestProperty("Upload-Offset", String.valueOf(offset));
+        try {
+            HttpTransport.send(conn, chunk, length);
+            return parseOffset(HttpTransport.readResponse(conn));
+        } catch (UploadHttpException e) {
+            if (e.getResponseCode() == 409) {
+                throw new OffsetMismatchException(parseOffset(e.getResponseBody()));
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public long queryOffset(String session) throws IOException {
+        return parseOffset(HttpTransport.readResponse(open(baseUrl + "/" + session, "GET")));
+    }
+
+    @Override
+    public String finish(String session, UploadSource source, long length) throws IOException {
+        HttpURLConnection conn = open(baseUrl + "/" + session + "/commit", "POST");
+        conn.setRequestProperty("Upload-Length", String.valueOf(length));
+        HttpTransport.send(conn, new byte[0], 0);
+        return HttpTransport.readResponse(conn);
+    }
+
+    private HttpURLConnection open(String url, String method) throws IOException {
+        return HttpTransport.open(url, method, connectTimeoutMs, readTimeoutMs);
+    }
+
+    private static long parseOffset(String body) throws IOException {
+        try {
+            return Long.parseLong(body.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid offset in response: " + body);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HttpURLConnection helpers shared by the upload targets.
+ */
+final class HttpTransport {
+
+    static final int CONNECT_TIMEOUT_MS = 15000;
+    static final int READ_TIMEOUT_MS = 60000;
+
+    private HttpTransport() {
+    }
+
+    static HttpURLConnection open(String url, String method) throws IOException {
+        return open(url, method, CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+    }
+
+    static HttpURLConnection open(String url, String method, int connectTimeoutMs,
+                                  int readTimeoutMs) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
+        conn.setUseCaches(false);
+        return conn;
+    }
+
+    /**
+     * Sends {@code length} bytes of {@code body} with a fixed length, so the connection
+     * does not buffer the body.
+     */
+    static void send(HttpURLConnection conn, byte[] body, int length) throws IOException {
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(length);
+        OutputStream os = conn.getOutputStream();
+        try {
+            os.write(body, 0, length);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Reads the response.
+     * @return the response body of a 2xx response.
+     * @throws UploadHttpException for any other status.
+     */
+    static String readResponse(HttpURLConnection conn) throws IOException {
+        try {
+            int code = conn.getResponseCode();
+            if (code >= 200 && code < 300) {
+                return readBody(conn.getInputStream());
+            }
+            throw new UploadHttpException(code, readBody(conn.getErrorStream()));
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    static String readBody(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try {
+            StringBuilder response = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                response.append(line);
+            }
+            return response.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
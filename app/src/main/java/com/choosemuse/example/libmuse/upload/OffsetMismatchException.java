@@ -0,0 +1,23 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.IOException;
+
+/**
+ * The server rejected a chunk because it expected a different offset, typically because
+ * an earlier chunk was received although its response was lost.
+ */
+public class OffsetMismatchException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long expectedOffset;
+
+    public OffsetMismatchException(long expectedOffset) {
+        super("server expects offset " + expectedOffset);
+        this.expectedOffset = expectedOffset;
+    }
+
+    public long getExpectedOffset() {
+        return expectedOffset;
+    }
+}
@@ -0,0 +1,23 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.IOException;
+
+/**
+ * A target without an upload-session protocol, which receives the whole body in one
+ * request.
+ */
+public interface OneShotUploadTarget extends UploadTarget {
+
+    /**
+     * Sends the whole source in a single request.
+     * @return the server response.
+     */
+    String post(UploadSource source, ProgressListener listener) throws IOException;
+
+    /**
+     * Receives the number of bytes written by {@link #post}.
+     */
+    interface ProgressListener {
+        void onProgress(long bytesSent);
+    }
+}
@@ -0,0 +1,35 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.IOException;
+
+/**
+ * A target with an upload-session protocol: {@link #begin} opens a session,
+ * {@link #append} sends the body chunk by chunk and {@link #finish} commits it.
+ */
+public interface ResumableUploadTarget extends UploadTarget {
+
+    /**
+     * Opens an upload session.
+     * @return the session id.
+     */
+    String begin(UploadSource source) throws IOException;
+
+    /**
+     * Sends {@code length} bytes of {@code chunk} at {@code offset}.
+     * @return the offset acknowledged by the server after this chunk.
+     * @throws OffsetMismatchException if the server expected a different offset.
+     */
+    long append(String session, long offset, byte[] chunk, int length) throws IOException;
+
+    /**
+     * Asks the server how many bytes of the session it has.
+     * @return the acknowledged offset, or -1 if the target cannot tell.
+     */
+    long queryOffset(String session) throws IOException;
+
+    /**
+     * Commits the session once all {@code length} bytes have been appended.
+     * @return the server response.
+     */
+    String finish(String session, UploadSource source, long length) throws IOException;
+}
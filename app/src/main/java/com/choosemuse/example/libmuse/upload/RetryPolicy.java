@@ -0,0 +1,47 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter between upload attempts.
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(6, 1000, 60000);
+
+    private final int maxAttempts;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts       The number of attempts before the upload fails, including the first.
+     * @param initialDelayMs    The delay before the first retry.
+     * @param maxDelayMs        The upper bound for the delay between attempts.
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMs, long maxDelayMs) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param failures  The number of attempts that failed so far (1 after the first failure).
+     * @return how long to wait before the next attempt.  The delay doubles with every failure
+     *         and is randomized between half and all of that value so clients do not retry in
+     *         lockstep.
+     */
+    public long getDelayMs(int failures) {
+        int shift = Math.min(Math.max(failures - 1, 0), 30);
+        long delay = Math.min(maxDelayMs, initialDelayMs << shift);
+        double jitter;
+        synchronized (random) {
+            jitter = 0.5 + random.nextDouble() * 0.5;
+        }
+        return (long) (delay * jitter);
+    }
+}
@@ -0,0 +1,374 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.data.CsvStreamWriter;
+import com.choosemuse.example.libmuse.data.CsvUploadCallback;
+import com.choosemuse.example.libmuse.data.DecimatedCsvExporter;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.metrics.LatencyHistogram;
+import com.choosemuse.example.libmuse.metrics.MetricsRegistry;
+import com.choosemuse.example.libmuse.metrics.StripedCounter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads a session while it is being recorded, so sending it at the end only takes the
+ * rows of the last few seconds however long the session ran.
+ * <p>
+ * The CSV of the session goes to one upload session on a {@link ResumableUploadTarget},
+ * opened with the first chunk.  Every interval, or as soon as the chunk size in rows has
+ * been recorded, the rows added since the previous chunk are encoded and appended.  The
+ * upload keeps a watermark of what the server acknowledged, a row and the byte offset the
+ * CSV reached with it: rows below the watermark are never encoded again, and a chunk the
+ * server only took part of is continued from the offset it reports, not sent again.  A
+ * failed chunk is kept and tried again at the next interval.
+ * <p>
+ * Compressed uploads encode every chunk as a gzip member of its own.  Concatenated
+ * members are a valid gzip file, which decompresses to the CSV of the whole session.
+ * A session exported at a lower rate goes through one {@link DecimatedCsvExporter}, whose
+ * filters carry over from chunk to chunk; the rows its filters still hold go out with the
+ * last chunk.
+ * <p>
+ * {@link #finish} appends the rows left and commits the upload.  The upload runs on a
+ * thread of its own; results are delivered on the callback executor.  Nothing retries a
+ * finish that failed: the upload is stopped, and the caller has to send the session as a
+ * whole, for example through an {@link UploadQueue}.
+ */
+public final class RollingUpload {
+
+    public static final long DEFAULT_INTERVAL_MS = 10000;
+
+    /**
+     * The most rows encoded into one chunk: 32 s of EEG at 256 Hz.
+     */
+    public static final int DEFAULT_CHUNK_ROWS = 2 * SampleStore.CHUNK_SIZE;
+
+    /**
+     * How often the number of new rows is checked, unless the interval is shorter.
+     */
+    private static final long CHECK_MS = 1000;
+
+    private final SampleStore store;
+    private final ResumableUploadTarget target;
+    private final Descriptor descriptor;
+    private final boolean gzip;
+    private final long intervalNanos;
+    private final int chunkRows;
+    private final Executor callbackExecutor;
+    private final ScheduledExecutorService executor;
+    private final SessionCsvExporter exporter = new SessionCsvExporter();
+    private final DecimatedCsvExporter decimated;
+
+    private final MetricsRegistry metrics;
+    private final StripedCounter chunks;
+    private final StripedCounter rows;
+    private final StripedCounter bytes;
+    private final StripedCounter failures;
+    private final LatencyHistogram encode;
+    private final LatencyHistogram append;
+
+    /**
+     * Upload thread state.  The watermark: the rows below {@code acknowledgedRows} are
+     * on the server, as its first {@code acknowledgedBytes} bytes.
+     */
+    private String session;
+    private int acknowledgedRows;
+    private long acknowledgedBytes;
+    private long lastChunkNanos;
+
+    /**
+     * The chunk being sent: its bytes, the row it ends at and how much of it the server
+     * has.  Kept until the server has all of it.
+     */
+    private final Chunk chunk = new Chunk();
+    private int chunkEndRow;
+    private int chunkSent;
+    private boolean chunkPending;
+    private boolean tailEncoded;
+
+    private volatile int acknowledgedRowsVolatile;
+    private volatile boolean active = true;
+
+    /**
+     * @param store The session, recorded by another thread.
+     * @param name  The name the upload is stored under; ".gz" is appended when compressing.
+     */
+    public RollingUpload(SampleStore store, ResumableUploadTarget target, String name, boolean gzip,
+                         Executor callbackExecutor) {
+        this(store, target, name, gzip, null, DEFAULT_INTERVAL_MS, DEFAULT_CHUNK_ROWS,
+                callbackExecutor);
+    }
+
+    /**
+     * @param decimated     A new exporter of {@code store} at a lower rate, or null for
+     *                      every row.
+     * @param intervalMs    How long new rows wait for a chunk at most.
+     * @param chunkRows     The number of new rows that are sent without waiting for the
+     *                      interval, and the most rows in a chunk.
+     */
+    public RollingUpload(SampleStore store, ResumableUploadTarget target, String name, boolean gzip,
+                         DecimatedCsvExporter decimated, long intervalMs, int chunkRows,
+                         Executor callbackExecutor) {
+        this.store = store;
+        this.target = target;
+        this.descriptor = gzip
+                ? new Descriptor(name + ".gz", "application/gzip", "gzip")
+                : new Descriptor(name, "text/csv", null);
+        this.gzip = gzip;
+        this.decimated = decimated;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.chunkRows = chunkRows;
+        this.callbackExecutor = callbackExecutor;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "rolling-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.metrics = new MetricsRegistry("component", "rolling_upload", "upload", descriptor.name);
+        this.chunks = metrics.counter("rolling.chunks");
+        this.rows = metrics.counter("rolling.rows");
+        this.bytes = metrics.counter("rolling.bytes");
+        this.failures = metrics.counter("rolling.failures");
+        this.encode = metrics.histogram("rolling.encode");
+        this.append = metrics.histogram("rolling.append");
+        metrics.gauge("rolling.lag_rows", () -> store.size() - acknowledgedRowsVolatile);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the name the upload is stored under.
+     */
+    public String getName() {
+        return descriptor.name;
+    }
+
+    /**
+     * @return the number of rows the server acknowledged.
+     */
+    public int getAcknowledgedRows() {
+        return acknowledgedRowsVolatile;
+    }
+
+    /**
+     * @return false once the upload was committed, stopped, failed to finish, or failed in
+     *         a way a retry cannot repair; the session then has to be sent as a whole.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    public void start() {
+        lastChunkNanos = System.nanoTime();
+        final long checkMs = Math.max(1, Math.min(CHECK_MS, intervalNanos / 1000000));
+        executor.scheduleWithFixedDelay(this::check, checkMs, checkMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends the rows recorded since the last chunk and commits the upload.
+     * @param callback  Receives the response of the commit, or the error.  After an error
+     *                  the upload is stopped and the session has to be sent as a whole.
+     */
+    public void finish(final CsvUploadCallback callback) {
+        execute(() -> {
+            try {
+                final int end = store.size();
+                // An empty session still gets its header.
+                while (chunkPending || acknowledgedRows < end || acknowledgedBytes == 0
+                        || decimated != null && !tailEncoded) {
+                    sendChunk(end, true);
+                }
+                final String response = target.finish(openSession(), descriptor, acknowledgedBytes);
+                stop();
+                callbackExecutor.execute(() -> callback.onUploadSuccess(response));
+            } catch (final IOException e) {
+                failures.increment();
+                stop();
+                callbackExecutor.execute(() -> callback.onUploadError(e));
+            }
+        }, callback);
+    }
+
+    /**
+     * Stops sending chunks without committing the upload.
+     */
+    public void stop() {
+        active = false;
+        executor.shutdown();
+    }
+
+    private void check() {
+        final int available = store.size() - acknowledgedRows;
+        final boolean due = System.nanoTime() - lastChunkNanos >= intervalNanos;
+        if (!chunkPending && (available == 0 || available < chunkRows && !due)) {
+            return;
+        }
+        try {
+            // Catch up in full chunks after an outage.
+            do {
+                sendChunk(store.size(), false);
+            } while (store.size() - acknowledgedRows >= chunkRows);
+        } catch (IOException e) {
+            // The chunk is kept and sent at the next check.
+            failures.increment();
+        }
+    }
+
+    /**
+     * Sends the chunk pending, or else the next chunk of rows before {@code end}, and moves
+     * the watermark once the server has it all.
+     * @param last  Whether {@code end} is the end of the session.
+     */
+    private void sendChunk(int end, boolean last) throws IOException {
+        final String id = openSession();
+        if (!chunkPending) {
+            final int chunkEnd = Math.min(end, acknowledgedRows + chunkRows);
+            encodeChunk(chunkEnd, last && chunkEnd == end);
+        }
+        final long chunkStart = acknowledgedBytes;
+        while (chunkSent < chunk.size()) {
+            final byte[] remaining = chunkSent == 0 ? chunk.array()
+                    : Arrays.copyOfRange(chunk.array(), chunkSent, chunk.size());
+            final long start = System.nanoTime();
+            long offset;
+            try {
+                offset = target.append(id, chunkStart + chunkSent, remaining,
+                        chunk.size() - chunkSent);
+            } catch (OffsetMismatchException e) {
+                offset = e.getExpectedOffset();
+            }
+            append.recordSince(start);
+            if (offset < chunkStart || offset > chunkStart + chunk.size()) {
+                // The server lost bytes below the watermark, which are not kept.
+                stop();
+                throw new IOException("the server expects offset " + offset + ", has "
+                        + acknowledgedBytes);
+            }
+            bytes.add(offset - chunkStart - chunkSent);
+            chunkSent = (int) (offset - chunkStart);
+        }
+        rows.add(chunkEndRow - acknowledgedRows);
+        chunks.increment();
+        acknowledgedBytes = chunkStart + chunk.size();
+        acknowledgedRows = chunkEndRow;
+        acknowledgedRowsVolatile = chunkEndRow;
+        descriptor.length = acknowledgedBytes;
+        chunkPending = false;
+        lastChunkNanos = System.nanoTime();
+    }
+
+    private String openSession() throws IOException {
+        if (session == null) {
+            session = target.begin(descriptor);
+        }
+        return session;
+    }
+
+    /**
+     * Encodes the rows from the watermark to {@code end}, with the header if they are the
+     * first.
+     * @param last  Whether to add the rows the decimating filters still hold.
+     */
+    private void encodeChunk(int end, boolean last) throws IOException {
+        final long start = System.nanoTime();
+        chunk.reset();
+        final GZIPOutputStream member = gzip ? new GZIPOutputStream(chunk) : null;
+        final CsvStreamWriter writer = new CsvStreamWriter(member != null ? member : chunk);
+        if (acknowledgedBytes == 0) {
+            writer.writeLine(store.getHeader());
+        }
+        if (decimated != null) {
+            decimated.exportRows(writer, acknowledgedRows, end);
+            if (last) {
+                decimated.finish(writer);
+                tailEncoded = true;
+            }
+        } else {
+            exporter.exportRows(store, writer, acknowledgedRows, end);
+        }
+        writer.flush();
+        if (member != null) {
+            member.close();
+        }
+        chunkEndRow = end;
+        chunkSent = 0;
+        chunkPending = true;
+        encode.recordSince(start);
+    }
+
+    private void execute(Runnable task, CsvUploadCallback callback) {
+        try {
+            executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            callbackExecutor.execute(() -> callback.onUploadError(
+                    new InterruptedIOException("the rolling upload is stopped")));
+        }
+    }
+
+    /**
+     * A reusable buffer whose bytes are sent without copying.
+     */
+    private static final class Chunk extends ByteArrayOutputStream {
+        Chunk() {
+            super(64 * 1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Names the upload for the target.  The bytes themselves are not kept once
+     * acknowledged, so it cannot be reopened.
+     */
+    private static final class Descriptor implements UploadSource {
+        final String name;
+        final String contentType;
+        final String contentEncoding;
+        volatile long length;
+
+        Descriptor(String name, String contentType, String contentEncoding) {
+            this.name = name;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public InputStream open(long offset) throws IOException {
+            throw new IOException("the bytes of a rolling upload are not kept");
+        }
+    }
+}
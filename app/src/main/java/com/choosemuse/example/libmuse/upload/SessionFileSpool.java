@@ -0,0 +1,38 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionFileExporter;
+import com.choosemuse.example.libmuse.data.SessionFileFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Exports a {@link SampleStore} as a binary session file into a local file that can be
+ * uploaded and resumed at any offset.  The file is already compact, so it is not gzipped.
+ */
+public final class SessionFileSpool {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SessionFileSpool() {
+    }
+
+    /**
+     * @param store     The session to export.
+     * @param file      The spool file; replaced if it exists.
+     * @param name      The name the upload should be stored under.
+     */
+    public static FileUploadSource spool(SampleStore store, File file, String name) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        try {
+            new SessionFileExporter().export(store, out);
+        } finally {
+            out.close();
+        }
+        return new FileUploadSource(file, name, SessionFileFormat.CONTENT_TYPE, null);
+    }
+}
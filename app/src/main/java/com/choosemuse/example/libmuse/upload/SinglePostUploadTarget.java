@@ -0,0 +1,64 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Sends the whole upload in one chunked POST request.  Used for endpoints without an
+ * upload-session protocol, like the Google Apps Script endpoint.
+ */
+public class SinglePostUploadTarget implements OneShotUploadTarget {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final String url;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    public SinglePostUploadTarget(String url) {
+        this(url, HttpTransport.CONNECT_TIMEOUT_MS, HttpTransport.READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param readTimeoutMs How long to wait for the response once the body is sent; a
+     *                      request that times out is retried like a failed one.
+     */
+    public SinglePostUploadTarget(String url, int connectTimeoutMs, int readTimeoutMs) {
+        this.url = url;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    @Override
+    public String post(UploadSource source, ProgressListener listener) throws IOException {
+        HttpURLConnection conn = HttpTransport.open(url, "POST", connectTimeoutMs, readTimeoutMs);
+        conn.setDoOutput(true);
+        conn.setChunkedStreamingMode(CHUNK_SIZE);
+        conn.setRequestProperty("Content-Type", source.getContentType());
+        if (source.getContentEncoding() != null) {
+            conn.setRequestProperty("Content-Encoding", source.getContentEncoding());
+        }
+
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long sent = 0;
+        InputStream in = source.open(0);
+        try {
+            OutputStream os = conn.getOutputStream();
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    os.write(buffer, 0, n);
+                    sent += n;
+                    listener.onProgress(sent);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            in.close();
+        }
+        return HttpTransport.readResponse(conn);
+    }
+}
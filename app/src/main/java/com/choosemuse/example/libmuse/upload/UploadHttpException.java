@@ -0,0 +1,35 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.IOException;
+
+/**
+ * The server answered an upload request with an error status.
+ */
+public class UploadHttpException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int responseCode;
+    private final String responseBody;
+
+    public UploadHttpException(int responseCode, String responseBody) {
+        super("HTTP " + responseCode + ": " + responseBody);
+        this.responseCode = responseCode;
+        this.responseBody = responseBody;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public String getResponseBody() {
+        return responseBody;
+    }
+
+    /**
+     * @return true if trying again later may succeed: server errors, throttling and timeouts.
+     */
+    public boolean isRetryable() {
+        return responseCode >= 500 || responseCode == 429 || responseCode == 408;
+    }
+}
@@ -0,0 +1,174 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.data.CsvUploadCallback;
+import com.choosemuse.example.libmuse.data.DecimatedCsvExporter;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs uploads on a small bounded pool of threads shared by the whole app.
+ * <p>
+ * Each upload is sent in chunks, resumed from the last acknowledged offset and retried
+ * with exponential backoff according to its {@link RetryPolicy}.  Callbacks are delivered
+ * on the callback executor given to the constructor, typically the main thread.
+ * <p>
+ * The number of uploads, their attempts, bytes and durations and the depth of the queue
+ * are kept in {@link #getMetrics()}.
+ */
+public class UploadManager {
+
+    private final ThreadPoolExecutor executor;
+    private final Executor callbackExecutor;
+    private final MetricsRegistry metrics = new MetricsRegistry("component", "upload");
+    private final UploadMetrics uploadMetrics = new UploadMetrics(metrics);
+
+    /**
+     * @param threads           The number of uploads that run at the same time.
+     * @param queueCapacity     The number of uploads that can wait for a thread.  Further
+     *                          uploads are rejected.
+     * @param callbackExecutor  Where callbacks are run.
+     */
+    public UploadManager(int threads, int queueCapacity, Executor callbackExecutor) {
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                r -> new Thread(r, "upload-" + count.incrementAndGet()));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.callbackExecutor = callbackExecutor;
+        metrics.gauge("upload.queue_depth", () -> executor.getQueue().size());
+        metrics.gauge("upload.active", executor::getActiveCount);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Uploads {@code source} to {@code target} with the default retry policy.
+     * @param callback  Receives the result; also receives progress if it is an
+     *                  {@link UploadProgressCallback}.
+     * @return the pending upload, which can be cancelled, or null if the upload was rejected.
+     */
+    public Future<?> upload(UploadSource source, UploadTarget target, CsvUploadCallback callback) {
+        return upload(source, target, RetryPolicy.DEFAULT, callback);
+    }
+
+    public Future<?> upload(UploadSource source, UploadTarget target, RetryPolicy retryPolicy,
+                            CsvUploadCallback callback) {
+        return submit(new UploadTask(source, target, retryPolicy, callbackExecutor, callback,
+                uploadMetrics), callback);
+    }
+
+    /**
+     * Exports the session as CSV into {@code spoolFile} and uploads it.  Both steps run on
+     * an upload thread; the spool file is deleted once the upload has finished.
+     * @param name  The name the upload is stored under; ".gz" is appended when compressing.
+     */
+    public Future<?> uploadCsv(SampleStore store, File spoolFile, String name, boolean gzip,
+                               UploadTarget target, CsvUploadCallback callback) {
+        return uploadCsv(store, spoolFile, name, gzip, target, RetryPolicy.DEFAULT, callback);
+    }
+
+    public Future<?> uploadCsv(final SampleStore store, final File spoolFile, final String name,
+                               final boolean gzip, final UploadTarget target,
+                               final RetryPolicy retryPolicy, final CsvUploadCallback callback) {
+        return uploadCsv(store, spoolFile, name, gzip, null, target, retryPolicy, callback);
+    }
+
+    /**
+     * Like {@link #uploadCsv(SampleStore, File, String, boolean, UploadTarget, CsvUploadCallback)},
+     * at the lower rate of {@code decimated}, or the full rate when it is null.
+     */
+    public Future<?> uploadCsv(SampleStore store, File spoolFile, String name, boolean gzip,
+                               DecimatedCsvExporter decimated, UploadTarget target,
+                               CsvUploadCallback callback) {
+        return uploadCsv(store, spoolFile, name, gzip, decimated, target, RetryPolicy.DEFAULT,
+                callback);
+    }
+
+    public Future<?> uploadCsv(final SampleStore store, final File spoolFile, final String name,
+                               final boolean gzip, final DecimatedCsvExporter decimated,
+                               final UploadTarget target, final RetryPolicy retryPolicy,
+                               final CsvUploadCallback callback) {
+        return spoolAndUpload(() -> CsvSpool.spool(store, spoolFile, name, gzip, decimated),
+                spoolFile, target, retryPolicy, callback);
+    }
+
+    /**
+     * Exports the session as a binary session file into {@code spoolFile} and uploads it.
+     * Both steps run on an upload thread; the spool file is deleted once the upload has
+     * finished.
+     * @param name  The name the upload is stored under.
+     */
+    public Future<?> uploadSessionFile(SampleStore store, File spoolFile, String name,
+                                       UploadTarget target, CsvUploadCallback callback) {
+        return uploadSessionFile(store, spoolFile, name, target, RetryPolicy.DEFAULT, callback);
+    }
+
+    public Future<?> uploadSessionFile(final SampleStore store, final File spoolFile, final String name,
+                                       final UploadTarget target, final RetryPolicy retryPolicy,
+                                       final CsvUploadCallback callback) {
+        return spoolAndUpload(() -> SessionFileSpool.spool(store, spoolFile, name), spoolFile,
+                target, retryPolicy, callback);
+    }
+
+    /**
+     * Creates the file to upload.
+     */
+    private interface Spooler {
+        FileUploadSource spool() throws IOException;
+    }
+
+    private Future<?> spoolAndUpload(final Spooler spooler, final File spoolFile,
+                                     final UploadTarget target, final RetryPolicy retryPolicy,
+                                     final CsvUploadCallback callback) {
+        return submit(() -> {
+            FileUploadSource source;
+            final long start = System.nanoTime();
+            try {
+                source = spooler.spool();
+                uploadMetrics.spool.recordSince(start);
+            } catch (IOException e) {
+                spoolFile.delete();
+                uploadMetrics.failed.increment();
+                callbackExecutor.execute(() -> callback.onUploadError(e));
+                return;
+            }
+            try {
+                new UploadTask(source, target, retryPolicy, callbackExecutor, callback, uploadMetrics)
+                        .run();
+            } finally {
+                spoolFile.delete();
+            }
+        }, callback);
+    }
+
+    private Future<?> submit(Runnable task, final CsvUploadCallback callback) {
+        try {
+            final Future<?> future = executor.submit(task);
+            uploadMetrics.submitted.increment();
+            return future;
+        } catch (final RejectedExecutionException e) {
+            uploadMetrics.rejected.increment();
+            callbackExecutor.execute(() -> callback.onUploadError(e));
+            return null;
+        }
+    }
+
+    /**
+     * Stops accepting uploads and cancels the running ones.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,35 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.metrics.LatencyHistogram;
+import com.choosemuse.example.libmuse.metrics.MetricsRegistry;
+import com.choosemuse.example.libmuse.metrics.StripedCounter;
+
+/**
+ * The metrics of an {@link UploadManager}, looked up once and shared by its tasks.
+ */
+final class UploadMetrics {
+
+    final StripedCounter submitted;
+    final StripedCounter rejected;
+    final StripedCounter succeeded;
+    final StripedCounter failed;
+    final StripedCounter attempts;
+    final StripedCounter retries;
+    final StripedCounter bytes;
+    final LatencyHistogram spool;
+    final LatencyHistogram chunk;
+    final LatencyHistogram duration;
+
+    UploadMetrics(MetricsRegistry registry) {
+        submitted = registry.counter("upload.submitted");
+        rejected = registry.counter("upload.rejected");
+        succeeded = registry.counter("upload.succeeded");
+        failed = registry.counter("upload.failed");
+        attempts = registry.counter("upload.attempts");
+        retries = registry.counter("upload.retries");
+        bytes = registry.counter("upload.bytes");
+        spool = registry.histogram("upload.spool_ns");
+        chunk = registry.histogram("upload.chunk_ns");
+        duration = registry.histogram("upload.duration_ns");
+    }
+}
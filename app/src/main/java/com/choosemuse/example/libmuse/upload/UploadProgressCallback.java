@@ -0,0 +1,14 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.data.CsvUploadCallback;
+
+/**
+ * A {@link CsvUploadCallback} that is also told how far along the upload is.
+ */
+public interface UploadProgressCallback extends CsvUploadCallback {
+    /**
+     * @param bytesSent     The number of bytes acknowledged by the server so far.
+     * @param totalBytes    The size of the upload, or -1 if unknown.
+     */
+    void onUploadProgress(long bytesSent, long totalBytes);
+}
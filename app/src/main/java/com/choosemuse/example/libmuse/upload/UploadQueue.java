@@ -0,0 +1,659 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.data.CsvUploadCallback;
+import com.choosemuse.example.libmuse.data.DecimatedCsvExporter;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.metrics.MetricsRegistry;
+import com.choosemuse.example.libmuse.metrics.StripedCounter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Delivers uploads that must not be lost, such as the sessions sent while the phone is
+ * offline, from a directory of its own.
+ * <p>
+ * Every item is a file moved into the directory and recorded in a write-ahead log (see
+ * {@link UploadQueueLog}) before it counts as queued, so items survive the app being
+ * killed and are delivered after the next start.  Items are deduplicated by the SHA-256 of
+ * their content: an item that is pending, or was delivered recently, is not queued again.
+ * <p>
+ * Deliveries run one at a time on the queue thread.  Items smaller than the coalesce size
+ * are sent together as one zip of up to the batch size, so a backlog of small segments
+ * takes a few requests instead of one each.  A delivery that fails is tried again after a
+ * backoff that grows to five minutes, or as soon as {@link #onNetworkAvailable()} is
+ * called, for example by a connectivity callback.  Items only leave the queue once
+ * delivered, or once given up on: when the target rejects an item in a way a retry cannot
+ * repair, such as a 400, 401 or 413, or its file can no longer be read, the file is moved
+ * to {@link #getFailedDir()}, the item is recorded as failed and the queue goes on with the
+ * items behind it.  A batch rejected that way is not given up on as a whole: its items are
+ * sent one at a time, so only the ones rejected on their own fail.
+ * <p>
+ * Results and the size of the queue are delivered to the {@link UploadQueueCallback} on the
+ * callback executor given to the constructor, typically the main thread.
+ */
+public class UploadQueue {
+
+    /**
+     * Items below this size are batched with other small items.
+     */
+    public static final long DEFAULT_COALESCE_BYTES = 256 * 1024;
+
+    /**
+     * The most a batch of small items holds.
+     */
+    public static final long DEFAULT_BATCH_BYTES = 4 * 1024 * 1024;
+    public static final int MAX_BATCH_ITEMS = 256;
+
+    /**
+     * The attempts of one delivery before the queue backs off, and the backoff between
+     * failed deliveries.
+     */
+    public static final RetryPolicy DEFAULT_ATTEMPTS = new RetryPolicy(3, 1000, 10000);
+    public static final RetryPolicy DEFAULT_BACKOFF = new RetryPolicy(Integer.MAX_VALUE, 5000, 300000);
+
+    private static final String LOG_FILE = "queue.log";
+    private static final String ITEM_PREFIX = "item-";
+    private static final String SPOOL_FILE = "spool.tmp";
+    private static final String BATCH_FILE = "batch.zip";
+    private static final String FAILED_DIR = "failed";
+
+    /**
+     * An empty queue rewrites a log larger than this.
+     */
+    private static final long COMPACT_BYTES = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final UploadTarget target;
+    private final Executor callbackExecutor;
+    private final long coalesceBytes;
+    private final long batchBytes;
+    private final RetryPolicy attempts;
+    private final RetryPolicy backoff;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final MetricsRegistry metrics = new MetricsRegistry("component", "upload_queue");
+    private final UploadMetrics uploadMetrics = new UploadMetrics(metrics);
+    private final StripedCounter queued;
+    private final StripedCounter deduplicated;
+    private final StripedCounter delivered;
+    private final StripedCounter batches;
+    private final StripedCounter failed;
+
+    private volatile UploadQueueCallback callback;
+    private volatile int pendingItems;
+    private volatile long pendingBytes;
+
+    /**
+     * Only used on the queue thread.  The log is null if it could not be opened.
+     */
+    private UploadQueueLog log;
+    private ScheduledFuture<?> delivery;
+    private int failures;
+
+    /**
+     * The items of batches that were rejected, which are sent one at a time.  Only used on
+     * the queue thread.
+     */
+    private final Set<Long> sendAlone = new HashSet<>();
+
+    public UploadQueue(File dir, UploadTarget target, Executor callbackExecutor) {
+        this(dir, target, callbackExecutor, DEFAULT_COALESCE_BYTES, DEFAULT_BATCH_BYTES,
+                DEFAULT_ATTEMPTS, DEFAULT_BACKOFF);
+    }
+
+    /**
+     * Opens the queue in {@code dir} on the queue thread and starts delivering the items
+     * left there.
+     * @param coalesceBytes Items below this size are sent in batches; 0 sends every item
+     *                      on its own.
+     * @param batchBytes    The most a batch holds.
+     * @param attempts      The attempts of one delivery.
+     * @param backoff       The delay after each failed delivery.
+     */
+    public UploadQueue(File dir, UploadTarget target, Executor callbackExecutor,
+                       long coalesceBytes, long batchBytes, RetryPolicy attempts,
+                       RetryPolicy backoff) {
+        this.dir = dir;
+        this.target = target;
+        this.callbackExecutor = callbackExecutor;
+        this.coalesceBytes = coalesceBytes;
+        this.batchBytes = batchBytes;
+        this.attempts = attempts;
+        this.backoff = backoff;
+        this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "upload-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.queued = metrics.counter("queue.queued");
+        this.deduplicated = metrics.counter("queue.deduplicated");
+        this.delivered = metrics.counter("queue.delivered");
+        this.batches = metrics.counter("queue.batches");
+        this.failed = metrics.counter("queue.failed");
+        metrics.gauge("queue.items", () -> pendingItems);
+        metrics.gauge("queue.bytes", () -> pendingBytes);
+        execute(this::open);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets what receives the results and the size of the queue; null for nothing.
+     */
+    public void setCallback(UploadQueueCallback callback) {
+        this.callback = callback;
+        execute(this::changed);
+    }
+
+    /**
+     * Queues {@code file}, which is moved into the queue directory, or deleted if an item
+     * with the same content is pending or was delivered recently.
+     * @param name  The name the upload is stored under.
+     */
+    public void enqueue(final File file, final String name, final String contentType,
+                        final String contentEncoding) {
+        execute(() -> add(file, name, contentType, contentEncoding));
+    }
+
+    /**
+     * Exports the session as CSV on the queue thread and queues it.
+     * @param name  The name the upload is stored under; ".gz" is appended when compressing.
+     */
+    public void enqueueCsv(SampleStore store, String name, boolean gzip) {
+        enqueueCsv(store, name, gzip, null);
+    }
+
+    /**
+     * Like {@link #enqueueCsv(SampleStore, String, boolean)}, at the lower rate of
+     * {@code decimated}, a new exporter of {@code store}, or every row if it is null.
+     */
+    public void enqueueCsv(final SampleStore store, final String name, final boolean gzip,
+                           final DecimatedCsvExporter decimated) {
+        execute(() -> {
+            final File spool = new File(dir, SPOOL_FILE);
+            try {
+                add(CsvSpool.spool(store, spool, name, gzip, decimated));
+            } catch (IOException e) {
+                spool.delete();
+                error(e);
+            }
+        });
+    }
+
+    /**
+     * Exports the session as a binary session file on the queue thread and queues it.
+     */
+    public void enqueueSessionFile(final SampleStore store, final String name) {
+        execute(() -> {
+            final File spool = new File(dir, SPOOL_FILE);
+            try {
+                add(SessionFileSpool.spool(store, spool, name));
+            } catch (IOException e) {
+                spool.delete();
+                error(e);
+            }
+        });
+    }
+
+    /**
+     * Delivers the pending items now instead of at the end of the backoff, for example when
+     * the phone is back online.
+     */
+    public void onNetworkAvailable() {
+        execute(() -> {
+            if (log != null && log.getPendingCount() > 0 && failures > 0) {
+                failures = 0;
+                schedule(0);
+            }
+        });
+    }
+
+    /**
+     * @return the directory the files of the items given up on are moved to, named after
+     *         the item id and name.  The queue never deletes them.
+     */
+    public File getFailedDir() {
+        return new File(dir, FAILED_DIR);
+    }
+
+    /**
+     * @return the number of items waiting to be delivered.
+     */
+    public int getPendingCount() {
+        return pendingItems;
+    }
+
+    /**
+     * @return the total size of the items waiting to be delivered.
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Stops the queue once the delivery in progress, if any, has ended.  The pending items
+     * stay in the directory for the next queue opened on it.
+     */
+    public void shutdown() {
+        execute(() -> {
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    // Every record was forced when it was written.
+                }
+                log = null;
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for {@link #shutdown()} to complete.
+     * @return false if it is still running after {@code timeoutMs}.
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void open() {
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create " + dir);
+            }
+            log = new UploadQueueLog(new File(dir, LOG_FILE));
+            // Files of items whose record was never written, and of a batch or spool
+            // interrupted by the app being killed.
+            final Set<String> expected = new HashSet<>();
+            final List<UploadQueueLog.Item> missing = new ArrayList<>();
+            for (UploadQueueLog.Item item : log.getPending()) {
+                expected.add(itemFile(item.id).getName());
+                if (!itemFile(item.id).isFile()) {
+                    missing.add(item);
+                }
+            }
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.getName().equals(LOG_FILE) && !file.getName().equals(FAILED_DIR)
+                            && !expected.contains(file.getName())) {
+                        file.delete();
+                    }
+                }
+            }
+            if (!missing.isEmpty()) {
+                log.delivered(missing);
+                error(new IOException(missing.size() + " queued uploads were deleted"));
+            }
+            compactIfLarge();
+        } catch (IOException e) {
+            log = null;
+            error(e);
+            return;
+        }
+        changed();
+        schedule(0);
+    }
+
+    private void add(FileUploadSource source) {
+        add(source.getFile(), source.getName(), source.getContentType(),
+                source.getContentEncoding());
+    }
+
+    private void add(File file, String name, String contentType, String contentEncoding) {
+        if (log == null) {
+            error(new IOException("the upload queue is not open"));
+            return;
+        }
+        try {
+            final String hash = hash(file);
+            if (log.contains(hash)) {
+                file.delete();
+                deduplicated.increment();
+                return;
+            }
+            final long id = log.nextId();
+            final File itemFile = itemFile(id);
+            if (!file.renameTo(itemFile)) {
+                copy(file, itemFile);
+                file.delete();
+            }
+            // The item must be on storage before the record that points to it.
+            try (FileOutputStream out = new FileOutputStream(itemFile, true)) {
+                out.getChannel().force(true);
+            }
+            log.queued(new UploadQueueLog.Item(id, hash, name, contentType, contentEncoding,
+                    itemFile.length()));
+            queued.increment();
+        } catch (IOException e) {
+            error(e);
+            return;
+        }
+        changed();
+        if (delivery == null) {
+            // Idle; a queue backing off waits for the end of the backoff.
+            schedule(0);
+        }
+    }
+
+    /**
+     * Receives the result of one delivery on the queue thread.
+     */
+    private static final class Outcome implements CsvUploadCallback {
+        String response;
+        Exception error;
+
+        @Override
+        public void onUploadSuccess(String response) {
+            this.response = response;
+        }
+
+        @Override
+        public void onUploadError(Exception e) {
+            this.error = e;
+        }
+    }
+
+    private void deliver() {
+        delivery = null;
+        if (log == null) {
+            return;
+        }
+        final List<UploadQueueLog.Item> pending = log.getPending();
+        if (pending.isEmpty()) {
+            return;
+        }
+        final List<UploadQueueLog.Item> batch = nextBatch(pending);
+        final List<UploadQueueLog.Item> unreadable = new ArrayList<>();
+        for (UploadQueueLog.Item item : batch) {
+            if (!itemFile(item.id).canRead()) {
+                unreadable.add(item);
+            }
+        }
+        if (!unreadable.isEmpty()) {
+            giveUp(unreadable, new IOException("the queued file is missing or unreadable"));
+            return;
+        }
+        final File batchFile = new File(dir, BATCH_FILE);
+        final Outcome outcome = new Outcome();
+        try {
+            final UploadSource source;
+            if (batch.size() == 1) {
+                final UploadQueueLog.Item item = batch.get(0);
+                source = new FileUploadSource(itemFile(item.id), item.name, item.contentType,
+                        item.contentEncoding);
+            } else {
+                zip(batch, batchFile);
+                source = new FileUploadSource(batchFile, batchName(batch), "application/zip", null);
+                batches.increment();
+            }
+            new UploadTask(source, target, attempts, Runnable::run, outcome, uploadMetrics).run();
+            if (outcome.error == null) {
+                log.delivered(batch);
+                for (UploadQueueLog.Item item : batch) {
+                    itemFile(item.id).delete();
+                    sendAlone.remove(item.id);
+                }
+                delivered.add(batch.size());
+                compactIfLarge();
+            }
+        } catch (IOException e) {
+            outcome.error = e;
+        } finally {
+            batchFile.delete();
+        }
+        if (outcome.error != null
+                && (Thread.currentThread().isInterrupted() || executor.isShutdown())) {
+            // Stopped during the delivery; the items stay queued for the next queue.  A
+            // timeout is an InterruptedIOException too but counts as a failed delivery.
+            return;
+        }
+        final UploadQueueCallback callback = this.callback;
+        if (outcome.error == null) {
+            failures = 0;
+            if (callback != null) {
+                final String response = outcome.response;
+                callbackExecutor.execute(() -> callback.onUploadSuccess(response));
+            }
+            changed();
+            schedule(0);
+        } else if (isPermanent(outcome.error)) {
+            if (batch.size() > 1) {
+                // One item may be to blame, or the size of the batch: send them one by one.
+                for (UploadQueueLog.Item item : batch) {
+                    sendAlone.add(item.id);
+                }
+                schedule(0);
+            } else {
+                giveUp(batch, outcome.error);
+            }
+        } else {
+            failures++;
+            error(outcome.error);
+            schedule(backoff.getDelayMs(failures));
+        }
+    }
+
+    /**
+     * @return whether trying again cannot repair the error, as {@link UploadTask} decides.
+     */
+    private static boolean isPermanent(Exception e) {
+        return e instanceof UploadHttpException && !((UploadHttpException) e).isRetryable();
+    }
+
+    /**
+     * Moves the files of {@code items} to the failed directory, records them as failed and
+     * goes on with the next items.
+     */
+    private void giveUp(List<UploadQueueLog.Item> items, final Exception e) {
+        final File failedDir = getFailedDir();
+        try {
+            if (!failedDir.isDirectory() && !failedDir.mkdirs()) {
+                throw new IOException("cannot create " + failedDir);
+            }
+            // The files are moved before the record, which would otherwise let the next
+            // queue delete them as files of no item.
+            for (UploadQueueLog.Item item : items) {
+                final File file = itemFile(item.id);
+                if (file.isFile() && !file.renameTo(new File(failedDir,
+                        item.id + "-" + new File(item.name).getName()))) {
+                    throw new IOException("cannot move " + file + " to " + failedDir);
+                }
+            }
+            log.failed(items);
+            compactIfLarge();
+        } catch (IOException moveError) {
+            failures++;
+            error(moveError);
+            schedule(backoff.getDelayMs(failures));
+            return;
+        }
+        failed.add(items.size());
+        final UploadQueueCallback callback = this.callback;
+        for (final UploadQueueLog.Item item : items) {
+            sendAlone.remove(item.id);
+            if (callback != null) {
+                callbackExecutor.execute(() -> callback.onUploadFailed(item.name, e));
+            }
+        }
+        changed();
+        schedule(0);
+    }
+
+    /**
+     * @return the oldest item if it is large or must be sent alone, or else the oldest small
+     *         items that fit in a batch.
+     */
+    private List<UploadQueueLog.Item> nextBatch(List<UploadQueueLog.Item> pending) {
+        final List<UploadQueueLog.Item> batch = new ArrayList<>();
+        final UploadQueueLog.Item first = pending.get(0);
+        batch.add(first);
+        if (first.length >= coalesceBytes || sendAlone.contains(first.id)) {
+            return batch;
+        }
+        long bytes = first.length;
+        for (int i = 1; i < pending.size() && batch.size() < MAX_BATCH_ITEMS; i++) {
+            final UploadQueueLog.Item item = pending.get(i);
+            if (item.length < coalesceBytes && bytes + item.length <= batchBytes
+                    && !sendAlone.contains(item.id)) {
+                batch.add(item);
+                bytes += item.length;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Writes the items of a batch into one zip, each under its own name.  Compressed items
+     * are stored as they are.
+     */
+    private void zip(List<UploadQueueLog.Item> batch, File file) throws IOException {
+        final Set<String> names = new HashSet<>();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (ZipOutputStream zip = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+            for (UploadQueueLog.Item item : batch) {
+                final boolean compressed = item.contentEncoding != null
+                        || item.name.endsWith(".gz") || item.name.endsWith(".zip");
+                zip.setLevel(compressed ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED);
+                zip.putNextEntry(new ZipEntry(names.add(item.name) ? item.name
+                        : item.id + "-" + item.name));
+                try (InputStream in = new FileInputStream(itemFile(item.id))) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        zip.write(buffer, 0, n);
+                    }
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * @return a name that is the same every time the same batch is sent, so a retried
+     *         batch replaces itself at the target.
+     */
+    private static String batchName(List<UploadQueueLog.Item> batch) throws IOException {
+        final MessageDigest digest = sha256();
+        for (UploadQueueLog.Item item : batch) {
+            digest.update(item.hash.getBytes(StandardCharsets.US_ASCII));
+        }
+        return "batch-" + hex(digest.digest()).substring(0, 16) + ".zip";
+    }
+
+    private void compactIfLarge() throws IOException {
+        if (log.getPendingCount() == 0 && log.length() > COMPACT_BYTES) {
+            log.compact();
+        }
+    }
+
+    private void changed() {
+        if (log != null) {
+            pendingItems = log.getPendingCount();
+            pendingBytes = log.getPendingBytes();
+        }
+        final UploadQueueCallback callback = this.callback;
+        if (callback != null) {
+            final int items = pendingItems;
+            final long bytes = pendingBytes;
+            callbackExecutor.execute(() -> callback.onQueueChanged(items, bytes));
+        }
+    }
+
+    private void error(final Exception e) {
+        final UploadQueueCallback callback = this.callback;
+        if (callback != null) {
+            callbackExecutor.execute(() -> callback.onUploadError(e));
+        }
+    }
+
+    private void schedule(long delayMs) {
+        if (delivery != null) {
+            delivery.cancel(false);
+        }
+        try {
+            delivery = executor.schedule(this::deliver, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down; the items are delivered by the next queue.
+            delivery = null;
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down.
+        }
+    }
+
+    private File itemFile(long id) {
+        return new File(dir, ITEM_PREFIX + id);
+    }
+
+    private static String hash(File file) throws IOException {
+        final MessageDigest digest = sha256();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = digits[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(from);
+             OutputStream out = new FileOutputStream(to)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.data.CsvUploadCallback;
+
+/**
+ * Receives the results of the uploads of an {@link UploadQueue}, one per delivery, and the
+ * size of the queue whenever it changes.
+ */
+public interface UploadQueueCallback extends CsvUploadCallback {
+    /**
+     * @param pendingItems  The number of items waiting to be delivered.
+     * @param pendingBytes  Their total size.
+     */
+    void onQueueChanged(int pendingItems, long pendingBytes);
+
+    /**
+     * An item was given up on: the target rejected it in a way a retry cannot repair, or
+     * its file can no longer be read.  Its file, if any, was moved to
+     * {@link UploadQueue#getFailedDir()}.
+     * @param name  The name the item was to be stored under.
+     */
+    void onUploadFailed(String name, Exception e);
+}
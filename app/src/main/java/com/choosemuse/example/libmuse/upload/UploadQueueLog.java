@@ -0,0 +1,317 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The write-ahead log of an {@link UploadQueue}: every item queued and every item delivered
+ * is appended as a record and forced to storage before the queue acts on it, so the queue
+ * comes back as it was after the app is killed.
+ * <p>
+ * A record is an int length and the CRC32 of its payload, followed by the payload:
+ * <pre>
+ *   QUEUED     byte 1, long id, UTF hash, name, content type, content encoding or "", long length
+ *   DELIVERED  byte 2, long id, UTF hash
+ *   FAILED     byte 3, long id, UTF hash
+ * </pre>
+ * A failed item was given up on; unlike a delivered one, its content may be queued again.
+ * Reading stops at the first record that is incomplete or fails its checksum, typically
+ * the one being written when the app died, and the log is truncated there.  The log is
+ * rewritten with only the pending items and the latest delivered hashes by
+ * {@link #compact()}, which writes the hashes with the id -1.
+ * <p>
+ * Only used from the queue thread.
+ */
+final class UploadQueueLog {
+
+    private static final byte QUEUED = 1;
+    private static final byte DELIVERED = 2;
+    private static final byte FAILED = 3;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    /**
+     * The number of delivered hashes remembered to drop duplicates of items already sent.
+     */
+    static final int DELIVERED_MEMORY = 1024;
+
+    /**
+     * One file waiting to be uploaded.
+     */
+    static final class Item {
+        final long id;
+        final String hash;
+        final String name;
+        final String contentType;
+        final String contentEncoding;
+        final long length;
+
+        Item(long id, String hash, String name, String contentType, String contentEncoding,
+             long length) {
+            this.id = id;
+            this.hash = hash;
+            this.name = name;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    private final LinkedHashMap<Long, Item> pending = new LinkedHashMap<>();
+    private final HashSet<String> pendingHashes = new HashSet<>();
+    private final LinkedHashSet<String> delivered = new LinkedHashSet<>();
+    private final CRC32 crc = new CRC32();
+    private FileOutputStream out;
+    private long nextId;
+    private long pendingBytes;
+
+    /**
+     * Opens the log, reading the records written before.
+     */
+    UploadQueueLog(File file) throws IOException {
+        this.file = file;
+        final long valid = file.exists() ? read() : 0;
+        if (file.exists() && file.length() > valid) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * @return the length of the records read completely.
+     */
+    private long read() throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] payload = new byte[256];
+            while (true) {
+                final int length;
+                final int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                try {
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                valid += RECORD_HEADER_SIZE + length;
+            }
+        }
+        return valid;
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        final byte type = record.readByte();
+        final long id = record.readLong();
+        nextId = Math.max(nextId, id + 1);
+        if (type == QUEUED) {
+            final String hash = record.readUTF();
+            final String name = record.readUTF();
+            final String contentType = record.readUTF();
+            final String encoding = record.readUTF();
+            final long length = record.readLong();
+            addPending(new Item(id, hash, name, contentType, encoding.isEmpty() ? null : encoding,
+                    length));
+        } else if (type == DELIVERED || type == FAILED) {
+            final String hash = record.readUTF();
+            removePending(id);
+            if (type == DELIVERED) {
+                remember(hash);
+            }
+        }
+    }
+
+    private void removePending(long id) {
+        final Item item = pending.remove(id);
+        if (item != null) {
+            pendingHashes.remove(item.hash);
+            pendingBytes -= item.length;
+        }
+    }
+
+    private void addPending(Item item) {
+        pending.put(item.id, item);
+        pendingHashes.add(item.hash);
+        pendingBytes += item.length;
+    }
+
+    private void remember(String hash) {
+        delivered.remove(hash);
+        delivered.add(hash);
+        if (delivered.size() > DELIVERED_MEMORY) {
+            final Iterator<String> oldest = delivered.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    long nextId() {
+        return nextId++;
+    }
+
+    /**
+     * @return whether an item with this content is pending or was delivered recently.
+     */
+    boolean contains(String hash) {
+        return pendingHashes.contains(hash) || delivered.contains(hash);
+    }
+
+    /**
+     * Records a new item, once its file is on storage.
+     */
+    void queued(Item item) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeQueued(new DataOutputStream(bytes), item);
+        append(out, bytes.toByteArray());
+        out.getChannel().force(false);
+        addPending(item);
+    }
+
+    /**
+     * Records the delivery of {@code items}, with one write to storage.
+     */
+    void delivered(List<Item> items) throws IOException {
+        remove(items, DELIVERED);
+        for (Item item : items) {
+            remember(item.hash);
+        }
+    }
+
+    /**
+     * Records that {@code items} were given up on, with one write to storage.
+     */
+    void failed(List<Item> items) throws IOException {
+        remove(items, FAILED);
+    }
+
+    private void remove(List<Item> items, byte type) throws IOException {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Item item : items) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeRemoved(new DataOutputStream(bytes), type, item.id, item.hash);
+            append(records, bytes.toByteArray());
+        }
+        out.write(records.toByteArray());
+        out.getChannel().force(false);
+        for (Item item : items) {
+            removePending(item.id);
+        }
+    }
+
+    /**
+     * Rewrites the log with only the pending items and the delivered hashes remembered.
+     */
+    void compact() throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream compacted = new FileOutputStream(temp)) {
+            final ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (String hash : delivered) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                writeRemoved(new DataOutputStream(bytes), DELIVERED, -1, hash);
+                append(records, bytes.toByteArray());
+            }
+            for (Item item : pending.values()) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                writeQueued(new DataOutputStream(bytes), item);
+                append(records, bytes.toByteArray());
+            }
+            compacted.write(records.toByteArray());
+            compacted.getChannel().force(false);
+        }
+        out.close();
+        if (!temp.renameTo(file)) {
+            out = new FileOutputStream(file, true);
+            throw new IOException("cannot replace " + file);
+        }
+        out = new FileOutputStream(file, true);
+    }
+
+    private static void writeQueued(DataOutputStream record, Item item) throws IOException {
+        record.writeByte(QUEUED);
+        record.writeLong(item.id);
+        record.writeUTF(item.hash);
+        record.writeUTF(item.name);
+        record.writeUTF(item.contentType);
+        record.writeUTF(item.contentEncoding != null ? item.contentEncoding : "");
+        record.writeLong(item.length);
+        record.flush();
+    }
+
+    private static void writeRemoved(DataOutputStream record, byte type, long id, String hash)
+            throws IOException {
+        record.writeByte(type);
+        record.writeLong(id);
+        record.writeUTF(hash);
+        record.flush();
+    }
+
+    private void append(OutputStream to, byte[] payload) throws IOException {
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        final DataOutputStream header = new DataOutputStream(to);
+        header.writeInt(payload.length);
+        header.writeInt((int) crc.getValue());
+        header.write(payload);
+        header.flush();
+    }
+
+    /**
+     * @return the pending items, oldest first.
+     */
+    List<Item> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    long length() {
+        return file.length();
+    }
+
+    void close() throws IOException {
+        out.close();
+    }
+}
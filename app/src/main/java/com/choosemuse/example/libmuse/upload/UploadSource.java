@@ -0,0 +1,33 @@
+package com.choosemuse.example.libmuse.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body of an upload.  A source can be reopened at any byte offset so an
+ * interrupted upload can resume where the server left off.
+ */
+public interface UploadSource {
+
+    /**
+     * @return the name the upload should be stored under, for example "session.csv.gz".
+     */
+    String getName();
+
+    String getContentType();
+
+    /**
+     * @return the content encoding of the bytes (for example "gzip"), or null.
+     */
+    String getContentEncoding();
+
+    /**
+     * @return the number of bytes in the source.
+     */
+    long length();
+
+    /**
+     * Opens the source positioned at {@code offset}.
+     */
+    InputStream open(long offset) throws IOException;
+}
@@ -0,0 +1,14 @@
+package com.choosemuse.example.libmuse.upload;
+
+/**
+ * Where an upload goes.  A target implements one of the two ways an upload is sent:
+ * <ul>
+ * <li>{@link OneShotUploadTarget} receives the whole body in one streamed request; a
+ *     failed attempt starts over.</li>
+ * <li>{@link ResumableUploadTarget} follows an upload-session protocol and receives the
+ *     body chunk by chunk; if a chunk fails the upload continues from the last offset the
+ *     server acknowledged.</li>
+ * </ul>
+ */
+public interface UploadTarget {
+}
@@ -0,0 +1,181 @@
+package com.choosemuse.example.libmuse.upload;
+
+import com.choosemuse.example.libmuse.data.CsvUploadCallback;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs one upload to completion on an upload thread: sends the source chunk by chunk,
+ * keeps track of the offset acknowledged by the server and retries with backoff.
+ * Results and progress are delivered on the callback executor.
+ */
+class UploadTask implements Runnable {
+
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    private final UploadSource source;
+    private final OneShotUploadTarget oneShot;
+    private final ResumableUploadTarget resumable;
+    private final RetryPolicy retryPolicy;
+    private final Executor callbackExecutor;
+    private final CsvUploadCallback callback;
+    private final UploadMetrics metrics;
+
+    private String session;
+    private long acknowledged;
+    private long startNanos;
+
+    UploadTask(UploadSource source, UploadTarget target, RetryPolicy retryPolicy,
+               Executor callbackExecutor, CsvUploadCallback callback, UploadMetrics metrics) {
+        if (target instanceof ResumableUploadTarget) {
+            this.resumable = (ResumableUploadTarget) target;
+            this.oneShot = null;
+        } else if (target instanceof OneShotUploadTarget) {
+            this.oneShot = (OneShotUploadTarget) target;
+            this.resumable = null;
+        } else {
+            throw new IllegalArgumentException("unknown kind of upload target: " + target);
+        }
+        this.source = source;
+        this.retryPolicy = retryPolicy;
+        this.callbackExecutor = callbackExecutor;
+        this.callback = callback;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void run() {
+        startNanos = System.nanoTime();
+        int failures = 0;
+        while (true) {
+            final long before = acknowledged;
+            metrics.attempts.increment();
+            try {
+                final String response;
+                if (resumable != null) {
+                    response = sendChunks();
+                } else {
+                    response = oneShot.post(source, this::progress);
+                    metrics.bytes.add(source.length());
+                }
+                metrics.succeeded.increment();
+                metrics.duration.recordSince(startNanos);
+                callbackExecutor.execute(() -> callback.onUploadSuccess(response));
+                return;
+            } catch (IOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Cancelled.  A read or connect timeout is an InterruptedIOException as
+                    // well, but without the interrupt it is retried like any other failure.
+                    fail(e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)
+                            ? e : new InterruptedIOException("upload cancelled"));
+                    return;
+                }
+                // An attempt that moved the upload forward starts a new series of retries.
+                failures = acknowledged > before ? 1 : failures + 1;
+                boolean retryable = !(e instanceof UploadHttpException) || ((UploadHttpException) e).isRetryable();
+                if (!retryable || failures >= retryPolicy.getMaxAttempts()) {
+                    fail(e);
+                    return;
+                }
+                metrics.retries.increment();
+                try {
+                    Thread.sleep(retryPolicy.getDelayMs(failures));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    fail(new InterruptedIOException("upload cancelled"));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the source from the last acknowledged offset and commits it.  An offset outside
+     * the source, or an append the server acknowledged without taking any of it, fails the
+     * attempt, so a server that makes no progress is retried under the retry policy instead
+     * of being sent the same chunk forever.
+     */
+    private String sendChunks() throws IOException {
+        final long length = source.length();
+        if (session == null) {
+            session = resumable.begin(source);
+            acknowledged = 0;
+        } else {
+            long offset = resumable.queryOffset(session);
+            if (offset > length) {
+                throw new IOException("the server reports offset " + offset + " of "
+                        + length + " bytes");
+            }
+            if (offset >= 0) {
+                acknowledged = offset;
+            }
+        }
+
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        InputStream in = source.open(acknowledged);
+        try {
+            while (acknowledged < length) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("upload cancelled");
+                }
+                int n = readFully(in, chunk, (int) Math.min(CHUNK_SIZE, length - acknowledged));
+                long offset;
+                final long chunkStart = System.nanoTime();
+                try {
+                    offset = resumable.append(session, acknowledged, chunk, n);
+                } catch (OffsetMismatchException e) {
+                    offset = e.getExpectedOffset();
+                }
+                metrics.chunk.recordSince(chunkStart);
+                metrics.bytes.add(n);
+                if (offset < 0 || offset > length) {
+                    throw new IOException("the server reports offset " + offset + " of "
+                            + length + " bytes");
+                }
+                if (offset == acknowledged) {
+                    throw new IOException("the server took none of the " + n
+                            + " bytes at offset " + offset);
+                }
+                if (offset != acknowledged + n) {
+                    // The server has a different amount than we sent; continue from there.
+                    in.close();
+                    in = source.open(offset);
+                }
+                acknowledged = offset;
+                progress(acknowledged);
+            }
+        } finally {
+            in.close();
+        }
+        return resumable.finish(session, source, length);
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, total, length - total);
+            if (n < 0) {
+                throw new IOException("upload source ended early");
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private void progress(final long bytesSent) {
+        if (callback instanceof UploadProgressCallback) {
+            final long total = source.length();
+            callbackExecutor.execute(() -> ((UploadProgressCallback) callback).onUploadProgress(bytesSent, total));
+        }
+    }
+
+    private void fail(final Exception e) {
+        metrics.failed.increment();
+        metrics.duration.recordSince(startNanos);
+        callbackExecutor.execute(() -> callback.onUploadError(e));
+    }
+}
@@ -0,0 +1,52 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.dsp.ArtifactDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ns per sample of {@link ArtifactDetector#addSample} on 256 Hz EEG with blinks, clenches
+ * and periods off the head, see {@link ArtifactDetectionTest}.  Must not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ArtifactBenchmark {
+
+    private long[] timestamps;
+    private double[][] values;
+    private ArtifactDetector detector;
+    private int next;
+    private long shift;
+    private long length;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        final ArtifactDetectionTest.Recording recording =
+                ArtifactDetectionTest.generate(256, 120, Frames.SEED);
+        timestamps = recording.timestamps;
+        values = recording.values;
+        length = timestamps[timestamps.length - 1] + 1_000_000;
+        detector = new ArtifactDetector(256, (timestamp, flags) -> blackhole.consume(flags));
+    }
+
+    @Benchmark
+    public void addSample() {
+        if (next == timestamps.length) {
+            // Replay the recording later in time, so the detector sees one long session.
+            next = 0;
+            shift += length;
+        }
+        detector.addSample(timestamps[next] + shift, values[next]);
+        next++;
+    }
+}
@@ -0,0 +1,292 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.dsp.Artifact;
+import com.choosemuse.example.libmuse.dsp.ArtifactDetector;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.pipeline.SyntheticHeadband;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs an {@link ArtifactDetector} over raw EEG and reports what it finds.
+ * <p>
+ * By default the EEG is synthetic, with blinks, jaw clenches and periods off the head
+ * injected at known times.  A blink is a raised cosine of 100 to 250 microvolts over 200
+ * to 400 ms on the frontal channels; a clench is 0.3 to 1.5 s of white muscle noise of 20
+ * to 60 microvolts on the temporal channels, and half of it on the frontal ones; off the
+ * head, the channels rail or carry noise of 300 microvolts for 2 to 10 s.  A detection
+ * matches an injected artifact of the same kind if they overlap.  Precision, recall and the
+ * distance of the detected starts and ends from the injected ones are reported per kind.
+ * The test fails if the precision or recall of any kind is below 90%.
+ * <p>
+ * With a CSV file, such as a session export, its first four value columns are taken as
+ * TP9, AF7, AF8 and TP10 and the artifacts found are listed, as there is nothing to check
+ * them against.
+ * <p>
+ * Usage: {@code ArtifactDetectionTest [seconds] [eegRateHz]} or
+ * {@code ArtifactDetectionTest --csv file [eegRateHz]}.
+ */
+public final class ArtifactDetectionTest {
+
+    private static final Artifact[] ARTIFACTS = Artifact.values();
+
+    /**
+     * The mean time between two injected artifacts, and the least.
+     */
+    private static final double MEAN_SPACING_SECONDS = 6;
+    private static final double MIN_SPACING_SECONDS = 1.5;
+
+    /**
+     * Raw EEG with artifacts injected at known times.
+     */
+    static final class Recording {
+        final long[] timestamps;
+        final double[][] values;
+        final List<long[]> truth = new ArrayList<>();
+        final List<Artifact> truthKinds = new ArrayList<>();
+
+        Recording(int samples) {
+            timestamps = new long[samples];
+            values = new double[samples][];
+        }
+    }
+
+    static Recording generate(double rateHz, int seconds, long seed) {
+        final SyntheticHeadband headband = new SyntheticHeadband(rateHz, 0, 0, 0, 0, seed, 0);
+        final Random random = new Random(seed);
+        final int samples = (int) (rateHz * seconds);
+        final Recording recording = new Recording(samples);
+        final SampleFrame frame = new SampleFrame();
+        for (int i = 0; i < samples; i++) {
+            headband.next(frame);
+            recording.timestamps[i] = frame.getTimestamp();
+            recording.values[i] = Arrays.copyOf(frame.values(), 6);
+        }
+        // Nothing during the warm-up.
+        int at = (int) (rateHz * (ArtifactDetector.WARMUP_SECONDS + 1));
+        while (true) {
+            at += (int) (rateHz * (MIN_SPACING_SECONDS
+                    - MEAN_SPACING_SECONDS * Math.log(1 - random.nextDouble())));
+            final Artifact kind = ARTIFACTS[random.nextInt(ARTIFACTS.length)];
+            final double duration;
+            switch (kind) {
+                case BLINK:
+                    duration = 0.2 + 0.2 * random.nextDouble();
+                    break;
+                case JAW_CLENCH:
+                    duration = 0.3 + 1.2 * random.nextDouble();
+                    break;
+                default:
+                    duration = 2 + 8 * random.nextDouble();
+                    break;
+            }
+            final int length = (int) (duration * rateHz);
+            if (at + length + rateHz * ArtifactDetector.WARMUP_SECONDS >= samples) {
+                break;
+            }
+            inject(recording, kind, at, length, rateHz, random);
+            recording.truth.add(new long[]{recording.timestamps[at],
+                    recording.timestamps[at + length - 1]});
+            recording.truthKinds.add(kind);
+            at += length;
+            if (kind == Artifact.HEADBAND_OFF) {
+                // The detector learns the baselines again.
+                at += (int) (rateHz * ArtifactDetector.WARMUP_SECONDS);
+            }
+        }
+        return recording;
+    }
+
+    private static void inject(Recording recording, Artifact kind, int at, int length,
+                               double rateHz, Random random) {
+        final double[][] values = recording.values;
+        switch (kind) {
+            case BLINK: {
+                final double amplitude = 100 + 150 * random.nextDouble();
+                for (int i = 0; i < length; i++) {
+                    final double shape = Math.pow(Math.sin(Math.PI * (i + 0.5) / length), 2);
+                    values[at + i][ArtifactDetector.AF7] += amplitude * shape;
+                    values[at + i][ArtifactDetector.AF8] += amplitude * shape;
+                    values[at + i][ArtifactDetector.TP9] += 0.1 * amplitude * shape;
+                    values[at + i][ArtifactDetector.TP10] += 0.1 * amplitude * shape;
+                }
+                break;
+            }
+            case JAW_CLENCH: {
+                final double sigma = 20 + 40 * random.nextDouble();
+                final int ramp = (int) (0.02 * rateHz);
+                for (int i = 0; i < length; i++) {
+                    final double gain = sigma * Math.min(1, Math.min(i + 1, length - i) / (double) ramp);
+                    values[at + i][ArtifactDetector.TP9] += gain * random.nextGaussian();
+                    values[at + i][ArtifactDetector.TP10] += gain * random.nextGaussian();
+                    values[at + i][ArtifactDetector.AF7] += 0.5 * gain * random.nextGaussian();
+                    values[at + i][ArtifactDetector.AF8] += 0.5 * gain * random.nextGaussian();
+                }
+                break;
+            }
+            default: {
+                final boolean railed = random.nextBoolean();
+                for (int i = 0; i < length; i++) {
+                    for (int c = 0; c < 4; c++) {
+                        values[at + i][c] = railed
+                                ? (c % 2 == 0 ? 0 : 1682.815)
+                                : 800 + 300 * random.nextGaussian();
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && "--csv".equals(args[0])) {
+            runCsv(args[1], args.length > 2 ? Double.parseDouble(args[2]) : 256);
+            return;
+        }
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3600;
+        final double eegRateHz = args.length > 1 ? Double.parseDouble(args[1]) : 256;
+
+        final Recording recording = generate(eegRateHz, seconds, Frames.SEED);
+        final List<long[]> found = new ArrayList<>();
+        final List<Artifact> foundKinds = new ArrayList<>();
+        final ArtifactDetector detector = new ArtifactDetector(eegRateHz, (timestamp, flags) -> { });
+        detector.setEventListener((artifact, start, end) -> {
+            found.add(new long[]{start, end});
+            foundKinds.add(artifact);
+        });
+        final long nanos = run(detector, recording.timestamps, recording.values);
+
+        System.out.printf(Locale.US, "%d s at %.0f Hz, %d artifacts injected, %.1f ns per sample%n",
+                seconds, eegRateHz, recording.truth.size(),
+                nanos / (double) recording.timestamps.length);
+        System.out.println("artifact        injected  found  precision  recall"
+                + "  start ms p50/p90  end ms p50/p90");
+        boolean passed = true;
+        for (Artifact kind : ARTIFACTS) {
+            passed &= report(kind, recording.truth, recording.truthKinds, found, foundKinds);
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Feeds the samples to the detector and flushes it.
+     * @return the nanoseconds it took.
+     */
+    static long run(ArtifactDetector detector, long[] timestamps, double[][] values) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < timestamps.length; i++) {
+            detector.addSample(timestamps[i], values[i]);
+        }
+        detector.flush();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Prints the results of one kind of artifact.
+     * @return false if its precision or recall is below 90%.
+     */
+    private static boolean report(Artifact kind, List<long[]> truth, List<Artifact> truthKinds,
+                                  List<long[]> found, List<Artifact> foundKinds) {
+        int injected = 0;
+        int detected = 0;
+        int matchedTruth = 0;
+        int matchedFound = 0;
+        final List<Long> startErrors = new ArrayList<>();
+        final List<Long> endErrors = new ArrayList<>();
+        for (int t = 0; t < truth.size(); t++) {
+            if (truthKinds.get(t) != kind) {
+                continue;
+            }
+            injected++;
+            final long[] expected = truth.get(t);
+            boolean matched = false;
+            for (int f = 0; f < found.size(); f++) {
+                final long[] actual = found.get(f);
+                if (foundKinds.get(f) == kind && overlap(expected, actual)) {
+                    if (!matched) {
+                        startErrors.add(Math.abs(actual[0] - expected[0]));
+                        endErrors.add(Math.abs(actual[1] - expected[1]));
+                    }
+                    matched = true;
+                }
+            }
+            if (matched) {
+                matchedTruth++;
+            }
+        }
+        for (int f = 0; f < found.size(); f++) {
+            if (foundKinds.get(f) != kind) {
+                continue;
+            }
+            detected++;
+            for (int t = 0; t < truth.size(); t++) {
+                if (truthKinds.get(t) == kind && overlap(truth.get(t), found.get(f))) {
+                    matchedFound++;
+                    break;
+                }
+            }
+        }
+        final double precision = detected > 0 ? matchedFound / (double) detected : 1;
+        final double recall = injected > 0 ? matchedTruth / (double) injected : 1;
+        System.out.printf(Locale.US, "%-15s %8d %6d %9.1f%% %6.1f%%  %8.0f / %-6.0f  %6.0f / %.0f%n",
+                kind.getLabel(), injected, detected, 100 * precision, 100 * recall,
+                percentileMs(startErrors, 0.5), percentileMs(startErrors, 0.9),
+                percentileMs(endErrors, 0.5), percentileMs(endErrors, 0.9));
+        return precision >= 0.9 && recall >= 0.9;
+    }
+
+    private static boolean overlap(long[] a, long[] b) {
+        return a[0] <= b[1] && b[0] <= a[1];
+    }
+
+    private static double percentileMs(List<Long> micros, double p) {
+        if (micros.isEmpty()) {
+            return 0;
+        }
+        final Long[] sorted = micros.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        return sorted[(int) (p * (sorted.length - 1))] / 1000.0;
+    }
+
+    private static void runCsv(String file, double eegRateHz) throws IOException {
+        final List<long[]> timestamps = new ArrayList<>();
+        final List<double[]> values = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            in.readLine();
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.split(",");
+                final double[] sample = new double[6];
+                for (int c = 0; c < 4; c++) {
+                    sample[c] = fields[c + 1].isEmpty() ? Double.NaN : Double.parseDouble(fields[c + 1]);
+                }
+                timestamps.add(new long[]{Long.parseLong(fields[0])});
+                values.add(sample);
+            }
+        }
+        final long[] times = new long[timestamps.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = timestamps.get(i)[0];
+        }
+        final ArtifactDetector detector = new ArtifactDetector(eegRateHz, (timestamp, flags) -> { });
+        detector.setEventListener((artifact, start, end) -> System.out.printf(Locale.US,
+                "%-13s %12d %12d %6.0f ms%n", artifact.getLabel(), start, end, (end - start) / 1000.0));
+        final long nanos = run(detector, times, values.toArray(new double[0][]));
+        System.out.printf(Locale.US, "%d samples, %.1f ns per sample", times.length,
+                nanos / (double) times.length);
+        for (Artifact kind : ARTIFACTS) {
+            System.out.printf(Locale.US, ", %d %s", detector.getCount(kind), kind.getLabel().toLowerCase(Locale.US));
+        }
+        System.out.println();
+    }
+}
@@ -0,0 +1,68 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.dsp.BandPowerEngine;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per raw EEG sample of the band power engine with the app's settings: a window of
+ * about one second and ten spectra per second.  The engine keeps up in real time on one
+ * core as long as ns/op stays well below 1e9 / eegRateHz (2 ms at 500 Hz).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BandPowerBenchmark {
+
+    /**
+     * Samples per invocation.
+     */
+    static final int SAMPLES = 20000;
+
+    @Param({"256", "500"})
+    public double eegRateHz;
+
+    @Param({"4", "6"})
+    public int channels;
+
+    private double[][] samples;
+    private BandPowerEngine engine;
+    private Blackhole blackhole;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        samples = new double[SAMPLES][];
+        int count = 0;
+        for (SampleFrame frame : Frames.generate(eegRateHz, (int) (SAMPLES / eegRateHz) + 2)) {
+            if (frame.getType() == FrameType.EEG && count < SAMPLES) {
+                samples[count++] = frame.values().clone();
+            }
+        }
+        engine = BandPowerEngine.forRate(channels, eegRateHz,
+                (timestamp, absolute, relative) -> this.blackhole.consume(relative));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public BandPowerEngine slidingWindow() {
+        for (int i = 0; i < SAMPLES; i++) {
+            engine.addSample(i, samples[i]);
+        }
+        return engine;
+    }
+}
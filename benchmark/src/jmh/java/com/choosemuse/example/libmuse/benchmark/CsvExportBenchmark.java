@@ -0,0 +1,71 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of exporting a session of one million rows as CSV.
+ * <p>
+ * {@code legacyStringBuilder} is the original generateCsv: the whole CSV built with
+ * String.join in a StringBuilder and then encoded with getBytes for the upload.  Its rows
+ * are the {@code List<String[]>} the activity kept, built in the setup, so only the export
+ * is measured and not the formatting of the values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CsvExportBenchmark {
+
+    static final int ROWS = 1000000;
+
+    private SampleStore store;
+    private List<String[]> stringRows;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        IngestPipeline pipeline = new IngestPipeline();
+        Replay.untilRows(pipeline, ROWS);
+        store = pipeline.getStore();
+        // asStringRows() formats on access; the activity held the strings.
+        List<String[]> view = store.asStringRows();
+        stringRows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            stringRows.add(view.get(i));
+        }
+    }
+
+    @Benchmark
+    public long streamingExport() throws IOException {
+        DiscardOutputStream out = new DiscardOutputStream();
+        new SessionCsvExporter().export(store, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public int legacyStringBuilder() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(store.getHeader()).append("\n");
+        for (int i = 0; i < ROWS; i++) {
+            builder.append(String.join(",", stringRows.get(i))).append("\n");
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+}
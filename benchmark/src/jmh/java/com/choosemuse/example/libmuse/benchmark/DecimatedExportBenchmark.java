@@ -0,0 +1,83 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.DecimatedCsvExporter;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CSV export of one million rows of 256 Hz EEG at the full rate and decimated to 128 and
+ * 64 Hz by {@link DecimatedCsvExporter}, in one stage or in stages.  Prints the size of
+ * each export, plain and gzipped, on tear down.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class DecimatedExportBenchmark {
+
+    static final int ROWS = CsvExportBenchmark.ROWS;
+
+    @Param({"256", "128", "64", "64-staged"})
+    public String rate;
+
+    private SampleStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        IngestPipeline pipeline = new IngestPipeline();
+        Replay.untilRows(pipeline, ROWS);
+        store = pipeline.getStore();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        final DiscardOutputStream plain = new DiscardOutputStream();
+        export(plain);
+        final DiscardOutputStream compressed = new DiscardOutputStream();
+        try (OutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024)) {
+            export(gzip);
+        }
+        System.out.println();
+        System.out.printf("%-9s %,12d bytes  %,11d gzipped  %5.2fx fewer rows%n", rate,
+                plain.count, compressed.count, IngestPipeline.DEFAULT_EEG_RATE_HZ / rateHz());
+    }
+
+    @Benchmark
+    public long export() throws IOException {
+        DiscardOutputStream out = new DiscardOutputStream();
+        export(out);
+        return out.count;
+    }
+
+    private void export(OutputStream out) throws IOException {
+        if (rateHz() == IngestPipeline.DEFAULT_EEG_RATE_HZ) {
+            new SessionCsvExporter().export(store, out);
+        } else {
+            DecimatedCsvExporter.forColumns(store, IngestPipeline.DEFAULT_COLUMNS,
+                    IngestPipeline.DEFAULT_EEG_RATE_HZ, rateHz(), rate.endsWith("-staged"))
+                    .export(out);
+        }
+    }
+
+    private double rateHz() {
+        return Double.parseDouble(rate.replace("-staged", ""));
+    }
+}
@@ -0,0 +1,90 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.dsp.Decimator;
+
+import java.util.Locale;
+
+/**
+ * Measures the gain of a {@link Decimator} with sine waves: in the pass band, which must be
+ * flat, and above the new Nyquist frequency, where every tone whose alias would land in
+ * the pass band must be gone.
+ * <p>
+ * Each tone runs for 20 s; the amplitude of the output is fitted, by least squares, to the
+ * outputs after the filters settled.  The test fails if a pass band gain is off by more
+ * than 0.01 dB or an alias into the pass band is louder than -70 dB.
+ * <p>
+ * Usage: {@code DecimatorResponseTest [inputRateHz] [factor] [staged]}.
+ */
+public final class DecimatorResponseTest {
+
+    private static final int SECONDS = 20;
+
+    public static void main(String[] args) {
+        final double inputRateHz = args.length > 0 ? Double.parseDouble(args[0]) : 256;
+        final int factor = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final boolean staged = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+        final Decimator probe = new Decimator(1, factor, staged);
+        final double outputRateHz = inputRateHz / factor;
+        final double passHz = Decimator.PASS_BAND * outputRateHz;
+        System.out.printf(Locale.US, "%.0f Hz to %.0f Hz, %s: %d stages, %d taps, delay %d "
+                        + "samples, %.2f multiplies per sample%n",
+                inputRateHz, outputRateHz, staged ? "staged" : "one stage",
+                probe.getStageCount(), probe.getTapCount(), probe.getDelay(), probe.getCost());
+
+        double worstPass = 0;
+        for (double hz = 0.5; hz <= passHz; hz += passHz / 8) {
+            final double db = gainDb(inputRateHz, factor, staged, hz);
+            worstPass = Math.max(worstPass, Math.abs(db));
+            System.out.printf(Locale.US, "  %6.2f Hz  %8.4f dB%n", hz, db);
+        }
+        double worstAlias = -Double.MAX_VALUE;
+        // The tones between outputRate - passHz and the input Nyquist frequency that
+        // alias into the pass band.
+        for (double hz = outputRateHz - passHz; hz < inputRateHz / 2; hz += outputRateHz / 16) {
+            final double alias = Math.abs(hz - outputRateHz * Math.round(hz / outputRateHz));
+            if (alias > passHz) {
+                continue;
+            }
+            final double db = gainDb(inputRateHz, factor, staged, hz);
+            worstAlias = Math.max(worstAlias, db);
+            System.out.printf(Locale.US, "  %6.2f Hz  %8.1f dB, alias at %.2f Hz%n", hz, db, alias);
+        }
+        System.out.printf(Locale.US, "pass band within %.4f dB, aliases at most %.1f dB%n",
+                worstPass, worstAlias);
+
+        final boolean passed = worstPass <= 0.01 && worstAlias <= -70;
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static double gainDb(double inputRateHz, int factor, boolean staged, double hz) {
+        final Decimator decimator = new Decimator(1, factor, staged);
+        final double[] value = new double[1];
+        final int samples = (int) (SECONDS * inputRateHz);
+        final int settle = 2 * decimator.getDelay() + factor;
+        // A least squares fit of a sin + b cos to the outputs, which unlike the RMS needs
+        // no whole number of periods.
+        double ss = 0, sc = 0, cc = 0, ys = 0, yc = 0;
+        for (int i = 0; i < samples; i++) {
+            // Starting at 0, so the priming does not add a step.
+            value[0] = Math.sin(2 * Math.PI * hz * i / inputRateHz);
+            if (decimator.push(value) && i >= settle) {
+                final double phase = 2 * Math.PI * hz * i / inputRateHz;
+                final double sin = Math.sin(phase);
+                final double cos = Math.cos(phase);
+                ss += sin * sin;
+                sc += sin * cos;
+                cc += cos * cos;
+                ys += value[0] * sin;
+                yc += value[0] * cos;
+            }
+        }
+        final double det = ss * cc - sc * sc;
+        final double a = (ys * cc - yc * sc) / det;
+        final double b = (yc * ss - ys * sc) / det;
+        return 20 * Math.log10(Math.hypot(a, b));
+    }
+}
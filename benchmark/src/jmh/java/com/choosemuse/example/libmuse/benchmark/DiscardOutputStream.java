@@ -0,0 +1,21 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * Counts and discards everything written to it.
+ */
+final class DiscardOutputStream extends OutputStream {
+
+    long count;
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+}
@@ -0,0 +1,63 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.dsp.FilterBank;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ns per sample per channel of the EEG {@link FilterBank}: a 50 Hz notch and a 0.5 to 45 Hz
+ * band-pass, 5 sections, over 6 channels at 256 Hz.  A block of 1 is the live pipeline,
+ * which filters every frame as it arrives; longer blocks are the throughput of filtering a
+ * recorded session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterBenchmark {
+
+    static final int CHANNELS = 6;
+
+    /**
+     * Samples per invocation, so ns/op is per sample per channel whatever the block.
+     */
+    static final int SAMPLES = 4096;
+
+    @Param({"1", "32", "256"})
+    public int block;
+
+    private FilterBank filters;
+    private double[] samples;
+    private double[] work;
+
+    @Setup
+    public void setUp() {
+        filters = FilterBank.forEeg(CHANNELS, 256, 50);
+        final Random random = new Random(Frames.SEED);
+        samples = new double[SAMPLES * CHANNELS];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 800 + 20 * Math.sin(i * 0.05) + 5 * random.nextGaussian();
+        }
+        work = new double[samples.length];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES * CHANNELS)
+    public double[] process() {
+        System.arraycopy(samples, 0, work, 0, work.length);
+        for (int frame = 0; frame < SAMPLES; frame += block) {
+            filters.process(work, frame * CHANNELS, block);
+        }
+        return work;
+    }
+}
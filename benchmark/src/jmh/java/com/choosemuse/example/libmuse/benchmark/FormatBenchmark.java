@@ -0,0 +1,69 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.FixedPointFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of formatting one double for the export.
+ * <p>
+ * {@code legacyEegFormat} is the removed CSVHelper.eegFormat (parseDouble of the
+ * String.valueOf text followed by String.format), {@code stringValueOf} is what the CSV
+ * rows originally used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormatBenchmark {
+
+    static final int VALUES = 1024;
+
+    private final double[] values = new double[VALUES];
+    private final byte[] buffer = new byte[FixedPointFormat.MAX_LENGTH];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(Frames.SEED);
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = 800 + 100 * random.nextGaussian();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public int fixedPoint() {
+        int length = 0;
+        for (double value : values) {
+            length += FixedPointFormat.formatDouble(value, 4, buffer, 0);
+        }
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void stringValueOf(Blackhole blackhole) {
+        for (double value : values) {
+            blackhole.consume(String.valueOf(value));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void legacyEegFormat(Blackhole blackhole) {
+        for (double value : values) {
+            blackhole.consume(String.format(Locale.US, "%.1f", Double.parseDouble(String.valueOf(value))));
+        }
+    }
+}
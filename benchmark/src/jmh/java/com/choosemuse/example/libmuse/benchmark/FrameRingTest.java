@@ -0,0 +1,111 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.pipeline.FrameRing;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import java.util.Locale;
+
+/**
+ * Publishes frames as fast as possible to a small {@link FrameRing} with a gating and a
+ * slow non-gating consumer, and checks every frame they see.
+ * <p>
+ * Every value of a frame is its sequence number, and so is its timestamp, so a frame copied
+ * while the producer overwrote its slot shows up as torn.  The gating consumer must see
+ * every frame, in order and whole.  The non-gating one falls behind and is overwritten all
+ * the time: the frames it sees must be whole and in order, and the ones it lost must make
+ * up the rest.
+ * <p>
+ * Usage: {@code FrameRingTest [frames] [capacity] [slowNanos]}.
+ */
+public final class FrameRingTest {
+
+    public static void main(String[] args) throws Exception {
+        final long frames = args.length > 0 ? Long.parseLong(args[0]) : 2_000_000L;
+        final int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final long slowNanos = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        final FrameRing ring = new FrameRing(capacity, FrameRing.Overflow.BLOCK);
+        final FrameRing.Consumer gating = ring.addConsumer("gating", true,
+                FrameRing.WaitStrategy.YIELDING);
+        final FrameRing.Consumer copying = ring.addConsumer("copying", false,
+                FrameRing.WaitStrategy.YIELDING);
+        final Checker gatingChecker = new Checker(0);
+        final Checker copyingChecker = new Checker(slowNanos);
+        final Thread gatingThread = gating.start(gatingChecker);
+        final Thread copyingThread = copying.start(copyingChecker);
+
+        final long start = System.nanoTime();
+        for (long sequence = 0; sequence < frames; sequence++) {
+            final SampleFrame slot = ring.claim();
+            slot.set(FrameType.EEG, sequence);
+            final double[] values = slot.values();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = sequence;
+            }
+            ring.publish();
+        }
+        gating.halt();
+        copying.halt();
+        gatingThread.join();
+        copyingThread.join();
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf(Locale.US, "%d frames through %d slots in %.2f s, %.0f ns per frame%n",
+                frames, ring.getCapacity(), elapsed, elapsed * 1e9 / frames);
+        gatingChecker.print("gating", 0);
+        copyingChecker.print("non-gating", copying.getLostCount());
+
+        final boolean passed = gatingChecker.whole(frames, 0)
+                && copyingChecker.whole(frames, copying.getLostCount())
+                && copying.getLostCount() > 0;
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static final class Checker implements FrameRing.Handler {
+        final long slowNanos;
+        long received;
+        long torn;
+        long outOfOrder;
+        long last = -1;
+
+        Checker(long slowNanos) {
+            this.slowNanos = slowNanos;
+        }
+
+        @Override
+        public void onFrame(SampleFrame frame, boolean endOfBatch) {
+            final long sequence = frame.getTimestamp();
+            final double[] values = frame.values();
+            for (double value : values) {
+                if (value != sequence) {
+                    torn++;
+                    break;
+                }
+            }
+            if (sequence <= last) {
+                outOfOrder++;
+            }
+            last = sequence;
+            received++;
+            if (slowNanos > 0) {
+                final long until = System.nanoTime() + slowNanos;
+                while (System.nanoTime() < until) {
+                    // As if the frame took a while to handle.
+                }
+            }
+        }
+
+        boolean whole(long frames, long lost) {
+            return torn == 0 && outOfOrder == 0 && received + lost == frames;
+        }
+
+        void print(String name, long lost) {
+            System.out.printf(Locale.US, "%-10s %d received, %d lost, %d torn, %d out of order%n",
+                    name, received, lost, torn, outOfOrder);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.pipeline.SyntheticHeadband;
+
+/**
+ * Pre-generated synthetic frames, so the benchmarks measure the pipeline and not the
+ * generator.
+ */
+final class Frames {
+
+    static final long SEED = 42;
+
+    private Frames() {
+    }
+
+    /**
+     * @return the frames a headband produces in {@code seconds} at {@code eegRateHz}.
+     */
+    static SampleFrame[] generate(double eegRateHz, int seconds) {
+        SyntheticHeadband headband = new SyntheticHeadband(eegRateHz, SEED);
+        java.util.ArrayList<SampleFrame> frames = new java.util.ArrayList<>();
+        final long end = seconds * 1000000L;
+        while (true) {
+            SampleFrame frame = headband.next(new SampleFrame());
+            if (frame.getTimestamp() >= end) {
+                break;
+            }
+            frames.add(frame);
+        }
+        return frames.toArray(new SampleFrame[0]);
+    }
+}
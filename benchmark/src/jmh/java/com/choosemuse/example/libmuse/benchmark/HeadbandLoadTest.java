@@ -0,0 +1,198 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.pipeline.FrameRing;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.session.HeadbandSession;
+import com.choosemuse.example.libmuse.session.SessionManager;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Several synthetic headbands recording at once, each into its own session of one
+ * {@link SessionManager}, in real time or faster.
+ * <p>
+ * Every headband has a radio thread that releases its frames at their timestamps into a
+ * bounded queue, like the Bluetooth stack buffering packets, and a packet thread playing
+ * the libmuse callback.  In {@code ring} mode the packet thread publishes each frame to a
+ * {@link FrameRing} and a recorder thread records it, as HeadbandConnection does; in
+ * {@code inline} mode the packet thread records it itself.  The time the packet thread
+ * spends per frame is reported as percentiles.
+ * <p>
+ * A frame that finds the queue or the ring full is dropped; the test fails if any headband
+ * drops a frame or records fewer frames than it was sent.
+ * <p>
+ * Usage: {@code HeadbandLoadTest [devices] [eegRateHz] [seconds] [speed] [ring|inline]}.  A
+ * speed of 0 sends the frames as fast as the packet threads take them, to measure the
+ * headroom.
+ */
+public final class HeadbandLoadTest {
+
+    /**
+     * About one second of frames at 256 Hz.
+     */
+    static final int QUEUE_CAPACITY = 512;
+
+    static final int RING_CAPACITY = 8192;
+
+    private static final SampleFrame END = new SampleFrame();
+
+    public static void main(String[] args) throws Exception {
+        final int devices = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final double eegRateHz = args.length > 1 ? Double.parseDouble(args[1]) : 256;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        final double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+        final boolean useRing = args.length <= 4 || !"inline".equals(args[4]);
+
+        final SampleFrame[] frames = Frames.generate(eegRateHz, seconds);
+        final SessionManager sessions = new SessionManager(
+                deviceId -> new IngestPipeline(IngestPipeline.DEFAULT_COLUMNS, eegRateHz));
+        final Device[] headbands = new Device[devices];
+        for (int d = 0; d < devices; d++) {
+            headbands[d] = new Device(sessions.open("device-" + d), frames, speed, useRing);
+        }
+        System.out.printf(Locale.US, "%d headbands at %.0f Hz, %d s of %d frames each, speed %s, %s%n",
+                devices, eegRateHz, seconds, frames.length, speed > 0 ? speed + "x" : "max",
+                useRing ? "ring" : "inline");
+
+        final long start = System.nanoTime();
+        for (Device device : headbands) {
+            device.start(start);
+        }
+        boolean passed = true;
+        for (Device device : headbands) {
+            device.done.await();
+            passed &= device.report(frames.length);
+        }
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.US, "%.0f frames/s over all headbands, %.1fx real time%n",
+                devices * (double) frames.length / elapsed, seconds / elapsed);
+        sessions.closeAll();
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static final class Device {
+        final HeadbandSession session;
+        final SampleFrame[] frames;
+        final double speed;
+        final BlockingQueue<SampleFrame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final CountDownLatch done = new CountDownLatch(1);
+        final FrameRing ring;
+        final FrameRing.Consumer recorder;
+        final SampleFrame packet = new SampleFrame();
+        final long[] callbackNanos;
+        long dropped;
+        long maxLateNanos;
+        int maxDepth;
+
+        Device(HeadbandSession session, SampleFrame[] frames, double speed, boolean useRing) {
+            this.session = session;
+            this.frames = frames;
+            this.speed = speed;
+            this.callbackNanos = new long[frames.length];
+            if (useRing) {
+                // Unpaced runs measure throughput, so the producer waits instead of dropping.
+                ring = new FrameRing(RING_CAPACITY,
+                        speed > 0 ? FrameRing.Overflow.DROP : FrameRing.Overflow.BLOCK);
+                recorder = ring.addConsumer("recorder", true, FrameRing.WaitStrategy.BATCHING);
+            } else {
+                ring = null;
+                recorder = null;
+            }
+        }
+
+        void start(long start) {
+            if (ring != null) {
+                recorder.start((frame, endOfBatch) -> session.onFrame(frame));
+            }
+            final Thread radio = new Thread(() -> send(start), session.getDeviceId() + "-radio");
+            final Thread packets = new Thread(this::receive, session.getDeviceId() + "-packets");
+            radio.start();
+            packets.start();
+        }
+
+        private void send(long start) {
+            try {
+                for (SampleFrame frame : frames) {
+                    if (speed > 0) {
+                        final long due = start + (long) (frame.getTimestamp() * 1000 / speed);
+                        long now;
+                        while ((now = System.nanoTime()) < due) {
+                            LockSupport.parkNanos(due - now);
+                        }
+                        maxLateNanos = Math.max(maxLateNanos, now - due);
+                        if (!queue.offer(frame)) {
+                            dropped++;
+                        }
+                    } else {
+                        queue.put(frame);
+                    }
+                    maxDepth = Math.max(maxDepth, queue.size());
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void receive() {
+            try {
+                SampleFrame frame;
+                int count = 0;
+                while ((frame = queue.take()) != END) {
+                    final long start = System.nanoTime();
+                    if (ring != null) {
+                        final SampleFrame slot = ring.claim();
+                        if (slot != null) {
+                            slot.copyFrom(frame);
+                            ring.publish();
+                        }
+                    } else {
+                        packet.copyFrom(frame);
+                        session.onFrame(packet);
+                    }
+                    callbackNanos[count++] = System.nanoTime() - start;
+                }
+                if (ring != null) {
+                    recorder.halt();
+                    while (recorder.getBacklog() > 0) {
+                        Thread.sleep(1);
+                    }
+                }
+                session.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        boolean report(int sent) {
+            final long recorded = session.getFrameCount();
+            final long ringDropped = ring != null ? ring.getDroppedCount() : 0;
+            System.out.printf(Locale.US,
+                    "%s: %d frames recorded, %d rows, %d dropped, queue depth max %d of %d, radio late max %.1f ms%n",
+                    session.getDeviceId(), recorded, session.getPipeline().getStore().size(),
+                    dropped + ringDropped, maxDepth, QUEUE_CAPACITY, maxLateNanos / 1e6);
+            final long[] sorted = callbackNanos.clone();
+            Arrays.sort(sorted);
+            System.out.printf(Locale.US,
+                    "    callback p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                    percentile(sorted, 0.5) / 1e3, percentile(sorted, 0.99) / 1e3,
+                    percentile(sorted, 0.999) / 1e3, sorted[sorted.length - 1] / 1e3);
+            return dropped == 0 && ringDropped == 0 && recorded == sent;
+        }
+
+        private static long percentile(long[] sorted, double fraction) {
+            return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.CsvUploadCallback;
+import com.choosemuse.example.libmuse.upload.FileUploadSource;
+import com.choosemuse.example.libmuse.upload.HttpSessionUploadTarget;
+import com.choosemuse.example.libmuse.upload.RetryPolicy;
+import com.choosemuse.example.libmuse.upload.SinglePostUploadTarget;
+import com.choosemuse.example.libmuse.upload.UploadManager;
+import com.choosemuse.example.libmuse.upload.UploadTarget;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a file through an {@link UploadManager} to an {@link UploadServer} on the
+ * loopback interface, so {@link HttpSessionUploadTarget}, {@link SinglePostUploadTarget}
+ * and the HTTP code under them run against a real socket with the failures of a real
+ * network:
+ * <ul>
+ * <li>a resumable upload whose chunks fail, are answered late or lose their
+ *     acknowledgement, and which must commit the file intact;</li>
+ * <li>one with a chunk in ten stalling past the read timeout, which must retry and
+ *     commit;</li>
+ * <li>one whose chunks always stall, which must fail with the timeout after the attempts
+ *     of its retry policy, not as if it were cancelled;</li>
+ * <li>one that is cancelled while a chunk stalls, which must end as cancelled after one
+ *     attempt;</li>
+ * <li>one whose chunks the server acknowledges without taking them, which must fail after
+ *     the attempts of its retry policy;</li>
+ * <li>one whose chunks are acknowledged with an offset past the end of the file, which
+ *     must not take that offset, and commits the file intact from the offsets it asks
+ *     for;</li>
+ * <li>a whole upload in one request that fails, then loses its acknowledgement.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code HttpUploadTest [sizeKiB] [readTimeoutMs]}.
+ */
+public final class HttpUploadTest {
+
+    private static final long TIMEOUT_S = 120;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int ATTEMPTS = 4;
+
+    public static void main(String[] args) throws Exception {
+        final int sizeKiB = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+        final int readTimeoutMs = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        final byte[] content = new byte[sizeKiB * 1024 - 123];
+        new Random(Frames.SEED).nextBytes(content);
+        final File file = File.createTempFile("upload", ".bin");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        final FileUploadSource source = new FileUploadSource(file, "session.bin",
+                "application/octet-stream", null);
+        final UploadManager manager = new UploadManager(1, 4, Runnable::run);
+        final RetryPolicy retryPolicy = new RetryPolicy(ATTEMPTS, 20, 100);
+        System.out.printf(Locale.US, "%d KiB, read timeout %d ms, %d attempts per chunk%n",
+                content.length / 1024, readTimeoutMs, ATTEMPTS);
+
+        boolean passed = true;
+        try (UploadServer server = new UploadServer()) {
+            final HttpSessionUploadTarget resumable = new HttpSessionUploadTarget(
+                    server.url("/session"), CONNECT_TIMEOUT_MS, readTimeoutMs);
+            server.stallMs = 3 * readTimeoutMs;
+
+            server.failEvery = 5;
+            server.dropEvery = 7;
+            server.delayEvery = 3;
+            server.delayMs = readTimeoutMs / 4;
+            Result result = upload(manager, source, resumable, retryPolicy);
+            passed &= check("faults", server, result, null, content);
+
+            server.reset();
+            server.stallEvery = 10;
+            result = upload(manager, source, resumable, retryPolicy);
+            passed &= check("stalls", server, result, null, content);
+            passed &= server.stalled.get() > 0;
+
+            server.reset();
+            server.stallEvery = 1;
+            result = upload(manager, source, resumable, retryPolicy);
+            passed &= check("stall always", server, result, SocketTimeoutException.class, null);
+            passed &= server.stalled.get() == ATTEMPTS;
+
+            server.reset();
+            server.stallEvery = 1;
+            result = new Result();
+            final Future<?> future = manager.upload(source, resumable, retryPolicy, result);
+            while (server.stalled.get() == 0) {
+                Thread.sleep(1);
+            }
+            future.cancel(true);
+            result.await();
+            passed &= check("cancel", server, result, InterruptedIOException.class, null);
+            passed &= server.stalled.get() == 1;
+
+            server.reset();
+            server.discardAppends = true;
+            result = upload(manager, source, resumable, retryPolicy);
+            passed &= check("no progress", server, result, IOException.class, null);
+            passed &= server.discarded.get() == ATTEMPTS;
+
+            server.reset();
+            server.offsetSkew = content.length;
+            result = upload(manager, source, resumable, retryPolicy);
+            passed &= check("bad offset", server, result, null, content);
+            passed &= server.skewed.get() > 0;
+
+            server.reset();
+            server.failEvery = 4;
+            server.dropEvery = 5;
+            // The first request fails and the second loses its acknowledgement.
+            server.dataRequests.set(3);
+            final SinglePostUploadTarget oneShot = new SinglePostUploadTarget(
+                    server.url("/post"), CONNECT_TIMEOUT_MS, readTimeoutMs);
+            result = upload(manager, source, oneShot, retryPolicy);
+            passed &= check("one request", server, result, null, content);
+            passed &= server.failed.get() == 1 && server.dropped.get() == 1;
+        } finally {
+            manager.shutdown();
+            file.delete();
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static Result upload(UploadManager manager, FileUploadSource source,
+                                 UploadTarget target, RetryPolicy retryPolicy)
+            throws InterruptedException {
+        final Result result = new Result();
+        manager.upload(source, target, retryPolicy, result);
+        result.await();
+        return result;
+    }
+
+    /**
+     * Reports one case and checks that it ended with {@code error}, or with the last
+     * upload the server received holding {@code expected}.
+     */
+    private static boolean check(String name, UploadServer server, Result result,
+                                 Class<?> error, byte[] expected) {
+        final List<UploadServer.Upload> uploads = server.getUploads();
+        final boolean ended = result.done.getCount() == 0;
+        final boolean passed;
+        if (error != null) {
+            passed = ended && error.isInstance(result.error);
+        } else {
+            passed = ended && result.error == null && !uploads.isEmpty()
+                    && Arrays.equals(expected, uploads.get(uploads.size() - 1).body);
+        }
+        System.out.printf(Locale.US, "%-13s %.2f s, %d requests: %d failed, %d dropped, "
+                        + "%d delayed, %d stalled, %d offset mismatches; %s%n",
+                name, result.elapsedNanos() / 1e9, server.requests.get(), server.failed.get(),
+                server.dropped.get(), server.delayed.get(), server.stalled.get(),
+                server.mismatched.get(),
+                !ended ? "did not end" : result.error != null ? result.error.toString() : "committed");
+        return passed;
+    }
+
+    private static final class Result implements CsvUploadCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long startNanos = System.nanoTime();
+        volatile long endNanos;
+        volatile Exception error;
+
+        @Override
+        public void onUploadSuccess(String response) {
+            endNanos = System.nanoTime();
+            done.countDown();
+        }
+
+        @Override
+        public void onUploadError(Exception e) {
+            error = e;
+            endNanos = System.nanoTime();
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            done.await(TIMEOUT_S, TimeUnit.SECONDS);
+        }
+
+        long elapsedNanos() {
+            return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per frame of ingesting a session: about a minute of synthetic frames is pushed
+ * through a fresh pipeline per invocation, so the allocation rate includes the session
+ * storage and the band powers computed from raw EEG.
+ * <p>
+ * {@code legacyStringRows} replays the original receiveMuseDataPacket, which appended a
+ * String[] of ten String.valueOf values per packet, as the reference point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IngestBenchmark {
+
+    /**
+     * Frames per invocation; about a minute of a 500 Hz session.
+     */
+    static final int FRAMES = 40000;
+
+    @Param({"256", "500"})
+    public double eegRateHz;
+
+    private SampleFrame[] frames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Every invocation processes exactly FRAMES frames so ns/op is per frame.
+        frames = Arrays.copyOf(Frames.generate(eegRateHz, 120), FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public IngestPipeline pipeline() {
+        IngestPipeline pipeline = new IngestPipeline(IngestPipeline.DEFAULT_COLUMNS, eegRateHz);
+        for (SampleFrame frame : frames) {
+            pipeline.onFrame(frame);
+        }
+        pipeline.flush();
+        return pipeline;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public List<String[]> legacyStringRows() {
+        List<String[]> rows = new ArrayList<>();
+        double[] eeg = new double[6];
+        for (SampleFrame frame : frames) {
+            if (frame.getType() == FrameType.EEG) {
+                System.arraycopy(frame.values(), 0, eeg, 0, 6);
+            }
+            rows.add(new String[]{
+                    String.valueOf(frame.getTimestamp()),
+                    String.valueOf(eeg[0]), String.valueOf(eeg[1]),
+                    String.valueOf(eeg[2]), String.valueOf(eeg[3]),
+                    String.valueOf(0.0), String.valueOf(0.0),
+                    String.valueOf(0.0), String.valueOf(0.0),
+                    String.valueOf(0.0)
+            });
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,68 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.metrics.LatencyHistogram;
+import com.choosemuse.example.libmuse.metrics.StripedCounter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of the metrics updated on the libmuse callback thread, per packet.
+ * <p>
+ * {@code callback} is what HeadbandConnection adds to every packet: two clock reads, a
+ * counter increment and a histogram record.  None of them may allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+    private static final int DURATIONS = 4096;
+
+    private final StripedCounter counter = new StripedCounter();
+    private final AtomicLong atomic = new AtomicLong();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final long[] durations = new long[DURATIONS];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // Callback times from a few hundred nanoseconds to a few milliseconds.
+        final Random random = new Random(Frames.SEED);
+        for (int i = 0; i < DURATIONS; i++) {
+            durations[i] = (long) Math.exp(5 + 10 * random.nextDouble());
+        }
+    }
+
+    @Benchmark
+    public void stripedCounter() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public long atomicLong() {
+        return atomic.incrementAndGet();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        next = (next + 1) & (DURATIONS - 1);
+        histogram.record(durations[next]);
+    }
+
+    @Benchmark
+    public void callback() {
+        final long start = System.nanoTime();
+        counter.increment();
+        histogram.recordSince(start);
+    }
+}
@@ -0,0 +1,26 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.pipeline.SyntheticHeadband;
+
+/**
+ * Fills pipelines with synthetic sessions for benchmark setup.
+ */
+final class Replay {
+
+    private Replay() {
+    }
+
+    /**
+     * Feeds a 256 Hz synthetic headband into {@code pipeline} until it has recorded
+     * {@code rows} rows.
+     */
+    static void untilRows(IngestPipeline pipeline, int rows) {
+        SyntheticHeadband headband = new SyntheticHeadband(256, Frames.SEED);
+        SampleFrame frame = new SampleFrame();
+        while (pipeline.getStore().size() < rows) {
+            pipeline.onFrame(headband.next(frame));
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.CsvUploadCallback;
+import com.choosemuse.example.libmuse.data.DecimatedCsvExporter;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.upload.OffsetMismatchException;
+import com.choosemuse.example.libmuse.upload.ResumableUploadTarget;
+import com.choosemuse.example.libmuse.upload.RollingUpload;
+import com.choosemuse.example.libmuse.upload.UploadManager;
+import com.choosemuse.example.libmuse.upload.UploadSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Records a synthetic session faster than real time while a {@link RollingUpload} sends
+ * it, and compares the time Send takes at the end with uploading the whole session then.
+ * <p>
+ * The target keeps each upload in memory and waits a round trip per request.  While the
+ * session is recorded it fails every 7th append and takes only half of every 5th, so the
+ * chunks are retried and continued from the offset it reports.  At the end, with no more
+ * faults, {@link RollingUpload#finish} sends the rest and commits; the time from Send to
+ * the response is compared with exporting and uploading the whole session through an
+ * {@link UploadManager}, in chunks of 256 KiB.
+ * <p>
+ * The test fails if the upload, decompressed, differs from the CSV export of the session,
+ * or if the target was sent bytes it had already acknowledged.  With an export rate the
+ * session is decimated by a {@link DecimatedCsvExporter} and the upload, exported in chunks,
+ * must equal the same export in one piece.
+ * <p>
+ * Then the session is sent again by a rolling upload whose commit fails, as when the
+ * network goes away at Send.  The upload must report the error and stop, and the session
+ * must go through as a whole the way the app then sends it: the test fails if the failed
+ * upload is still active, can be finished again, or the whole upload differs from the
+ * export.
+ * <p>
+ * Usage: {@code RollingUploadTest [eegRateHz] [minutes] [speed] [intervalSeconds] [rttMs] [gzip]
+ * [exportRateHz]}.  The interval is in session time; it is divided by the speed like the
+ * recording.  An export rate of 0, the default, exports at the full rate.
+ */
+public final class RollingUploadTest {
+
+    private static final long TIMEOUT_S = 600;
+
+    public static void main(String[] args) throws Exception {
+        final double eegRateHz = args.length > 0 ? Double.parseDouble(args[0]) : 256;
+        final int minutes = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        final double speed = args.length > 2 ? Double.parseDouble(args[2]) : 120;
+        final double intervalSeconds = args.length > 3 ? Double.parseDouble(args[3]) : 10;
+        final int rttMs = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+        final boolean gzip = args.length <= 5 || Boolean.parseBoolean(args[5]);
+        final double exportRateHz = args.length > 6 ? Double.parseDouble(args[6]) : 0;
+
+        final SampleFrame[] frames = Frames.generate(eegRateHz, minutes * 60);
+        final IngestPipeline pipeline = new IngestPipeline(IngestPipeline.DEFAULT_COLUMNS, eegRateHz);
+        final SampleStore store = pipeline.getStore();
+        final Target target = new Target(rttMs);
+        final RollingUpload rolling = new RollingUpload(store, target, "session.csv", gzip,
+                decimated(store, eegRateHz, exportRateHz),
+                Math.max(1, (long) (intervalSeconds * 1000 / speed)),
+                RollingUpload.DEFAULT_CHUNK_ROWS, Runnable::run);
+
+        target.faults = true;
+        rolling.start();
+        final long start = System.nanoTime();
+        for (SampleFrame frame : frames) {
+            final long due = start + (long) (frame.getTimestamp() * 1000 / speed);
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            pipeline.onFrame(frame);
+        }
+        final double recordSeconds = (System.nanoTime() - start) / 1e9;
+        target.faults = false;
+        final int acknowledgedAtSend = rolling.getAcknowledgedRows();
+
+        final Result rollingResult = new Result();
+        final long rollingStart = System.nanoTime();
+        rolling.finish(rollingResult);
+        rollingResult.await();
+        final double rollingMs = (System.nanoTime() - rollingStart) / 1e6;
+        final long sentWhileRecording = target.sent.get() - target.finalSent;
+        final byte[] uploaded = target.committed != null ? target.committed : new byte[0];
+
+        final ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        final DecimatedCsvExporter decimated = decimated(store, eegRateHz, exportRateHz);
+        if (decimated != null) {
+            decimated.export(csv);
+        } else {
+            new SessionCsvExporter().export(store, csv);
+        }
+        final byte[] expected = csv.toByteArray();
+        final byte[] decoded = gzip ? gunzip(uploaded) : uploaded;
+
+        final Target wholeTarget = new Target(rttMs);
+        final UploadManager manager = new UploadManager(1, 1, Runnable::run);
+        final File spool = File.createTempFile("rolling", ".csv");
+        final Result wholeResult = new Result();
+        final long wholeStart = System.nanoTime();
+        manager.uploadCsv(store, spool, "session.csv", gzip,
+                decimated(store, eegRateHz, exportRateHz), wholeTarget, wholeResult);
+        wholeResult.await();
+        final double wholeMs = (System.nanoTime() - wholeStart) / 1e6;
+        manager.shutdown();
+        spool.delete();
+
+        System.out.printf(Locale.US, "%d rows, %d min at %.0f Hz recorded in %.1f s, %.0fx; "
+                        + "chunks every %.0f s of session, %d ms round trip%n",
+                store.size(), minutes, eegRateHz, recordSeconds, speed, intervalSeconds, rttMs);
+        System.out.printf(Locale.US, "rolling: %d appends (%d failed, %d partial), %d of %d rows "
+                        + "acknowledged at Send, %.1f MiB upload%n",
+                target.appends.get(), target.failed.get(), target.partial.get(), acknowledgedAtSend,
+                store.size(), uploaded.length / 1048576.0);
+        System.out.printf(Locale.US, "Send: rolling %.0f ms (%d appends, %.0f KiB), whole session "
+                        + "%.0f ms (%d appends, %.1f MiB)%n",
+                rollingMs, target.finalAppends, target.finalSent / 1024.0, wholeMs,
+                wholeTarget.appends.get(), wholeTarget.sent.get() / 1048576.0);
+        System.out.printf(Locale.US, "%d bytes sent while recording, %d of them again after a "
+                        + "failed append; %d bytes resent after acknowledged%n",
+                sentWhileRecording, target.resentAfterFailure.get(), target.resentAcknowledged.get());
+
+        final boolean commitFailureHandled = commitFails(store, eegRateHz, exportRateHz, gzip,
+                expected);
+
+        final boolean passed = rollingResult.error == null && wholeResult.error == null
+                && Arrays.equals(decoded, expected) && target.resentAcknowledged.get() == 0
+                && commitFailureHandled;
+        if (rollingResult.error != null) {
+            System.out.println("rolling upload failed: " + rollingResult.error);
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Finishes a rolling upload of the recorded session whose commit fails, and then sends
+     * the session as a whole, as the app does when a rolling upload fails.
+     * @return whether the rolling upload stopped and the whole upload equals {@code expected}.
+     */
+    private static boolean commitFails(SampleStore store, double eegRateHz, double exportRateHz,
+                                       boolean gzip, byte[] expected) throws Exception {
+        final Target failing = new Target(0);
+        failing.failFinish = true;
+        final RollingUpload rolling = new RollingUpload(store, failing, "session.csv", gzip,
+                decimated(store, eegRateHz, exportRateHz), RollingUpload.DEFAULT_INTERVAL_MS,
+                RollingUpload.DEFAULT_CHUNK_ROWS, Runnable::run);
+        final Result failed = new Result();
+        rolling.finish(failed);
+        failed.await();
+        final Result again = new Result();
+        rolling.finish(again);
+        again.await();
+
+        final Target whole = new Target(0);
+        final UploadManager manager = new UploadManager(1, 1, Runnable::run);
+        final File spool = File.createTempFile("rolling", ".csv");
+        final Result wholeResult = new Result();
+        manager.uploadCsv(store, spool, "session.csv", gzip,
+                decimated(store, eegRateHz, exportRateHz), whole, wholeResult);
+        wholeResult.await();
+        manager.shutdown();
+        spool.delete();
+        final byte[] uploaded = whole.committed != null ? whole.committed : new byte[0];
+        final boolean sent = wholeResult.error == null
+                && Arrays.equals(gzip ? gunzip(uploaded) : uploaded, expected);
+
+        System.out.printf(Locale.US, "commit failed: \"%s\", active %b, finished again: \"%s\"; "
+                        + "whole session sent instead %s%n", failed.error != null
+                        ? failed.error.getMessage() : "no error", rolling.isActive(),
+                again.error != null ? again.error.getMessage() : "no error",
+                sent ? "and equal" : "and different");
+        return failed.error != null && !rolling.isActive() && again.error != null && sent;
+    }
+
+    private static DecimatedCsvExporter decimated(SampleStore store, double eegRateHz,
+                                                  double exportRateHz) {
+        return exportRateHz > 0 ? DecimatedCsvExporter.forColumns(store,
+                IngestPipeline.DEFAULT_COLUMNS, eegRateHz, exportRateHz, true) : null;
+    }
+
+    private static final class Result implements CsvUploadCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Exception error;
+
+        @Override
+        public void onUploadSuccess(String response) {
+            done.countDown();
+        }
+
+        @Override
+        public void onUploadError(Exception e) {
+            error = e;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            done.await(TIMEOUT_S, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Keeps one upload session in memory.  Only called from one upload thread at a time.
+     */
+    private static final class Target implements ResumableUploadTarget {
+        final int rttMs;
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final AtomicLong appends = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong partial = new AtomicLong();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong resentAfterFailure = new AtomicLong();
+        final AtomicLong resentAcknowledged = new AtomicLong();
+        volatile boolean faults;
+        volatile boolean failFinish;
+        long failedOffset = -1;
+        long finalAppends;
+        long finalSent;
+        byte[] committed;
+
+        Target(int rttMs) {
+            this.rttMs = rttMs;
+        }
+
+        @Override
+        public String begin(UploadSource source) throws IOException {
+            roundTrip();
+            return "session";
+        }
+
+        @Override
+        public long append(String session, long offset, byte[] chunk, int length)
+                throws IOException {
+            roundTrip();
+            final long n = appends.incrementAndGet();
+            sent.addAndGet(length);
+            if (!faults) {
+                finalAppends++;
+                finalSent += length;
+            }
+            if (offset == failedOffset) {
+                resentAfterFailure.addAndGet(length);
+                failedOffset = -1;
+            }
+            if (offset < received.size()) {
+                resentAcknowledged.addAndGet(Math.min(length, received.size() - offset));
+            }
+            if (offset != received.size()) {
+                throw new OffsetMismatchException(received.size());
+            }
+            if (faults && n % 7 == 0) {
+                failed.incrementAndGet();
+                failedOffset = offset;
+                throw new IOException("connection reset");
+            }
+            final int taken = faults && n % 5 == 0 ? length / 2 : length;
+            if (taken < length) {
+                partial.incrementAndGet();
+            }
+            received.write(chunk, 0, taken);
+            return offset + taken;
+        }
+
+        @Override
+        public long queryOffset(String session) {
+            return received.size();
+        }
+
+        @Override
+        public String finish(String session, UploadSource source, long length) throws IOException {
+            roundTrip();
+            if (failFinish) {
+                throw new IOException("503 Service Unavailable");
+            }
+            if (length != received.size()) {
+                throw new IOException("committed " + length + " of " + received.size());
+            }
+            committed = received.toByteArray();
+            return "ok";
+        }
+
+        private void roundTrip() throws IOException {
+            try {
+                Thread.sleep(rttMs);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static byte[] gunzip(byte[] gzip) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            final byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
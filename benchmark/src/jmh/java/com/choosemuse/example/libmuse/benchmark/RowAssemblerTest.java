@@ -0,0 +1,130 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.RowAssembler;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+
+import java.util.Locale;
+
+/**
+ * Feeds a {@link RowAssembler} a synthetic stream of raw EEG at 256 Hz, PPG at 64 Hz,
+ * alpha band powers at 10 Hz and an accelerometer at 52 Hz that has no column, and checks
+ * the rows against the values the streams were generated from.
+ * <p>
+ * The rows are on the EEG clock: one per EEG sample, 2561 over 10 s, where the old
+ * activity appended one per packet of any stream, 3301 for EEG, PPG and bands alone.  The
+ * EEG column must hold the sample itself and the band column the latest band sample.  The
+ * PPG is a straight line in time, so its linear interpolation at every row time is exact,
+ * and every row must carry the line's value; the rows after the last PPG sample keep it.
+ * <p>
+ * Usage: {@code RowAssemblerTest [seconds]}.
+ */
+public final class RowAssemblerTest {
+
+    private static final double EEG_RATE_HZ = 256;
+    private static final double PPG_RATE_HZ = 64;
+    private static final double BAND_RATE_HZ = 10;
+    private static final double ACCEL_RATE_HZ = 52;
+    private static final double TOLERANCE = 1e-9;
+
+    private static final RowAssembler.Column[] COLUMNS = {
+            new RowAssembler.Column("eeg1", FrameType.EEG, 0, RowAssembler.Interpolation.HOLD),
+            new RowAssembler.Column("alpha_absolute", FrameType.ALPHA_ABSOLUTE, 0,
+                    RowAssembler.Interpolation.HOLD),
+            new RowAssembler.Column("ppg", FrameType.PPG, 1, RowAssembler.Interpolation.LINEAR),
+    };
+
+    public static void main(String[] args) {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        final SampleStore store = new SampleStore(RowAssembler.columnNames(COLUMNS));
+        final RowAssembler assembler = new RowAssembler(store, COLUMNS, FrameType.EEG);
+        // EEG up to and including the last second, the slower streams before it.
+        final long eegSamples = (long) (seconds * EEG_RATE_HZ) + 1;
+        final long ppgSamples = (long) (seconds * PPG_RATE_HZ);
+        final long bandSamples = (long) (seconds * BAND_RATE_HZ);
+        final long accelSamples = (long) (seconds * ACCEL_RATE_HZ);
+        final double[] values = new double[FrameType.MAX_VALUES];
+        long eeg = 0;
+        long ppg = 0;
+        long band = 0;
+        long accel = 0;
+        long packets = 0;
+        while (eeg < eegSamples) {
+            // The next packet in time; at equal times the slower streams go first.
+            final long eegTime = time(eeg, EEG_RATE_HZ);
+            if (band < bandSamples && time(band, BAND_RATE_HZ) <= eegTime) {
+                values[0] = band;
+                assembler.onSample(FrameType.ALPHA_ABSOLUTE, time(band++, BAND_RATE_HZ), values);
+                packets++;
+            } else if (ppg < ppgSamples && time(ppg, PPG_RATE_HZ) <= eegTime) {
+                final long t = time(ppg++, PPG_RATE_HZ);
+                values[1] = ppg(t);
+                assembler.onSample(FrameType.PPG, t, values);
+                packets++;
+            } else if (accel < accelSamples && time(accel, ACCEL_RATE_HZ) <= eegTime) {
+                values[0] = -1;
+                values[1] = -1;
+                assembler.onSample(FrameType.ACCELEROMETER, time(accel++, ACCEL_RATE_HZ), values);
+            } else {
+                values[0] = eeg;
+                assembler.onSample(FrameType.EEG, time(eeg++, EEG_RATE_HZ), values);
+                packets++;
+            }
+        }
+        assembler.flush();
+
+        final long lastPpgTime = time(ppgSamples - 1, PPG_RATE_HZ);
+        long wrongTimes = 0;
+        long wrongEeg = 0;
+        long wrongBands = 0;
+        long wrongPpg = 0;
+        double maxPpgError = 0;
+        for (int row = 0; row < store.size(); row++) {
+            final long t = store.getTimestamp(row);
+            if (t != time(row, EEG_RATE_HZ)) {
+                wrongTimes++;
+            }
+            if (store.getValue(row, 0) != row) {
+                wrongEeg++;
+            }
+            if (store.getValue(row, 1) != Math.min(bandSamples - 1, (long) (t * BAND_RATE_HZ / 1e6))) {
+                wrongBands++;
+            }
+            final double ppgError = Math.abs(store.getValue(row, 2) - ppg(Math.min(t, lastPpgTime)));
+            maxPpgError = Math.max(maxPpgError, ppgError);
+            if (ppgError > TOLERANCE) {
+                wrongPpg++;
+            }
+        }
+
+        System.out.printf(Locale.US, "%d s: %d EEG, %d PPG, %d band and %d accelerometer packets%n",
+                seconds, eegSamples, ppgSamples, bandSamples, accelSamples);
+        System.out.printf(Locale.US, "%d rows, one per packet would be %d, %d with the accelerometer%n",
+                store.size(), packets, packets + accelSamples);
+        System.out.printf(Locale.US, "wrong: %d timestamps, %d EEG, %d band, %d PPG values; "
+                + "PPG off the line by at most %.3g%n", wrongTimes, wrongEeg, wrongBands, wrongPpg,
+                maxPpgError);
+
+        boolean passed = store.size() == eegSamples && wrongTimes == 0 && wrongEeg == 0
+                && wrongBands == 0 && wrongPpg == 0;
+        if (seconds == 10) {
+            passed &= store.size() == 2561 && packets == 3301;
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static long time(long sample, double rateHz) {
+        return Math.round(sample * 1e6 / rateHz);
+    }
+
+    /**
+     * The PPG IR value at {@code t} microseconds: a straight line.
+     */
+    private static double ppg(long t) {
+        return 50_000 + t / 1e4;
+    }
+}
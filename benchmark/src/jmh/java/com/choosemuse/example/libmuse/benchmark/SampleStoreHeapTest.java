@@ -0,0 +1,87 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the heap retained by a session held in a {@link SampleStore} and by the same
+ * rows held as the {@code List<String[]>} the activity used to keep, one String per value.
+ * <p>
+ * Each is measured as the used heap after a full GC with the rows held, minus the used
+ * heap before they were created.  The pipeline that filled the store is dropped first, so
+ * only the rows are counted.  The test fails if the store does not retain less than a
+ * fifth of the list, or if its measured heap is more than 10% off
+ * {@link SampleStore#getFootprintBytes()}.
+ * <p>
+ * Usage: {@code java -Xmx3g ... SampleStoreHeapTest [rows]}.
+ */
+public final class SampleStoreHeapTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        final int rows = args.length > 0 ? Integer.parseInt(args[0]) : CsvExportBenchmark.ROWS;
+
+        final long before = usedAfterGc();
+        SampleStore store = fill(rows);
+        final long storeBytes = usedAfterGc() - before;
+        final long footprint = store.getFootprintBytes();
+        final int columns = store.getColumnCount() + 1;
+
+        List<String[]> stringRows = new ArrayList<>(rows);
+        final List<String[]> view = store.asStringRows();
+        for (int row = 0; row < rows; row++) {
+            stringRows.add(view.get(row));
+        }
+        store = null;
+        final long listBytes = usedAfterGc() - before;
+        // Keeps the list reachable until it has been measured.
+        final int listed = stringRows.size();
+        stringRows = null;
+
+        System.out.printf(Locale.US, "%d rows of %d values%n", listed, columns);
+        System.out.printf(Locale.US, "%-16s %8.1f MB  %6.1f bytes per row%n", "SampleStore",
+                storeBytes / 1e6, storeBytes / (double) rows);
+        System.out.printf(Locale.US, "%-16s %8.1f MB  %6.1f bytes per row%n", "List<String[]>",
+                listBytes / 1e6, listBytes / (double) rows);
+        System.out.printf(Locale.US, "getFootprintBytes %7.1f MB, the list retains %.1fx the store%n",
+                footprint / 1e6, listBytes / (double) storeBytes);
+
+        final boolean passed = storeBytes * 5 < listBytes
+                && Math.abs(storeBytes - footprint) <= footprint / 10;
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return a store with {@code rows} rows of the default columns; the pipeline that
+     *         filled it is left to the GC.
+     */
+    private static SampleStore fill(int rows) {
+        final IngestPipeline pipeline = new IngestPipeline();
+        Replay.untilRows(pipeline, rows);
+        return pipeline.getStore();
+    }
+
+    /**
+     * @return the used heap after GC, once it has stopped shrinking.
+     */
+    private static long usedAfterGc() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            final long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,128 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.data.SessionFileCsvConverter;
+import com.choosemuse.example.libmuse.data.SessionFileExporter;
+import com.choosemuse.example.libmuse.data.SessionFileFormat;
+import com.choosemuse.example.libmuse.data.SessionFileReader;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size and speed of the binary session file against the CSV export, for the same session
+ * of one million rows as {@link CsvExportBenchmark}.
+ * <p>
+ * The sizes, which decide how long an upload takes, are printed once per trial along with
+ * the upload time they imply on a 1 Mbit/s uplink.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SessionFileBenchmark {
+
+    static final int ROWS = CsvExportBenchmark.ROWS;
+
+    private static final double UPLINK_BYTES_PER_SECOND = 1e6 / 8;
+
+    private SampleStore store;
+    private File sessionFile;
+    private final long[] timestamps = new long[SessionFileFormat.BLOCK_ROWS];
+    private double[][] values;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        IngestPipeline pipeline = new IngestPipeline();
+        Replay.untilRows(pipeline, ROWS);
+        store = pipeline.getStore();
+        values = new double[store.getColumnCount()][SessionFileFormat.BLOCK_ROWS];
+        sessionFile = File.createTempFile("session", SessionFileFormat.EXTENSION);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(sessionFile))) {
+            new SessionFileExporter().export(store, out);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        long csv = csvExport();
+        long gzip = csvGzipExport();
+        long binary = sessionFile.length();
+        System.out.println();
+        report("csv", csv, csv);
+        report("csv.gz", gzip, csv);
+        report("binary", binary, csv);
+        sessionFile.delete();
+    }
+
+    private void report(String format, long bytes, long csvBytes) {
+        System.out.printf("%-7s %,12d bytes  %6.2f bytes/row  %5.2fx smaller than csv  %6.1f s upload at 1 Mbit/s%n",
+                format, bytes, (double) bytes / ROWS, (double) csvBytes / bytes,
+                bytes / UPLINK_BYTES_PER_SECOND);
+    }
+
+    @Benchmark
+    public long csvExport() throws IOException {
+        DiscardOutputStream out = new DiscardOutputStream();
+        new SessionCsvExporter().export(store, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long csvGzipExport() throws IOException {
+        DiscardOutputStream out = new DiscardOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+        new SessionCsvExporter().export(store, gzip);
+        gzip.finish();
+        return out.count;
+    }
+
+    @Benchmark
+    public long binaryExport() throws IOException {
+        DiscardOutputStream out = new DiscardOutputStream();
+        new SessionFileExporter().export(store, out);
+        return out.count;
+    }
+
+    /**
+     * Decodes every block of the memory mapped file.
+     */
+    @Benchmark
+    public long binaryRead() throws IOException {
+        long sum = 0;
+        try (SessionFileReader reader = SessionFileReader.open(sessionFile)) {
+            for (int b = 0; b < reader.getBlockCount(); b++) {
+                int rows = reader.readBlock(b, timestamps, values);
+                sum += timestamps[rows - 1];
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long binaryToCsv() throws IOException {
+        DiscardOutputStream out = new DiscardOutputStream();
+        try (SessionFileReader reader = SessionFileReader.open(sessionFile)) {
+            SessionFileCsvConverter.convert(reader, out);
+        }
+        return out.count;
+    }
+}
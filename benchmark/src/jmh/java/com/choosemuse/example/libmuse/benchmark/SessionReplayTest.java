@@ -0,0 +1,234 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.RowAssembler;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.data.SessionFileExporter;
+import com.choosemuse.example.libmuse.data.SessionFileFrameSource;
+import com.choosemuse.example.libmuse.data.SessionFileReader;
+import com.choosemuse.example.libmuse.dsp.FilterBank;
+import com.choosemuse.example.libmuse.pipeline.FrameRing;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.pipeline.SessionReplay;
+import com.choosemuse.example.libmuse.session.HeadbandSession;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records a synthetic session, exports it as a session file and plays the file back with
+ * {@link SessionReplay}, to check that a replay reproduces the session and to measure the
+ * highest rate the recording path sustains.
+ * <p>
+ * The session is recorded with the raw and filtered EEG, like the app.  It is played
+ * twice straight into a pipeline, as fast as possible, and once through a
+ * {@link FrameRing} and a recorder thread, as HeadbandConnection plays it, with a ring
+ * that holds the replay back instead of dropping frames.  All three must export the same
+ * CSV, and must record the same timestamps and the same raw EEG and PPG as the original
+ * session; the columns the pipeline computes again from the rounded EEG of the file are
+ * reported as the largest difference.  With a speed the file is also played paced, through
+ * a ring that drops frames like the one of a headband, and must not drop any.
+ * <p>
+ * Usage: {@code SessionReplayTest [eegRateHz] [seconds] [speed]}.  A speed of 0, the
+ * default, skips the paced replay.
+ */
+public final class SessionReplayTest {
+
+    private static final double MAINS_HZ = 50;
+    private static final RowAssembler.Column[] COLUMNS =
+            IngestPipeline.columns(IngestPipeline.EegExport.BOTH);
+
+    public static void main(String[] args) throws Exception {
+        final double eegRateHz = args.length > 0 ? Double.parseDouble(args[0]) : 256;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+        final double speed = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+
+        final IngestPipeline original = pipeline(eegRateHz);
+        final SampleFrame[] frames = Frames.generate(eegRateHz, seconds);
+        for (SampleFrame frame : frames) {
+            original.onFrame(frame);
+        }
+        original.flush();
+        final File file = File.createTempFile("replay", ".session");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            new SessionFileExporter().export(original.getStore(), out);
+        }
+        System.out.printf(Locale.US, "%d s at %.0f Hz: %d frames, %d rows, %.1f MiB session file%n",
+                seconds, eegRateHz, frames.length, original.getStore().size(),
+                file.length() / 1048576.0);
+
+        final IngestPipeline first = pipeline(eegRateHz);
+        final SessionReplay firstReplay = replayInline(file, first);
+        final IngestPipeline second = pipeline(eegRateHz);
+        replayInline(file, second);
+        final HeadbandSession ringSession = new HeadbandSession("replay", pipeline(eegRateHz));
+        final Ring ring = new Ring(ringSession, FrameRing.Overflow.BLOCK);
+        final SessionReplay ringReplay = new SessionReplay(source(file), 0);
+        ring.play(ringReplay);
+        final int rows = original.getStore().size();
+        report("inline, unpaced", firstReplay, rows, 0);
+        report("ring, unpaced", ringReplay, rows, ring.ring.getDroppedCount());
+
+        final byte[] expected = csv(first);
+        final boolean deterministic = Arrays.equals(expected, csv(second))
+                && Arrays.equals(expected, csv(ringSession.getPipeline()));
+        final File replayed = File.createTempFile("replayed", ".session");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(replayed))) {
+            new SessionFileExporter().export(first.getStore(), out);
+        }
+        final boolean reproduced = compare(file, replayed);
+        System.out.println("replays identical: " + deterministic);
+
+        boolean paced = true;
+        if (speed > 0) {
+            final HeadbandSession pacedSession = new HeadbandSession("paced", pipeline(eegRateHz));
+            final Ring pacedRing = new Ring(pacedSession, FrameRing.Overflow.DROP);
+            final SessionReplay pacedReplay = new SessionReplay(source(file), speed);
+            pacedRing.play(pacedReplay);
+            report(String.format(Locale.US, "ring, %.0fx", speed), pacedReplay, rows,
+                    pacedRing.ring.getDroppedCount());
+            paced = pacedRing.ring.getDroppedCount() == 0
+                    && Arrays.equals(expected, csv(pacedSession.getPipeline()));
+        }
+        file.delete();
+        replayed.delete();
+
+        final boolean passed = deterministic && reproduced && paced;
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * A pipeline like the app's, without the timestamp corrector: the replayed timestamps
+     * are the recorded ones.
+     */
+    private static IngestPipeline pipeline(double eegRateHz) {
+        final IngestPipeline pipeline = new IngestPipeline(COLUMNS, eegRateHz);
+        pipeline.setFilterBank(FilterBank.forEeg(FrameType.EEG.getValueCount(), eegRateHz, MAINS_HZ));
+        return pipeline;
+    }
+
+    private static SessionFileFrameSource source(File file) throws IOException {
+        return new SessionFileFrameSource(file, COLUMNS);
+    }
+
+    private static SessionReplay replayInline(File file, IngestPipeline pipeline) throws IOException {
+        final SessionReplay replay = new SessionReplay(source(file), 0);
+        replay.run(pipeline::onFrame);
+        pipeline.flush();
+        return replay;
+    }
+
+    /**
+     * The ring and recorder of a HeadbandConnection, which cannot be loaded without
+     * libmuse.
+     */
+    private static final class Ring {
+        final HeadbandSession session;
+        final FrameRing ring;
+        final FrameRing.Consumer recorder;
+
+        Ring(HeadbandSession session, FrameRing.Overflow overflow) {
+            this.session = session;
+            this.ring = new FrameRing(HeadbandLoadTest.RING_CAPACITY, overflow);
+            this.recorder = ring.addConsumer("recorder", true, FrameRing.WaitStrategy.BATCHING);
+        }
+
+        void play(SessionReplay replay) throws Exception {
+            final Thread thread = recorder.start((frame, endOfBatch) -> session.onFrame(frame));
+            replay.run(frame -> {
+                final SampleFrame slot = ring.claim();
+                if (slot != null) {
+                    slot.copyFrom(frame);
+                    ring.publish();
+                }
+            });
+            recorder.halt();
+            thread.join();
+            session.flush();
+        }
+    }
+
+    private static void report(String mode, SessionReplay replay, int rows, long dropped) {
+        final double elapsed = replay.getElapsedNanos() / 1e9;
+        System.out.printf(Locale.US, "%-16s %d frames in %.2f s, %.0f frames/s, %.0f rows/s, "
+                        + "%.0fx real time, late max %.1f ms, %d dropped%n",
+                mode, replay.getFrameCount(), elapsed, replay.getFrameCount() / elapsed,
+                rows / elapsed, replay.getAchievedSpeed(), replay.getMaxLateNanos() / 1e6, dropped);
+    }
+
+    private static byte[] csv(IngestPipeline pipeline) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SessionCsvExporter().export(pipeline.getStore(), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Compares the original session file with the one of a replay: the timestamps and the
+     * recorded columns must match, the computed ones are reported.
+     * @return whether they match.
+     */
+    private static boolean compare(File originalFile, File replayedFile) throws IOException {
+        try (SessionFileReader original = SessionFileReader.open(originalFile);
+             SessionFileReader replayed = SessionFileReader.open(replayedFile)) {
+            if (original.getRowCount() != replayed.getRowCount()
+                    || original.getBlockCount() != replayed.getBlockCount()) {
+                System.out.printf(Locale.US, "replay has %d rows in %d blocks, not %d in %d%n",
+                        replayed.getRowCount(), replayed.getBlockCount(),
+                        original.getRowCount(), original.getBlockCount());
+                return false;
+            }
+            final int columns = original.getColumnCount();
+            final boolean[] computed = new boolean[columns];
+            for (int c = 0; c < columns; c++) {
+                final String name = original.getColumnName(c);
+                computed[c] = name.endsWith("_filtered") || name.endsWith("_absolute")
+                        || name.equals("blink") || name.equals("jaw_clench")
+                        || name.equals("headband_off");
+            }
+            final double[] maxDifference = new double[columns];
+            long mismatched = 0;
+            for (int b = 0; b < original.getBlockCount(); b++) {
+                final int rows = original.getBlockRowCount(b);
+                final long[] t0 = new long[rows];
+                final long[] t1 = new long[rows];
+                final double[][] v0 = new double[columns][rows];
+                final double[][] v1 = new double[columns][rows];
+                original.readBlock(b, t0, v0);
+                replayed.readBlock(b, t1, v1);
+                for (int r = 0; r < rows; r++) {
+                    if (t0[r] != t1[r]) {
+                        mismatched++;
+                    }
+                    for (int c = 0; c < columns; c++) {
+                        final double difference = Math.abs(v0[c][r] - v1[c][r]);
+                        final boolean bothNaN = Double.isNaN(v0[c][r]) && Double.isNaN(v1[c][r]);
+                        if (!computed[c] && difference != 0 && !bothNaN) {
+                            mismatched++;
+                        }
+                        maxDifference[c] = Math.max(maxDifference[c], difference);
+                    }
+                }
+            }
+            final StringBuilder differences = new StringBuilder();
+            for (int c = 0; c < columns; c++) {
+                if (computed[c]) {
+                    differences.append(String.format(Locale.US, " %s %.3g",
+                            original.getColumnName(c), maxDifference[c]));
+                }
+            }
+            System.out.printf(Locale.US, "recorded values and timestamps: %d mismatched%n", mismatched);
+            System.out.println("computed again, largest difference:" + differences);
+            return mismatched == 0;
+        }
+    }
+}
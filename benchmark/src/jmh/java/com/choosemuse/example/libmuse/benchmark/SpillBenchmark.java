@@ -0,0 +1,109 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.RowAssembler;
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.data.SessionCsvExporter;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of spilling a session to disk instead of keeping it on the heap.
+ * <p>
+ * {@code ingest} feeds the frames of {@code IngestBenchmark} into a pipeline whose store
+ * spills every chunk, forcing it to storage; the pipeline lives for a whole iteration so
+ * the session grows far past the chunks kept in memory.  Compare it with
+ * {@code IngestBenchmark.pipeline}.  {@code csvExport}
+ * exports the same million rows as {@link CsvExportBenchmark}, read back from the spill
+ * except for the chunks still in memory.  The heap used by the store is printed once per
+ * trial next to what the memory only store would use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SpillBenchmark {
+
+    static final int ROWS = CsvExportBenchmark.ROWS;
+
+    static final int MEMORY_CHUNKS = 8;
+
+    private File dir;
+    private SampleStore store;
+
+    private SampleFrame[] frames;
+    private File ingestDir;
+    private IngestPipeline ingestPipeline;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        frames = Arrays.copyOf(Frames.generate(IngestPipeline.DEFAULT_EEG_RATE_HZ, 120),
+                IngestBenchmark.FRAMES);
+        dir = Files.createTempDirectory("spill").toFile();
+        store = new SampleStore(dir, MEMORY_CHUNKS,
+                RowAssembler.columnNames(IngestPipeline.DEFAULT_COLUMNS));
+        IngestPipeline pipeline = new IngestPipeline(store, IngestPipeline.DEFAULT_COLUMNS,
+                IngestPipeline.DEFAULT_EEG_RATE_HZ);
+        Replay.untilRows(pipeline, ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        long heapOnly = (long) ((ROWS + SampleStore.CHUNK_SIZE - 1) / SampleStore.CHUNK_SIZE)
+                * SampleStore.CHUNK_SIZE * 8L * (store.getColumnCount() + 1);
+        System.out.println();
+        System.out.printf("%,d rows: %,d bytes on the heap (%,d without spilling), %,d bytes spilled%n",
+                store.size(), store.getFootprintBytes(), heapOnly, store.getSpilledBytes());
+        store.close();
+        dir.delete();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIngest() throws IOException {
+        ingestDir = Files.createTempDirectory("spill-ingest").toFile();
+        SampleStore ingestStore = new SampleStore(ingestDir, MEMORY_CHUNKS,
+                RowAssembler.columnNames(IngestPipeline.DEFAULT_COLUMNS));
+        ingestPipeline = new IngestPipeline(ingestStore, IngestPipeline.DEFAULT_COLUMNS,
+                IngestPipeline.DEFAULT_EEG_RATE_HZ);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIngest() {
+        ingestPipeline.getStore().close();
+        ingestDir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IngestBenchmark.FRAMES)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int ingest() {
+        for (SampleFrame frame : frames) {
+            ingestPipeline.onFrame(frame);
+        }
+        return ingestPipeline.getStore().size();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long csvExport() throws IOException {
+        DiscardOutputStream out = new DiscardOutputStream();
+        new SessionCsvExporter().export(store, out);
+        return out.count;
+    }
+}
@@ -0,0 +1,227 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.pipeline.FrameRing;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.stream.FrameDatagram;
+import com.choosemuse.example.libmuse.stream.FrameStreamer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams a synthetic headband through a {@link FrameStreamer} to a receiver on the
+ * loopback interface, and checks what arrives.
+ * <p>
+ * A packet thread publishes the frames to a ring at their timestamps, like the libmuse
+ * callback, and times each publish.  The receiver decodes every datagram, counts the gaps
+ * in the sequence numbers and matches each frame with the one sent, values rounded to
+ * float.  The delay from publish to receive is reported as percentiles.
+ * <p>
+ * In {@code stalled} mode the receiver reads nothing until the headband is done, so the
+ * socket buffers fill up and datagrams are lost, to show that the packet thread is not
+ * held back.
+ * <p>
+ * The test fails if the ring drops a frame or a received frame differs from the one sent.
+ * Paced and not stalled, it also fails if a frame is not received or the sequence has gaps
+ * the streamer did not count as dropped.
+ * <p>
+ * Usage: {@code StreamLoopbackTest [eegRateHz] [seconds] [speed] [stalled]}.  A speed of 0
+ * publishes as fast as possible; the streamer then skips the frames it falls a ring
+ * behind on, as it would behind a stalled network.
+ */
+public final class StreamLoopbackTest {
+
+    static final int RING_CAPACITY = 8192;
+
+    private static final int RECEIVE_BUFFER_BYTES = 4 << 20;
+    private static final int QUIET_MS = 500;
+
+    public static void main(String[] args) throws Exception {
+        final double eegRateHz = args.length > 0 ? Double.parseDouble(args[0]) : 256;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        final double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        final boolean stalled = args.length > 3 && "stalled".equals(args[3]);
+
+        final SampleFrame[] frames = Frames.generate(eegRateHz, seconds);
+        final DatagramChannel receiver = DatagramChannel.open();
+        if (!stalled) {
+            receiver.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+        }
+        receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+        receiver.configureBlocking(false);
+
+        final FrameRing ring = new FrameRing(RING_CAPACITY, FrameRing.Overflow.DROP);
+        final FrameStreamer streamer = new FrameStreamer(ring, "stream", 1,
+                (InetSocketAddress) receiver.getLocalAddress());
+        final Receiver received = new Receiver(frames);
+        final long[] publishNanos = new long[frames.length];
+        final long[] callbackNanos = new long[frames.length];
+        final Thread packets = new Thread(() -> publish(ring, frames, speed, publishNanos,
+                callbackNanos), "packets");
+
+        streamer.start();
+        final long start = System.nanoTime();
+        packets.start();
+        if (stalled) {
+            packets.join();
+        }
+        received.receive(receiver, publishNanos);
+        packets.join();
+        streamer.stop();
+        received.receive(receiver, publishNanos);
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        receiver.close();
+
+        System.out.printf(Locale.US, "%d frames at %.0f Hz over %d s, speed %s%s, %.1f s%n",
+                frames.length, eegRateHz, seconds, speed > 0 ? speed + "x" : "max",
+                stalled ? ", receiver stalled" : "", elapsed);
+        System.out.printf(Locale.US,
+                "streamed %d frames in %d datagrams, %.1f frames and %.0f bytes per datagram%n",
+                streamer.getFrameCount(), streamer.getDatagramCount(),
+                streamer.getFrameCount() / (double) Math.max(1, streamer.getDatagramCount()),
+                received.bytes / (double) Math.max(1, received.datagrams));
+        System.out.printf(Locale.US,
+                "received %d frames in %d datagrams; %d sequence gaps, %d datagrams dropped by "
+                        + "the streamer, %d errors, %d frames lost, %d ring drops, %d mismatches%n",
+                received.frames, received.datagrams, received.gaps, streamer.getDroppedCount(),
+                streamer.getErrorCount(), streamer.getLostCount(), ring.getDroppedCount(),
+                received.mismatches);
+        Arrays.sort(callbackNanos);
+        System.out.printf(Locale.US, "publish p50 %.2f us, p99.9 %.2f us, max %.1f us%n",
+                percentile(callbackNanos, 0.5) / 1e3, percentile(callbackNanos, 0.999) / 1e3,
+                callbackNanos[callbackNanos.length - 1] / 1e3);
+        if (received.frames > 0 && !stalled) {
+            final long[] delays = Arrays.copyOf(received.delayNanos, (int) received.frames);
+            Arrays.sort(delays);
+            System.out.printf(Locale.US, "publish to receive p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    percentile(delays, 0.5) / 1e6, percentile(delays, 0.99) / 1e6,
+                    delays[delays.length - 1] / 1e6);
+        }
+
+        boolean passed = ring.getDroppedCount() == 0 && received.mismatches == 0;
+        if (speed > 0 && !stalled) {
+            passed &= received.frames == frames.length
+                    && received.gaps == streamer.getDroppedCount() + streamer.getErrorCount();
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static void publish(FrameRing ring, SampleFrame[] frames, double speed,
+                                long[] publishNanos, long[] callbackNanos) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < frames.length; i++) {
+            if (speed > 0) {
+                final long due = start + (long) (frames[i].getTimestamp() * 1000 / speed);
+                long now;
+                while ((now = System.nanoTime()) < due) {
+                    LockSupport.parkNanos(due - now);
+                }
+            }
+            final long before = System.nanoTime();
+            final SampleFrame slot = ring.claim();
+            if (slot != null) {
+                slot.copyFrom(frames[i]);
+                ring.publish();
+            }
+            publishNanos[i] = before;
+            callbackNanos[i] = System.nanoTime() - before;
+        }
+    }
+
+    /**
+     * Decodes the datagrams and matches their frames with the frames sent, in order.
+     */
+    private static final class Receiver {
+        final SampleFrame[] sent;
+        final long[] delayNanos;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(FrameDatagram.DEFAULT_MAX_BYTES);
+        final SampleFrame frame = new SampleFrame();
+        int next;
+        int nextSequence;
+        long frames;
+        long datagrams;
+        long bytes;
+        long gaps;
+        long mismatches;
+
+        Receiver(SampleFrame[] sent) {
+            this.sent = sent;
+            this.delayNanos = new long[sent.length];
+        }
+
+        /**
+         * Receives until nothing arrives for {@link #QUIET_MS}.
+         */
+        void receive(DatagramChannel channel, long[] publishNanos) throws IOException {
+            try (Selector selector = Selector.open()) {
+                channel.register(selector, SelectionKey.OP_READ);
+                while (selector.select(QUIET_MS) > 0) {
+                    selector.selectedKeys().clear();
+                    buffer.clear();
+                    while (channel.receive(buffer) != null) {
+                        buffer.flip();
+                        read(System.nanoTime(), publishNanos);
+                        buffer.clear();
+                    }
+                }
+            }
+        }
+
+        private void read(long now, long[] publishNanos) {
+            datagrams++;
+            bytes += buffer.remaining();
+            final int sequence = FrameDatagram.getSequence(buffer, 0);
+            final int count = FrameDatagram.readHeader(buffer);
+            if (count < 0) {
+                mismatches++;
+                return;
+            }
+            gaps += sequence - nextSequence;
+            nextSequence = sequence + 1;
+            for (int i = 0; i < count; i++) {
+                if (FrameDatagram.readFrame(buffer, frame)) {
+                    match(now, publishNanos);
+                } else {
+                    mismatches++;
+                }
+            }
+        }
+
+        private void match(long now, long[] publishNanos) {
+            // Frames lost on the way are skipped.
+            while (next < sent.length && (sent[next].getType() != frame.getType()
+                    || sent[next].getTimestamp() != frame.getTimestamp())) {
+                next++;
+            }
+            if (next == sent.length) {
+                mismatches++;
+                return;
+            }
+            final SampleFrame expected = sent[next];
+            for (int v = 0; v < expected.getValueCount(); v++) {
+                if ((float) expected.getValue(v) != (float) frame.getValue(v)) {
+                    mismatches++;
+                    break;
+                }
+            }
+            delayNanos[(int) frames] = now - publishNanos[next];
+            frames++;
+            next++;
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+    }
+}
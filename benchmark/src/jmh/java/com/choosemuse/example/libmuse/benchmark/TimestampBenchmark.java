@@ -0,0 +1,62 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.TimestampCorrector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ns per sample of {@link TimestampCorrector#correct} on a 256 Hz stream with 500 us of
+ * mean delay and 0.1% loss, see {@link TimestampJitterTest}.  Must not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimestampBenchmark {
+
+    private long[] arrivals;
+    private long streamLength;
+    private TimestampCorrector corrector;
+    private int next;
+    private long shift;
+
+    @Setup
+    public void setUp() {
+        final TimestampJitterTest.Stream stream =
+                TimestampJitterTest.generate(256, 60, 500, 0.001, 1, Frames.SEED);
+        int received = 0;
+        for (boolean lost : stream.lost) {
+            if (!lost) {
+                received++;
+            }
+        }
+        arrivals = new long[received];
+        received = 0;
+        for (int i = 0; i < stream.lost.length; i++) {
+            if (!stream.lost[i]) {
+                arrivals[received++] = stream.arrived[i];
+            }
+        }
+        streamLength = stream.sampled[stream.sampled.length - 1] + 1_000_000;
+        corrector = TimestampCorrector.forRates(256);
+    }
+
+    @Benchmark
+    public long correct() {
+        if (next == arrivals.length) {
+            // Replay the stream later in time, so the corrector sees one long session.
+            next = 0;
+            shift += streamLength;
+        }
+        final int released = corrector.correct(FrameType.EEG, arrivals[next++] + shift);
+        return released > 0 ? corrector.getReleased(released - 1) : 0;
+    }
+}
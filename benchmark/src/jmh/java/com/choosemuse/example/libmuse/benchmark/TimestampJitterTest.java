@@ -0,0 +1,263 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.data.SampleStore;
+import com.choosemuse.example.libmuse.pipeline.FrameType;
+import com.choosemuse.example.libmuse.pipeline.IngestPipeline;
+import com.choosemuse.example.libmuse.pipeline.SampleFrame;
+import com.choosemuse.example.libmuse.pipeline.TimestampCorrector;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Drives a {@link TimestampCorrector} with a synthetic EEG stream with known loss and
+ * jitter, and compares the corrected timestamps with the times the samples were taken.
+ * <p>
+ * The headband clock runs 100 ppm fast.  Runs of 1 to 5 samples are lost at the given
+ * rate, and the rest arrive in order, in packets of a few samples, after a fixed latency
+ * plus an exponentially distributed delay.  The distance of raw and corrected timestamps
+ * from the sample times, minus its median, is reported as percentiles.
+ * <p>
+ * The test fails if a corrected timestamp goes backwards.  With one sample per packet and
+ * a mean delay of at most a quarter period, it also fails if the samples found lost are
+ * more than 10% off the samples lost, or if the corrected p99, p99.9 or maximum is not
+ * below the raw one: the samples right after a gap must be stamped after it.
+ * <p>
+ * If every lost sample is found, the stream is also recorded by two pipelines with band
+ * powers: one through the corrector, and one fed the sample times with NaN for the samples
+ * lost.  The band powers must see the lost samples where they were, before the samples
+ * the corrector held, so every row received must carry the same band powers in both.
+ * <p>
+ * Usage: {@code TimestampJitterTest [meanDelayUs] [lossRate] [seconds] [packetSamples]
+ * [eegRateHz]}.
+ */
+public final class TimestampJitterTest {
+
+    static final double CLOCK_DRIFT = 1e-4;
+    static final long LATENCY_US = 2000;
+    static final int MAX_LOST_RUN = 5;
+
+    /**
+     * A stream of samples: when each was taken and when it arrived, and whether it was lost.
+     */
+    static final class Stream {
+        final long[] sampled;
+        final long[] arrived;
+        final boolean[] lost;
+        long lostRuns;
+        long lostSamples;
+
+        Stream(int samples) {
+            sampled = new long[samples];
+            arrived = new long[samples];
+            lost = new boolean[samples];
+        }
+    }
+
+    static Stream generate(double rateHz, int seconds, double meanDelayUs, double lossRate,
+                           int packetSamples, long seed) {
+        final Random random = new Random(seed);
+        final int samples = (int) (rateHz * seconds);
+        final Stream stream = new Stream(samples);
+        final double period = 1e6 / rateHz * (1 - CLOCK_DRIFT);
+        for (int i = 0; i < samples; i++) {
+            stream.sampled[i] = 1_000_000 + (long) (i * period);
+        }
+        // No loss during the first seconds, while the corrector warms up.
+        for (int i = (int) rateHz; i < samples; i++) {
+            if (random.nextDouble() < lossRate) {
+                final int run = Math.min(1 + random.nextInt(MAX_LOST_RUN), samples - i);
+                for (int k = 0; k < run; k++) {
+                    stream.lost[i + k] = true;
+                }
+                stream.lostRuns++;
+                stream.lostSamples += run;
+                i += run;
+            }
+        }
+        long previous = 0;
+        for (int first = 0; first < samples; first += packetSamples) {
+            final int end = Math.min(samples, first + packetSamples);
+            final long delay = (long) (-meanDelayUs * Math.log(1 - random.nextDouble()));
+            final long arrival = Math.max(stream.sampled[end - 1] + LATENCY_US + delay, previous);
+            for (int i = first; i < end; i++) {
+                stream.arrived[i] = arrival;
+            }
+            previous = arrival;
+        }
+        return stream;
+    }
+
+    public static void main(String[] args) {
+        final double meanDelayUs = args.length > 0 ? Double.parseDouble(args[0]) : 500;
+        final double lossRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.001;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 600;
+        final int packetSamples = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        final double eegRateHz = args.length > 4 ? Double.parseDouble(args[4]) : 256;
+
+        final Stream stream = generate(eegRateHz, seconds, meanDelayUs, lossRate, packetSamples,
+                Frames.SEED);
+        final TimestampCorrector corrector = TimestampCorrector.forRates(eegRateHz);
+        final long[] found = new long[2];
+        corrector.setGapListener((type, lastTimestamp, timestamp, missing) -> {
+            found[0]++;
+            found[1] += missing;
+        });
+
+        final int samples = stream.sampled.length;
+        final long[] raw = new long[samples];
+        final long[] corrected = new long[samples];
+        // The samples received, in order; the corrector releases them with a delay.
+        final int[] indices = new int[samples];
+        int received = 0;
+        int released = 0;
+        long previous = Long.MIN_VALUE;
+        boolean monotonic = true;
+        final long start = System.nanoTime();
+        for (int i = 0; i <= samples; i++) {
+            final int count;
+            if (i == samples) {
+                count = corrector.flush(FrameType.EEG);
+            } else if (stream.lost[i]) {
+                continue;
+            } else {
+                indices[received] = i;
+                raw[received] = stream.arrived[i] - stream.sampled[i];
+                received++;
+                count = corrector.correct(FrameType.EEG, stream.arrived[i]);
+            }
+            for (int k = 0; k < count; k++) {
+                final long timestamp = corrector.getReleased(k);
+                monotonic &= timestamp > previous;
+                previous = timestamp;
+                corrected[released] = timestamp - stream.sampled[indices[released]];
+                released++;
+            }
+        }
+        final double nanosPerSample = (System.nanoTime() - start) / (double) received;
+
+        System.out.printf(Locale.US, "%d s at %.0f Hz, mean delay %.0f us, %d samples per packet, "
+                        + "loss rate %s%n", seconds, eegRateHz, meanDelayUs, packetSamples, lossRate);
+        System.out.printf(Locale.US, "lost %d runs, %d samples; found %d gaps, %d samples%n",
+                stream.lostRuns, stream.lostSamples, found[0], corrector.getMissingCount(FrameType.EEG));
+        System.out.printf(Locale.US, "period %.3f us, sampled at %.3f us, jitter %.0f us, %.0f ns per sample%n",
+                corrector.getPeriod(FrameType.EEG), 1e6 / eegRateHz * (1 - CLOCK_DRIFT),
+                corrector.getJitter(FrameType.EEG), nanosPerSample);
+        // Skip the warm-up.
+        final int from = (int) Math.min(received / 2, eegRateHz * 10);
+        final long[] rawPercentiles = percentiles(raw, from, received);
+        final long[] correctedPercentiles = percentiles(corrected, from, received);
+        System.out.println("distance from the sample time, us:  p50    p90    p99  p99.9    max");
+        print("raw", rawPercentiles);
+        print("corrected", correctedPercentiles);
+
+        boolean passed = monotonic && released == received;
+        if (!monotonic) {
+            System.out.println("corrected timestamps went backwards");
+        }
+        if (released != received) {
+            System.out.printf(Locale.US, "%d samples received, %d released%n", received, released);
+        }
+        if (packetSamples == 1 && meanDelayUs <= 1e6 / eegRateHz / 4) {
+            final long missing = corrector.getMissingCount(FrameType.EEG);
+            if (Math.abs(missing - stream.lostSamples) > stream.lostSamples / 10) {
+                System.out.println("lost samples not found");
+                passed = false;
+            }
+            if (found[1] == stream.lostSamples) {
+                final long differing = compareBandPowers(stream, eegRateHz);
+                System.out.printf(Locale.US, "band powers of %d rows differ from the sample times'%n",
+                        differing);
+                passed &= differing == 0;
+            }
+            final String[] names = {"p99", "p99.9", "max"};
+            for (int p = 2; p < rawPercentiles.length; p++) {
+                if (correctedPercentiles[p] >= rawPercentiles[p]) {
+                    System.out.println("corrected " + names[p - 2] + " not below raw " + names[p - 2]);
+                    passed = false;
+                }
+            }
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Records the stream through a pipeline with a timestamp corrector, and through one
+     * without from the sample times, with NaN for the samples lost.
+     * @return the number of rows received whose band powers differ, or all of them if the
+     *         pipelines did not record a row per sample.
+     */
+    private static long compareBandPowers(Stream stream, double eegRateHz) {
+        final IngestPipeline corrected = new IngestPipeline(IngestPipeline.DEFAULT_COLUMNS, eegRateHz);
+        corrected.setTimestampCorrector(TimestampCorrector.forRates(eegRateHz));
+        final IngestPipeline reference = new IngestPipeline(IngestPipeline.DEFAULT_COLUMNS, eegRateHz);
+        final Random random = new Random(Frames.SEED);
+        final SampleFrame frame = new SampleFrame();
+        final int samples = stream.sampled.length;
+        for (int i = 0; i < samples; i++) {
+            frame.set(FrameType.EEG, stream.arrived[i]);
+            for (int c = 0; c < frame.getValueCount(); c++) {
+                frame.setValue(c, 800 + 50 * Math.sin(2 * Math.PI * 10 * i / eegRateHz + c)
+                        + 10 * random.nextGaussian());
+            }
+            if (!stream.lost[i]) {
+                corrected.onFrame(frame);
+            } else {
+                Arrays.fill(frame.values(), Double.NaN);
+            }
+            frame.setTimestamp(stream.sampled[i]);
+            reference.onFrame(frame);
+        }
+        corrected.flush();
+        reference.flush();
+
+        final SampleStore correctedRows = corrected.getStore();
+        final SampleStore referenceRows = reference.getStore();
+        if (referenceRows.size() != samples
+                || correctedRows.size() != samples - stream.lostSamples) {
+            return correctedRows.size();
+        }
+        long differing = 0;
+        int row = 0;
+        for (int i = 0; i < samples; i++) {
+            if (stream.lost[i]) {
+                continue;
+            }
+            for (int c = 0; c < referenceRows.getColumnCount(); c++) {
+                if (referenceRows.getColumnName(c).endsWith("_absolute")
+                        && Double.compare(referenceRows.getValue(i, c), correctedRows.getValue(row, c)) != 0) {
+                    differing++;
+                    break;
+                }
+            }
+            row++;
+        }
+        return differing;
+    }
+
+    /**
+     * @return p50, p90, p99, p99.9 and the maximum of the distance of the offsets from their
+     *         median.
+     */
+    private static long[] percentiles(long[] offsets, int from, int to) {
+        final long[] sorted = Arrays.copyOfRange(offsets, from, to);
+        Arrays.sort(sorted);
+        final long median = sorted[sorted.length / 2];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = Math.abs(sorted[i] - median);
+        }
+        Arrays.sort(sorted);
+        final int n = sorted.length;
+        return new long[]{sorted[n / 2], sorted[(int) (n * 0.9)], sorted[(int) (n * 0.99)],
+                sorted[(int) (n * 0.999)], sorted[n - 1]};
+    }
+
+    private static void print(String name, long[] percentiles) {
+        System.out.printf(Locale.US, "%-34s%6d %6d %6d %6d %6d%n", name, percentiles[0],
+                percentiles[1], percentiles[2], percentiles[3], percentiles[4]);
+    }
+}
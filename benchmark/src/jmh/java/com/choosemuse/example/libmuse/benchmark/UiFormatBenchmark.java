@@ -0,0 +1,75 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.ui.NumberText;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of formatting the text of one UI tick: the 11 values of the main screen (4 EEG,
+ * 3 accelerometer, 4 alpha), each changing between ticks.
+ * <p>
+ * {@code legacyStringFormat} is what the update methods of MainActivity originally did,
+ * one String.format per value.  gc.alloc.rate.norm times 60 is the garbage per second of
+ * a connected headband.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UiFormatBenchmark {
+
+    static final int VIEWS = 11;
+    static final int TICKS = 1024;
+
+    private final double[][] ticks = new double[TICKS][VIEWS];
+    private final NumberText[] texts = new NumberText[VIEWS];
+    private int tick;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(Frames.SEED);
+        for (double[] values : ticks) {
+            for (int i = 0; i < VIEWS; i++) {
+                values[i] = 800 + 100 * random.nextGaussian();
+            }
+        }
+        for (int i = 0; i < VIEWS; i++) {
+            texts[i] = new NumberText(6, 2);
+        }
+    }
+
+    private double[] nextTick() {
+        tick = (tick + 1) & (TICKS - 1);
+        return ticks[tick];
+    }
+
+    @Benchmark
+    public int numberText() {
+        final double[] values = nextTick();
+        int changed = 0;
+        for (int i = 0; i < VIEWS; i++) {
+            if (texts[i].set(values[i])) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    @Benchmark
+    public void legacyStringFormat(Blackhole blackhole) {
+        final double[] values = nextTick();
+        for (int i = 0; i < VIEWS; i++) {
+            blackhole.consume(String.format(Locale.getDefault(), "%6.2f", values[i]));
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.upload.RetryPolicy;
+import com.choosemuse.example.libmuse.upload.SinglePostUploadTarget;
+import com.choosemuse.example.libmuse.upload.UploadQueue;
+import com.choosemuse.example.libmuse.upload.UploadQueueCallback;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Sends sessions through an {@link UploadQueue} to an {@link UploadServer} that is down at
+ * first, and checks that every session arrives once the server is back.
+ * <p>
+ * Half the items are queued while the server answers every request with a 503.  The
+ * queue is then stopped, as if the app were killed, and a torn record is appended to its
+ * log.  A new queue on the same directory is given the other half and a copy of some items
+ * already queued.  When the server comes up, {@link UploadQueue#onNetworkAvailable()} is
+ * called instead of waiting for the backoff, and the time to drain the queue is reported
+ * with the number of requests it took.
+ * <p>
+ * Then the server stalls: it takes every request but never answers.  The items queued
+ * meanwhile must stay pending once the deliveries time out, and be delivered when the
+ * server answers again and the network is reported back.
+ * <p>
+ * Last, the server refuses one item with a 400 and every upload of more than two small
+ * items with a 413.  That item and a few behind it are queued while the server is down,
+ * so they go out as one batch when it comes back.  The batch must be split, the refused
+ * item given up on and kept in the failed directory, and the items behind it delivered.
+ * <p>
+ * The items are sent with a {@link SinglePostUploadTarget}.  The test unzips the batches
+ * the server received and identifies every item by its SHA-256.  It fails if an item is
+ * missing, one arrives that was never queued, the refused item arrives, is not reported
+ * as failed or not kept, or the directory still holds item files once the queue is empty.
+ * <p>
+ * Usage: {@code UploadQueueTest [smallItems] [largeItems] [smallKiB] [largeKiB] [coalesceKiB]}.
+ * A coalesce size of 0 sends every item on its own.
+ */
+public final class UploadQueueTest {
+
+    private static final long TIMEOUT_MS = 60000;
+    private static final int READ_TIMEOUT_MS = 500;
+    private static final int STALLED_ITEMS = 20;
+    private static final int BEHIND_REJECTED_ITEMS = 10;
+
+    public static void main(String[] args) throws Exception {
+        final int smallItems = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int largeItems = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int smallKiB = args.length > 2 ? Integer.parseInt(args[2]) : 24;
+        final int largeKiB = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+        final long coalesceBytes = args.length > 4 ? Long.parseLong(args[4]) * 1024
+                : UploadQueue.DEFAULT_COALESCE_BYTES;
+
+        final File root = File.createTempFile("upload-queue", "");
+        root.delete();
+        final File dir = new File(root, "queue");
+        final File spool = new File(root, "spool");
+        spool.mkdirs();
+
+        final Random random = new Random(Frames.SEED);
+        final List<byte[]> items = new ArrayList<>();
+        for (int i = 0; i < smallItems + largeItems; i++) {
+            // The large items are spread among the small ones.
+            final boolean large = largeItems > 0 && i % ((smallItems + largeItems) / largeItems) == 0
+                    && i / ((smallItems + largeItems) / largeItems) < largeItems;
+            final byte[] content = new byte[(large ? largeKiB : smallKiB) * 1024 - random.nextInt(512)];
+            random.nextBytes(content);
+            items.add(content);
+        }
+        final UploadServer server = new UploadServer();
+        final SinglePostUploadTarget target = new SinglePostUploadTarget(server.url("/post"),
+                READ_TIMEOUT_MS, READ_TIMEOUT_MS);
+        final Received received = new Received(server);
+        final RetryPolicy attempts = new RetryPolicy(2, 10, 10);
+        final RetryPolicy backoff = new RetryPolicy(Integer.MAX_VALUE, TIMEOUT_MS, TIMEOUT_MS);
+
+        final int half = items.size() / 2;
+        server.down = true;
+        UploadQueue queue = new UploadQueue(dir, target, Runnable::run,
+                coalesceBytes, UploadQueue.DEFAULT_BATCH_BYTES, attempts, backoff);
+        for (int i = 0; i < half; i++) {
+            enqueue(queue, spool, "session-" + i + ".csv", items.get(i));
+        }
+        queue.shutdown();
+        queue.awaitTermination(TIMEOUT_MS);
+        final long pendingBeforeKill = queue.getPendingCount();
+        try (OutputStream torn = new FileOutputStream(new File(dir, "queue.log"), true)) {
+            torn.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        }
+
+        queue = new UploadQueue(dir, target, Runnable::run,
+                coalesceBytes, UploadQueue.DEFAULT_BATCH_BYTES, attempts, backoff);
+        int duplicates = 0;
+        for (int i = half; i < items.size(); i++) {
+            enqueue(queue, spool, "session-" + i + ".csv", items.get(i));
+            if (i % 10 == 0) {
+                enqueue(queue, spool, "copy-" + i + ".csv", items.get(i - half));
+                duplicates++;
+            }
+        }
+        final long failedRequests = server.requests.get();
+        server.reset();
+        final long upNanos = System.nanoTime();
+        queue.onNetworkAvailable();
+        drain(queue, received, items.size());
+        final double drainMs = (System.nanoTime() - upNanos) / 1e6;
+        final int drainRequests = server.requests.get();
+        final int drainBatches = received.batches;
+        final int drainEntries = received.entries;
+
+        // The server takes the requests but never answers.
+        final Errors errors = new Errors();
+        queue.setCallback(errors);
+        server.stallMs = 4 * READ_TIMEOUT_MS;
+        server.stallEvery = 1;
+        for (int i = 0; i < STALLED_ITEMS; i++) {
+            final byte[] content = new byte[smallKiB * 1024 - random.nextInt(512)];
+            random.nextBytes(content);
+            items.add(content);
+            enqueue(queue, spool, "stalled-" + i + ".csv", content);
+        }
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        // The items queued while a delivery stalls are recorded once it has timed out.
+        while ((errors.timeouts.get() == 0 || queue.getPendingCount() < STALLED_ITEMS)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        final int stalled = server.stalled.get();
+        final int pendingAfterTimeout = queue.getPendingCount();
+        server.reset();
+        final long recoverNanos = System.nanoTime();
+        queue.onNetworkAvailable();
+        drain(queue, received, items.size());
+        final double recoverMs = (System.nanoTime() - recoverNanos) / 1e6;
+
+        // One item is refused for good, and batches of more than two items are too large.
+        final byte[] rejected = new byte[smallKiB * 1024 - random.nextInt(512)];
+        random.nextBytes(rejected);
+        server.down = true;
+        server.maxBytes = 2 * smallKiB * 1024;
+        server.rejected = rejected;
+        final int errorsBefore = errors.errors.get();
+        enqueue(queue, spool, "rejected.csv", rejected);
+        for (int i = 0; i < BEHIND_REJECTED_ITEMS; i++) {
+            final byte[] content = new byte[smallKiB * 1024 - random.nextInt(512)];
+            random.nextBytes(content);
+            items.add(content);
+            enqueue(queue, spool, "behind-rejected-" + i + ".csv", content);
+        }
+        final long downDeadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((errors.errors.get() == errorsBefore || queue.getPendingCount() < BEHIND_REJECTED_ITEMS + 1)
+                && System.currentTimeMillis() < downDeadline) {
+            Thread.sleep(1);
+        }
+        server.down = false;
+        queue.onNetworkAvailable();
+        drain(queue, received, items.size());
+        final int tooLarge = server.tooLarge.get();
+        final int refused = server.refused.get();
+        final File[] kept = queue.getFailedDir().listFiles();
+        final boolean rejectedKept = kept != null && kept.length == 1
+                && Arrays.equals(Files.readAllBytes(kept[0].toPath()), rejected);
+        queue.shutdown();
+        queue.awaitTermination(TIMEOUT_MS);
+        server.close();
+
+        long total = 0;
+        long missing = 0;
+        long redelivered = 0;
+        for (byte[] content : items) {
+            total += content.length;
+            final Integer count = received.counts.get(sha256(content));
+            if (count == null) {
+                missing++;
+            } else if (count > 1) {
+                redelivered += count - 1;
+            }
+        }
+        int leftItems = 0;
+        for (String name : dir.list()) {
+            if (name.startsWith("item-")) {
+                leftItems++;
+            }
+        }
+
+        System.out.printf(Locale.US, "%d small items of %d KiB and %d large of %d KiB, %.1f MiB; "
+                        + "%d copies of queued items%n",
+                smallItems, smallKiB, largeItems, largeKiB, total / 1048576.0, duplicates);
+        System.out.printf(Locale.US, "%d pending when the queue was stopped, %d failed requests "
+                + "while offline%n", pendingBeforeKill, failedRequests);
+        System.out.printf(Locale.US, "drained in %.0f ms: %d requests, %d of them batches, "
+                        + "%.1f items per request%n",
+                drainMs, drainRequests, drainBatches,
+                drainEntries / (double) Math.max(1, drainRequests));
+        System.out.printf(Locale.US, "server stalled: %d requests timed out, %d of %d items "
+                        + "pending after the timeout, delivered %.0f ms after the network came back%n",
+                stalled, pendingAfterTimeout, STALLED_ITEMS, recoverMs);
+        System.out.printf(Locale.US, "one item refused: %d uploads too large, %d refused, "
+                        + "failed %s, %s in the failed directory, %s%n",
+                tooLarge, refused, errors.failed, rejectedKept ? "kept" : "not kept",
+                received.counts.containsKey(sha256(rejected)) ? "delivered" : "not delivered");
+        System.out.printf(Locale.US, "%d missing, %d redelivered, %d unknown, %d item files left%n",
+                missing, redelivered, received.unknown, leftItems);
+
+        boolean passed = missing == 0 && received.unknown == 0 && leftItems == 0
+                && received.counts.size() == items.size()
+                && stalled > 0 && pendingAfterTimeout == STALLED_ITEMS
+                && tooLarge > 0 && refused > 0 && rejectedKept
+                && errors.failed.equals(Collections.singletonList("rejected.csv"));
+        System.out.println(passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static void enqueue(UploadQueue queue, File spool, String name, byte[] content)
+            throws IOException {
+        final File file = new File(spool, name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        queue.enqueue(file, name, "text/csv", null);
+    }
+
+    /**
+     * Waits until the server has received {@code items} distinct items and the queue has
+     * recorded the last delivery.
+     */
+    private static void drain(UploadQueue queue, Received received, int items)
+            throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (received.update() < items && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        while (queue.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * The items in the uploads the server received, the batches unzipped.
+     */
+    private static final class Received {
+        final UploadServer server;
+        final Map<String, Integer> counts = new HashMap<>();
+        int uploads;
+        int batches;
+        int entries;
+        int unknown;
+
+        Received(UploadServer server) {
+            this.server = server;
+        }
+
+        /**
+         * Adds the uploads received since the last call.
+         * @return the number of distinct items received.
+         */
+        int update() throws IOException {
+            final List<UploadServer.Upload> all = server.getUploads();
+            for (; uploads < all.size(); uploads++) {
+                final UploadServer.Upload upload = all.get(uploads);
+                if ("application/zip".equals(upload.contentType)) {
+                    batches++;
+                    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(upload.body))) {
+                        ZipEntry entry;
+                        while ((entry = zip.getNextEntry()) != null) {
+                            if (!entry.getName().endsWith(".csv")) {
+                                unknown++;
+                            }
+                            receive(UploadServer.read(zip));
+                        }
+                    }
+                } else {
+                    receive(upload.body);
+                }
+            }
+            return counts.size();
+        }
+
+        private void receive(byte[] content) {
+            entries++;
+            counts.merge(sha256(content), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Counts the failed deliveries and those that timed out, and names the items given up.
+     */
+    private static final class Errors implements UploadQueueCallback {
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger timeouts = new AtomicInteger();
+        final List<String> failed = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onUploadSuccess(String response) {
+        }
+
+        @Override
+        public void onUploadError(Exception e) {
+            errors.incrementAndGet();
+            if (e instanceof SocketTimeoutException) {
+                timeouts.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onUploadFailed(String name, Exception e) {
+            failed.add(name);
+        }
+
+        @Override
+        public void onQueueChanged(int pendingItems, long pendingBytes) {
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
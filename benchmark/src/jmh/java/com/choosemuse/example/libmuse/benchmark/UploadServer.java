@@ -0,0 +1,354 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A local stand-in for an upload server, to run the HTTP upload targets against a real
+ * socket.  It speaks both protocols of the app:
+ * <ul>
+ * <li>{@code POST /post} takes a whole upload, for {@code SinglePostUploadTarget}.</li>
+ * <li>{@code /session} is the resumable protocol of {@code HttpSessionUploadTarget}.</li>
+ * </ul>
+ * The requests that carry data, the appends and the whole uploads, can be made to fail.
+ * A failed request is answered with a 503 and not stored.  A dropped one is stored but the
+ * connection is closed without a response, as if the acknowledgement were lost.  A
+ * delayed one is answered late, and a stalled one is never answered: the server reads
+ * the body and keeps the connection open for {@link #stallMs}, longer than the client
+ * waits.  While {@link #down} every request is answered with a 503.
+ * <p>
+ * Appends can also be acknowledged wrongly: while {@link #discardAppends} the chunk is
+ * thrown away and the unchanged offset returned, and {@link #offsetSkew} is added to the
+ * offset returned for a chunk that was stored.
+ * <p>
+ * Whole uploads can also be refused for good: one larger than {@link #maxBytes} with a
+ * 413, and one that holds the {@link #rejected} content, alone or as an entry of a zip,
+ * with a 400.
+ */
+final class UploadServer implements AutoCloseable {
+
+    /**
+     * An upload that was committed, or received whole.
+     */
+    static final class Upload {
+        final String name;
+        final String contentType;
+        final byte[] body;
+
+        Upload(String name, String contentType, byte[] body) {
+            this.name = name;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    private static final class Session {
+        final String name;
+        final String contentType;
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        Session(String name, String contentType) {
+            this.name = name;
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * Every how many data requests one fails, is dropped, is delayed or stalls; 0 never.
+     * A request that matches several faults gets the first of stall, fail and drop, and is
+     * also delayed.
+     */
+    volatile int failEvery;
+    volatile int dropEvery;
+    volatile int delayEvery;
+    volatile int stallEvery;
+    volatile int delayMs = 200;
+    volatile int stallMs = 5000;
+    volatile boolean down;
+
+    volatile boolean discardAppends;
+    volatile long offsetSkew;
+
+    /**
+     * The largest whole upload taken, 0 for any size.
+     */
+    volatile int maxBytes;
+
+    /**
+     * Content refused wherever it is, or null.
+     */
+    volatile byte[] rejected;
+
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger dataRequests = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger dropped = new AtomicInteger();
+    final AtomicInteger delayed = new AtomicInteger();
+    final AtomicInteger stalled = new AtomicInteger();
+    final AtomicInteger mismatched = new AtomicInteger();
+    final AtomicInteger discarded = new AtomicInteger();
+    final AtomicInteger skewed = new AtomicInteger();
+    final AtomicInteger tooLarge = new AtomicInteger();
+    final AtomicInteger refused = new AtomicInteger();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger sessionIds = new AtomicInteger();
+    private final List<Upload> uploads = new ArrayList<>();
+
+    UploadServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "upload-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/post", this::post);
+        server.createContext("/session", this::session);
+        server.start();
+    }
+
+    String url(String path) {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+                + path;
+    }
+
+    synchronized List<Upload> getUploads() {
+        return new ArrayList<>(uploads);
+    }
+
+    private synchronized void store(Upload upload) {
+        uploads.add(upload);
+    }
+
+    /**
+     * Resets the faults and the counters, not the uploads received.
+     */
+    void reset() {
+        failEvery = 0;
+        dropEvery = 0;
+        delayEvery = 0;
+        stallEvery = 0;
+        down = false;
+        discardAppends = false;
+        offsetSkew = 0;
+        maxBytes = 0;
+        rejected = null;
+        requests.set(0);
+        dataRequests.set(0);
+        failed.set(0);
+        dropped.set(0);
+        delayed.set(0);
+        stalled.set(0);
+        mismatched.set(0);
+        discarded.set(0);
+        skewed.set(0);
+        tooLarge.set(0);
+        refused.set(0);
+    }
+
+    private void post(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final byte[] body = read(exchange.getRequestBody());
+        if (down) {
+            respond(exchange, 503, "down");
+            return;
+        }
+        final String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (maxBytes > 0 && body.length > maxBytes) {
+            tooLarge.incrementAndGet();
+            respond(exchange, 413, "too large");
+            return;
+        }
+        if (holdsRejected(body, contentType)) {
+            refused.incrementAndGet();
+            respond(exchange, 400, "rejected");
+            return;
+        }
+        final Fault fault = fault();
+        if (fault == Fault.STALL || fault == Fault.FAIL) {
+            fail(exchange, fault);
+            return;
+        }
+        store(new Upload(null, contentType, body));
+        if (fault == Fault.DROP) {
+            exchange.close();
+            return;
+        }
+        respond(exchange, 200, "ok");
+    }
+
+    private boolean holdsRejected(byte[] body, String contentType) throws IOException {
+        final byte[] rejected = this.rejected;
+        if (rejected == null) {
+            return false;
+        }
+        if (!"application/zip".equals(contentType)) {
+            return Arrays.equals(body, rejected);
+        }
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body))) {
+            while (zip.getNextEntry() != null) {
+                if (Arrays.equals(read(zip), rejected)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void session(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final String[] path = exchange.getRequestURI().getPath().split("/");
+        final String method = exchange.getRequestMethod();
+        final byte[] body = read(exchange.getRequestBody());
+        if (down) {
+            respond(exchange, 503, "down");
+            return;
+        }
+        if (path.length == 2 && method.equals("POST")) {
+            final String id = String.valueOf(sessionIds.incrementAndGet());
+            sessions.put(id, new Session(exchange.getRequestHeaders().getFirst("Upload-Name"),
+                    exchange.getRequestHeaders().getFirst("Upload-Content-Type")));
+            respond(exchange, 200, id);
+            return;
+        }
+        final Session session = path.length >= 3 ? sessions.get(path[2]) : null;
+        if (session == null) {
+            respond(exchange, 404, "no such session");
+            return;
+        }
+        final boolean append = path.length == 3 && method.equals("PUT");
+        final Fault fault = append ? fault() : Fault.NONE;
+        if (fault == Fault.STALL || fault == Fault.FAIL) {
+            // Outside the lock, so the client can ask for the offset while a chunk stalls.
+            fail(exchange, fault);
+            return;
+        }
+        synchronized (session) {
+            if (path.length == 3 && method.equals("GET")) {
+                respond(exchange, 200, String.valueOf(session.received.size()));
+            } else if (append) {
+                final long offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+                if (offset != session.received.size()) {
+                    mismatched.incrementAndGet();
+                    respond(exchange, 409, String.valueOf(session.received.size()));
+                } else if (discardAppends) {
+                    discarded.incrementAndGet();
+                    respond(exchange, 200, String.valueOf(offset));
+                } else {
+                    session.received.write(body, 0, body.length);
+                    if (fault == Fault.DROP) {
+                        exchange.close();
+                    } else {
+                        final long skew = offsetSkew;
+                        if (skew != 0) {
+                            skewed.incrementAndGet();
+                        }
+                        respond(exchange, 200, String.valueOf(session.received.size() + skew));
+                    }
+                }
+            } else if (path.length == 4 && path[3].equals("commit") && method.equals("POST")) {
+                final long length = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Length"));
+                if (length != session.received.size()) {
+                    respond(exchange, 400, "committed " + length + " of " + session.received.size());
+                    return;
+                }
+                if (sessions.remove(path[2]) != null) {
+                    store(new Upload(session.name, session.contentType, session.received.toByteArray()));
+                }
+                respond(exchange, 200, "committed " + session.name);
+            } else {
+                respond(exchange, 405, method);
+            }
+        }
+    }
+
+    private enum Fault {
+        NONE, STALL, FAIL, DROP
+    }
+
+    /**
+     * Decides what happens to the next data request, and delays it if it is its turn.
+     */
+    private Fault fault() {
+        final int n = dataRequests.incrementAndGet();
+        if (delayEvery > 0 && n % delayEvery == 0) {
+            delayed.incrementAndGet();
+            sleep(delayMs);
+        }
+        if (stallEvery > 0 && n % stallEvery == 0) {
+            return Fault.STALL;
+        }
+        if (failEvery > 0 && n % failEvery == 0) {
+            return Fault.FAIL;
+        }
+        if (dropEvery > 0 && n % dropEvery == 0) {
+            dropped.incrementAndGet();
+            return Fault.DROP;
+        }
+        return Fault.NONE;
+    }
+
+    private void fail(HttpExchange exchange, Fault fault) throws IOException {
+        if (fault == Fault.STALL) {
+            stalled.incrementAndGet();
+            sleep(stallMs);
+            exchange.close();
+        } else {
+            failed.incrementAndGet();
+            respond(exchange, 503, "try again");
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static byte[] read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[65536];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,85 @@
+package com.choosemuse.example.libmuse.benchmark;
+
+import com.choosemuse.example.libmuse.ui.MinMaxDecimator;
+import com.choosemuse.example.libmuse.ui.SampleRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one frame of the waveform view without the Canvas calls: the samples of 1/60 s
+ * added to the ring, decimated, and turned into the line array of every channel, as
+ * WaveformView does for a 4 second window.  Must stay far below the 16.7 ms of a frame,
+ * with no allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WaveformBenchmark {
+
+    static final int CHANNELS = 6;
+    static final double RATE_HZ = 500;
+    static final double SECONDS = 4;
+    static final int SAMPLES = 4096;
+
+    @Param({"1080"})
+    public int width;
+
+    private final double[][] samples = new double[SAMPLES][CHANNELS];
+    private final float[] range = new float[2];
+    private SampleRing ring;
+    private MinMaxDecimator decimator;
+    private float[] lines;
+    private int next;
+    private double due;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(Frames.SEED);
+        for (double[] sample : samples) {
+            for (int c = 0; c < CHANNELS; c++) {
+                sample[c] = 800 + 100 * random.nextGaussian();
+            }
+        }
+        final int window = (int) Math.ceil(RATE_HZ * SECONDS);
+        final int columns = Math.min(width, window);
+        ring = new SampleRing(CHANNELS, 2 * window);
+        decimator = new MinMaxDecimator(CHANNELS, columns, (window + columns - 1) / columns);
+        lines = new float[columns * 4];
+        for (int i = 0; i < window; i++) {
+            addSample();
+        }
+        decimator.consume(ring);
+    }
+
+    private void addSample() {
+        ring.add(samples[next]);
+        next = (next + 1) & (SAMPLES - 1);
+    }
+
+    @Benchmark
+    public int frame() {
+        // 500 Hz at 60 fps: 8 or 9 samples per frame.
+        due += RATE_HZ / 60;
+        while (due >= 1) {
+            addSample();
+            due--;
+        }
+        decimator.consume(ring);
+        int count = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            decimator.range(c, range);
+            count += decimator.fillLines(c, lines, width, 1, 0, 100, range[0], range[1]);
+        }
+        return count;
+    }
+}